@@ -0,0 +1,244 @@
+/*
+Copyright 2015 Maciej SIDOR [maciejsidor@gmail.com]
+
+The source code is licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+    
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.	
+ */
+package com.googlecode.msidor.springframework.cache;
+
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.aopalliance.intercept.MethodInvocation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compares cache hits of {@link TimeEvictBlockingCache} with both clocks against the read lock based hit path it replaced.
+ * <br/>
+ * Run with {@code mvn -Pbenchmark test-compile exec:exec -Dbenchmark=TimeEvictBlockingCacheBenchmark},
+ * add {@code -t <threads>} to the JMH arguments to measure contention.
+ *
+ * @author Maciej SIDOR (maciejsidor@gmail.com)
+ * @since 2015
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+@Threads(Threads.MAX)
+public class TimeEvictBlockingCacheBenchmark
+{
+	/**
+	 * Invocation returning a constant, never called on hits
+	 */
+	private final MethodInvocation invocation = new ConstantInvocation();
+
+	/**
+	 * Cache reading the system clock
+	 */
+	private TimeEvictBlockingCache systemClockCache;
+
+	/**
+	 * Coarse clock of the cache reading it
+	 */
+	private CoarseCacheClock coarseClock;
+
+	/**
+	 * Cache reading the coarse clock
+	 */
+	private TimeEvictBlockingCache coarseClockCache;
+
+	/**
+	 * Read lock based hit path
+	 */
+	private final ReadLockCache readLockCache = new ReadLockCache();
+
+	/**
+	 * Creates the caches and loads them
+	 */
+	@Setup(Level.Trial)
+	public void setUp() throws Throwable
+	{
+		systemClockCache = new TimeEvictBlockingCache();
+		systemClockCache.setCacheExpirationTime(TimeUnit.HOURS.toMillis(1));
+		systemClockCache.invoke(invocation);
+
+		coarseClock = new CoarseCacheClock();
+		coarseClockCache = new TimeEvictBlockingCache();
+		coarseClockCache.setCacheExpirationTime(TimeUnit.HOURS.toMillis(1));
+		coarseClockCache.setClock(coarseClock);
+		coarseClockCache.invoke(invocation);
+	}
+
+	/**
+	 * Stops the coarse clock and the caches
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception
+	{
+		systemClockCache.destroy();
+		coarseClockCache.destroy();
+		coarseClock.destroy();
+	}
+
+	/**
+	 * @return cached object read from the snapshot with the system clock
+	 */
+	@Benchmark
+	public Object snapshotSystemClock() throws Throwable
+	{
+		return systemClockCache.invoke(invocation);
+	}
+
+	/**
+	 * @return cached object read from the snapshot with the coarse clock
+	 */
+	@Benchmark
+	public Object snapshotCoarseClock() throws Throwable
+	{
+		return coarseClockCache.invoke(invocation);
+	}
+
+	/**
+	 * @return cached object read under the read lock
+	 */
+	@Benchmark
+	public Object readLock() throws Throwable
+	{
+		return readLockCache.invoke(invocation);
+	}
+
+	/**
+	 * Hit path of the cache before the snapshot: read lock, wall clock and trace message built on each call
+	 *
+	 * @author Maciej SIDOR (maciejsidor@gmail.com)
+	 * @since 2015
+	 */
+	private static final class ReadLockCache
+	{
+		/**
+		 * The logger
+		 */
+		private final Logger log = LoggerFactory.getLogger(ReadLockCache.class);
+
+		/**
+		 * Read lock taken on each hit
+		 */
+		private final ReentrantReadWriteLock.ReadLock readLock = new ReentrantReadWriteLock().readLock();
+
+		/**
+		 * The cached object
+		 */
+		private final Object cacheObject = new Object();
+
+		/**
+		 * Time of the last load, never expired
+		 */
+		private final long lastCacheUpdate = System.currentTimeMillis();
+
+		/**
+		 * @param invocation the invocation
+		 * @return the cached object
+		 */
+		Object invoke(MethodInvocation invocation) throws Throwable
+		{
+			log.trace("Intercepting "+invocation.getMethod().toGenericString());
+			readLock.lock();
+
+			try
+			{
+				if(System.currentTimeMillis()-lastCacheUpdate>TimeUnit.HOURS.toMillis(1))
+				{
+					return invocation.proceed();
+				}
+
+				return cacheObject;
+			}
+			finally
+			{
+				readLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Invocation of {@link Object#toString()} returning a constant
+	 *
+	 * @author Maciej SIDOR (maciejsidor@gmail.com)
+	 * @since 2015
+	 */
+	private static final class ConstantInvocation implements MethodInvocation
+	{
+		/**
+		 * The invoked method
+		 */
+		private final Method method;
+
+		/**
+		 * Resolves the invoked method
+		 */
+		ConstantInvocation()
+		{
+			try
+			{
+				method = Object.class.getMethod("toString");
+			}
+			catch (NoSuchMethodException e)
+			{
+				throw new IllegalStateException(e);
+			}
+		}
+
+		public Method getMethod()
+		{
+			return method;
+		}
+
+		public Object[] getArguments()
+		{
+			return new Object[0];
+		}
+
+		public Object proceed()
+		{
+			return "value";
+		}
+
+		public Object getThis()
+		{
+			return this;
+		}
+
+		public AccessibleObject getStaticPart()
+		{
+			return method;
+		}
+	}
+}
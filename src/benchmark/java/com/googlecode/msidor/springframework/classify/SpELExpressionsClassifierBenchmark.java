@@ -0,0 +1,151 @@
+/*
+Copyright 2015 Maciej SIDOR [maciejsidor@gmail.com]
+
+The source code is licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+    
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.	
+ */
+package com.googlecode.msidor.springframework.classify;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.expression.ExpressionParser;
+import org.springframework.expression.spel.SpelCompilerMode;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+
+/**
+ * Compares classification by {@link SpELExpressionsClassifier}, with compiled and interpreted expressions, 
+ * against parsing every expression on each call as the classifier did before expressions were parsed once.
+ * <br/>
+ * The object matches the second of three mappings, none of which is type-only.
+ * Run with {@code mvn -Pbenchmark test-compile exec:exec -Dbenchmark=SpELExpressionsClassifierBenchmark}.
+ *
+ * @author Maciej SIDOR (maciejsidor@gmail.com)
+ * @since 2015
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class SpELExpressionsClassifierBenchmark
+{
+	/**
+	 * Classified object
+	 */
+	private final Exception classifiable = new IllegalStateException("Connection refused");
+	
+	/**
+	 * The mappings
+	 */
+	private final List<SpELExpressionsClassifierConfig<String>> mappings = new ArrayList<SpELExpressionsClassifierConfig<String>>();
+	
+	/**
+	 * Parser used on each call
+	 */
+	private final ExpressionParser parser = new SpelExpressionParser();
+	
+	/**
+	 * Classifier compiling the expressions
+	 */
+	private final SpELExpressionsClassifier<Exception, String> compiled;
+	
+	/**
+	 * Classifier interpreting the expressions
+	 */
+	private final SpELExpressionsClassifier<Exception, String> interpreted;
+	
+	/**
+	 * Creates the mappings and the classifiers
+	 */
+	public SpELExpressionsClassifierBenchmark()
+	{
+		mappings.add(mapping("message!=null && message.startsWith('Timeout')", "timeout", false));
+		mappings.add(mapping("message!=null && message.endsWith('refused')", "refused", false));
+		mappings.add(mapping("cause!=null", "wrapped", false));
+		mappings.add(mapping("false", "other", true));
+		
+		compiled = new SpELExpressionsClassifier<Exception, String>(mappings);
+		
+		interpreted = new SpELExpressionsClassifier<Exception, String>(mappings);
+		interpreted.setCompilerMode(SpelCompilerMode.OFF);
+	}
+	
+	/**
+	 * @return value of the first mapping which expression, parsed on this call, evaluates to true
+	 */
+	@Benchmark
+	public String parsePerCall()
+	{
+		String defaultValue = null;
+		
+		for (SpELExpressionsClassifierConfig<String> config : mappings) 
+		{
+			if(parser.parseExpression(config.getExpression()).getValue(classifiable, Boolean.class))
+			{
+				return config.getValue();
+			}
+			
+			if(config.isDefault())
+			{
+				defaultValue = config.getValue();
+			}
+		}
+		
+		return defaultValue;
+	}
+	
+	/**
+	 * @return value classified with interpreted expressions
+	 */
+	@Benchmark
+	public String interpreted()
+	{
+		return interpreted.classify(classifiable);
+	}
+	
+	/**
+	 * @return value classified with compiled expressions
+	 */
+	@Benchmark
+	public String compiled()
+	{
+		return compiled.classify(classifiable);
+	}
+	
+	/**
+	 * @param expression SpEL expression
+	 * @param value value of the mapping
+	 * @param isDefault true if the mapping is the default one
+	 * @return new mapping
+	 */
+	private static SpELExpressionsClassifierConfig<String> mapping(String expression, String value, boolean isDefault)
+	{
+		SpELExpressionsClassifierConfig<String> config = new SpELExpressionsClassifierConfig<String>();
+		config.setExpression(expression);
+		config.setValue(value);
+		config.setDefault(isDefault);
+		
+		return config;
+	}
+}
@@ -0,0 +1,39 @@
+/*
+Copyright 2015 Maciej SIDOR [maciejsidor@gmail.com]
+
+The source code is licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+    
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.	
+ */
+package com.googlecode.msidor.springframework.cache;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Bulk loader used by {@link BatchLoadingTimeEvictCache} to load many keys in one call.
+ * 
+ * @param <K> type of keys
+ * @param <V> type of values
+ * @author Maciej SIDOR (maciejsidor@gmail.com)
+ * @since 2015
+ */
+public interface BatchLoader<K, V> 
+{
+	/**
+	 * Loads values of given keys.
+	 * 
+	 * @param keys keys to load, without duplicates
+	 * @return loaded values mapped by their keys, keys missing in the map are cached with null value
+	 * @throws Exception if values could not be loaded, each caller waiting for the batch throws its own copy of the exception
+	 */
+	Map<K, V> loadAll(Collection<K> keys) throws Exception;
+}
@@ -0,0 +1,695 @@
+/*
+Copyright 2015 Maciej SIDOR [maciejsidor@gmail.com]
+
+The source code is licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+    
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.	
+ */
+package com.googlecode.msidor.springframework.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.cache.interceptor.KeyGenerator;
+import org.springframework.cache.interceptor.SimpleKeyGenerator;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.util.Assert;
+
+/**
+ * Keyed time based evict cache that coalesces concurrent loads into batches.
+ * <br/>
+ * This cache is a method intercepter that caches method result for a given time, separately for each key 
+ * (method arguments mapped by a {@link KeyGenerator}, {@link SimpleKeyGenerator} by default, so the single argument itself for single argument methods).
+ * <br/>
+ * 
+ * The proxied method is never invoked. Keys that are not cached are collected for a short {@link #setBatchWindow(long) batch window} 
+ * or until {@link #setMaxBatchSize(int) max batch size} is reached and loaded all at once by the {@link BatchLoader}. 
+ * Loaded values are then handed to the waiting callers and cached. 
+ * Callers reading a key that is already being loaded wait for the same batch, so each key is loaded once.
+ * Callers wait at most {@link #setLoadTimeout(long) load timeout} for the batch.
+ * <br/>
+ * 
+ * Batches are loaded by the {@link #setLoadExecutor(Executor) load executor}, so a slow batch does not delay the following ones.
+ * When the cache is destroyed, callers waiting for a batch not loaded yet get an exception.
+ * <br/>
+ * 
+ * Reading a valid cached value takes no lock. 
+ * Expired values are reloaded on demand but never removed automatically. 
+ * Use {@link #evictExpired()} (for instance from a scheduled task) if the key space is not bounded.
+ * 
+ * @see KeyedTimeEvictBlockingCache
+ * @author Maciej SIDOR (maciejsidor@gmail.com)
+ * @since 2015
+ */
+public class BatchLoadingTimeEvictCache implements MethodInterceptor, DisposableBean 
+{
+	/**
+	 * The cache logger
+	 */
+	private final Logger log = LoggerFactory.getLogger(this.getClass());
+	
+	/**
+	 * Cached values mapped by their keys
+	 */
+	private final ConcurrentMap<Object, CachedValue> 				values 			= new ConcurrentHashMap<Object, CachedValue>();
+	
+	/**
+	 * Pending loads mapped by their keys
+	 */
+	private final ConcurrentMap<Object, CompletableFuture<Object>> 	pending 		= new ConcurrentHashMap<Object, CompletableFuture<Object>>();
+	
+	/**
+	 * Keys collected for the next batch, guarded by itself
+	 */
+	private final List<Object> 										batch 			= new ArrayList<Object>();
+	
+	/**
+	 * Scheduled dispatch of the next batch, guarded by the batch
+	 */
+	private ScheduledFuture<?> 										scheduledBatch 	= null;
+	
+	/**
+	 * Maps method arguments to the cache key
+	 */
+	private KeyGenerator keyGenerator = new SimpleKeyGenerator();
+	
+	/**
+	 * Loads the batches
+	 */
+	private BatchLoader<Object, Object> batchLoader = null;
+	
+	/**
+	 * Clock used to check expiration
+	 */
+	private CacheClock clock = SystemCacheClock.INSTANCE;
+	
+	/**
+	 * Time after which the cached value will be renewed
+	 */
+	private long cacheExpirationTime = 0;
+	
+	/**
+	 * Time during which keys are collected before the batch is loaded
+	 */
+	private long batchWindow = 10;
+	
+	/**
+	 * Number of keys after which the batch is loaded without waiting for the batch window to elapse
+	 */
+	private int maxBatchSize = 100;
+	
+	/**
+	 * Scheduler used to load the batches
+	 */
+	private ScheduledExecutorService batchScheduler = null;
+	
+	/**
+	 * True if batch scheduler was created by this cache
+	 */
+	private boolean ownBatchScheduler = false;
+	
+	/**
+	 * Executor used to load the batches
+	 */
+	private Executor loadExecutor = null;
+	
+	/**
+	 * True if load executor was created by this cache
+	 */
+	private boolean ownLoadExecutor = false;
+	
+	/**
+	 * Maximal time a caller waits for the batch loading its key
+	 */
+	private long loadTimeout = 30000;
+	
+	/**
+	 * Set to true when cache is destroyed
+	 */
+	private volatile boolean destroyed = false;
+
+	/**
+	 * @return Time after which the cached value will be renewed
+	 */
+	public long getCacheExpirationTime() 
+	{
+		return cacheExpirationTime;
+	}
+
+	/**
+	 * Sets time after which the cached value will be renewed
+	 * @param cacheExpirationTime
+	 */
+	public void setCacheExpirationTime(long cacheExpirationTime) 
+	{
+		this.cacheExpirationTime = cacheExpirationTime;
+	}
+
+	/**
+	 * @return generator used to map method arguments to the cache key
+	 */
+	public KeyGenerator getKeyGenerator() 
+	{
+		return keyGenerator;
+	}
+
+	/**
+	 * Sets generator used to map method arguments to the cache key, the keys are passed to the batch loader.
+	 * {@link SimpleKeyGenerator} is used by default.
+	 * 
+	 * @param keyGenerator the key generator to set
+	 */
+	public void setKeyGenerator(KeyGenerator keyGenerator) 
+	{
+		Assert.notNull(keyGenerator, "Key generator must not be null");
+		this.keyGenerator = keyGenerator;
+	}
+
+	/**
+	 * @return loader of the batches
+	 */
+	public BatchLoader<?, ?> getBatchLoader() 
+	{
+		return batchLoader;
+	}
+
+	/**
+	 * Sets loader of the batches, it is called instead of the proxied method.
+	 * 
+	 * @param batchLoader the batchLoader to set
+	 */
+	@SuppressWarnings("unchecked")
+	public void setBatchLoader(BatchLoader<?, ?> batchLoader) 
+	{
+		this.batchLoader = (BatchLoader<Object, Object>) batchLoader;
+	}
+
+	/**
+	 * @return clock used to check expiration
+	 */
+	public CacheClock getClock() 
+	{
+		return clock;
+	}
+
+	/**
+	 * Sets clock used to check expiration. {@link SystemCacheClock} is used by default.
+	 * 
+	 * @param clock the clock to set
+	 */
+	public void setClock(CacheClock clock) 
+	{
+		Assert.notNull(clock, "Clock must not be null");
+		this.clock = clock;
+	}
+
+	/**
+	 * @return time during which keys are collected before the batch is loaded
+	 */
+	public long getBatchWindow() 
+	{
+		return batchWindow;
+	}
+
+	/**
+	 * Sets time during which keys are collected before the batch is loaded, counted from the first key of the batch. 
+	 * Default is 10 milliseconds.
+	 * 
+	 * @param batchWindow the batchWindow to set
+	 */
+	public void setBatchWindow(long batchWindow) 
+	{
+		this.batchWindow = batchWindow;
+	}
+
+	/**
+	 * @return number of keys after which the batch is loaded without waiting for the batch window to elapse
+	 */
+	public int getMaxBatchSize() 
+	{
+		return maxBatchSize;
+	}
+
+	/**
+	 * Sets number of keys after which the batch is loaded without waiting for the batch window to elapse. 
+	 * Default is 100.
+	 * 
+	 * @param maxBatchSize the maxBatchSize to set
+	 */
+	public void setMaxBatchSize(int maxBatchSize) 
+	{
+		Assert.isTrue(maxBatchSize>0, "Max batch size must be positive");
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	/**
+	 * @return scheduler used to load the batches
+	 */
+	public ScheduledExecutorService getBatchScheduler() 
+	{
+		return batchScheduler;
+	}
+
+	/**
+	 * Sets scheduler used to load the batches once the batch window elapses. 
+	 * If not set, a single daemon thread scheduler is created on first use and shut down when the cache is destroyed.
+	 * 
+	 * @param batchScheduler the batchScheduler to set
+	 */
+	public void setBatchScheduler(ScheduledExecutorService batchScheduler) 
+	{
+		this.batchScheduler = batchScheduler;
+	}
+
+	/**
+	 * @return executor used to load the batches
+	 */
+	public Executor getLoadExecutor() 
+	{
+		return loadExecutor;
+	}
+
+	/**
+	 * Sets executor used to load the batches once the batch window elapses. 
+	 * If not set, a daemon thread pool is created on first use and shut down when the cache is destroyed.
+	 * A batch full before the batch window elapses is loaded by the caller that filled it.
+	 * 
+	 * @param loadExecutor the loadExecutor to set
+	 */
+	public void setLoadExecutor(Executor loadExecutor) 
+	{
+		this.loadExecutor = loadExecutor;
+	}
+
+	/**
+	 * @return maximal time a caller waits for the batch loading its key
+	 */
+	public long getLoadTimeout() 
+	{
+		return loadTimeout;
+	}
+
+	/**
+	 * Sets maximal time a caller waits for the batch loading its key, 30 seconds by default. 
+	 * After this time the caller gets {@link IllegalStateException}, the batch itself is not cancelled.
+	 * 
+	 * @param loadTimeout the loadTimeout to set
+	 */
+	public void setLoadTimeout(long loadTimeout) 
+	{
+		Assert.isTrue(loadTimeout>0, "Load timeout must be positive");
+		this.loadTimeout = loadTimeout;
+	}
+
+	/**
+	 * @return number of values currently held by the cache (including the expired ones)
+	 */
+	public int size() 
+	{
+		return values.size();
+	}
+	
+	/**
+	 * Removes all expired values from the cache.
+	 */
+	public void evictExpired() 
+	{
+		long now = clock.nanoTime();
+		
+		for (Iterator<CachedValue> it = values.values().iterator(); it.hasNext();) 
+		{
+			if(!it.next().isValid(now))
+			{
+				it.remove();
+			}
+		}
+	}
+	
+	/**
+	 * Removes all values from the cache. Pending loads are not affected.
+	 */
+	public void clear() 
+	{
+		values.clear();
+	}
+	
+	/**
+	 * Shuts down the batch scheduler and the load executor if they were created by this cache. 
+	 * Callers waiting for a batch not loaded yet get {@link IllegalStateException}.
+	 */
+	public void destroy() 
+	{
+		destroyed = true;
+		
+		synchronized (this) 
+		{
+			if(ownBatchScheduler)
+			{
+				batchScheduler.shutdownNow();
+			}
+			
+			if(ownLoadExecutor)
+			{
+				((ExecutorService) loadExecutor).shutdownNow();
+			}
+		}
+		
+		synchronized (batch) 
+		{
+			takeBatch();
+		}
+		
+		/*batches already taken may be lost with the executors, fail all pending loads so that no caller waits forever*/
+		IllegalStateException failure = new IllegalStateException("Cache is destroyed");
+		
+		for (Object key : pending.keySet()) 
+		{
+			CompletableFuture<Object> load = pending.remove(key);
+			if(load!=null)
+			{
+				load.completeExceptionally(failure);
+			}
+		}
+	}
+
+	/**
+	 * Method call interception.
+	 * Returns the cached value or waits for the batch loading the key.
+	 * 
+	 * @param method call parameters
+	 * @return cached or loaded value
+	 */
+	public Object invoke(MethodInvocation invocation) throws Throwable 
+	{
+		Assert.state(batchLoader!=null, "Batch loader must be set");
+		Assert.state(!destroyed, "Cache is destroyed");
+		
+		Object key = keyGenerator.generate(invocation.getThis(), invocation.getMethod(), invocation.getArguments());
+		
+		/*return valid cached value without any lock - most of time only this part of code is executed*/
+		CachedValue cached = values.get(key);
+		if(cached!=null && cached.isValid(clock.nanoTime()))
+		{
+			return cached.value;
+		}
+		
+		/*join the pending load of the key or register a new one*/
+		CompletableFuture<Object> load = pending.get(key);
+		if(load==null)
+		{
+			CompletableFuture<Object> newLoad = new CompletableFuture<Object>();
+			load = pending.putIfAbsent(key, newLoad);
+			
+			if(load==null)
+			{
+				load = newLoad;
+				
+				/*check again as the value could have been loaded before the load was registered*/
+				cached = values.get(key);
+				if(cached!=null && cached.isValid(clock.nanoTime()))
+				{
+					pending.remove(key, newLoad);
+					newLoad.complete(cached.value);
+				}
+				else
+				{
+					enqueue(key);
+				}
+			}
+		}
+		
+		try
+		{
+			return load.get(loadTimeout, TimeUnit.MILLISECONDS);
+		}
+		catch (ExecutionException e)
+		{
+			/*all callers waiting for the batch get the same failure, each of them throws its own copy*/
+			throw TimeEvictBlockingCache.copyFailure(e.getCause());
+		}
+		catch (TimeoutException e)
+		{
+			throw new IllegalStateException("Batch loading key "+key+" timed out after "+loadTimeout+" ms", e);
+		}
+	}
+	
+	/**
+	 * Adds the key to the next batch. 
+	 * The batch is loaded by the calling thread if full, otherwise its loading is scheduled when the first key is added.
+	 * 
+	 * @param key the key to load
+	 */
+	private void enqueue(Object key)
+	{
+		List<Object> keys = null;
+		
+		synchronized (batch) 
+		{
+			batch.add(key);
+			
+			if(batch.size()>=maxBatchSize)
+			{
+				keys = takeBatch();
+			}
+			else if(batch.size()==1)
+			{
+				keys = scheduleBatch();
+			}
+		}
+		
+		if(keys!=null)
+		{
+			loadBatch(keys);
+		}
+	}
+	
+	/**
+	 * Schedules loading of the current batch once the batch window elapses. Must be called holding the batch lock.
+	 * 
+	 * @return keys of the current batch if loading could not be scheduled, null otherwise
+	 */
+	private List<Object> scheduleBatch()
+	{
+		try
+		{
+			scheduledBatch = getOrCreateBatchScheduler().schedule(new Runnable() 
+			{
+				public void run() 
+				{
+					List<Object> keys;
+					
+					synchronized (batch) 
+					{
+						keys = takeBatch();
+					}
+					
+					if(!keys.isEmpty())
+					{
+						submitBatch(keys);
+					}
+				}
+			}, batchWindow, TimeUnit.MILLISECONDS);
+			
+			return null;
+		}
+		catch (RejectedExecutionException e)
+		{
+			/*scheduler is shut down, load the batch right away*/
+			log.warn("Batch loading could not be scheduled", e);
+			return takeBatch();
+		}
+	}
+	
+	/**
+	 * Takes the keys of the current batch and cancels its scheduled loading. Must be called holding the batch lock.
+	 * 
+	 * @return keys of the current batch
+	 */
+	private List<Object> takeBatch()
+	{
+		List<Object> keys = new ArrayList<Object>(batch);
+		batch.clear();
+		
+		if(scheduledBatch!=null)
+		{
+			scheduledBatch.cancel(false);
+			scheduledBatch = null;
+		}
+		
+		return keys;
+	}
+	
+	/**
+	 * Hands the batch over to the load executor, so that the batch scheduler is free to dispatch the following batches. 
+	 * The batch is loaded by the calling thread if the load executor rejects it.
+	 * 
+	 * @param keys keys of the batch
+	 */
+	private void submitBatch(final List<Object> keys)
+	{
+		try
+		{
+			getOrCreateLoadExecutor().execute(new Runnable() 
+			{
+				public void run() 
+				{
+					loadBatch(keys);
+				}
+			});
+		}
+		catch (RejectedExecutionException e)
+		{
+			log.warn("Batch loading could not be handed over to the load executor", e);
+			loadBatch(keys);
+		}
+	}
+	
+	/**
+	 * Loads the batch, caches the loaded values and hands them to the waiting callers.
+	 * 
+	 * @param keys keys of the batch
+	 */
+	private void loadBatch(Collection<Object> keys)
+	{
+		log.trace("Loading batch of {} keys", keys.size());
+		
+		Map<Object, Object> loaded;
+		
+		try
+		{
+			loaded = batchLoader.loadAll(keys);
+		}
+		catch (Throwable e)
+		{
+			log.trace("Batch loading failed");
+			
+			for (Object key : keys) 
+			{
+				CompletableFuture<Object> load = pending.remove(key);
+				if(load!=null)
+				{
+					load.completeExceptionally(e);
+				}
+			}
+			
+			return;
+		}
+		
+		long expiry = clock.nanoTime()+TimeUnit.MILLISECONDS.toNanos(cacheExpirationTime);
+		
+		for (Object key : keys) 
+		{
+			Object value = loaded!=null ? loaded.get(key) : null;
+			
+			/*cache the value before the pending load is removed so that readers never miss both*/
+			values.put(key, new CachedValue(value, expiry));
+			
+			CompletableFuture<Object> load = pending.remove(key);
+			if(load!=null)
+			{
+				load.complete(value);
+			}
+		}
+	}
+	
+	/**
+	 * @return batch scheduler, created on first use if not set
+	 */
+	private synchronized ScheduledExecutorService getOrCreateBatchScheduler()
+	{
+		if(batchScheduler==null)
+		{
+			CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("BatchLoadingTimeEvictCache-batch-");
+			threadFactory.setDaemon(true);
+			
+			batchScheduler 		= Executors.newSingleThreadScheduledExecutor(threadFactory);
+			ownBatchScheduler 	= true;
+		}
+		
+		return batchScheduler;
+	}
+	
+	/**
+	 * @return load executor, created on first use if not set
+	 */
+	private synchronized Executor getOrCreateLoadExecutor()
+	{
+		if(loadExecutor==null)
+		{
+			CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("BatchLoadingTimeEvictCache-load-");
+			threadFactory.setDaemon(true);
+			
+			loadExecutor 		= Executors.newCachedThreadPool(threadFactory);
+			ownLoadExecutor 	= true;
+		}
+		
+		return loadExecutor;
+	}
+	
+	/**
+	 * Cached value along with its expiration time
+	 * 
+	 * @author Maciej SIDOR (maciejsidor@gmail.com)
+	 * @since 2015
+	 */
+	private static final class CachedValue
+	{
+		/**
+		 * The cached value
+		 */
+		final Object 	value;
+		
+		/**
+		 * Clock time after which the cached value is expired
+		 */
+		final long 		expiry;
+		
+		/**
+		 * @param value the cached value
+		 * @param expiry clock time after which the cached value is expired
+		 */
+		CachedValue(Object value, long expiry)
+		{
+			this.value 	= value;
+			this.expiry = expiry;
+		}
+		
+		/**
+		 * @param now current clock time
+		 * @return true if the cached value is not expired
+		 */
+		boolean isValid(long now)
+		{
+			/*difference is compared instead of values as clock time may overflow*/
+			return expiry-now>=0;
+		}
+	}
+}
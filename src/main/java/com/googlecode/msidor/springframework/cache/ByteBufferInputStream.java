@@ -0,0 +1,71 @@
+/*
+Copyright 2015 Maciej SIDOR [maciejsidor@gmail.com]
+
+The source code is licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+    
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.	
+ */
+package com.googlecode.msidor.springframework.cache;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Input stream reading directly from a byte buffer, without copying it to the heap.
+ * 
+ * @author Maciej SIDOR (maciejsidor@gmail.com)
+ * @since 2015
+ */
+class ByteBufferInputStream extends InputStream
+{
+	/**
+	 * The buffer to read from
+	 */
+	private final ByteBuffer buffer;
+	
+	/**
+	 * @param buffer the buffer to read from, its position is moved while reading
+	 */
+	ByteBufferInputStream(ByteBuffer buffer)
+	{
+		this.buffer = buffer;
+	}
+
+	@Override
+	public int read() 
+	{
+		return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+	}
+	
+	@Override
+	public int read(byte[] bytes, int offset, int length) 
+	{
+		if(length==0)
+		{
+			return 0;
+		}
+		
+		if(!buffer.hasRemaining())
+		{
+			return -1;
+		}
+		
+		int count = Math.min(length, buffer.remaining());
+		buffer.get(bytes, offset, count);
+		return count;
+	}
+	
+	@Override
+	public int available() 
+	{
+		return buffer.remaining();
+	}
+}
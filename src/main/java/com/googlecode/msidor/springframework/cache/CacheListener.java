@@ -0,0 +1,51 @@
+/*
+Copyright 2015 Maciej SIDOR [maciejsidor@gmail.com]
+
+The source code is licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+    
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.	
+ */
+package com.googlecode.msidor.springframework.cache;
+
+/**
+ * Listener notified by {@link TimeEvictBlockingCache} about cache loads and blocked readers.
+ * <br/>
+ * Listeners are never notified on cache hits, so they add nothing to the hit path. 
+ * Listeners are called synchronously by the loading or waiting thread and must not block.
+ * 
+ * @see CacheStatistics
+ * @author Maciej SIDOR (maciejsidor@gmail.com)
+ * @since 2015
+ */
+public interface CacheListener 
+{
+	/**
+	 * Called after the cached object was successfully loaded.
+	 * 
+	 * @param loadTime time spent loading the object, in nanoseconds
+	 */
+	void onLoad(long loadTime);
+	
+	/**
+	 * Called after loading the cached object failed.
+	 * 
+	 * @param failure the exception thrown while loading
+	 * @param loadTime time spent loading the object, in nanoseconds
+	 */
+	void onLoadFailure(Throwable failure, long loadTime);
+	
+	/**
+	 * Called after a reading thread was blocked waiting for the cached object to be loaded.
+	 * 
+	 * @param waitTime time spent waiting, in nanoseconds
+	 */
+	void onWait(long waitTime);
+}
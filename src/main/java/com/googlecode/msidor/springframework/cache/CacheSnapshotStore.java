@@ -0,0 +1,47 @@
+/*
+Copyright 2015 Maciej SIDOR [maciejsidor@gmail.com]
+
+The source code is licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+    
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.	
+ */
+package com.googlecode.msidor.springframework.cache;
+
+import java.io.IOException;
+
+/**
+ * Persistent store of the cached object.
+ * <br/>
+ * Used by {@link TimeEvictBlockingCache} to save the cached object after each load 
+ * and to pre-populate the cache on startup so that it serves data before the first load ends.
+ * 
+ * @see FileCacheSnapshotStore
+ * @author Maciej SIDOR (maciejsidor@gmail.com)
+ * @since 2015
+ */
+public interface CacheSnapshotStore 
+{
+	/**
+	 * Saves the cached object, replacing the previously saved one.
+	 * 
+	 * @param snapshot the cached object along with its load time
+	 * @throws IOException if object could not be saved
+	 */
+	void save(StoredCacheSnapshot snapshot) throws IOException;
+	
+	/**
+	 * Loads the last saved cached object.
+	 * 
+	 * @return the cached object along with its load time or null if nothing was saved yet
+	 * @throws IOException if object could not be loaded
+	 */
+	StoredCacheSnapshot load() throws IOException;
+}
@@ -0,0 +1,268 @@
+/*
+Copyright 2015 Maciej SIDOR [maciejsidor@gmail.com]
+
+The source code is licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+    
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.	
+ */
+package com.googlecode.msidor.springframework.cache;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Statistics of a {@link TimeEvictBlockingCache}: hits, misses, loads, load failures and blocked readers, 
+ * along with load time and wait time histograms.
+ * <br/>
+ * All counters are striped ({@link LongAdder}), so recording adds no contention to the cache.
+ * <br/>
+ * The class is annotated for Spring JMX export: declare it as a bean, inject it into the cache 
+ * with {@link TimeEvictBlockingCache#setStatistics(CacheStatistics)} and export it with an annotation driven MBean exporter.
+ * Times exposed through JMX are in milliseconds.
+ * 
+ * @author Maciej SIDOR (maciejsidor@gmail.com)
+ * @since 2015
+ */
+@ManagedResource(description="Time evict blocking cache statistics")
+public class CacheStatistics implements CacheListener
+{
+	/**
+	 * Number of calls that returned valid cached object
+	 */
+	private final LongAdder 		hits 			= new LongAdder();
+	
+	/**
+	 * Number of calls that found cached object missing or expired
+	 */
+	private final LongAdder 		misses 			= new LongAdder();
+	
+	/**
+	 * Number of calls that returned expired cached object
+	 */
+	private final LongAdder 		staleHits 		= new LongAdder();
+	
+	/**
+	 * Number of failed loads
+	 */
+	private final LongAdder 		loadFailures 	= new LongAdder();
+	
+	/**
+	 * Durations of successful loads
+	 */
+	private final LatencyHistogram 	loadTime 		= new LatencyHistogram();
+	
+	/**
+	 * Durations of waits for load
+	 */
+	private final LatencyHistogram 	waitTime 		= new LatencyHistogram();
+	
+	/**
+	 * Records a call that returned valid cached object
+	 */
+	public void recordHit() 
+	{
+		hits.increment();
+	}
+	
+	/**
+	 * Records a call that found cached object missing or expired
+	 */
+	public void recordMiss() 
+	{
+		misses.increment();
+	}
+	
+	/**
+	 * Records a call that returned expired cached object
+	 */
+	public void recordStaleHit() 
+	{
+		staleHits.increment();
+	}
+
+	/**
+	 * Records a successful load
+	 */
+	public void onLoad(long loadTime) 
+	{
+		this.loadTime.record(loadTime);
+	}
+
+	/**
+	 * Records a failed load
+	 */
+	public void onLoadFailure(Throwable failure, long loadTime) 
+	{
+		loadFailures.increment();
+	}
+
+	/**
+	 * Records a wait for load
+	 */
+	public void onWait(long waitTime) 
+	{
+		this.waitTime.record(waitTime);
+	}
+	
+	/**
+	 * @return number of calls that returned valid cached object
+	 */
+	@ManagedAttribute(description="Number of calls that returned valid cached object")
+	public long getHitCount() 
+	{
+		return hits.sum();
+	}
+	
+	/**
+	 * @return number of calls that found cached object missing or expired
+	 */
+	@ManagedAttribute(description="Number of calls that found cached object missing or expired")
+	public long getMissCount() 
+	{
+		return misses.sum();
+	}
+	
+	/**
+	 * @return number of calls that returned expired cached object
+	 */
+	@ManagedAttribute(description="Number of calls that returned expired cached object")
+	public long getStaleHitCount() 
+	{
+		return staleHits.sum();
+	}
+	
+	/**
+	 * @return ratio of calls that returned valid cached object
+	 */
+	@ManagedAttribute(description="Ratio of calls that returned valid cached object")
+	public double getHitRatio() 
+	{
+		long hitCount 	= hits.sum();
+		long total 		= hitCount+misses.sum();
+		
+		return total==0 ? 0 : (double) hitCount/total;
+	}
+	
+	/**
+	 * @return number of successful loads
+	 */
+	@ManagedAttribute(description="Number of successful loads")
+	public long getLoadCount() 
+	{
+		return loadTime.getCount();
+	}
+	
+	/**
+	 * @return number of failed loads
+	 */
+	@ManagedAttribute(description="Number of failed loads")
+	public long getLoadFailureCount() 
+	{
+		return loadFailures.sum();
+	}
+	
+	/**
+	 * @return number of calls blocked waiting for load
+	 */
+	@ManagedAttribute(description="Number of calls blocked waiting for load")
+	public long getBlockedReaderCount() 
+	{
+		return waitTime.getCount();
+	}
+	
+	/**
+	 * @return mean duration of successful loads, in milliseconds
+	 */
+	@ManagedAttribute(description="Mean duration of successful loads, in milliseconds")
+	public long getAverageLoadTime() 
+	{
+		return TimeUnit.NANOSECONDS.toMillis(loadTime.getMean());
+	}
+	
+	/**
+	 * @return maximal duration of successful loads, in milliseconds
+	 */
+	@ManagedAttribute(description="Maximal duration of successful loads, in milliseconds")
+	public long getMaxLoadTime() 
+	{
+		return TimeUnit.NANOSECONDS.toMillis(loadTime.getMax());
+	}
+	
+	/**
+	 * @return approximated 99th percentile of successful loads durations, in milliseconds
+	 */
+	@ManagedAttribute(description="Approximated 99th percentile of successful loads durations, in milliseconds")
+	public long getLoadTime99thPercentile() 
+	{
+		return TimeUnit.NANOSECONDS.toMillis(loadTime.getPercentile(99));
+	}
+	
+	/**
+	 * @return mean duration of waits for load, in milliseconds
+	 */
+	@ManagedAttribute(description="Mean duration of waits for load, in milliseconds")
+	public long getAverageWaitTime() 
+	{
+		return TimeUnit.NANOSECONDS.toMillis(waitTime.getMean());
+	}
+	
+	/**
+	 * @return maximal duration of waits for load, in milliseconds
+	 */
+	@ManagedAttribute(description="Maximal duration of waits for load, in milliseconds")
+	public long getMaxWaitTime() 
+	{
+		return TimeUnit.NANOSECONDS.toMillis(waitTime.getMax());
+	}
+	
+	/**
+	 * @return approximated 99th percentile of waits for load durations, in milliseconds
+	 */
+	@ManagedAttribute(description="Approximated 99th percentile of waits for load durations, in milliseconds")
+	public long getWaitTime99thPercentile() 
+	{
+		return TimeUnit.NANOSECONDS.toMillis(waitTime.getPercentile(99));
+	}
+	
+	/**
+	 * @return histogram of successful loads durations
+	 */
+	public LatencyHistogram getLoadTimeHistogram() 
+	{
+		return loadTime;
+	}
+	
+	/**
+	 * @return histogram of waits for load durations
+	 */
+	public LatencyHistogram getWaitTimeHistogram() 
+	{
+		return waitTime;
+	}
+	
+	/**
+	 * Forgets all recorded statistics
+	 */
+	@ManagedOperation(description="Forgets all recorded statistics")
+	public void reset() 
+	{
+		hits.reset();
+		misses.reset();
+		staleHits.reset();
+		loadFailures.reset();
+		loadTime.reset();
+		waitTime.reset();
+	}
+}
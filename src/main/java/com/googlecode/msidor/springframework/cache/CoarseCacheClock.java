@@ -0,0 +1,108 @@
+/*
+Copyright 2015 Maciej SIDOR [maciejsidor@gmail.com]
+
+The source code is licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+    
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.	
+ */
+package com.googlecode.msidor.springframework.cache;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.util.Assert;
+
+/**
+ * Coarse-grained {@link CacheClock}.
+ * <br/>
+ * The time is read from {@link System#nanoTime()} by a daemon thread at fixed precision and published through a volatile field, 
+ * so reading the clock costs a single volatile read. 
+ * The clock may lag behind the real time by up to the precision which is usually negligible compared to cache expiration times.
+ * <br/>
+ * One clock instance may be shared by many caches. The ticking thread is stopped on {@link #destroy()}.
+ * 
+ * @author Maciej SIDOR (maciejsidor@gmail.com)
+ * @since 2015
+ */
+public class CoarseCacheClock implements CacheClock, DisposableBean 
+{
+	/**
+	 * Last time read by the ticking thread
+	 */
+	private volatile long now = System.nanoTime();
+	
+	/**
+	 * Set to false to stop the ticking thread
+	 */
+	private volatile boolean running = true;
+	
+	/**
+	 * Ticking thread
+	 */
+	private final Thread ticker;
+
+	/**
+	 * Creates clock with precision of 1 millisecond
+	 */
+	public CoarseCacheClock() 
+	{
+		this(1);
+	}
+	
+	/**
+	 * Creates clock with given precision
+	 * 
+	 * @param precision time between two clock updates, in milliseconds
+	 */
+	public CoarseCacheClock(final long precision) 
+	{
+		Assert.isTrue(precision>0, "Clock precision must be positive");
+		
+		ticker = new Thread("CoarseCacheClock") 
+		{
+			@Override
+			public void run() 
+			{
+				while(running)
+				{
+					now = System.nanoTime();
+					
+					try
+					{
+						Thread.sleep(precision);
+					}
+					catch (InterruptedException e)
+					{
+						return;
+					}
+				}
+			}
+		};
+		
+		ticker.setDaemon(true);
+		ticker.start();
+	}
+	
+	/**
+	 * @return last time read by the ticking thread
+	 */
+	public long nanoTime() 
+	{
+		return now;
+	}
+
+	/**
+	 * Stops the ticking thread
+	 */
+	public void destroy() 
+	{
+		running = false;
+		ticker.interrupt();
+	}
+}
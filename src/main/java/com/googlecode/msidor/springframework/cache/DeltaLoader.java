@@ -0,0 +1,44 @@
+/*
+Copyright 2015 Maciej SIDOR [maciejsidor@gmail.com]
+
+The source code is licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+    
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.	
+ */
+package com.googlecode.msidor.springframework.cache;
+
+/**
+ * Loader of changes of a map cached by {@link TimeEvictBlockingCache} (see {@link TimeEvictBlockingCache#setDeltaLoader(DeltaLoader)}).
+ * <br/>
+ * Each load returns the entries changed since the version returned by the previous load, along with the new version.
+ * The first load (with {@link #INITIAL_VERSION}) must return all entries.
+ * 
+ * @param <K> type of map keys
+ * @param <V> type of map values
+ * @author Maciej SIDOR (maciejsidor@gmail.com)
+ * @since 2015
+ */
+public interface DeltaLoader<K, V> 
+{
+	/**
+	 * Version passed to the first load
+	 */
+	long INITIAL_VERSION = -1;
+	
+	/**
+	 * Loads entries changed since given version.
+	 * 
+	 * @param sinceVersion version returned by the previous load or {@link #INITIAL_VERSION} on first load
+	 * @return changed entries along with the new version, must be full for the first load
+	 * @throws Exception if changes could not be loaded
+	 */
+	MapDelta<K, V> loadChanges(long sinceVersion) throws Exception;
+}
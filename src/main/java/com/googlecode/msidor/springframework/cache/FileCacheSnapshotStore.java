@@ -0,0 +1,252 @@
+/*
+Copyright 2015 Maciej SIDOR [maciejsidor@gmail.com]
+
+The source code is licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+    
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.	
+ */
+package com.googlecode.msidor.springframework.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.springframework.core.serializer.DefaultDeserializer;
+import org.springframework.core.serializer.DefaultSerializer;
+import org.springframework.core.serializer.Deserializer;
+import org.springframework.core.serializer.Serializer;
+import org.springframework.util.Assert;
+
+/**
+ * {@link CacheSnapshotStore} that keeps the cached object in a local file.
+ * <br/>
+ * Serialization is pluggable through Spring {@link Serializer} and {@link Deserializer}, Java serialization is used by default.
+ * The file is written to a temporary file first and then renamed, so readers never see a partially written snapshot.
+ * Saves are serialized and a snapshot older than the last saved one is skipped, so concurrent saves never overwrite a newer snapshot.
+ * The file is read through a stream and closed right after, so that it can be renamed or deleted on any platform.
+ * 
+ * @author Maciej SIDOR (maciejsidor@gmail.com)
+ * @since 2015
+ */
+public class FileCacheSnapshotStore implements CacheSnapshotStore 
+{
+	/**
+	 * Marks the beginning of snapshot file
+	 */
+	private static final int MAGIC = 0x54454243;
+	
+	/**
+	 * The snapshot file
+	 */
+	private File file;
+	
+	/**
+	 * Serializer used to write the cached object
+	 */
+	private Serializer<Object> serializer = new DefaultSerializer();
+	
+	/**
+	 * Deserializer used to read the cached object
+	 */
+	private Deserializer<Object> deserializer = new DefaultDeserializer();
+	
+	/**
+	 * Load time of the last saved snapshot, guarded by this store
+	 */
+	private long savedLoadTime = 0;
+
+	/**
+	 * Default constructor. Use the setter to set the snapshot file.
+	 */
+	public FileCacheSnapshotStore() 
+	{
+		super();
+	}
+	
+	/**
+	 * @param file the snapshot file
+	 */
+	public FileCacheSnapshotStore(File file) 
+	{
+		super();
+		this.file = file;
+	}
+
+	/**
+	 * @return the snapshot file
+	 */
+	public File getFile() 
+	{
+		return file;
+	}
+
+	/**
+	 * @param file the snapshot file to set
+	 */
+	public void setFile(File file) 
+	{
+		this.file = file;
+	}
+
+	/**
+	 * @return serializer used to write the cached object
+	 */
+	public Serializer<Object> getSerializer() 
+	{
+		return serializer;
+	}
+
+	/**
+	 * Sets serializer used to write the cached object. {@link DefaultSerializer} is used by default.
+	 * @param serializer the serializer to set
+	 */
+	public void setSerializer(Serializer<Object> serializer) 
+	{
+		Assert.notNull(serializer, "Serializer must not be null");
+		this.serializer = serializer;
+	}
+
+	/**
+	 * @return deserializer used to read the cached object
+	 */
+	public Deserializer<Object> getDeserializer() 
+	{
+		return deserializer;
+	}
+
+	/**
+	 * Sets deserializer used to read the cached object. {@link DefaultDeserializer} is used by default.
+	 * @param deserializer the deserializer to set
+	 */
+	public void setDeserializer(Deserializer<Object> deserializer) 
+	{
+		Assert.notNull(deserializer, "Deserializer must not be null");
+		this.deserializer = deserializer;
+	}
+
+	/**
+	 * Writes the snapshot to a temporary file and renames it to the snapshot file. 
+	 * Nothing is written if a more recently loaded snapshot was already saved.
+	 * 
+	 * @param snapshot the cached object along with its load time
+	 */
+	public synchronized void save(StoredCacheSnapshot snapshot) throws IOException 
+	{
+		Assert.notNull(file, "Snapshot file must be set");
+		
+		if(snapshot.getLoadTime()<savedLoadTime)
+		{
+			return;
+		}
+		
+		/*temporary file is unique and in the same directory so that it can be renamed to the snapshot file*/
+		File tempFile = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+		
+		try
+		{
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+			try
+			{
+				out.writeInt(MAGIC);
+				out.writeLong(snapshot.getLoadTime());
+				serializer.serialize(snapshot.getValue(), out);
+				out.flush();
+			}
+			finally
+			{
+				out.close();
+			}
+			
+			/*some platforms can not rename over existing file*/
+			if(!tempFile.renameTo(file) && !(file.delete() && tempFile.renameTo(file)))
+			{
+				throw new IOException("Could not rename "+tempFile+" to "+file);
+			}
+			
+			savedLoadTime = snapshot.getLoadTime();
+		}
+		finally
+		{
+			/*no-op once renamed*/
+			tempFile.delete();
+		}
+	}
+
+	/**
+	 * Reads only the load time of the saved snapshot, without reading the cached object.
+	 * 
+	 * @return time when the saved object was loaded, in milliseconds since epoch, or zero if snapshot file does not exist
+	 * @throws IOException if load time could not be read
+	 */
+	public long loadTime() throws IOException 
+	{
+		Assert.notNull(file, "Snapshot file must be set");
+		
+		if(!file.isFile())
+		{
+			return 0;
+		}
+		
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		try
+		{
+			if(randomAccessFile.length()<12 || randomAccessFile.readInt()!=MAGIC)
+			{
+				throw new IOException("Invalid snapshot file "+file);
+			}
+			
+			return randomAccessFile.readLong();
+		}
+		finally
+		{
+			randomAccessFile.close();
+		}
+	}
+
+	/**
+	 * Reads the snapshot from the snapshot file.
+	 * 
+	 * @return the cached object along with its load time or null if snapshot file does not exist
+	 */
+	public StoredCacheSnapshot load() throws IOException 
+	{
+		Assert.notNull(file, "Snapshot file must be set");
+		
+		if(!file.isFile())
+		{
+			return null;
+		}
+		
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try
+		{
+			if(file.length()<12 || in.readInt()!=MAGIC)
+			{
+				throw new IOException("Invalid snapshot file "+file);
+			}
+			
+			long loadTime = in.readLong();
+			Object value = deserializer.deserialize(in);
+			
+			return new StoredCacheSnapshot(value, loadTime);
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+}
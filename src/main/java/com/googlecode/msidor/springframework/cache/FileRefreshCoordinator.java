@@ -0,0 +1,245 @@
+/*
+Copyright 2015 Maciej SIDOR [maciejsidor@gmail.com]
+
+The source code is licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+    
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.	
+ */
+package com.googlecode.msidor.springframework.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.concurrent.Callable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.core.serializer.DefaultDeserializer;
+import org.springframework.core.serializer.DefaultSerializer;
+import org.springframework.core.serializer.Deserializer;
+import org.springframework.core.serializer.Serializer;
+import org.springframework.util.Assert;
+
+/**
+ * {@link RefreshCoordinator} that uses a directory shared by all nodes.
+ * <br/>
+ * The node holding the file lock on {@code <name>.lock} is elected to load the object 
+ * and publishes it into {@code <name>.snapshot} (see {@link FileCacheSnapshotStore}).
+ * Other nodes read the published object once its load time is newer than their own.
+ * <br/>
+ * Load times are wall clock times ({@link System#currentTimeMillis()}) of the publishing node compared by the other nodes, 
+ * so the clocks of the nodes must be synchronized (for instance by NTP) with a skew well below the cache expiration time. 
+ * Objects published by a node which clock is ahead are kept longer by the other nodes, 
+ * objects published by a node which clock is behind may be considered expired right away and loaded again.
+ * <br/>
+ * File locks are held on behalf of the whole JVM, so within one JVM only one cache per name should use the coordinator.
+ * 
+ * @author Maciej SIDOR (maciejsidor@gmail.com)
+ * @since 2015
+ */
+public class FileRefreshCoordinator implements RefreshCoordinator, InitializingBean 
+{
+	/**
+	 * The coordinator logger
+	 */
+	private final Logger log = LoggerFactory.getLogger(this.getClass());
+	
+	/**
+	 * Directory shared by all nodes
+	 */
+	private File directory;
+	
+	/**
+	 * Name of coordinated object, used to name the files
+	 */
+	private String name = "cache";
+	
+	/**
+	 * Serializer used to publish the object
+	 */
+	private Serializer<Object> serializer = new DefaultSerializer();
+	
+	/**
+	 * Deserializer used to read the published object
+	 */
+	private Deserializer<Object> deserializer = new DefaultDeserializer();
+	
+	/**
+	 * Store of the published object
+	 */
+	private FileCacheSnapshotStore store;
+	
+	/**
+	 * File locked by the elected node
+	 */
+	private File lockFile;
+
+	/**
+	 * @return directory shared by all nodes
+	 */
+	public File getDirectory() 
+	{
+		return directory;
+	}
+
+	/**
+	 * @param directory directory shared by all nodes
+	 */
+	public void setDirectory(File directory) 
+	{
+		this.directory = directory;
+	}
+
+	/**
+	 * @return name of coordinated object
+	 */
+	public String getName() 
+	{
+		return name;
+	}
+
+	/**
+	 * Sets name of coordinated object, used to name the files. 
+	 * Many objects may be coordinated in the same directory with different names.
+	 * 
+	 * @param name the name to set
+	 */
+	public void setName(String name) 
+	{
+		this.name = name;
+	}
+
+	/**
+	 * Sets serializer used to publish the object. {@link DefaultSerializer} is used by default.
+	 * @param serializer the serializer to set
+	 */
+	public void setSerializer(Serializer<Object> serializer) 
+	{
+		this.serializer = serializer;
+	}
+
+	/**
+	 * Sets deserializer used to read the published object. {@link DefaultDeserializer} is used by default.
+	 * @param deserializer the deserializer to set
+	 */
+	public void setDeserializer(Deserializer<Object> deserializer) 
+	{
+		this.deserializer = deserializer;
+	}
+
+	/**
+	 * Prepares the files in the shared directory
+	 */
+	public void afterPropertiesSet() 
+	{
+		Assert.notNull(directory, "Shared directory must be set");
+		Assert.hasText(name, "Name must be set");
+		
+		if(!directory.isDirectory() && !directory.mkdirs())
+		{
+			throw new IllegalStateException("Could not create directory "+directory);
+		}
+		
+		store = new FileCacheSnapshotStore(new File(directory, name+".snapshot"));
+		store.setSerializer(serializer);
+		store.setDeserializer(deserializer);
+		
+		lockFile = new File(directory, name+".lock");
+	}
+
+	/**
+	 * Returns the published object if it is newer than given times, 
+	 * otherwise tries to lock the lock file and, if locked, loads and publishes the object.
+	 */
+	public StoredCacheSnapshot refresh(long lastLoadTime, long minLoadTime, Callable<?> loader) throws Exception 
+	{
+		Assert.state(store!=null, "Coordinator is not initialized");
+		
+		StoredCacheSnapshot published = findPublished(lastLoadTime, minLoadTime);
+		if(published!=null)
+		{
+			return published;
+		}
+		
+		RandomAccessFile lock = new RandomAccessFile(lockFile, "rw");
+		try
+		{
+			FileLock fileLock;
+			
+			try
+			{
+				fileLock = lock.getChannel().tryLock();
+			}
+			catch (OverlappingFileLockException e)
+			{
+				/*locked by other thread of this JVM*/
+				fileLock = null;
+			}
+			
+			if(fileLock==null)
+			{
+				log.trace("Other node is loading the object");
+				return null;
+			}
+			
+			try
+			{
+				/*check again as the object could have been published while acquiring the lock*/
+				published = findPublished(lastLoadTime, minLoadTime);
+				if(published!=null)
+				{
+					return published;
+				}
+				
+				log.trace("Elected to load the object");
+				StoredCacheSnapshot loaded = new StoredCacheSnapshot(loader.call(), System.currentTimeMillis());
+				store.save(loaded);
+				
+				return loaded;
+			}
+			finally
+			{
+				fileLock.release();
+			}
+		}
+		finally
+		{
+			lock.close();
+		}
+	}
+	
+	/**
+	 * @param lastLoadTime load time of the object cached by this node
+	 * @param minLoadTime oldest acceptable load time
+	 * @return the published object if it is newer than both times, null otherwise
+	 */
+	private StoredCacheSnapshot findPublished(long lastLoadTime, long minLoadTime) throws IOException
+	{
+		/*read only the load time first, the object is read only if needed*/
+		long publishedLoadTime = store.loadTime();
+		
+		if(publishedLoadTime>lastLoadTime && publishedLoadTime>=minLoadTime)
+		{
+			StoredCacheSnapshot published = store.load();
+			
+			if(published!=null && published.getLoadTime()>lastLoadTime && published.getLoadTime()>=minLoadTime)
+			{
+				log.trace("Picking up object published by other node");
+				return published;
+			}
+		}
+		
+		return null;
+	}
+}
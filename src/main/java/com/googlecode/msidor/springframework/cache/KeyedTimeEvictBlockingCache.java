@@ -0,0 +1,292 @@
+/*
+Copyright 2015 Maciej SIDOR [maciejsidor@gmail.com]
+
+The source code is licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+    
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.	
+ */
+package com.googlecode.msidor.springframework.cache;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.cache.interceptor.KeyGenerator;
+import org.springframework.cache.interceptor.SimpleKeyGenerator;
+import org.springframework.util.Assert;
+
+/**
+ * Keyed variant of the {@link TimeEvictBlockingCache}.
+ * <br/>
+ * This cache is a method intercepter that caches method result for a given time, separately for each set of method arguments.<br/>
+ *
+ * "keyed" means that method arguments are mapped to a key (by a {@link KeyGenerator}, {@link SimpleKeyGenerator} by default)
+ * and each key has its own cached object, its own expiration time and its own lock.
+ * As for the {@link TimeEvictBlockingCache}, one interceptor instance should be used per intercepted method since the method itself is not part of the key.
+ * <br/>
+ *
+ * "time based evict" means that each cache entry is evicted based on expiration time counted from the entry's last update.
+ * <br/>
+ *
+ * "blocking" means that threads accessing a cache entry are blocked when this very entry is being loaded (invoking proxied method).
+ * Loading of one key never blocks the threads reading other keys.<br/>
+ *
+ * Blocking strategy may be described by 3 cases:
+ * <ul>
+ * <li>initialization - first thread reading a key will be granted the permission to load the entry (by invoking proxied method). All other threads reading the same key will be blocked waiting for data.</li>
+ * <li>read - all threads can access simultaneously the cached entries without taking any lock.</li>
+ * <li>reload - when a thread finds out that an entry is expired it reloads it. Other threads finding out that the same entry is expired will block until the entry is reloaded.</li>
+ * </ul>
+ * <br/>
+ *
+ * Expired entries are reloaded on demand but never removed automatically.
+ * Use {@link #evictExpired()} (for instance from a scheduled task) if the key space is not bounded.
+ *
+ * @see TimeEvictBlockingCache
+ * @author Maciej SIDOR (maciejsidor@gmail.com)
+ * @since 2015
+ */
+public class KeyedTimeEvictBlockingCache implements MethodInterceptor, DisposableBean
+{
+	/**
+	 * The cache logger
+	 */
+	private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+	/**
+	 * Cache entries mapped by the keys generated from method arguments
+	 */
+	private final ConcurrentMap<Object, CacheEntry> entries 		= new ConcurrentHashMap<Object, CacheEntry>();
+
+	/**
+	 * Maps method arguments to the cache key
+	 */
+	private KeyGenerator 							keyGenerator	= new SimpleKeyGenerator();
+
+	/**
+	 * Time after which the cached entry will be renewed
+	 */
+	private long cacheExpirationTime = 0;
+
+	/**
+	 * @return Time after which the cached entry will be renewed
+	 */
+	public long getCacheExpirationTime()
+	{
+		return cacheExpirationTime;
+	}
+
+	/**
+	 * Sets time after which the cached entry will be renewed
+	 * @param cacheExpirationTime
+	 */
+	public void setCacheExpirationTime(long cacheExpirationTime)
+	{
+		this.cacheExpirationTime = cacheExpirationTime;
+	}
+
+	/**
+	 * @return generator used to map method arguments to the cache key
+	 */
+	public KeyGenerator getKeyGenerator()
+	{
+		return keyGenerator;
+	}
+
+	/**
+	 * Sets generator used to map method arguments to the cache key.
+	 * {@link SimpleKeyGenerator} is used by default.
+	 *
+	 * @param keyGenerator the key generator to set
+	 */
+	public void setKeyGenerator(KeyGenerator keyGenerator)
+	{
+		Assert.notNull(keyGenerator, "Key generator must not be null");
+		this.keyGenerator = keyGenerator;
+	}
+
+	/**
+	 * @return number of entries currently held by the cache (including the expired ones)
+	 */
+	public int size()
+	{
+		return entries.size();
+	}
+
+	/**
+	 * Removes all expired entries from the cache.
+	 * Entries that are being loaded at the moment are left untouched. 
+	 * An entry is removed while holding its lock, so that a thread loading it afterwards notices it and registers a new entry.
+	 */
+	public void evictExpired()
+	{
+		long now = System.currentTimeMillis();
+
+		for (Map.Entry<Object, CacheEntry> mapping : entries.entrySet())
+		{
+			CacheEntry entry = mapping.getValue();
+
+			if(entry.isExpired(now, cacheExpirationTime) && entry.lock.tryLock())
+			{
+				try
+				{
+					/*the entry may have been reloaded or replaced meanwhile*/
+					if(entry.isExpired(now, cacheExpirationTime))
+					{
+						entries.remove(mapping.getKey(), entry);
+					}
+				}
+				finally
+				{
+					entry.lock.unlock();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes all entries from the cache.
+	 */
+	public void clear()
+	{
+		entries.clear();
+	}
+
+	/**
+	 * Releases all entries when the cache is destroyed.
+	 */
+	public void destroy()
+	{
+		clear();
+	}
+
+	/**
+	 * Method call interception.
+	 * Whole cache implementation happens here.
+	 *
+	 * @param method call parameters
+	 * @return result of proxied method either from cache or directly from method call
+	 */
+	public Object invoke(MethodInvocation invocation) throws Throwable
+	{
+		Object key = keyGenerator.generate(invocation.getThis(), invocation.getMethod(), invocation.getArguments());
+
+		while(true)
+		{
+			/*get or register the entry for given key*/
+			CacheEntry entry = entries.get(key);
+			if(entry==null)
+			{
+				CacheEntry newEntry = new CacheEntry();
+				entry = entries.putIfAbsent(key, newEntry);
+
+				if(entry==null)
+				{
+					entry = newEntry;
+				}
+			}
+
+			/*return cached object if valid - most of time only this part of code is executed*/
+			if(!entry.isExpired(System.currentTimeMillis(), cacheExpirationTime))
+			{
+				return entry.value;
+			}
+
+			/*only one thread per key can load the entry, other threads reading the same key wait for it*/
+			entry.lock.lock();
+			try
+			{
+				log.trace("Taking entry lock");
+
+				/*the entry may have been evicted or removed after a failed load while waiting for the lock, a value loaded into it would be lost*/
+				if(entries.get(key)!=entry)
+				{
+					log.trace("Entry removed meanwhile, retrying");
+					continue;
+				}
+
+				/*check again as the entry could have been loaded while waiting for the lock*/
+				if(entry.isExpired(System.currentTimeMillis(), cacheExpirationTime))
+				{
+					log.trace("Refreshing cache entry");
+
+					try
+					{
+						entry.value = invocation.proceed();
+					}
+					catch(Throwable e)
+					{
+						/*do not keep entries that were never loaded*/
+						if(entry.lastUpdate==0)
+						{
+							entries.remove(key, entry);
+						}
+
+						log.trace("Exiting on exception");
+						throw e;
+					}
+
+					/*update last cache update time, it publishes the value to the threads reading without lock*/
+					entry.lastUpdate = System.currentTimeMillis();
+				}
+
+				return entry.value;
+			}
+			finally
+			{
+				log.trace("Releasing entry lock");
+				entry.lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Single cache entry with its own lock
+	 *
+	 * @author Maciej SIDOR (maciejsidor@gmail.com)
+	 * @since 2015
+	 */
+	private static class CacheEntry
+	{
+		/**
+		 * Lock that allows only one thread to load the entry
+		 */
+		final ReentrantLock lock 		= new ReentrantLock();
+
+		/**
+		 * The cached object
+		 */
+		volatile Object 	value		= null;
+
+		/**
+		 * Stores entry last update time. Zero means that entry was not loaded yet.
+		 */
+		volatile long 		lastUpdate 	= 0;
+
+		/**
+		 * @param now current time
+		 * @param cacheExpirationTime time after which the entry is expired
+		 * @return true if entry was not loaded yet or is expired
+		 */
+		boolean isExpired(long now, long cacheExpirationTime)
+		{
+			long updated = lastUpdate;
+			return updated==0 || now-updated>cacheExpirationTime;
+		}
+	}
+
+}
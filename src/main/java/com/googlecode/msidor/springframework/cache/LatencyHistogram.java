@@ -0,0 +1,155 @@
+/*
+Copyright 2015 Maciej SIDOR [maciejsidor@gmail.com]
+
+The source code is licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+    
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.	
+ */
+package com.googlecode.msidor.springframework.cache;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Low-contention histogram of durations.
+ * <br/>
+ * Durations are counted in buckets which bounds are powers of two nanoseconds, 
+ * so percentiles are approximated by the upper bound of the bucket they fall into.
+ * Recording a duration only increments striped counters.
+ * 
+ * @author Maciej SIDOR (maciejsidor@gmail.com)
+ * @since 2015
+ */
+public class LatencyHistogram 
+{
+	/**
+	 * Number of buckets, bucket i counts durations lower than 2^i nanoseconds
+	 */
+	private static final int BUCKETS = 64;
+	
+	/**
+	 * Duration counts per bucket
+	 */
+	private final LongAdder[] 		buckets = new LongAdder[BUCKETS];
+	
+	/**
+	 * Number of recorded durations
+	 */
+	private final LongAdder 		count 	= new LongAdder();
+	
+	/**
+	 * Sum of recorded durations
+	 */
+	private final LongAdder 		total 	= new LongAdder();
+	
+	/**
+	 * Maximal recorded duration
+	 */
+	private final LongAccumulator 	max 	= new LongAccumulator(Math::max, 0);
+	
+	/**
+	 * Default constructor
+	 */
+	public LatencyHistogram() 
+	{
+		for (int i = 0; i < BUCKETS; i++) 
+		{
+			buckets[i] = new LongAdder();
+		}
+	}
+	
+	/**
+	 * Records a duration
+	 * 
+	 * @param nanos the duration, in nanoseconds
+	 */
+	public void record(long nanos) 
+	{
+		long duration = Math.max(nanos, 0);
+		
+		buckets[Math.min(BUCKETS-Long.numberOfLeadingZeros(duration), BUCKETS-1)].increment();
+		count.increment();
+		total.add(duration);
+		max.accumulate(duration);
+	}
+	
+	/**
+	 * @return number of recorded durations
+	 */
+	public long getCount() 
+	{
+		return count.sum();
+	}
+	
+	/**
+	 * @return mean of recorded durations, in nanoseconds
+	 */
+	public long getMean() 
+	{
+		long recorded = count.sum();
+		return recorded==0 ? 0 : total.sum()/recorded;
+	}
+	
+	/**
+	 * @return maximal recorded duration, in nanoseconds
+	 */
+	public long getMax() 
+	{
+		return max.get();
+	}
+	
+	/**
+	 * @param percentile the percentile, between 0 and 100
+	 * @return approximated duration below which given percentage of recorded durations falls, in nanoseconds
+	 */
+	public long getPercentile(double percentile) 
+	{
+		long[] counts = new long[BUCKETS];
+		long recorded = 0;
+		
+		for (int i = 0; i < BUCKETS; i++) 
+		{
+			counts[i] 	= buckets[i].sum();
+			recorded 	+= counts[i];
+		}
+		
+		long threshold 	= (long) Math.ceil(recorded*percentile/100);
+		long seen 		= 0;
+		
+		for (int i = 0; i < BUCKETS; i++) 
+		{
+			seen += counts[i];
+			
+			if(seen>=threshold && counts[i]>0)
+			{
+				/*upper bound of the bucket, but never more than the maximum*/
+				return Math.min(i==BUCKETS-1 ? Long.MAX_VALUE : (1L<<i)-1, getMax());
+			}
+		}
+		
+		return 0;
+	}
+	
+	/**
+	 * Forgets all recorded durations
+	 */
+	public void reset() 
+	{
+		for (LongAdder bucket : buckets) 
+		{
+			bucket.reset();
+		}
+		
+		count.reset();
+		total.reset();
+		max.reset();
+	}
+}
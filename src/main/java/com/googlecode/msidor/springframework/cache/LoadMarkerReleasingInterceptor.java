@@ -0,0 +1,78 @@
+/*
+Copyright 2015 Maciej SIDOR [maciejsidor@gmail.com]
+
+The source code is licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+    
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.	
+ */
+package com.googlecode.msidor.springframework.cache;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+
+/**
+ * Method intercepter that enables blocking loads of {@link TimeEvictBlockingSpringCache} for {@code @Cacheable} methods 
+ * and releases the keys marked as being loaded by the current thread once the intercepted method completes.
+ * <br/>
+ * With Spring cache abstraction before 4.3 a {@code @Cacheable} method reads the cache with {@link TimeEvictBlockingSpringCache#get(Object)}, 
+ * which marks a missing key as being loaded only within this intercepter. 
+ * A method that fails, or which result is not put because of {@code unless}, leaves its key marked as being loaded, 
+ * so the intercepter releases the key when the method completes and other threads reading the key do not wait for the 
+ * {@link TimeEvictBlockingSpringCache#setLockTimeout(long) lock timeout}.
+ * This intercepter must be applied around the cache intercepter (for instance with a lower order).
+ * <br/>
+ * Keys are released when the outermost intercepted method completes, so that nested cached methods do not release the keys of the outer ones.
+ *
+ * @author Maciej SIDOR (maciejsidor@gmail.com)
+ * @since 2015
+ */
+public class LoadMarkerReleasingInterceptor implements MethodInterceptor
+{
+	/**
+	 * Nesting depth of the intercepted methods on the current thread, null outside of intercepted methods
+	 */
+	private static final ThreadLocal<int[]> DEPTH = new ThreadLocal<int[]>();
+	
+	/**
+	 * @return true if the current thread runs an intercepted method, so that keys it marks as being loaded are released
+	 */
+	static boolean isIntercepting()
+	{
+		return DEPTH.get()!=null;
+	}
+
+	/**
+	 * Invokes the method and releases the keys marked as being loaded by the current thread if the method is the outermost one.
+	 */
+	public Object invoke(MethodInvocation invocation) throws Throwable
+	{
+		int[] depth = DEPTH.get();
+		if(depth==null)
+		{
+			depth = new int[1];
+			DEPTH.set(depth);
+		}
+		depth[0]++;
+
+		try
+		{
+			return invocation.proceed();
+		}
+		finally
+		{
+			if(--depth[0]==0)
+			{
+				DEPTH.remove();
+				TimeEvictBlockingSpringCache.releaseLoadMarkers();
+			}
+		}
+	}
+}
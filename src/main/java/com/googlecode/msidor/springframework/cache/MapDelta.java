@@ -0,0 +1,127 @@
+/*
+Copyright 2015 Maciej SIDOR [maciejsidor@gmail.com]
+
+The source code is licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+    
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.	
+ */
+package com.googlecode.msidor.springframework.cache;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+
+import org.springframework.util.Assert;
+
+/**
+ * Changes of a map as returned by {@link DeltaLoader}: updated entries, removed keys and the new version.
+ * <br/>
+ * A full delta holds all entries of the map and replaces its whole content.
+ * 
+ * @param <K> type of map keys
+ * @param <V> type of map values
+ * @author Maciej SIDOR (maciejsidor@gmail.com)
+ * @since 2015
+ */
+public class MapDelta<K, V> 
+{
+	/**
+	 * Added or updated entries
+	 */
+	private final Map<K, V> updated;
+	
+	/**
+	 * Removed keys
+	 */
+	private final Collection<K> removed;
+	
+	/**
+	 * Version of the map after applying the changes
+	 */
+	private final long version;
+	
+	/**
+	 * True if updated entries are all entries of the map
+	 */
+	private final boolean full;
+
+	/**
+	 * Creates incremental delta
+	 * 
+	 * @param updated added or updated entries
+	 * @param removed removed keys
+	 * @param version version of the map after applying the changes
+	 */
+	public MapDelta(Map<K, V> updated, Collection<K> removed, long version) 
+	{
+		this(updated, removed, version, false);
+	}
+	
+	/**
+	 * @param updated added or updated entries, all entries of the map if full
+	 * @param removed removed keys, ignored if full
+	 * @param version version of the map after applying the changes
+	 * @param full true if updated entries are all entries of the map
+	 */
+	private MapDelta(Map<K, V> updated, Collection<K> removed, long version, boolean full) 
+	{
+		Assert.notNull(updated, "Updated entries must not be null");
+		
+		this.updated 	= updated;
+		this.removed 	= removed!=null ? removed : Collections.<K>emptyList();
+		this.version 	= version;
+		this.full 		= full;
+	}
+	
+	/**
+	 * Creates full delta
+	 * 
+	 * @param entries all entries of the map
+	 * @param version version of the map
+	 * @return delta replacing the whole content of the map
+	 */
+	public static <K, V> MapDelta<K, V> full(Map<K, V> entries, long version) 
+	{
+		return new MapDelta<K, V>(entries, null, version, true);
+	}
+
+	/**
+	 * @return added or updated entries, all entries of the map if full
+	 */
+	public Map<K, V> getUpdated() 
+	{
+		return updated;
+	}
+
+	/**
+	 * @return removed keys
+	 */
+	public Collection<K> getRemoved() 
+	{
+		return removed;
+	}
+
+	/**
+	 * @return version of the map after applying the changes
+	 */
+	public long getVersion() 
+	{
+		return version;
+	}
+
+	/**
+	 * @return true if updated entries are all entries of the map
+	 */
+	public boolean isFull() 
+	{
+		return full;
+	}
+}
@@ -0,0 +1,82 @@
+/*
+Copyright 2015 Maciej SIDOR [maciejsidor@gmail.com]
+
+The source code is licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+    
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.	
+ */
+package com.googlecode.msidor.springframework.cache;
+
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+/**
+ * Read-only view of a list kept in an {@link OffHeapValue}, decoding elements only when they are accessed.
+ * <br/>
+ * Elements are stored one after another, followed by an index of their offsets.
+ * 
+ * @author Maciej SIDOR (maciejsidor@gmail.com)
+ * @since 2015
+ */
+final class OffHeapList extends AbstractList<Object> implements RandomAccess
+{
+	/**
+	 * The value holding the segment
+	 */
+	private final OffHeapValue owner;
+	
+	/**
+	 * Offset of the offset index in the segment
+	 */
+	private final int indexOffset;
+	
+	/**
+	 * Number of elements
+	 */
+	private final int size;
+	
+	/**
+	 * @param owner the value holding the segment
+	 * @param indexOffset offset of the offset index in the segment
+	 * @param size number of elements
+	 */
+	OffHeapList(OffHeapValue owner, int indexOffset, int size)
+	{
+		this.owner 			= owner;
+		this.indexOffset 	= indexOffset;
+		this.size 			= size;
+	}
+
+	@Override
+	public Object get(int index) 
+	{
+		if(index<0 || index>=size)
+		{
+			throw new IndexOutOfBoundsException("Index: "+index+", Size: "+size);
+		}
+		
+		owner.beginRead();
+		try
+		{
+			return owner.decode(owner.getInt(indexOffset+index*4));
+		}
+		finally
+		{
+			owner.endRead();
+		}
+	}
+
+	@Override
+	public int size() 
+	{
+		return size;
+	}
+}
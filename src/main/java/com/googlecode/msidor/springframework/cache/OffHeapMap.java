@@ -0,0 +1,307 @@
+/*
+Copyright 2015 Maciej SIDOR [maciejsidor@gmail.com]
+
+The source code is licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+    
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.	
+ */
+package com.googlecode.msidor.springframework.cache;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Read-only view of a map kept in an {@link OffHeapValue}, decoding keys and values only when they are accessed.
+ * <br/>
+ * Entries are stored one after another, each as its serialized key followed by its serialized value. 
+ * They are followed by an open addressing hash index of (key hash, entry offset+1) pairs, an empty slot being zero. 
+ * Keys must have the same hash code once decoded, which is the case of strings, numbers and enums.
+ * 
+ * @author Maciej SIDOR (maciejsidor@gmail.com)
+ * @since 2015
+ */
+final class OffHeapMap extends AbstractMap<Object, Object>
+{
+	/**
+	 * The value holding the segment
+	 */
+	private final OffHeapValue owner;
+	
+	/**
+	 * Offset of the hash index in the segment
+	 */
+	private final int indexOffset;
+	
+	/**
+	 * Number of slots of the hash index, a power of two
+	 */
+	private final int slots;
+	
+	/**
+	 * Number of entries
+	 */
+	private final int size;
+	
+	/**
+	 * Entries of the map, created on first use
+	 */
+	private Set<Map.Entry<Object, Object>> entrySet = null;
+	
+	/**
+	 * @param owner the value holding the segment
+	 * @param indexOffset offset of the hash index in the segment
+	 * @param slots number of slots of the hash index
+	 * @param size number of entries
+	 */
+	OffHeapMap(OffHeapValue owner, int indexOffset, int slots, int size)
+	{
+		this.owner 			= owner;
+		this.indexOffset 	= indexOffset;
+		this.slots 			= slots;
+		this.size 			= size;
+	}
+	
+	/**
+	 * @param key the key
+	 * @return hash of the key as stored in the hash index
+	 */
+	static int hash(Object key)
+	{
+		int hash = key==null ? 0 : key.hashCode();
+		return hash^(hash>>>16);
+	}
+	
+	@Override
+	public int size() 
+	{
+		return size;
+	}
+	
+	@Override
+	public boolean containsKey(Object key) 
+	{
+		owner.beginRead();
+		try
+		{
+			return find(key)>=0;
+		}
+		finally
+		{
+			owner.endRead();
+		}
+	}
+	
+	@Override
+	public Object get(Object key) 
+	{
+		owner.beginRead();
+		try
+		{
+			int entry = find(key);
+			return entry>=0 ? owner.decode(owner.skip(entry)) : null;
+		}
+		finally
+		{
+			owner.endRead();
+		}
+	}
+	
+	/**
+	 * @param key the key
+	 * @return offset of the entry with given key, -1 if there is none
+	 */
+	private int find(Object key)
+	{
+		int hash = hash(key);
+		
+		for (int slot = hash&(slots-1);; slot = (slot+1)&(slots-1))
+		{
+			int entry = owner.getInt(indexOffset+slot*8+4)-1;
+			if(entry<0)
+			{
+				return -1;
+			}
+			
+			/*only the keys with the same hash are decoded*/
+			if(owner.getInt(indexOffset+slot*8)==hash)
+			{
+				Object entryKey = owner.decode(entry);
+				if(key==null ? entryKey==null : key.equals(entryKey))
+				{
+					return entry;
+				}
+			}
+		}
+	}
+	
+	@Override
+	public Set<Map.Entry<Object, Object>> entrySet() 
+	{
+		if(entrySet==null)
+		{
+			entrySet = new AbstractSet<Map.Entry<Object,Object>>() 
+			{
+				@Override
+				public Iterator<Map.Entry<Object, Object>> iterator() 
+				{
+					return new EntryIterator();
+				}
+
+				@Override
+				public int size() 
+				{
+					return size;
+				}
+			};
+		}
+		
+		return entrySet;
+	}
+	
+	/**
+	 * Iterator over the entries in the order they are stored
+	 * 
+	 * @author Maciej SIDOR (maciejsidor@gmail.com)
+	 * @since 2015
+	 */
+	private final class EntryIterator implements Iterator<Map.Entry<Object, Object>>
+	{
+		/**
+		 * Offset of the next entry
+		 */
+		private int next = 0;
+		
+		/**
+		 * Number of entries returned
+		 */
+		private int returned = 0;
+		
+		public boolean hasNext() 
+		{
+			return returned<size;
+		}
+
+		public Map.Entry<Object, Object> next() 
+		{
+			if(!hasNext())
+			{
+				throw new NoSuchElementException();
+			}
+			
+			owner.beginRead();
+			try
+			{
+				Entry entry = new Entry(next);
+				next = owner.skip(owner.skip(next));
+				returned++;
+				
+				return entry;
+			}
+			finally
+			{
+				owner.endRead();
+			}
+		}
+
+		public void remove() 
+		{
+			throw new UnsupportedOperationException();
+		}
+	}
+	
+	/**
+	 * Entry decoding its key and value when they are accessed
+	 * 
+	 * @author Maciej SIDOR (maciejsidor@gmail.com)
+	 * @since 2015
+	 */
+	private final class Entry implements Map.Entry<Object, Object>
+	{
+		/**
+		 * Offset of the entry
+		 */
+		private final int offset;
+		
+		/**
+		 * @param offset offset of the entry
+		 */
+		Entry(int offset)
+		{
+			this.offset = offset;
+		}
+		
+		public Object getKey() 
+		{
+			owner.beginRead();
+			try
+			{
+				return owner.decode(offset);
+			}
+			finally
+			{
+				owner.endRead();
+			}
+		}
+
+		public Object getValue() 
+		{
+			owner.beginRead();
+			try
+			{
+				return owner.decode(owner.skip(offset));
+			}
+			finally
+			{
+				owner.endRead();
+			}
+		}
+
+		public Object setValue(Object value) 
+		{
+			throw new UnsupportedOperationException();
+		}
+		
+		@Override
+		public boolean equals(Object o) 
+		{
+			if(!(o instanceof Map.Entry))
+			{
+				return false;
+			}
+			
+			Map.Entry<?, ?> other = (Map.Entry<?, ?>) o;
+			Object key 		= getKey();
+			Object value 	= getValue();
+			
+			return (key==null ? other.getKey()==null : key.equals(other.getKey())) 
+					&& (value==null ? other.getValue()==null : value.equals(other.getValue()));
+		}
+		
+		@Override
+		public int hashCode() 
+		{
+			Object key 		= getKey();
+			Object value 	= getValue();
+			
+			return (key==null ? 0 : key.hashCode())^(value==null ? 0 : value.hashCode());
+		}
+		
+		@Override
+		public String toString() 
+		{
+			return getKey()+"="+getValue();
+		}
+	}
+}
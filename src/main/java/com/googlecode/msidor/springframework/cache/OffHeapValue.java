@@ -0,0 +1,313 @@
+/*
+Copyright 2015 Maciej SIDOR [maciejsidor@gmail.com]
+
+The source code is licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+    
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.	
+ */
+package com.googlecode.msidor.springframework.cache;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.core.serializer.Deserializer;
+import org.springframework.core.serializer.support.SerializationFailedException;
+
+/**
+ * Cached map or list kept serialized outside of the heap, as created by {@link OffHeapValueStorage}.
+ * <br/>
+ * Readers get a read-only view of the map or list (see {@link #get()}), created once along with the value. 
+ * The view decodes only the entries a reader touches, straight from the off-heap segment, and keeps no decoded copy, 
+ * so the heap holds only the entries currently used by the readers. 
+ * Map lookups go through a hash index stored in the segment, list elements through an offset index.
+ * Readers decode concurrently without any lock.
+ * <br/>
+ * The segment is freed explicitly once the value is {@link #release() released} and no reader is decoding from it anymore, 
+ * rather than when the buffer is garbage collected. 
+ * Accessing the view of a released value fails with {@link IllegalStateException}: 
+ * the view must not be kept after the cache replaced it with a reloaded one.
+ * 
+ * @author Maciej SIDOR (maciejsidor@gmail.com)
+ * @since 2015
+ */
+public final class OffHeapValue 
+{
+	/**
+	 * Type of a segment holding a map
+	 */
+	static final int MAP = 1;
+	
+	/**
+	 * Type of a segment holding a list
+	 */
+	static final int LIST = 2;
+	
+	/**
+	 * Size of the segment footer: index offset, index length, number of entries and segment type
+	 */
+	static final int FOOTER_SIZE = 16;
+	
+	/**
+	 * Bit of the {@link #readers} count set once the value is released
+	 */
+	private static final int RELEASED = Integer.MIN_VALUE;
+	
+	/**
+	 * <code>sun.misc.Unsafe</code> instance used to free buffers, null if not available
+	 */
+	private static final Object UNSAFE;
+	
+	/**
+	 * <code>sun.misc.Unsafe.invokeCleaner(ByteBuffer)</code> method (Java 9 and later), null if not available
+	 */
+	private static final Method INVOKE_CLEANER;
+	
+	static
+	{
+		Object unsafe 			= null;
+		Method invokeCleaner 	= null;
+		
+		try
+		{
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			unsafe = theUnsafe.get(null);
+		}
+		catch (Exception e)
+		{
+			/*Java 8, the buffer cleaner is called directly*/
+			invokeCleaner = null;
+		}
+		
+		UNSAFE 			= unsafe;
+		INVOKE_CLEANER 	= invokeCleaner;
+	}
+	
+	/**
+	 * The buffer holding the segment, freed on release
+	 */
+	private final ByteBuffer buffer;
+	
+	/**
+	 * Read-only serialized map or list
+	 */
+	private final ByteBuffer segment;
+	
+	/**
+	 * Deserializer used to decode the entries
+	 */
+	private final Deserializer<Object> deserializer;
+	
+	/**
+	 * Number of readers currently decoding from the segment, along with the {@link #RELEASED} bit
+	 */
+	private final AtomicInteger readers = new AtomicInteger();
+	
+	/**
+	 * Read-only view of the map or list
+	 */
+	private final Object view;
+	
+	/**
+	 * @param buffer buffer holding the segment
+	 * @param deserializer deserializer used to decode the entries
+	 */
+	OffHeapValue(ByteBuffer buffer, Deserializer<Object> deserializer) 
+	{
+		this.buffer 		= buffer;
+		this.segment 		= buffer.asReadOnlyBuffer();
+		this.deserializer 	= deserializer;
+		
+		int footer 		= segment.limit()-FOOTER_SIZE;
+		int indexOffset = segment.getInt(footer);
+		int indexLength = segment.getInt(footer+4);
+		int size 		= segment.getInt(footer+8);
+		
+		if(segment.getInt(footer+12)==MAP)
+		{
+			view = new OffHeapMap(this, indexOffset, indexLength, size);
+		}
+		else
+		{
+			view = new OffHeapList(this, indexOffset, size);
+		}
+	}
+	
+	/**
+	 * @return read-only view of the map or list, the same on each call
+	 */
+	public Object get() 
+	{
+		return view;
+	}
+	
+	/**
+	 * @return size of serialized map or list, in bytes
+	 */
+	public int getSize() 
+	{
+		return segment.limit();
+	}
+	
+	/**
+	 * @return true if the value was released
+	 */
+	public boolean isReleased()
+	{
+		return readers.get()<0;
+	}
+	
+	/**
+	 * Releases the value. The segment is freed as soon as no reader is decoding from it, 
+	 * readers starting later fail with {@link IllegalStateException}. 
+	 * Releasing the value again has no effect.
+	 */
+	void release()
+	{
+		int state;
+		do
+		{
+			state = readers.get();
+			if(state<0)
+			{
+				return;
+			}
+		}
+		while(!readers.compareAndSet(state, state|RELEASED));
+		
+		if(state==0)
+		{
+			free(buffer);
+		}
+	}
+	
+	/**
+	 * Registers a reader, which may then read the segment until it calls {@link #endRead()}.
+	 * @throws IllegalStateException if the value was released
+	 */
+	void beginRead()
+	{
+		int state;
+		do
+		{
+			state = readers.get();
+			if(state<0)
+			{
+				throw new IllegalStateException("Off-heap value was released, the cache should be read again");
+			}
+		}
+		while(!readers.compareAndSet(state, state+1));
+	}
+	
+	/**
+	 * Unregisters a reader, the last reader of a released value frees the segment.
+	 */
+	void endRead()
+	{
+		if(readers.decrementAndGet()==RELEASED)
+		{
+			free(buffer);
+		}
+	}
+	
+	/**
+	 * Must be called between {@link #beginRead()} and {@link #endRead()}.
+	 * @param offset offset in the segment
+	 * @return integer at given offset
+	 */
+	int getInt(int offset)
+	{
+		return segment.getInt(offset);
+	}
+	
+	/**
+	 * Decodes a serialized element, which is its length followed by its serialized form, or -1 for null.
+	 * Must be called between {@link #beginRead()} and {@link #endRead()}.
+	 * 
+	 * @param offset offset of the element in the segment
+	 * @return the decoded element
+	 * @throws SerializationFailedException if the element could not be decoded
+	 */
+	Object decode(int offset)
+	{
+		int length = segment.getInt(offset);
+		if(length<0)
+		{
+			return null;
+		}
+		
+		ByteBuffer element = segment.duplicate();
+		element.limit(offset+4+length);
+		element.position(offset+4);
+		
+		try
+		{
+			return deserializer.deserialize(new ByteBufferInputStream(element));
+		}
+		catch (IOException e)
+		{
+			throw new SerializationFailedException("Off-heap entry could not be decoded", e);
+		}
+	}
+	
+	/**
+	 * Must be called between {@link #beginRead()} and {@link #endRead()}.
+	 * @param offset offset of an element in the segment
+	 * @return offset of the element following it
+	 */
+	int skip(int offset)
+	{
+		return offset+4+Math.max(segment.getInt(offset), 0);
+	}
+	
+	/**
+	 * Frees the memory of a direct or mapped buffer right away, instead of waiting for the buffer to be garbage collected. 
+	 * If the JVM does not allow it, the memory is freed by the garbage collector.
+	 * 
+	 * @param buffer the buffer to free, it must not be used anymore
+	 */
+	static void free(ByteBuffer buffer)
+	{
+		if(!buffer.isDirect())
+		{
+			return;
+		}
+		
+		try
+		{
+			if(INVOKE_CLEANER!=null)
+			{
+				INVOKE_CLEANER.invoke(UNSAFE, buffer);
+			}
+			else
+			{
+				Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+				cleanerMethod.setAccessible(true);
+				
+				Object cleaner = cleanerMethod.invoke(buffer);
+				if(cleaner!=null)
+				{
+					cleaner.getClass().getMethod("clean").invoke(cleaner);
+				}
+			}
+		}
+		catch (Exception e)
+		{
+			/*memory is freed by the garbage collector*/
+		}
+	}
+}
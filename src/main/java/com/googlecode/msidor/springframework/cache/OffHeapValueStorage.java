@@ -0,0 +1,447 @@
+/*
+Copyright 2015 Maciej SIDOR [maciejsidor@gmail.com]
+
+The source code is licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+    
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.	
+ */
+package com.googlecode.msidor.springframework.cache;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.core.serializer.DefaultDeserializer;
+import org.springframework.core.serializer.DefaultSerializer;
+import org.springframework.core.serializer.Deserializer;
+import org.springframework.core.serializer.Serializer;
+import org.springframework.util.Assert;
+
+/**
+ * Storage tier that keeps cached maps and lists serialized outside of the heap.
+ * <br/>
+ * Maps and lists are serialized either into direct byte buffers (default) or, if {@link #setDirectory(File) directory} is set, into memory-mapped files.
+ * Each key, value or element is serialized separately and written straight to the segment, along with an index, 
+ * so that readers decode only the entries they access (see {@link OffHeapValue}). 
+ * Other objects can not be kept off-heap, as they could only be decoded as a whole.
+ * Mapped files are deleted right after mapping, the mapping itself remains valid until the segment is released.
+ * <br/>
+ * Serialization is pluggable through Spring {@link Serializer} and {@link Deserializer}, Java serialization is used by default.
+ * 
+ * @author Maciej SIDOR (maciejsidor@gmail.com)
+ * @since 2015
+ */
+public class OffHeapValueStorage 
+{
+	/**
+	 * Initial size of direct buffer used to serialize an object
+	 */
+	private static final int INITIAL_BUFFER_SIZE = 64*1024;
+	
+	/**
+	 * Maximal size of a serialized object, limited by the byte buffer capacity
+	 */
+	private static final int MAX_SEGMENT_SIZE = Integer.MAX_VALUE-8;
+	
+	/**
+	 * Directory for memory-mapped files, direct buffers are used if null
+	 */
+	private File directory = null;
+	
+	/**
+	 * Serializer used to write the cached object
+	 */
+	private Serializer<Object> serializer = new DefaultSerializer();
+	
+	/**
+	 * Deserializer used to read the cached object
+	 */
+	private Deserializer<Object> deserializer = new DefaultDeserializer();
+	
+	/**
+	 * Time during which a replaced value may still be read, in milliseconds
+	 */
+	private long releaseDelay = 1000;
+
+	/**
+	 * @return directory for memory-mapped files
+	 */
+	public File getDirectory() 
+	{
+		return directory;
+	}
+
+	/**
+	 * Sets directory for memory-mapped files. If not set, direct buffers are used.
+	 * @param directory the directory to set
+	 */
+	public void setDirectory(File directory) 
+	{
+		this.directory = directory;
+	}
+
+	/**
+	 * @return serializer used to write the cached object
+	 */
+	public Serializer<Object> getSerializer() 
+	{
+		return serializer;
+	}
+
+	/**
+	 * Sets serializer used to write the cached object. {@link DefaultSerializer} is used by default.
+	 * @param serializer the serializer to set
+	 */
+	public void setSerializer(Serializer<Object> serializer) 
+	{
+		Assert.notNull(serializer, "Serializer must not be null");
+		this.serializer = serializer;
+	}
+
+	/**
+	 * @return deserializer used to read the cached object
+	 */
+	public Deserializer<Object> getDeserializer() 
+	{
+		return deserializer;
+	}
+
+	/**
+	 * Sets deserializer used to read the cached object. {@link DefaultDeserializer} is used by default.
+	 * @param deserializer the deserializer to set
+	 */
+	public void setDeserializer(Deserializer<Object> deserializer) 
+	{
+		Assert.notNull(deserializer, "Deserializer must not be null");
+		this.deserializer = deserializer;
+	}
+	
+	/**
+	 * @return time during which a replaced value may still be read, in milliseconds
+	 */
+	public long getReleaseDelay() 
+	{
+		return releaseDelay;
+	}
+
+	/**
+	 * Sets time during which a value replaced by a reload may still be read, in milliseconds. 
+	 * It covers readers that got the value just before it was replaced. 
+	 * Once it elapses, the value is {@link OffHeapValue#release() released}. 
+	 * One second by default.
+	 * @param releaseDelay the releaseDelay to set
+	 */
+	public void setReleaseDelay(long releaseDelay) 
+	{
+		Assert.isTrue(releaseDelay>=0, "Release delay must not be negative");
+		this.releaseDelay = releaseDelay;
+	}
+	
+	/**
+	 * Serializes the map or list outside of the heap.
+	 * 
+	 * @param value map or list to store
+	 * @return the stored map or list
+	 * @throws IOException if an entry could not be serialized or the serialized map or list exceeds 2 GB
+	 * @throws IllegalArgumentException if the value is neither a map nor a list
+	 */
+	public OffHeapValue store(Object value) throws IOException
+	{
+		Assert.isTrue(value instanceof Map || value instanceof List, "Only maps and lists can be kept off-heap, got "+(value!=null ? value.getClass().getName() : null));
+		
+		return new OffHeapValue(directory!=null ? storeMapped(value) : storeDirect(value), deserializer);
+	}
+	
+	/**
+	 * Writes serialized entries of the map or list followed by their index and the segment footer.
+	 * 
+	 * @param value map or list to write
+	 * @param out stream to write to
+	 */
+	private void write(Object value, OutputStream out) throws IOException
+	{
+		SegmentOutputStream segment = new SegmentOutputStream(out);
+		
+		if(value instanceof Map)
+		{
+			/*entry hashes and offsets, the index is built once the number of entries is known*/
+			int[] hashes 	= new int[16];
+			int[] offsets 	= new int[16];
+			int size 		= 0;
+			
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet())
+			{
+				if(size==offsets.length)
+				{
+					hashes 	= Arrays.copyOf(hashes, size*2);
+					offsets = Arrays.copyOf(offsets, size*2);
+				}
+				
+				hashes[size] 	= OffHeapMap.hash(entry.getKey());
+				offsets[size] 	= segment.size();
+				size++;
+				
+				segment.writeElement(entry.getKey());
+				segment.writeElement(entry.getValue());
+			}
+			
+			/*at most half of the slots is used*/
+			int slots 	= Integer.highestOneBit(Math.max(size, 1))*4;
+			int[] index = new int[slots*2];
+			
+			for (int i = 0; i < size; i++)
+			{
+				int slot = hashes[i]&(slots-1);
+				while(index[slot*2+1]!=0)
+				{
+					slot = (slot+1)&(slots-1);
+				}
+				
+				index[slot*2] 	= hashes[i];
+				index[slot*2+1] = offsets[i]+1;
+			}
+			
+			segment.writeIndexAndFooter(index, slots, size, OffHeapValue.MAP);
+		}
+		else
+		{
+			List<?> list 	= (List<?>) value;
+			int[] offsets 	= new int[16];
+			int size 		= 0;
+			
+			for (Object element : list)
+			{
+				if(size==offsets.length)
+				{
+					offsets = Arrays.copyOf(offsets, size*2);
+				}
+				
+				offsets[size++] = segment.size();
+				segment.writeElement(element);
+			}
+			
+			segment.writeIndexAndFooter(Arrays.copyOf(offsets, size), size, size, OffHeapValue.LIST);
+		}
+		
+		segment.flush();
+	}
+	
+	/**
+	 * @param value map or list to store
+	 * @return direct buffer holding the serialized map or list
+	 */
+	private ByteBuffer storeDirect(Object value) throws IOException
+	{
+		DirectBufferOutputStream out = new DirectBufferOutputStream();
+		
+		try
+		{
+			write(value, out);
+		}
+		catch (IOException | RuntimeException e)
+		{
+			OffHeapValue.free(out.buffer);
+			throw e;
+		}
+		
+		ByteBuffer buffer = out.buffer;
+		buffer.flip();
+		
+		/*do not keep the spare capacity if it is significant*/
+		if(buffer.capacity()-buffer.limit()>INITIAL_BUFFER_SIZE)
+		{
+			ByteBuffer trimmed = ByteBuffer.allocateDirect(buffer.limit());
+			trimmed.put(buffer);
+			trimmed.flip();
+			
+			OffHeapValue.free(buffer);
+			return trimmed;
+		}
+		
+		return buffer;
+	}
+	
+	/**
+	 * @param value map or list to store
+	 * @return memory-mapped buffer holding the serialized map or list
+	 */
+	private ByteBuffer storeMapped(Object value) throws IOException
+	{
+		File file = File.createTempFile("cache", ".bin", directory);
+		
+		try
+		{
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+			try
+			{
+				write(value, out);
+			}
+			finally
+			{
+				out.close();
+			}
+			
+			RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+			try
+			{
+				FileChannel channel = randomAccessFile.getChannel();
+				if(channel.size()>MAX_SEGMENT_SIZE)
+				{
+					throw new IOException("Serialized object of "+channel.size()+" bytes exceeds maximal segment size");
+				}
+				
+				return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			}
+			finally
+			{
+				/*mapping remains valid after the channel is closed*/
+				randomAccessFile.close();
+			}
+		}
+		finally
+		{
+			/*mapping remains valid after the file is deleted, otherwise the file is deleted on exit*/
+			if(!file.delete())
+			{
+				file.deleteOnExit();
+			}
+		}
+	}
+	
+	/**
+	 * Output stream writing serialized entries and index of a segment, counting the bytes written
+	 * 
+	 * @author Maciej SIDOR (maciejsidor@gmail.com)
+	 * @since 2015
+	 */
+	private class SegmentOutputStream extends DataOutputStream
+	{
+		/**
+		 * Buffer reused to serialize each element before its length is written
+		 */
+		private final ByteArrayOutputStream element = new ByteArrayOutputStream();
+		
+		/**
+		 * @param out stream to write to
+		 */
+		SegmentOutputStream(OutputStream out)
+		{
+			super(out);
+		}
+		
+		/**
+		 * Writes the length of serialized element followed by its serialized form, or -1 for null
+		 * @param value element to write
+		 */
+		void writeElement(Object value) throws IOException
+		{
+			if(value==null)
+			{
+				writeInt(-1);
+				return;
+			}
+			
+			element.reset();
+			serializer.serialize(value, element);
+			
+			writeInt(element.size());
+			element.writeTo(this);
+		}
+		
+		/**
+		 * @param index the index
+		 * @param indexLength number of slots or offsets of the index
+		 * @param size number of entries
+		 * @param type type of the segment
+		 */
+		void writeIndexAndFooter(int[] index, int indexLength, int size, int type) throws IOException
+		{
+			int indexOffset = size();
+			for (int i = 0; i < index.length; i++)
+			{
+				writeInt(index[i]);
+			}
+			
+			writeInt(indexOffset);
+			writeInt(indexLength);
+			writeInt(size);
+			writeInt(type);
+		}
+	}
+	
+	/**
+	 * Output stream writing into a growing direct buffer
+	 * 
+	 * @author Maciej SIDOR (maciejsidor@gmail.com)
+	 * @since 2015
+	 */
+	private static class DirectBufferOutputStream extends OutputStream
+	{
+		/**
+		 * The buffer to write to
+		 */
+		ByteBuffer buffer = ByteBuffer.allocateDirect(INITIAL_BUFFER_SIZE);
+		
+		@Override
+		public void write(int b) throws IOException 
+		{
+			ensureRemaining(1);
+			buffer.put((byte) b);
+		}
+		
+		@Override
+		public void write(byte[] bytes, int offset, int length) throws IOException 
+		{
+			ensureRemaining(length);
+			buffer.put(bytes, offset, length);
+		}
+		
+		/**
+		 * Doubles the buffer capacity until it can hold given number of bytes
+		 * @param length number of bytes to write
+		 * @throws IOException if the buffer would exceed maximal segment size
+		 */
+		private void ensureRemaining(int length) throws IOException
+		{
+			if(buffer.remaining()<length)
+			{
+				long required = (long) buffer.position()+length;
+				if(required>MAX_SEGMENT_SIZE)
+				{
+					throw new IOException("Serialized object exceeds maximal segment size of "+MAX_SEGMENT_SIZE+" bytes");
+				}
+				
+				long capacity = buffer.capacity();
+				while(capacity<required)
+				{
+					capacity *= 2;
+				}
+				
+				ByteBuffer grown = ByteBuffer.allocateDirect((int) Math.min(capacity, MAX_SEGMENT_SIZE));
+				buffer.flip();
+				grown.put(buffer);
+				
+				OffHeapValue.free(buffer);
+				buffer = grown;
+			}
+		}
+	}
+}
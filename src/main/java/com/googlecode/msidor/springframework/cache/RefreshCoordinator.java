@@ -0,0 +1,43 @@
+/*
+Copyright 2015 Maciej SIDOR [maciejsidor@gmail.com]
+
+The source code is licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+    
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.	
+ */
+package com.googlecode.msidor.springframework.cache;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Coordinates reloads of a cached object shared by many nodes (JVMs), so that only one node reloads it per expiration.
+ * <br/>
+ * Used by {@link TimeEvictBlockingCache} (see {@link TimeEvictBlockingCache#setRefreshCoordinator(RefreshCoordinator)}) when the cached object expires.
+ * The node elected to reload the object publishes it, other nodes pick up the published object instead of loading it.
+ * Load times are wall clock times ({@link System#currentTimeMillis()}) compared between nodes, which requires synchronized clocks.
+ * 
+ * @see FileRefreshCoordinator
+ * @author Maciej SIDOR (maciejsidor@gmail.com)
+ * @since 2015
+ */
+public interface RefreshCoordinator 
+{
+	/**
+	 * Returns an object loaded after given time, either already published by other node or loaded by this node if elected. 
+	 * 
+	 * @param lastLoadTime load time of the object cached by this node, zero if none. Only objects loaded later are returned.
+	 * @param minLoadTime oldest acceptable load time (older objects are expired). Only objects loaded later are returned.
+	 * @param loader loads the object, called only if this node is elected
+	 * @return published or loaded object along with its load time, or null if other node is loading the object at the moment
+	 * @throws Exception if the loader fails or the object could not be published
+	 */
+	StoredCacheSnapshot refresh(long lastLoadTime, long minLoadTime, Callable<?> loader) throws Exception;
+}
@@ -0,0 +1,61 @@
+/*
+Copyright 2015 Maciej SIDOR [maciejsidor@gmail.com]
+
+The source code is licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+    
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.	
+ */
+package com.googlecode.msidor.springframework.cache;
+
+/**
+ * Cached object along with its load time, as saved by {@link CacheSnapshotStore}.
+ * 
+ * @author Maciej SIDOR (maciejsidor@gmail.com)
+ * @since 2015
+ */
+public class StoredCacheSnapshot 
+{
+	/**
+	 * The cached object
+	 */
+	private final Object value;
+	
+	/**
+	 * Time when the cached object was loaded, in milliseconds since epoch
+	 */
+	private final long loadTime;
+
+	/**
+	 * @param value the cached object
+	 * @param loadTime time when the cached object was loaded, in milliseconds since epoch
+	 */
+	public StoredCacheSnapshot(Object value, long loadTime) 
+	{
+		this.value 		= value;
+		this.loadTime 	= loadTime;
+	}
+
+	/**
+	 * @return the cached object
+	 */
+	public Object getValue() 
+	{
+		return value;
+	}
+
+	/**
+	 * @return time when the cached object was loaded, in milliseconds since epoch
+	 */
+	public long getLoadTime() 
+	{
+		return loadTime;
+	}
+}
@@ -0,0 +1,38 @@
+/*
+Copyright 2015 Maciej SIDOR [maciejsidor@gmail.com]
+
+The source code is licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+    
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.	
+ */
+package com.googlecode.msidor.springframework.cache;
+
+/**
+ * {@link CacheClock} that simply delegates to {@link System#nanoTime()}.
+ * 
+ * @author Maciej SIDOR (maciejsidor@gmail.com)
+ * @since 2015
+ */
+public class SystemCacheClock implements CacheClock 
+{
+	/**
+	 * Shared instance, the clock is stateless
+	 */
+	public static final SystemCacheClock INSTANCE = new SystemCacheClock();
+	
+	/**
+	 * @return {@link System#nanoTime()}
+	 */
+	public long nanoTime() 
+	{
+		return System.nanoTime();
+	}
+}
@@ -15,15 +15,37 @@ limitations under the License.
  */
 package com.googlecode.msidor.springframework.cache;
 
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
+import java.io.IOException;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
 
 import org.aopalliance.intercept.MethodInterceptor;
 import org.aopalliance.intercept.MethodInvocation;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.aop.ProxyMethodInvocation;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.util.Assert;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.ListenableFutureCallback;
 
 /**
  * Simple time based evict blocking cache implementation.
@@ -36,6 +58,7 @@ import org.slf4j.LoggerFactory;
  * <br/>
  *   
  * "time based evict" means that cache content is evicted based on expiration time.
+ * Expiration is checked against a monotonic {@link CacheClock} ({@link SystemCacheClock} by default).
  * <br/>
  * 
  * "blocking" means that threads accessing cache content are blocked when cache is being reloaded (invoking proxied method). 
@@ -45,21 +68,90 @@ import org.slf4j.LoggerFactory;
  * Blocking strategy may be described by 3 cases:
  * <ul>
  * <li>initialization - first thread reading data will be granted the permission to load cache object (by invoking proxied method). All other threads will be blocked waiting for data.</li>
- * <li>read - all threads can access simultaneously the cached object for read.</li>
- * <li>reload - when a thread finds out that cache object is expired it will wait for all reading threads to finish. New reading threads will block until cached object is reloaded.</li>
+ * <li>read - all threads can access simultaneously the cached object for read. Reading a valid cached object takes no lock.</li>
+ * <li>reload - when a thread finds out that cache object is expired it reloads it. Other threads finding out that cache object is expired will block until cached object is reloaded.</li>
  * </ul>
  * <br/> 
  * 
+ * Optionally (see {@link #setStaleWhileRevalidate(boolean)}) the cache may work in "stale while revalidate" mode. 
+ * In this mode threads are blocked only on initialization. 
+ * When cached object is expired, only one thread reloads it while all other threads keep getting the expired object until the new one is swapped in.
+ * Reload is done either by the thread that found out that cached object is expired or by the {@link #setRefreshExecutor(Executor) refresh executor}.
+ * <br/>
+ * 
+ * Optionally (see {@link #setRefreshAheadTime(long)}) the cache may reload the cached object in background some time before it expires, 
+ * so that after the first load no thread waits for the proxied method. 
+ * Background reload replays the last intercepted invocation (which is possible for Spring AOP proxies) or calls the {@link #setLoader(Callable) loader} if set.
+ * Scheduled reloads are cancelled when the cache is destroyed with the Spring context.
+ * <br/>
+ * 
+ * Failed loads may be handled in two ways, both disabled by default:
+ * <ul>
+ * <li>last good value fallback - (see {@link #setStaleIfErrorTime(long)}) if load fails, the last loaded object is served for a grace period after its expiration.</li>
+ * <li>error caching - (see {@link #setErrorCacheTime(long)}) if load fails and there is no object to fall back to, the exception is cached and rethrown for a given time.</li>
+ * </ul>
+ * In both cases load is not retried before error cache time elapses. This time doubles on each consecutive failure up to {@link #setMaxErrorCacheTime(long)}.
+ * The last loaded object is served for at least one second before the load is retried, even if error caching is disabled.
+ * Each thread gets its own copy of the cached exception.
+ * <br/>
+ * 
+ * Optionally (see {@link #setSnapshotStore(CacheSnapshotStore)}) the cached object may be saved after each load and restored on startup. 
+ * Restored object is served immediately, even if expired, while it is reloaded 
+ * (in background if {@link #setRefreshExecutor(Executor) refresh executor} or {@link #setLoader(Callable) loader} is set).
+ * <br/>
+ * 
+ * Optionally (see {@link #setOffHeapStorage(OffHeapValueStorage)}) a cached map or list may be kept serialized outside of the heap. 
+ * Readers then get a read-only view which decodes only the entries they access (see {@link OffHeapValue}), 
+ * which trades a deserialization per accessed entry for a smaller heap. 
+ * The segment of a replaced map or list is freed once its {@link OffHeapValueStorage#setReleaseDelay(long) release delay} elapses.
+ * <br/>
+ * 
+ * Cache hits, misses, loads and blocked readers are recorded by {@link CacheStatistics} (see {@link #getStatistics()}) 
+ * and notified to {@link #setListeners(List) listeners}. 
+ * A cache hit only increments a striped counter.
+ * <br/>
+ * 
+ * Optionally (see {@link #setAsync(boolean)}) the cache may handle proxied methods returning {@link CompletionStage} or {@link ListenableFuture}. 
+ * In this mode the pending future itself is cached as soon as the proxied method returns it, so concurrent callers share one pending load 
+ * and no thread is blocked while the future completes. The expiration time is counted from the future completion and failed futures are evicted.
+ * In "stale while revalidate" mode the expired future is served, and no other load is started, until the reloaded one completes.
+ * Snapshot store and off-heap storage do not apply to futures.
+ * <br/>
+ * 
+ * Optionally (see {@link #setDeltaLoader(DeltaLoader)}) a cached map may be refreshed incrementally. 
+ * In this mode the proxied method is not invoked, the {@link DeltaLoader} returns only entries changed since the previous load 
+ * and they are applied to a copy of the cached map, which is then published as the new cached object. 
+ * Readers keep reading the previous map meanwhile and a map once returned never changes.
+ * <br/>
+ * 
+ * Optionally (see {@link #setRefreshCoordinator(RefreshCoordinator)}) reloads may be coordinated between nodes (JVMs) caching the same object. 
+ * Only the elected node loads the object, other nodes pick up the object it publishes and meanwhile keep serving their current object.
+ * <br/>
  *
  * @author Maciej SIDOR (maciejsidor@gmail.com)
  * @since 2015
  */
-public class TimeEvictBlockingCache implements MethodInterceptor
+public class TimeEvictBlockingCache implements MethodInterceptor, InitializingBean, DisposableBean
 {
 	/**
-	 * The cached object
+	 * The cached object along with its expiration time. Null until the cache is initialized.
+	 */
+	private volatile CacheSnapshot snapshot = null;
+	
+	/**
+	 * Atomic updater of the snapshot, used when publishing completed futures
+	 */
+	private static final AtomicReferenceFieldUpdater<TimeEvictBlockingCache, CacheSnapshot> SNAPSHOT_UPDATER = AtomicReferenceFieldUpdater.newUpdater(TimeEvictBlockingCache.class, CacheSnapshot.class, "snapshot");
+	
+	/**
+	 * Minimal time during which failed load is not retried while the last loaded object is served, in milliseconds
+	 */
+	private static final long MIN_STALE_RETRY_TIME = 1000;
+	
+	/**
+	 * Expiration delay of a pending future, long enough to never expire
 	 */
-	private Object cacheObject = null;
+	private static final long PENDING_EXPIRATION_TIME = Long.MAX_VALUE/4;
 	
 	/**
 	 * The cache logger
@@ -67,45 +159,154 @@ public class TimeEvictBlockingCache implements MethodInterceptor
 	private final Logger log = LoggerFactory.getLogger(this.getClass()); 
 	
 	/**
-	 * Read/Write lock
+	 * Lock that allows only one thread to load the cached object, all other threads wait on it 
+	 */
+	private final ReentrantLock				loadLock 					= new ReentrantLock();
+	
+	/**
+	 * Limits reloading in "stale while revalidate" mode to only one thread
+	 */
+	private final AtomicBoolean 			refreshing 					= new AtomicBoolean(false);
+		
+	/**
+	 * Time source used to check expiration
+	 */
+	private CacheClock clock = SystemCacheClock.INSTANCE;
+	
+	/**
+	 * Time after which the cached object will be renewed
 	 */
-	private final ReentrantReadWriteLock 	lock 						= new ReentrantReadWriteLock();
+	private long cacheExpirationTime = 0;
 	
 	/**
-	 * Lock for read
+	 * If set to true, expired cached object is returned while being reloaded
 	 */
-	private final Lock 						readLock 					= lock.readLock();	
+	private boolean staleWhileRevalidate = false;
 	
 	/**
-	 * Lock for write
+	 * Executor used to reload expired cached object in "stale while revalidate" mode
 	 */
-	private final Lock 						writeLock 					= lock.writeLock();
+	private Executor refreshExecutor = null;
 	
 	/**
-	 * Intermediate lock to limit passing to write mode to only by one thread 
+	 * Time after expiration during which the last loaded object is served if reload fails
 	 */
-	private final ReentrantLock				reserveWritelock 			= new ReentrantLock();
+	private long staleIfErrorTime = 0;
 	
 	/**
-	 * Intermediate lock that holds all reading threads until cache date are initialized 
+	 * Time during which failed load is not retried
 	 */
-	private final ReentrantLock				initializationlock 			= new ReentrantLock();
+	private long errorCacheTime = 0;
 	
 	/**
-	 * Condition for initialization lock
+	 * Maximal time during which failed load is not retried, reached by doubling error cache time on consecutive failures
 	 */
-	private final Condition					initializatiionCondition	= this.initializationlock.newCondition();
+	private long maxErrorCacheTime = 0;
 	
-		
 	/**
-	 * Stores cache last update time
+	 * Time before expiration at which the cached object is reloaded in background, zero disables background reload
 	 */
-	private long lastCacheUpdate = 0;
+	private long refreshAheadTime = 0;
 	
 	/**
-	 * Time after which the cached object will be renewed
+	 * Maximal random time subtracted from the background reload delay
 	 */
-	private long cacheExpirationTime = 0;
+	private long refreshJitter = 0;
+	
+	/**
+	 * Scheduler used for background reload
+	 */
+	private ScheduledExecutorService refreshScheduler = null;
+	
+	/**
+	 * True if refresh scheduler was created by this cache and must be shut down with it
+	 */
+	private boolean ownRefreshScheduler = false;
+	
+	/**
+	 * Callback used for background reload instead of replaying the intercepted invocation
+	 */
+	private Callable<?> loader = null;
+	
+	/**
+	 * Not proceeded clone of last intercepted invocation, replayed by background reload 
+	 */
+	private volatile MethodInvocation replayableInvocation = null;
+	
+	/**
+	 * Next scheduled background reload
+	 */
+	private volatile ScheduledFuture<?> scheduledRefresh = null;
+	
+	/**
+	 * Set to true when cache is destroyed, stops background reload
+	 */
+	private volatile boolean destroyed = false;
+	
+	/**
+	 * Store used to save the cached object and to restore it on startup
+	 */
+	private CacheSnapshotStore snapshotStore = null;
+	
+	/**
+	 * Storage used to keep the cached object outside of the heap
+	 */
+	private OffHeapValueStorage offHeapStorage = null;
+	
+	/**
+	 * Statistics of the cache, null if disabled
+	 */
+	private CacheStatistics statistics = new CacheStatistics();
+	
+	/**
+	 * Listeners notified about loads and blocked readers
+	 */
+	private CacheListener[] listeners = new CacheListener[0];
+	
+	/**
+	 * If set to true, futures returned by proxied method are cached while pending
+	 */
+	private boolean async = false;
+	
+	/**
+	 * Loader of map changes, used instead of proxied method if set
+	 */
+	private DeltaLoader<Object, Object> deltaLoader = null;
+	
+	/**
+	 * Read-only map last built by the delta loader, this is the cached object
+	 */
+	private Map<Object, Object> deltaMap = null;
+	
+	/**
+	 * Version returned by the last delta load
+	 */
+	private long deltaVersion = DeltaLoader.INITIAL_VERSION;
+	
+	/**
+	 * Lock that serializes delta loads
+	 */
+	private final Object deltaLock = new Object();
+	
+	/**
+	 * Coordinator of reloads between nodes, null if reloads are not coordinated
+	 */
+	private RefreshCoordinator refreshCoordinator = null;
+	
+	/**
+	 * Time after which a node not elected to reload the cached object checks again for the published object
+	 */
+	private long coordinationRetryTime = 1000;
+	
+	/**
+	 * Wall clock time when the cached object was loaded, by this or other node. Zero if not loaded yet.
+	 */
+	private volatile long lastLoadTime = 0;
+	
+	/**
+	 * Random used to compute background reload jitter
+	 */
+	private final Random random = new Random();
 	
 	/**
 	 * @return Time after which the cached object will be renewed
@@ -125,178 +326,1399 @@ public class TimeEvictBlockingCache implements MethodInterceptor
 	}
 
 	/**
-	 * Method call interception. 
-	 * Whole cache implementation happens here.
+	 * @return time source used to check expiration
+	 */
+	public CacheClock getClock() 
+	{
+		return clock;
+	}
+
+	/**
+	 * Sets time source used to check expiration. 
+	 * {@link SystemCacheClock} is used by default, {@link CoarseCacheClock} may be used to make the expiration check cheaper.
 	 * 
-	 * @param method call parameters
-	 * @return result of proxied method either from cache or directly from method call 
+	 * @param clock the clock to set
 	 */
-	public Object invoke(MethodInvocation invocation) throws Throwable 
-    {
-			log.trace("Intercepting "+invocation.getMethod().toGenericString());
-		
-			/*variables to keep the lock states*/
-			boolean hasReadLock 				= false;
-			boolean hasWriteLock 				= false;
-			boolean hasReservedWritelock 		= false;
-			boolean hasInitializationLock		= false;
-			
-			/*intercepted exception to rethrow after releasing locks*/
-			Exception exceptionToThrow 			= null;
-			
-			/*Cached object to be returned*/
-			Object cachedObjectToReturn  		= null;
-		   		
-		    try
-		    {
-    	
-		       /*take the read lock by default*/
-		       readLock.lock();		       
-		       hasReadLock = true;
-		       log.trace("Taking read lock");
-		       
-		       /*if cached object was not set yet or is expired  */
-		       if(lastCacheUpdate==0 || System.currentTimeMillis()-lastCacheUpdate>cacheExpirationTime)
-		       {	    		   	    		   	    		
-		    	   /*try to take intermediate write lock - only one thread can do that*/
-		    	   if(reserveWritelock.tryLock())
-		    	   {		    		   
-		    		   log.trace("Taking update lock");		    		   
-		    		   hasReservedWritelock = true;
-		    		   
-		    		   
-		    		   /*
-		    		    * Direct upgrade from read to write lock is not possible.
-		    		    * First a thread must drop its read lock to go to write lock
-		    		    */
-		    		   		    	  
-			    	   readLock.unlock();	
-			    	   hasReadLock=false;
-			    	   log.trace("Releasing read lock");
-			    	   			    	   
-			    	   writeLock.lock();		    	   
-			    	   hasWriteLock = true;			    	   			    	   
-			    	   log.trace("Taking write lock");
-			    	   
-			    	   /*now read threads are no more accepted*/
-			    	   
-		     		   /*call intercepted method*/
-		     		   log.trace("Refreshing cache");		     		   		
-		     		   cacheObject = invocation.proceed();
-		     		   
-		     		   /*in case of first interception*/
-		    		   if(lastCacheUpdate==0)
-		    		   {		    			   		
-		    			   /*take initialization lock*/
-			     		   initializationlock.lock();
-			     		   hasInitializationLock=true;
-			     		   log.trace("Taking initialization lock and notifying all readers");
-			     		   
-			     		   /*notify all threads that waits on initialization condition*/
-			     		   initializatiionCondition.signalAll();
-			     		   
-			     		   /*release initialization lock to allow waiting threads to proceed*/
-			     		   initializationlock.unlock();
-			     		   hasInitializationLock=false;			
-			     		   log.trace("Releasing initalization lock");
-			     		  
-		    		   }
-		     		   
-		    		   /*update last cache update time*/
-		     		   lastCacheUpdate=System.currentTimeMillis();
-		    	   }
-		    	   else /*when thread could not get the intermediate write lock*/
-		    	   {
-		    		   
-		    		   /*if this is the first method interception and thus the cached object is not there yet*/
-		    		   if(lastCacheUpdate==0)
-		    		   {		   
-		    			   /*take initialization lock*/
-		    			   initializationlock.lock();		    			   
-		    			   hasInitializationLock=true;
-		    			   log.trace("Taking initialization lock and awaiting for notify");
-		    			   
-		    			   /*
-		    			    * Drop the read lock in order to allow thread with write lock to proceed.
-		    			    * Otherwise threads will be deadlocking each others.
-		    			    * */
-				    	   readLock.unlock();	
-				    	   hasReadLock=false;		    
-				    	   
-				    	   /*wait for notification from writer thread*/
-		    			   initializatiionCondition.await();
-		    			   
-		    			   log.trace("Awaking from initialization wait");
-		    			   
-		    			   /*unlock initialization lock */
-			     		   initializationlock.unlock();
-			     		   hasInitializationLock=false;			     		   
-			     		   log.trace("Releasing initalization lock");
-		    			   
-			     		   
-			     		   /*retake read lock*/
-				    	   readLock.lock();	
-				    	   hasReadLock=true;
-				    	   log.trace("Retaking read lock");
-				    	   
-		    			   
-		    			   
-		    		   }
-		    	   }
-		    
-		       }	
-		       
-		       /*set cached object - most of time only this part of code is executed*/
-		       cachedObjectToReturn = cacheObject;
-		       
-	    	
-		    }
-		    catch (Exception e)
-		    {
-		       /*intercept thrown exception*/
-		       exceptionToThrow = e;
-		    }
-		    finally
-		    {
-		       /*release all taken locks*/	
-		    	
-		       if(hasWriteLock)	  
-		       {
-		    	   log.trace("Releasing write lock");
-		    	   writeLock.unlock();
-		       }
-		       
-		       if(hasReadLock)
-		       {
-		    	   log.trace("Releasing read lock");
-		    	   readLock.unlock();
-		       }
-		       
-		       if(hasReservedWritelock)
-		       {
-		    	   log.trace("Releasing update lock");
-		    	   reserveWritelock.unlock();
-		       }
-		       
-		       if(hasInitializationLock)
-		       {
-		    	   log.trace("Releasing initalization lock");
-		    	   initializationlock.unlock();
-		       }
-		       
-		       /*rethrow intercepted exception*/
-		       if(exceptionToThrow!=null)
-		       {
-		    	   
-		    	   log.trace("Exiting on exception");
-		    	   throw exceptionToThrow;
-		       }
-		    }
-
-		    /*return cached object*/
-		    log.trace("Returning result");
-		    return cachedObjectToReturn;		
-    }
+	public void setClock(CacheClock clock) 
+	{
+		Assert.notNull(clock, "Clock must not be null");
+		this.clock = clock;
+	}
+
+	/**
+	 * @return true if expired cached object is returned while being reloaded
+	 */
+	public boolean isStaleWhileRevalidate() 
+	{
+		return staleWhileRevalidate;
+	}
+
+	/**
+	 * If set to true, expired cached object is returned to all threads but the one reloading it. 
+	 * Threads are blocked only until the cached object is loaded for the first time.
+	 * 
+	 * @param staleWhileRevalidate the staleWhileRevalidate to set
+	 */
+	public void setStaleWhileRevalidate(boolean staleWhileRevalidate) 
+	{
+		this.staleWhileRevalidate = staleWhileRevalidate;
+	}
 
+	/**
+	 * @return executor used to reload expired cached object in "stale while revalidate" mode
+	 */
+	public Executor getRefreshExecutor() 
+	{
+		return refreshExecutor;
+	}
+
+	/**
+	 * Sets executor used to reload expired cached object in "stale while revalidate" mode. 
+	 * If not set, or if the executor rejects the reload, the cached object is reloaded by the thread that found out that it is expired.
+	 * The executor is used only if the intercepted invocation can be cloned (which is the case for Spring AOP proxies).
+	 * 
+	 * @param refreshExecutor the refreshExecutor to set
+	 */
+	public void setRefreshExecutor(Executor refreshExecutor) 
+	{
+		this.refreshExecutor = refreshExecutor;
+	}
+
+	/**
+	 * @return time after expiration during which the last loaded object is served if reload fails
+	 */
+	public long getStaleIfErrorTime() 
+	{
+		return staleIfErrorTime;
+	}
+
+	/**
+	 * Sets time after expiration during which the last loaded object is served if reload fails. 
+	 * Load is retried after {@link #setErrorCacheTime(long) error cache time}, but not sooner than one second.
+	 * Zero (default) disables the fallback.
+	 * 
+	 * @param staleIfErrorTime the staleIfErrorTime to set
+	 */
+	public void setStaleIfErrorTime(long staleIfErrorTime) 
+	{
+		Assert.isTrue(staleIfErrorTime>=0, "Stale if error time must not be negative");
+		this.staleIfErrorTime = staleIfErrorTime;
+	}
+
+	/**
+	 * @return time during which failed load is not retried
+	 */
+	public long getErrorCacheTime() 
+	{
+		return errorCacheTime;
+	}
+
+	/**
+	 * Sets time during which failed load is not retried. 
+	 * During this time the last loaded object is served (see {@link #setStaleIfErrorTime(long)}) or the load exception is rethrown.
+	 * Zero (default) disables error caching.
+	 * 
+	 * @param errorCacheTime the errorCacheTime to set
+	 */
+	public void setErrorCacheTime(long errorCacheTime) 
+	{
+		Assert.isTrue(errorCacheTime>=0, "Error cache time must not be negative");
+		this.errorCacheTime = errorCacheTime;
+	}
+
+	/**
+	 * @return maximal time during which failed load is not retried
+	 */
+	public long getMaxErrorCacheTime() 
+	{
+		return maxErrorCacheTime;
+	}
+
+	/**
+	 * Sets maximal time during which failed load is not retried. 
+	 * Error cache time doubles on each consecutive failure up to this value. 
+	 * If not greater than error cache time (default), error cache time is constant.
+	 * 
+	 * @param maxErrorCacheTime the maxErrorCacheTime to set
+	 */
+	public void setMaxErrorCacheTime(long maxErrorCacheTime) 
+	{
+		Assert.isTrue(maxErrorCacheTime>=0, "Max error cache time must not be negative");
+		this.maxErrorCacheTime = maxErrorCacheTime;
+	}
+
+	/**
+	 * @return time before expiration at which the cached object is reloaded in background
+	 */
+	public long getRefreshAheadTime() 
+	{
+		return refreshAheadTime;
+	}
+
+	/**
+	 * Sets time before expiration at which the cached object is reloaded in background. 
+	 * Zero (default) disables background reload.
+	 * 
+	 * @param refreshAheadTime the refreshAheadTime to set
+	 */
+	public void setRefreshAheadTime(long refreshAheadTime) 
+	{
+		Assert.isTrue(refreshAheadTime>=0, "Refresh ahead time must not be negative");
+		this.refreshAheadTime = refreshAheadTime;
+	}
+
+	/**
+	 * @return maximal random time subtracted from the background reload delay
+	 */
+	public long getRefreshJitter() 
+	{
+		return refreshJitter;
+	}
+
+	/**
+	 * Sets maximal random time subtracted from the background reload delay. 
+	 * It prevents many caches loaded at the same time from reloading at the same time.
+	 * 
+	 * @param refreshJitter the refreshJitter to set
+	 */
+	public void setRefreshJitter(long refreshJitter) 
+	{
+		Assert.isTrue(refreshJitter>=0, "Refresh jitter must not be negative");
+		this.refreshJitter = refreshJitter;
+	}
+
+	/**
+	 * @return scheduler used for background reload
+	 */
+	public ScheduledExecutorService getRefreshScheduler() 
+	{
+		return refreshScheduler;
+	}
+
+	/**
+	 * Sets scheduler used for background reload. 
+	 * If not set, a single daemon thread scheduler is created on demand and shut down when the cache is destroyed.
+	 * 
+	 * @param refreshScheduler the refreshScheduler to set
+	 */
+	public void setRefreshScheduler(ScheduledExecutorService refreshScheduler) 
+	{
+		this.refreshScheduler = refreshScheduler;
+	}
+
+	/**
+	 * @return callback used for background reload
+	 */
+	public Callable<?> getLoader() 
+	{
+		return loader;
+	}
+
+	/**
+	 * Sets callback used for background reload. 
+	 * If not set, background reload replays the last intercepted invocation.
+	 * 
+	 * @param loader the loader to set
+	 */
+	public void setLoader(Callable<?> loader) 
+	{
+		this.loader = loader;
+	}
+	
+	/**
+	 * @return store used to save the cached object and to restore it on startup
+	 */
+	public CacheSnapshotStore getSnapshotStore() 
+	{
+		return snapshotStore;
+	}
+
+	/**
+	 * Sets store used to save the cached object after each load and to restore it on startup. 
+	 * The object is saved by the {@link #setRefreshExecutor(Executor) refresh executor} if set, otherwise by the loading thread.
+	 * 
+	 * @param snapshotStore the snapshotStore to set
+	 */
+	public void setSnapshotStore(CacheSnapshotStore snapshotStore) 
+	{
+		this.snapshotStore = snapshotStore;
+	}
+	
+	/**
+	 * @return storage used to keep the cached object outside of the heap
+	 */
+	public OffHeapValueStorage getOffHeapStorage() 
+	{
+		return offHeapStorage;
+	}
+
+	/**
+	 * Sets storage used to keep the cached map or list outside of the heap. 
+	 * If set, the proxied method must be declared to return {@link Map} or {@link List}. 
+	 * Readers get a read-only view of it, which decodes entries when they are accessed and must not be kept after the cache reloads the object.
+	 * If not set (default), the cached object is kept as is on the heap.
+	 * Ignored with a {@link #setDeltaLoader(DeltaLoader) delta loader}, which keeps the map on the heap to apply the next changes.
+	 * 
+	 * @param offHeapStorage the offHeapStorage to set
+	 */
+	public void setOffHeapStorage(OffHeapValueStorage offHeapStorage) 
+	{
+		this.offHeapStorage = offHeapStorage;
+	}
+	
+	/**
+	 * @return true if futures returned by proxied method are cached while pending
+	 */
+	public boolean isAsync() 
+	{
+		return async;
+	}
+
+	/**
+	 * If set to true, futures ({@link CompletionStage} or {@link ListenableFuture}) returned by proxied method are cached while pending 
+	 * and threads are not blocked while they complete. Expiration time is counted from the future completion, failed futures are evicted.
+	 * 
+	 * @param async the async to set
+	 */
+	public void setAsync(boolean async) 
+	{
+		this.async = async;
+	}
+
+	/**
+	 * @return loader of map changes
+	 */
+	public DeltaLoader<?, ?> getDeltaLoader() 
+	{
+		return deltaLoader;
+	}
+
+	/**
+	 * Sets loader of map changes. 
+	 * If set, the proxied method is not invoked: the cached object is a read-only map 
+	 * which is fully loaded on first load and then refreshed by applying the changes returned by the delta loader to a copy of it.
+	 * The {@link #setOffHeapStorage(OffHeapValueStorage) off-heap storage} is not used 
+	 * and the {@link #setSnapshotStore(CacheSnapshotStore) snapshot store} only saves fully loaded maps.
+	 * 
+	 * @param deltaLoader the deltaLoader to set
+	 */
+	@SuppressWarnings("unchecked")
+	public void setDeltaLoader(DeltaLoader<?, ?> deltaLoader) 
+	{
+		this.deltaLoader = (DeltaLoader<Object, Object>) deltaLoader;
+	}
+
+	/**
+	 * @return coordinator of reloads between nodes
+	 */
+	public RefreshCoordinator getRefreshCoordinator() 
+	{
+		return refreshCoordinator;
+	}
+
+	/**
+	 * Sets coordinator of reloads between nodes (see {@link FileRefreshCoordinator}). 
+	 * If set, the expired object is reloaded only by the elected node, other nodes keep serving their current object 
+	 * and pick up the object published by the elected node. The expiration time is counted from the original load time.
+	 * Load times are wall clock times compared between nodes, so the clocks of the nodes must be synchronized (for instance by NTP) 
+	 * with a skew well below the cache expiration time.
+	 * Reloads are not coordinated in async mode nor with a delta loader.
+	 * 
+	 * @param refreshCoordinator the refreshCoordinator to set
+	 */
+	public void setRefreshCoordinator(RefreshCoordinator refreshCoordinator) 
+	{
+		this.refreshCoordinator = refreshCoordinator;
+	}
+
+	/**
+	 * @return time after which a node not elected to reload the cached object checks again for the published object
+	 */
+	public long getCoordinationRetryTime() 
+	{
+		return coordinationRetryTime;
+	}
+
+	/**
+	 * Sets time after which a node not elected to reload the cached object checks again for the published object. 
+	 * Default is one second.
+	 * 
+	 * @param coordinationRetryTime the coordinationRetryTime to set
+	 */
+	public void setCoordinationRetryTime(long coordinationRetryTime) 
+	{
+		this.coordinationRetryTime = coordinationRetryTime;
+	}
+
+	/**
+	 * @return statistics of the cache, null if disabled
+	 */
+	public CacheStatistics getStatistics() 
+	{
+		return statistics;
+	}
+
+	/**
+	 * Sets statistics of the cache. 
+	 * Statistics are created by default, this setter allows to use statistics declared as a bean (for instance exported through JMX)
+	 * or to disable statistics by setting null.
+	 * 
+	 * @param statistics the statistics to set
+	 */
+	public void setStatistics(CacheStatistics statistics) 
+	{
+		this.statistics = statistics;
+	}
+
+	/**
+	 * Sets listeners notified about loads and blocked readers.
+	 * 
+	 * @param listeners the listeners to set
+	 */
+	public void setListeners(List<CacheListener> listeners) 
+	{
+		this.listeners = listeners.toArray(new CacheListener[listeners.size()]);
+	}
+	
+	/**
+	 * Restores the cached object from the snapshot store, if set. 
+	 * The object is restored with its original load time, so it may be restored already expired.
+	 */
+	public void afterPropertiesSet() 
+	{
+		if(snapshotStore==null || snapshot!=null)
+		{
+			return;
+		}
+		
+		try
+		{
+			StoredCacheSnapshot stored = snapshotStore.load();
+			
+			if(stored!=null)
+			{
+				long age 	= Math.max(System.currentTimeMillis()-stored.getLoadTime(), 0);
+				long expiry = clock.nanoTime()+TimeUnit.MILLISECONDS.toNanos(cacheExpirationTime-age);
+				
+				CacheSnapshot restoredSnapshot = new CacheSnapshot(toCachedValue(stored.getValue()), isOffHeap(), null, expiry, expiry+TimeUnit.MILLISECONDS.toNanos(staleIfErrorTime), 0, true);
+				snapshot = restoredSnapshot;
+				lastLoadTime = stored.getLoadTime();
+				log.debug("Cache restored from snapshot");
+				
+				scheduleRefresh(restoredSnapshot);
+			}
+		}
+		catch (Exception e)
+		{
+			log.warn("Cache could not be restored from snapshot", e);
+		}
+	}
+	
+	/**
+	 * Cancels scheduled background reload and shuts down the refresh scheduler if it was created by this cache.
+	 * The off-heap value is released, along with the replaced ones waiting for their release delay.
+	 */
+	public void destroy() 
+	{
+		destroyed = true;
+		
+		ScheduledFuture<?> scheduled = scheduledRefresh;
+		if(scheduled!=null)
+		{
+			scheduled.cancel(false);
+		}
+		
+		synchronized (this) 
+		{
+			if(ownRefreshScheduler)
+			{
+				/*pending releases run right away, pending refreshes return as the cache is destroyed*/
+				for (Runnable pending : refreshScheduler.shutdownNow())
+				{
+					pending.run();
+				}
+			}
+		}
+		
+		CacheSnapshot current = snapshot;
+		if(current!=null && current.offHeap)
+		{
+			((OffHeapValue) current.value).release();
+		}
+	}
+
+	/**
+	 * Method call interception. 
+	 * Whole cache implementation happens here.
+	 * 
+	 * @param method call parameters
+	 * @return result of proxied method either from cache or directly from method call 
+	 */
+	public Object invoke(MethodInvocation invocation) throws Throwable 
+    {
+		/*return valid cached object without any lock - most of time only this part of code is executed*/
+		CacheSnapshot current = snapshot;
+		if(current!=null && current.isValid(clock.nanoTime()))
+		{
+			if(statistics!=null)
+			{
+				statistics.recordHit();
+			}
+			
+			return current.get();
+		}
+		
+		if(statistics!=null)
+		{
+			statistics.recordMiss();
+		}
+		
+		if(log.isTraceEnabled())
+		{
+			log.trace("Intercepting "+invocation.getMethod().toGenericString());
+		}
+		
+		/*once initialized, "stale while revalidate" mode never blocks, neither does the restored object*/
+		if(current!=null && current.failure==null && (staleWhileRevalidate || current.restored))
+		{
+			return invokeStaleWhileRevalidate(invocation, current);
+		}
+		
+		/*only one thread can load the cached object, all other threads wait for it*/
+		if(!loadLock.tryLock())
+		{
+			long waitStart = System.nanoTime();
+			loadLock.lock();
+			fireWait(System.nanoTime()-waitStart);
+		}
+		log.trace("Taking load lock");
+		
+		try
+		{
+			/*check again as the cached object could have been loaded while waiting for the lock*/
+			current = snapshot;
+			if(current==null || !current.isValid(clock.nanoTime()))
+			{
+				current = loadOrFallback(invocation, current);
+			}
+			
+			log.trace("Returning result");
+			return current.get();
+		}
+		finally
+		{
+			log.trace("Releasing load lock");
+			loadLock.unlock();
+		}
+    }
+
+	/**
+	 * Returns cached object in "stale while revalidate" mode. 
+	 * If cached object is expired, the first thread to notice it either reloads it or delegates reload to the refresh executor, 
+	 * falling back to reloading it if the executor rejects the reload.
+	 * All other threads get the expired cached object.
+	 * 
+	 * @param invocation method call parameters
+	 * @param current the expired snapshot 
+	 * @return result of proxied method either from cache or directly from method call 
+	 */
+	private Object invokeStaleWhileRevalidate(MethodInvocation invocation, CacheSnapshot current) throws Throwable
+	{
+		/*if no other thread is reloading the cached object*/
+		if(refreshing.compareAndSet(false, true))
+		{
+			/*reload in background if invocation can be replayed by another thread*/
+			if(refreshExecutor!=null && invocation instanceof ProxyMethodInvocation)
+			{
+				final MethodInvocation replay = ((ProxyMethodInvocation) invocation).invocableClone();
+				
+				try
+				{
+					log.trace("Delegating cache refresh to executor");
+					refreshExecutor.execute(new Runnable() 
+					{
+						public void run() 
+						{
+							try
+							{
+								refresh(replay);
+							}
+							catch (Throwable e)
+							{
+								log.warn("Background cache refresh failed, expired object is kept", e);
+							}
+						}
+					});
+				}
+				catch (RejectedExecutionException e)
+				{
+					/*executor saturated or shut down, reload in the calling thread rather than failing the call*/
+					log.trace("Refresh executor rejected cache refresh, refreshing in calling thread");
+					return refresh(invocation).get();
+				}
+				catch (RuntimeException e)
+				{
+					refreshing.set(false);
+					throw e;
+				}
+			}
+			else
+			{
+				return refresh(invocation).get();
+			}
+		}
+		
+		/*return cached object, possibly expired*/
+		if(statistics!=null)
+		{
+			statistics.recordStaleHit();
+		}
+		
+		return current.get();
+	}
+	
+	/**
+	 * Reloads the cached object in "stale while revalidate" mode. 
+	 * Must be called only by thread that set the refreshing flag, the flag is reset on exit. 
+	 * The load lock is taken, so that the object is not loaded twice if a refresh ahead is running.
+	 * 
+	 * @param invocation method call parameters
+	 * @return snapshot of reloaded cached object
+	 */
+	private CacheSnapshot refresh(MethodInvocation invocation) throws Throwable
+	{
+		/*refresh ahead may be loading the cached object too*/
+		loadLock.lock();
+		try
+		{
+			/*check again as the cached object could have been reloaded in the meantime*/
+			CacheSnapshot current = snapshot;
+			if(!current.isValid(clock.nanoTime()))
+			{
+				current = loadOrFallback(invocation, current);
+			}
+			
+			return current;
+		}
+		finally
+		{
+			loadLock.unlock();
+			refreshing.set(false);
+		}
+	}
+	
+	/**
+	 * Invokes proxied method and publishes its result as the new cached object.
+	 * If proxied method fails, publishes the failure (see {@link #publishFailure(Throwable, CacheSnapshot)}).
+	 * 
+	 * @param invocation method call parameters
+	 * @param current the current snapshot, may be null
+	 * @return the published snapshot that holds either loaded object or the last loaded object
+	 * @throws Throwable exception thrown by proxied method if there is no object to fall back to
+	 */
+	private CacheSnapshot loadOrFallback(MethodInvocation invocation, CacheSnapshot current) throws Throwable
+	{
+		try
+		{
+			return load(invocation);
+		}
+		catch (Throwable e)
+		{
+			CacheSnapshot fallback = publishFailure(e, current);
+			
+			if(fallback!=null && fallback.failure==null)
+			{
+				log.warn("Cache refresh failed, serving last loaded object", e);
+				return fallback;
+			}
+			
+			log.trace("Exiting on exception");
+			throw e;
+		}
+	}
+	
+	/**
+	 * Invokes proxied method and publishes its result as the new cached object.
+	 * A not proceeded clone of the invocation is kept for background reload.
+	 * 
+	 * @param invocation method call parameters
+	 * @return the published snapshot
+	 */
+	private CacheSnapshot load(final MethodInvocation invocation) throws Throwable
+	{
+		/*keep not proceeded clone of invocation for background reload*/
+		if(refreshAheadTime>0 && loader==null && deltaLoader==null && invocation instanceof ProxyMethodInvocation)
+		{
+			replayableInvocation = ((ProxyMethodInvocation) invocation).invocableClone();
+		}
+		
+		if(isCoordinated())
+		{
+			return loadCoordinated(new Callable<Object>() 
+			{
+				public Object call() throws Exception 
+				{
+					try
+					{
+						return invocation.proceed();
+					}
+					catch (Exception | Error e)
+					{
+						throw e;
+					}
+					catch (Throwable e)
+					{
+						throw new UndeclaredThrowableException(e);
+					}
+				}
+			});
+		}
+		
+		/*call intercepted method*/
+		log.trace("Refreshing cache");
+		long loadStart = System.nanoTime();
+		Object loaded;
+		
+		try
+		{
+			loaded = deltaLoader!=null ? loadDelta() : invocation.proceed();
+		}
+		catch (Throwable e)
+		{
+			fireLoadFailure(e, System.nanoTime()-loadStart);
+			throw e;
+		}
+		
+		return publishLoaded(loaded, loadStart);
+	}
+	
+	/**
+	 * Loads changes with the delta loader and applies them to a copy of the map. 
+	 * Fully loaded maps are saved into the snapshot store if set.
+	 * 
+	 * @return new read-only map
+	 */
+	private Object loadDelta() throws Exception
+	{
+		synchronized (deltaLock) 
+		{
+			MapDelta<Object, Object> delta = deltaLoader.loadChanges(deltaMap==null ? DeltaLoader.INITIAL_VERSION : deltaVersion);
+			Assert.state(deltaMap!=null || delta.isFull(), "First delta must be full");
+			
+			/*readers keep reading the previous map until the new one is published*/
+			Map<Object, Object> map;
+			
+			if(delta.isFull())
+			{
+				log.trace("Replacing map content");
+				map = new HashMap<Object, Object>(delta.getUpdated());
+			}
+			else
+			{
+				log.trace("Applying map changes");
+				map = new HashMap<Object, Object>(deltaMap);
+				map.putAll(delta.getUpdated());
+				
+				for (Object key : delta.getRemoved()) 
+				{
+					map.remove(key);
+				}
+			}
+			
+			deltaMap 		= Collections.unmodifiableMap(map);
+			deltaVersion 	= delta.getVersion();
+			
+			if(delta.isFull() && snapshotStore!=null)
+			{
+				saveSnapshot(new StoredCacheSnapshot(deltaMap, System.currentTimeMillis()));
+			}
+			
+			return deltaMap;
+		}
+	}
+	
+	/**
+	 * Calls the loader (or the delta loader if set) and publishes its result as the new cached object.
+	 * 
+	 * @return the published snapshot
+	 */
+	private CacheSnapshot loadFromLoader() throws Exception
+	{
+		if(isCoordinated())
+		{
+			return loadCoordinated(loader);
+		}
+		
+		long loadStart = System.nanoTime();
+		Object loaded;
+		
+		try
+		{
+			loaded = deltaLoader!=null ? loadDelta() : loader.call();
+		}
+		catch (Exception e)
+		{
+			fireLoadFailure(e, System.nanoTime()-loadStart);
+			throw e;
+		}
+		
+		return publishLoaded(loaded, loadStart);
+	}
+	
+	/**
+	 * @return true if reloads are coordinated between nodes
+	 */
+	private boolean isCoordinated()
+	{
+		return refreshCoordinator!=null && !async && deltaLoader==null;
+	}
+	
+	/**
+	 * Reloads the cached object through the refresh coordinator. 
+	 * Publishes either the object published by other node or the object loaded by this node if elected. 
+	 * If other node is loading the object, the current object is kept for {@link #setCoordinationRetryTime(long) coordination retry time}, 
+	 * or the object is loaded by this node if there is no object to serve.
+	 * 
+	 * @param source loads the object
+	 * @return the published snapshot
+	 */
+	private CacheSnapshot loadCoordinated(Callable<?> source) throws Exception
+	{
+		log.trace("Refreshing cache through coordinator");
+		long loadStart = System.nanoTime();
+		StoredCacheSnapshot coordinated;
+		
+		try
+		{
+			coordinated = refreshCoordinator.refresh(lastLoadTime, System.currentTimeMillis()-cacheExpirationTime, source);
+			
+			if(coordinated==null)
+			{
+				CacheSnapshot current = snapshot;
+				if(current!=null && current.failure==null)
+				{
+					/*other node is loading the object, keep serving the current one and check again later*/
+					long expiry = clock.nanoTime()+TimeUnit.MILLISECONDS.toNanos(coordinationRetryTime);
+					CacheSnapshot kept = new CacheSnapshot(current.value, current.offHeap, null, expiry, expiry+TimeUnit.MILLISECONDS.toNanos(staleIfErrorTime), 0, false);
+					snapshot = kept;
+					
+					/*check again ahead of the kept object expiry, but not in a tight loop while the other node loads*/
+					scheduleRefresh(kept, coordinationRetryTime/2);
+					
+					return kept;
+				}
+				
+				/*nothing to serve meanwhile*/
+				coordinated = new StoredCacheSnapshot(source.call(), System.currentTimeMillis());
+			}
+		}
+		catch (Exception e)
+		{
+			fireLoadFailure(e, System.nanoTime()-loadStart);
+			throw e;
+		}
+		
+		fireLoad(System.nanoTime()-loadStart);
+		return publish(coordinated.getValue(), coordinated.getLoadTime());
+	}
+	
+	/**
+	 * Publishes loaded object as the new cached object or, in async mode, caches the loaded future.
+	 * 
+	 * @param loaded the loaded object
+	 * @param loadStart time when the load started, as returned by {@link System#nanoTime()}
+	 * @return the published snapshot
+	 * @throws IOException if object could not be moved to off-heap storage
+	 */
+	private CacheSnapshot publishLoaded(Object loaded, long loadStart) throws IOException
+	{
+		if(async && (loaded instanceof CompletionStage || loaded instanceof ListenableFuture))
+		{
+			return publishFuture(loaded, loadStart);
+		}
+		
+		fireLoad(System.nanoTime()-loadStart);
+		return publish(loaded, System.currentTimeMillis());
+	}
+	
+	/**
+	 * Caches the loaded future. 
+	 * The pending future is published right away, unless the current object is still valid (background reload) or served expired in "stale while revalidate" mode.
+	 * In "stale while revalidate" mode the current object is published again as not expiring until the future completes, 
+	 * so that readers keep getting it without starting another load.
+	 * The future is published again with its expiration time once completed, or evicted if failed.
+	 * 
+	 * @param future the loaded future
+	 * @param loadStart time when the load started, as returned by {@link System#nanoTime()}
+	 * @return snapshot of the pending future
+	 */
+	@SuppressWarnings("unchecked")
+	private CacheSnapshot publishFuture(Object future, final long loadStart)
+	{
+		final CacheSnapshot current = snapshot;
+		final CacheSnapshot pending = new CacheSnapshot(future, false, null, clock.nanoTime()+PENDING_EXPIRATION_TIME, clock.nanoTime()+PENDING_EXPIRATION_TIME, 0, false);
+		
+		/*keep serving the current object (still valid or expired in "stale while revalidate" mode) until the future completes*/
+		final boolean keepCurrent = current!=null && current.failure==null && (staleWhileRevalidate || current.isValid(clock.nanoTime()));
+		
+		final CacheSnapshot replaced;
+		if(!keepCurrent)
+		{
+			replaced = pending;
+		}
+		else if(staleWhileRevalidate)
+		{
+			/*readers recognise the reload as pending as the current object does not expire until the future completes*/
+			replaced = new CacheSnapshot(current.value, current.offHeap, null, pending.expiry, current.staleDeadline, 0, false);
+		}
+		else
+		{
+			replaced = current;
+		}
+		
+		if(replaced!=current)
+		{
+			snapshot = replaced;
+		}
+		
+		/*failed future restores the snapshot it replaced, so that the next reader reloads it*/
+		final CacheSnapshot restored = keepCurrent ? current : null;
+		
+		if(future instanceof CompletionStage)
+		{
+			((CompletionStage<Object>) future).whenComplete(new BiConsumer<Object, Throwable>() 
+			{
+				public void accept(Object result, Throwable failure) 
+				{
+					onFutureComplete(pending, replaced, restored, failure, loadStart);
+				}
+			});
+		}
+		else
+		{
+			((ListenableFuture<Object>) future).addCallback(new ListenableFutureCallback<Object>() 
+			{
+				public void onSuccess(Object result) 
+				{
+					onFutureComplete(pending, replaced, restored, null, loadStart);
+				}
+				
+				public void onFailure(Throwable failure) 
+				{
+					onFutureComplete(pending, replaced, restored, failure, loadStart);
+				}
+			});
+		}
+		
+		return pending;
+	}
+	
+	/**
+	 * Publishes completed future with its expiration time or evicts failed future. 
+	 * Nothing is published if another object was published since the future was loaded.
+	 * 
+	 * @param pending snapshot of the pending future
+	 * @param replaced snapshot replaced by the completed future
+	 * @param restored snapshot published again if the future failed, null to evict the failed future
+	 * @param failure the future failure, null if completed successfully
+	 * @param loadStart time when the load started, as returned by {@link System#nanoTime()}
+	 */
+	private void onFutureComplete(CacheSnapshot pending, CacheSnapshot replaced, CacheSnapshot restored, Throwable failure, long loadStart)
+	{
+		if(failure==null)
+		{
+			fireLoad(System.nanoTime()-loadStart);
+			
+			long expiry = clock.nanoTime()+TimeUnit.MILLISECONDS.toNanos(cacheExpirationTime);
+			CacheSnapshot completed = new CacheSnapshot(pending.value, false, null, expiry, expiry+TimeUnit.MILLISECONDS.toNanos(staleIfErrorTime), 0, false);
+			
+			if(SNAPSHOT_UPDATER.compareAndSet(this, replaced, completed))
+			{
+				log.trace("Cached future completed");
+				scheduleRefresh(completed);
+			}
+		}
+		else
+		{
+			fireLoadFailure(failure, System.nanoTime()-loadStart);
+			
+			/*evict failed future, expired object served in "stale while revalidate" mode is published again*/
+			if(replaced!=restored && SNAPSHOT_UPDATER.compareAndSet(this, replaced, restored))
+			{
+				log.trace("Cached future failed and was evicted");
+			}
+		}
+	}
+	
+	/**
+	 * Publishes loaded object as the new cached object.
+	 * 
+	 * @param loaded the loaded object
+	 * @param loadTime wall clock time when the object was loaded, the expiration time is counted from it
+	 * @return the published snapshot
+	 * @throws IOException if object could not be moved to off-heap storage
+	 */
+	private CacheSnapshot publish(Object loaded, long loadTime) throws IOException
+	{
+		/*publish the cached object along with its expiration time in one volatile write*/
+		long age 	= Math.max(System.currentTimeMillis()-loadTime, 0);
+		long expiry = clock.nanoTime()+TimeUnit.MILLISECONDS.toNanos(cacheExpirationTime-age);
+		CacheSnapshot loadedSnapshot = new CacheSnapshot(toCachedValue(loaded), isOffHeap(), null, expiry, expiry+TimeUnit.MILLISECONDS.toNanos(staleIfErrorTime), 0, false);
+		CacheSnapshot replaced = snapshot;
+		snapshot = loadedSnapshot;
+		lastLoadTime = loadTime;
+		
+		if(replaced!=null && replaced.offHeap)
+		{
+			releaseLater((OffHeapValue) replaced.value);
+		}
+		
+		scheduleRefresh(loadedSnapshot);
+		
+		/*maps loaded with a delta loader are saved only when fully loaded*/
+		if(snapshotStore!=null && deltaLoader==null)
+		{
+			saveSnapshot(new StoredCacheSnapshot(loaded, loadTime));
+		}
+		
+		return loadedSnapshot;
+	}
+	
+	/**
+	 * Releases the off-heap value replaced by a reload once its release delay elapses, 
+	 * so that readers which got it just before it was replaced may still read it.
+	 * 
+	 * @param replaced the replaced value
+	 */
+	private void releaseLater(final OffHeapValue replaced)
+	{
+		try
+		{
+			getOrCreateRefreshScheduler().schedule(new Runnable() 
+			{
+				public void run() 
+				{
+					replaced.release();
+				}
+			}, offHeapStorage!=null ? offHeapStorage.getReleaseDelay() : 0, TimeUnit.MILLISECONDS);
+		}
+		catch (RejectedExecutionException e)
+		{
+			/*scheduler is shut down*/
+			replaced.release();
+		}
+	}
+	
+	/**
+	 * @param loaded the loaded object
+	 * @return the loaded object or its off-heap copy if off-heap storage is set
+	 * @throws IOException if object could not be moved to off-heap storage
+	 */
+	private Object toCachedValue(Object loaded) throws IOException
+	{
+		return isOffHeap() ? offHeapStorage.store(loaded) : loaded;
+	}
+	
+	/**
+	 * @return true if the cached object is kept in off-heap storage, which is not the case with a delta loader
+	 */
+	private boolean isOffHeap()
+	{
+		return offHeapStorage!=null && deltaLoader==null;
+	}
+	
+	/**
+	 * Saves the cached object into snapshot store, by refresh executor if set.
+	 * 
+	 * @param stored the cached object along with its load time
+	 */
+	private void saveSnapshot(final StoredCacheSnapshot stored)
+	{
+		Runnable save = new Runnable() 
+		{
+			public void run() 
+			{
+				try
+				{
+					snapshotStore.save(stored);
+					log.trace("Cache snapshot saved");
+				}
+				catch (IOException e)
+				{
+					log.warn("Cache snapshot could not be saved", e);
+				}
+			}
+		};
+		
+		if(refreshExecutor!=null)
+		{
+			try
+			{
+				refreshExecutor.execute(save);
+				return;
+			}
+			catch (RejectedExecutionException e)
+			{
+				log.trace("Refresh executor rejected saving cache snapshot");
+			}
+		}
+		
+		save.run();
+	}
+	
+	/**
+	 * Publishes failed load. 
+	 * The last loaded object is kept if its grace period is not over, otherwise the exception is cached if error caching is enabled.
+	 * In both cases load will not be retried before error cache time elapses.
+	 * 
+	 * @param failure exception thrown by proxied method
+	 * @param current the current snapshot, may be null
+	 * @return the published snapshot or null if nothing was published
+	 */
+	private CacheSnapshot publishFailure(Throwable failure, CacheSnapshot current)
+	{
+		long now 		= clock.nanoTime();
+		int failures 	= current==null ? 1 : current.failures+1;
+		long retryAt 	= now+TimeUnit.MILLISECONDS.toNanos(getErrorCacheTime(failures));
+		
+		CacheSnapshot failedSnapshot = null;
+		
+		if(current!=null && current.failure==null && current.staleDeadline-now>0)
+		{
+			/*threads served the last loaded object must not retry the load one after another*/
+			retryAt = Math.max(retryAt-now, TimeUnit.MILLISECONDS.toNanos(MIN_STALE_RETRY_TIME))+now;
+			
+			/*keep last loaded object but not after its grace period*/
+			failedSnapshot = new CacheSnapshot(current.value, current.offHeap, null, current.staleDeadline-retryAt<0 ? current.staleDeadline : retryAt, current.staleDeadline, failures, false);
+		}
+		else if(errorCacheTime>0)
+		{
+			/*cache the exception*/
+			failedSnapshot = new CacheSnapshot(null, false, failure, retryAt, now, failures, false);
+		}
+		
+		if(failedSnapshot!=null)
+		{
+			snapshot = failedSnapshot;
+		}
+		
+		return failedSnapshot;
+	}
+	
+	/**
+	 * @param failures number of consecutive failures
+	 * @return time during which failed load is not retried
+	 */
+	private long getErrorCacheTime(int failures)
+	{
+		long time = errorCacheTime;
+		
+		/*double error cache time for each consecutive failure, up to the max*/
+		for(int i=1; i<failures && time>0 && time<maxErrorCacheTime; i++)
+		{
+			time *= 2;
+		}
+		
+		return maxErrorCacheTime>errorCacheTime ? Math.min(time, maxErrorCacheTime) : errorCacheTime;
+	}
+	
+	/**
+	 * Notifies statistics and listeners about successful load
+	 * @param loadTime time spent loading, in nanoseconds
+	 */
+	private void fireLoad(long loadTime)
+	{
+		if(statistics!=null)
+		{
+			statistics.onLoad(loadTime);
+		}
+		
+		for (CacheListener listener : listeners) 
+		{
+			try
+			{
+				listener.onLoad(loadTime);
+			}
+			catch (RuntimeException e)
+			{
+				log.warn("Cache listener failed", e);
+			}
+		}
+	}
+	
+	/**
+	 * Notifies statistics and listeners about failed load
+	 * @param failure the exception thrown while loading
+	 * @param loadTime time spent loading, in nanoseconds
+	 */
+	private void fireLoadFailure(Throwable failure, long loadTime)
+	{
+		if(statistics!=null)
+		{
+			statistics.onLoadFailure(failure, loadTime);
+		}
+		
+		for (CacheListener listener : listeners) 
+		{
+			try
+			{
+				listener.onLoadFailure(failure, loadTime);
+			}
+			catch (RuntimeException e)
+			{
+				log.warn("Cache listener failed", e);
+			}
+		}
+	}
+	
+	/**
+	 * Notifies statistics and listeners about blocked reader
+	 * @param waitTime time spent waiting, in nanoseconds
+	 */
+	private void fireWait(long waitTime)
+	{
+		if(statistics!=null)
+		{
+			statistics.onWait(waitTime);
+		}
+		
+		for (CacheListener listener : listeners) 
+		{
+			try
+			{
+				listener.onWait(waitTime);
+			}
+			catch (RuntimeException e)
+			{
+				log.warn("Cache listener failed", e);
+			}
+		}
+	}
+	
+	/**
+	 * Schedules background reload of the cached object, if enabled.
+	 * 
+	 * @param scheduled snapshot which expiration time is used to compute reload time
+	 */
+	private void scheduleRefresh(CacheSnapshot scheduled)
+	{
+		scheduleRefresh(scheduled, 0);
+	}
+	
+	/**
+	 * Schedules background reload of the cached object, if enabled.
+	 * 
+	 * @param scheduled snapshot which expiration time is used to compute reload time
+	 * @param minDelay minimal time before the reload, in milliseconds
+	 */
+	private void scheduleRefresh(CacheSnapshot scheduled, long minDelay)
+	{
+		if(refreshAheadTime<=0 || destroyed || (loader==null && deltaLoader==null && replayableInvocation==null))
+		{
+			return;
+		}
+		
+		long delay = TimeUnit.NANOSECONDS.toMillis(scheduled.expiry-clock.nanoTime())-refreshAheadTime;
+		if(refreshJitter>0)
+		{
+			synchronized (random) 
+			{
+				delay -= (long) (random.nextDouble()*refreshJitter);
+			}
+		}
+		
+		ScheduledFuture<?> previous = scheduledRefresh;
+		if(previous!=null)
+		{
+			previous.cancel(false);
+		}
+		
+		log.trace("Scheduling background cache refresh");
+		try
+		{
+			scheduledRefresh = getOrCreateRefreshScheduler().schedule(new Runnable() 
+			{
+				public void run() 
+				{
+					refreshAhead();
+				}
+			}, Math.max(delay, minDelay), TimeUnit.MILLISECONDS);
+		}
+		catch (RejectedExecutionException e)
+		{
+			/*scheduler is shut down, cached object will be reloaded by the thread that finds out that it is expired*/
+			log.warn("Background cache refresh could not be scheduled", e);
+		}
+	}
+	
+	/**
+	 * Reloads the cached object in background. 
+	 * Threads reading the cached object are not blocked unless it expires before the reload ends.
+	 */
+	private void refreshAhead()
+	{
+		if(destroyed)
+		{
+			return;
+		}
+		
+		loadLock.lock();
+		try
+		{
+			log.trace("Background cache refresh");
+			
+			if(loader!=null || deltaLoader!=null)
+			{
+				loadFromLoader();
+			}
+			else
+			{
+				load(((ProxyMethodInvocation) replayableInvocation).invocableClone());
+			}
+		}
+		catch (Throwable e)
+		{
+			/*cached object will be reloaded by the thread that finds out that it is expired*/
+			log.warn("Background cache refresh failed", e);
+		}
+		finally
+		{
+			loadLock.unlock();
+		}
+	}
+	
+	/**
+	 * @return refresh scheduler, created on first use if not set
+	 */
+	private synchronized ScheduledExecutorService getOrCreateRefreshScheduler()
+	{
+		if(refreshScheduler==null)
+		{
+			CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("TimeEvictBlockingCache-refresh-");
+			threadFactory.setDaemon(true);
+			
+			refreshScheduler 	= Executors.newSingleThreadScheduledExecutor(threadFactory);
+			ownRefreshScheduler = true;
+		}
+		
+		return refreshScheduler;
+	}
+	
+	/**
+	 * Copies a failure shared by several threads, so that threads rethrowing it do not share its stack trace and suppressed exceptions. 
+	 * The copy is of the same type, with the same message and the shared failure as cause. 
+	 * If the type can not be instantiated, the failure is wrapped in {@link UndeclaredThrowableException}.
+	 * 
+	 * @param failure the shared failure
+	 * @return new exception caused by the shared failure
+	 */
+	static Throwable copyFailure(Throwable failure)
+	{
+		try
+		{
+			try
+			{
+				return failure.getClass().getConstructor(String.class, Throwable.class).newInstance(failure.getMessage(), failure);
+			}
+			catch (NoSuchMethodException e)
+			{
+				Throwable copy = failure.getClass().getConstructor(String.class).newInstance(failure.getMessage());
+				copy.initCause(failure);
+				return copy;
+			}
+		}
+		catch (Exception | LinkageError e)
+		{
+			return new UndeclaredThrowableException(failure, "Shared load failure");
+		}
+	}
+	
+	/**
+	 * Immutable state of the cache: cached object or load failure along with the expiration time
+	 * 
+	 * @author Maciej SIDOR (maciejsidor@gmail.com)
+	 * @since 2015
+	 */
+	private static final class CacheSnapshot
+	{
+		/**
+		 * The cached object, or the {@link OffHeapValue} holding it
+		 */
+		final Object 	value;
+		
+		/**
+		 * True if the cached object is kept outside of the heap
+		 */
+		final boolean 	offHeap;
+		
+		/**
+		 * The cached load failure, null if the cached object is set
+		 */
+		final Throwable failure;
+		
+		/**
+		 * Clock time after which the cached object is expired
+		 */
+		final long 		expiry;
+		
+		/**
+		 * Clock time after which the cached object is not served anymore if reload fails
+		 */
+		final long 		staleDeadline;
+		
+		/**
+		 * Number of consecutive load failures
+		 */
+		final int 		failures;
+		
+		/**
+		 * True if the cached object was restored from snapshot store and not loaded yet
+		 */
+		final boolean 	restored;
+		
+		/**
+		 * @param value the cached object
+		 * @param offHeap true if the cached object is an {@link OffHeapValue} made by the off-heap storage
+		 * @param failure the cached load failure
+		 * @param expiry clock time after which the cached object is expired
+		 * @param staleDeadline clock time after which the cached object is not served anymore if reload fails
+		 * @param failures number of consecutive load failures
+		 * @param restored true if the cached object was restored from snapshot store
+		 */
+		CacheSnapshot(Object value, boolean offHeap, Throwable failure, long expiry, long staleDeadline, int failures, boolean restored)
+		{
+			this.value 			= value;
+			this.offHeap 		= offHeap;
+			this.failure 		= failure;
+			this.expiry 		= expiry;
+			this.staleDeadline 	= staleDeadline;
+			this.failures 		= failures;
+			this.restored 		= restored;
+		}
+		
+		/**
+		 * @return the cached object, its read-only view if kept outside of the heap
+		 * @throws Throwable copy of the cached load failure
+		 */
+		Object get() throws Throwable
+		{
+			if(failure!=null)
+			{
+				throw copyFailure(failure);
+			}
+			
+			return offHeap ? ((OffHeapValue) value).get() : value;
+		}
+		
+		/**
+		 * @param now current clock time
+		 * @return true if cached object is not expired
+		 */
+		boolean isValid(long now)
+		{
+			/*difference is compared instead of values as clock time may overflow*/
+			return expiry-now>=0;
+		}
+	}
 
 }
@@ -0,0 +1,175 @@
+/*
+Copyright 2015 Maciej SIDOR [maciejsidor@gmail.com]
+
+The source code is licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+    
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.	
+ */
+package com.googlecode.msidor.springframework.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.cache.support.AbstractCacheManager;
+
+/**
+ * {@link CacheManager} of {@link TimeEvictBlockingSpringCache} caches.
+ * <br/>
+ * Caches are created for configured {@link #setCacheNames(Collection) cache names} and, unless disabled by {@link #setDynamic(boolean)}, 
+ * on demand for any other name.
+ * All caches use {@link #setCacheExpirationTime(long) default expiration time} unless it is overridden per cache name 
+ * by {@link #setCacheExpirationTimes(Map)}.
+ * 
+ * @author Maciej SIDOR (maciejsidor@gmail.com)
+ * @since 2015
+ */
+public class TimeEvictBlockingCacheManager extends AbstractCacheManager 
+{
+	/**
+	 * Names of caches created on startup
+	 */
+	private Set<String> cacheNames = new LinkedHashSet<String>();
+	
+	/**
+	 * Default time after which the cached entry will be renewed
+	 */
+	private long cacheExpirationTime = 0;
+	
+	/**
+	 * Times after which the cached entry will be renewed, per cache name
+	 */
+	private Map<String, Long> cacheExpirationTimes = new HashMap<String, Long>();
+	
+	/**
+	 * Maximal time a thread waits for other thread loading the same key
+	 */
+	private long lockTimeout = 3000;
+	
+	/**
+	 * Time source used to check expiration
+	 */
+	private CacheClock clock = SystemCacheClock.INSTANCE;
+	
+	/**
+	 * If true, caches are created on demand for unknown names
+	 */
+	private boolean dynamic = true;
+
+	/**
+	 * Sets names of caches created on startup
+	 * @param cacheNames the cacheNames to set
+	 */
+	public void setCacheNames(Collection<String> cacheNames) 
+	{
+		this.cacheNames = new LinkedHashSet<String>(cacheNames);
+	}
+
+	/**
+	 * @return Default time after which the cached entry will be renewed
+	 */
+	public long getCacheExpirationTime() 
+	{
+		return cacheExpirationTime;
+	}
+
+	/**
+	 * Sets default time after which the cached entry will be renewed
+	 * @param cacheExpirationTime
+	 */
+	public void setCacheExpirationTime(long cacheExpirationTime) 
+	{
+		this.cacheExpirationTime = cacheExpirationTime;
+	}
+
+	/**
+	 * Sets times after which the cached entry will be renewed, per cache name
+	 * @param cacheExpirationTimes the cacheExpirationTimes to set
+	 */
+	public void setCacheExpirationTimes(Map<String, Long> cacheExpirationTimes) 
+	{
+		this.cacheExpirationTimes = new HashMap<String, Long>(cacheExpirationTimes);
+	}
+
+	/**
+	 * Sets maximal time a thread waits for other thread loading the same key
+	 * @param lockTimeout the lockTimeout to set
+	 * @see TimeEvictBlockingSpringCache#setLockTimeout(long)
+	 */
+	public void setLockTimeout(long lockTimeout) 
+	{
+		this.lockTimeout = lockTimeout;
+	}
+
+	/**
+	 * Sets time source used to check expiration
+	 * @param clock the clock to set
+	 */
+	public void setClock(CacheClock clock) 
+	{
+		this.clock = clock;
+	}
+
+	/**
+	 * If set to true (default), caches are created on demand for unknown names
+	 * @param dynamic the dynamic to set
+	 */
+	public void setDynamic(boolean dynamic) 
+	{
+		this.dynamic = dynamic;
+	}
+
+	/**
+	 * Creates caches for configured names
+	 */
+	@Override
+	protected Collection<? extends Cache> loadCaches() 
+	{
+		List<Cache> caches = new ArrayList<Cache>();
+		
+		for (String name : cacheNames) 
+		{
+			caches.add(createCache(name));
+		}
+		
+		return caches;
+	}
+	
+	/**
+	 * Creates cache for unknown name if dynamic
+	 */
+	@Override
+	protected Cache getMissingCache(String name) 
+	{
+		return dynamic ? createCache(name) : null;
+	}
+	
+	/**
+	 * @param name name of the cache
+	 * @return new cache
+	 */
+	protected TimeEvictBlockingSpringCache createCache(String name)
+	{
+		Long expirationTime = cacheExpirationTimes.get(name);
+		
+		TimeEvictBlockingSpringCache cache = new TimeEvictBlockingSpringCache(name, expirationTime!=null ? expirationTime : cacheExpirationTime);
+		cache.setLockTimeout(lockTimeout);
+		cache.setClock(clock);
+		
+		return cache;
+	}
+}
@@ -0,0 +1,710 @@
+/*
+Copyright 2015 Maciej SIDOR [maciejsidor@gmail.com]
+
+The source code is licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+    
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.	
+ */
+package com.googlecode.msidor.springframework.cache;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.cache.Cache;
+import org.springframework.cache.support.SimpleValueWrapper;
+import org.springframework.util.Assert;
+
+/**
+ * Spring {@link Cache} with the time based evict blocking semantics of {@link TimeEvictBlockingCache}, per key.
+ * <br/>
+ * "time based evict" means that each entry is evicted based on expiration time counted from the moment it was put into the cache.
+ * <br/>
+ * 
+ * "blocking" means that only one thread at a time loads a missing or expired key, other threads reading the same key are blocked until it is loaded.
+ * Loading through {@link #get(Object, Callable)} blocks other readers and releases them also on failure. 
+ * This method is used by Spring 4.3+ for {@code @Cacheable(sync=true)}.
+ * <br/>
+ * Blocking also works with the get/put protocol used by Spring cache abstraction before 4.3 for {@code @Cacheable} methods, 
+ * when they are intercepted by {@link LoadMarkerReleasingInterceptor}:
+ * <ul>
+ * <li>the first thread that misses a key gets null from {@link #get(Object)} and becomes its loader. The key is marked as being loaded.</li>
+ * <li>other threads reading the key block in {@link #get(Object)} until the loader puts the value (see {@link #put(Object, Object)}).</li>
+ * <li>if the loader fails or does not put the value (for instance because of {@code unless}), blocked threads are released 
+ * by the intercepter once the method completes.</li>
+ * </ul>
+ * Outside of the intercepter {@link #get(Object)} never marks a key, as nothing would release it if the value is not put: 
+ * it returns null for a missing key and only waits for keys being loaded by other threads. 
+ * Threads still waiting after {@link #setLockTimeout(long) lock timeout} take over the loading.
+ * Blocked threads are not released by interruption, so that the key is never loaded by two threads at a time.
+ * <br/>
+ * Reads of valid entries take no lock.
+ * 
+ * @see TimeEvictBlockingCacheManager
+ * @author Maciej SIDOR (maciejsidor@gmail.com)
+ * @since 2015
+ */
+public class TimeEvictBlockingSpringCache implements Cache 
+{
+	/**
+	 * The cache logger
+	 */
+	private final Logger log = LoggerFactory.getLogger(this.getClass());
+	
+	/**
+	 * Name of the cache
+	 */
+	private final String name;
+	
+	/**
+	 * Load markers held by the current thread, in any cache
+	 */
+	private static final ThreadLocal<Set<LoadMarker>> HELD_MARKERS = new ThreadLocal<Set<LoadMarker>>();
+	
+	/**
+	 * Number of held markers above which the markers that are not held anymore are pruned
+	 */
+	private static final int HELD_MARKERS_PRUNE_SIZE = 16;
+	
+	/**
+	 * Cache entries or load markers, mapped by keys
+	 */
+	private final ConcurrentMap<Object, Object> store = new ConcurrentHashMap<Object, Object>();
+	
+	/**
+	 * Time after which the cached entry will be renewed
+	 */
+	private long cacheExpirationTime = 0;
+	
+	/**
+	 * Maximal time a thread waits for other thread loading the same key
+	 */
+	private long lockTimeout = 3000;
+	
+	/**
+	 * Time source used to check expiration
+	 */
+	private CacheClock clock = SystemCacheClock.INSTANCE;
+	
+	/**
+	 * Statistics of the cache, null if disabled
+	 */
+	private CacheStatistics statistics = new CacheStatistics();
+
+	/**
+	 * @param name name of the cache
+	 */
+	public TimeEvictBlockingSpringCache(String name) 
+	{
+		Assert.notNull(name, "Cache name must not be null");
+		this.name = name;
+	}
+	
+	/**
+	 * @param name name of the cache
+	 * @param cacheExpirationTime time after which the cached entry will be renewed
+	 */
+	public TimeEvictBlockingSpringCache(String name, long cacheExpirationTime) 
+	{
+		this(name);
+		this.cacheExpirationTime = cacheExpirationTime;
+	}
+
+	/**
+	 * @return Time after which the cached entry will be renewed
+	 */
+	public long getCacheExpirationTime() 
+	{
+		return cacheExpirationTime;
+	}
+
+	/**
+	 * Sets time after which the cached entry will be renewed
+	 * @param cacheExpirationTime
+	 */
+	public void setCacheExpirationTime(long cacheExpirationTime) 
+	{
+		this.cacheExpirationTime = cacheExpirationTime;
+	}
+
+	/**
+	 * @return maximal time a thread waits for other thread loading the same key
+	 */
+	public long getLockTimeout() 
+	{
+		return lockTimeout;
+	}
+
+	/**
+	 * Sets maximal time a thread waits for other thread loading the same key, 3 seconds by default.
+	 * After this time the waiting thread gets null from {@link #get(Object)} and loads the key itself.
+	 * The timeout matters only if the loading thread neither puts the value nor releases the key (see {@link LoadMarkerReleasingInterceptor}).
+	 * 
+	 * @param lockTimeout the lockTimeout to set
+	 */
+	public void setLockTimeout(long lockTimeout) 
+	{
+		Assert.isTrue(lockTimeout>=0, "Lock timeout must not be negative");
+		this.lockTimeout = lockTimeout;
+	}
+
+	/**
+	 * @return time source used to check expiration
+	 */
+	public CacheClock getClock() 
+	{
+		return clock;
+	}
+
+	/**
+	 * Sets time source used to check expiration. {@link SystemCacheClock} is used by default.
+	 * @param clock the clock to set
+	 */
+	public void setClock(CacheClock clock) 
+	{
+		Assert.notNull(clock, "Clock must not be null");
+		this.clock = clock;
+	}
+
+	/**
+	 * @return statistics of the cache, null if disabled
+	 */
+	public CacheStatistics getStatistics() 
+	{
+		return statistics;
+	}
+
+	/**
+	 * Sets statistics of the cache, null disables statistics.
+	 * @param statistics the statistics to set
+	 */
+	public void setStatistics(CacheStatistics statistics) 
+	{
+		this.statistics = statistics;
+	}
+
+	public String getName() 
+	{
+		return name;
+	}
+
+	/**
+	 * @return the underlying map of entries and load markers
+	 */
+	public Object getNativeCache() 
+	{
+		return store;
+	}
+
+	/**
+	 * Returns valid entry for given key. 
+	 * If the key is being loaded by other thread, blocks until the value is put or the lock timeout elapses. 
+	 * If the key is missing or expired, returns null. Within {@link LoadMarkerReleasingInterceptor} the key is then marked as being loaded 
+	 * by current thread, which is expected to put the value.
+	 * 
+	 * @param key the key
+	 * @return the value wrapper or null if current thread must load the key
+	 */
+	public ValueWrapper get(Object key) 
+	{
+		return get(key, LoadMarkerReleasingInterceptor.isIntercepting());
+	}
+	
+	/**
+	 * Returns valid entry for given key, blocking while the key is being loaded by other thread.
+	 * 
+	 * @param key the key
+	 * @param mark true if a missing or expired key is marked as being loaded by current thread
+	 * @return the value wrapper or null if current thread must load the key
+	 */
+	private ValueWrapper get(Object key, boolean mark) 
+	{
+		long deadline = System.nanoTime()+TimeUnit.MILLISECONDS.toNanos(lockTimeout);
+		boolean missed = false;
+		
+		for(;;)
+		{
+			Object current = store.get(key);
+			
+			/*return valid entry without any lock - most of time only this part of code is executed*/
+			if(current instanceof Entry && ((Entry) current).isValid(clock.nanoTime()))
+			{
+				if(statistics!=null && !missed)
+				{
+					statistics.recordHit();
+				}
+				
+				return (Entry) current;
+			}
+			
+			if(!missed && statistics!=null)
+			{
+				statistics.recordMiss();
+			}
+			missed = true;
+			
+			if(current instanceof LoadMarker)
+			{
+				LoadMarker marker = (LoadMarker) current;
+				
+				/*the thread that marked the key asks for it again, it must have given up loading*/
+				if(marker.owner==Thread.currentThread())
+				{
+					return null;
+				}
+				
+				long remaining = deadline-System.nanoTime();
+				
+				if(remaining>0 && await(marker, remaining))
+				{
+					/*the key was loaded or released, read it again*/
+					continue;
+				}
+				
+				if(!mark)
+				{
+					return null;
+				}
+				
+				/*take over loading from the thread that did not put the value in time*/
+				log.trace("Lock timeout, taking over key loading");
+				LoadMarker takeOver = new LoadMarker(this, key);
+				if(store.replace(key, marker, takeOver))
+				{
+					marker.release();
+					hold(takeOver);
+					return null;
+				}
+			}
+			else if(!mark)
+			{
+				return null;
+			}
+			else
+			{
+				LoadMarker newMarker = new LoadMarker(this, key);
+				
+				if(current==null ? store.putIfAbsent(key, newMarker)==null : store.replace(key, current, newMarker))
+				{
+					/*current thread loads the key*/
+					log.trace("Marking key as being loaded");
+					hold(newMarker);
+					return null;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Returns valid value for given key or loads it with the value loader. 
+	 * Only one thread at a time loads the key, other threads reading the key are blocked until it is loaded or loading fails.
+	 * 
+	 * @param key the key
+	 * @param valueLoader loader called if the key is missing or expired
+	 * @return the value
+	 * @throws ValueRetrievalException wrapping any exception thrown by the value loader
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T get(Object key, Callable<T> valueLoader) 
+	{
+		ValueWrapper wrapper = get(key, true);
+		
+		if(wrapper!=null)
+		{
+			return (T) wrapper.get();
+		}
+		
+		T value;
+		long loadStart = System.nanoTime();
+		boolean loaded = false;
+		
+		try
+		{
+			value = valueLoader.call();
+			loaded = true;
+		}
+		catch (Exception e)
+		{
+			if(statistics!=null)
+			{
+				statistics.onLoadFailure(e, System.nanoTime()-loadStart);
+			}
+			
+			throw new ValueRetrievalException(key, e);
+		}
+		finally
+		{
+			if(!loaded)
+			{
+				releaseLoadMarker(key);
+			}
+		}
+		
+		if(statistics!=null)
+		{
+			statistics.onLoad(System.nanoTime()-loadStart);
+		}
+		
+		put(key, value);
+		return value;
+	}
+
+	@SuppressWarnings("unchecked")
+	public <T> T get(Object key, Class<T> type) 
+	{
+		ValueWrapper wrapper = get(key);
+		Object value = wrapper!=null ? wrapper.get() : null;
+		
+		if(value!=null && type!=null && !type.isInstance(value))
+		{
+			throw new IllegalStateException("Cached value is not of required type ["+type.getName()+"]: "+value);
+		}
+		
+		return (T) value;
+	}
+
+	/**
+	 * Puts the value and releases threads waiting for the key.
+	 */
+	public void put(Object key, Object value) 
+	{
+		Object previous = store.put(key, new Entry(value, clock.nanoTime()+TimeUnit.MILLISECONDS.toNanos(cacheExpirationTime)));
+		
+		if(previous instanceof LoadMarker)
+		{
+			((LoadMarker) previous).release();
+		}
+	}
+
+	/**
+	 * Puts the value unless there is a valid entry for the key.
+	 */
+	public ValueWrapper putIfAbsent(Object key, Object value) 
+	{
+		Entry entry = new Entry(value, clock.nanoTime()+TimeUnit.MILLISECONDS.toNanos(cacheExpirationTime));
+		
+		for(;;)
+		{
+			Object current = store.get(key);
+			
+			if(current instanceof Entry && ((Entry) current).isValid(clock.nanoTime()))
+			{
+				return (Entry) current;
+			}
+			
+			if(current==null ? store.putIfAbsent(key, entry)==null : store.replace(key, current, entry))
+			{
+				if(current instanceof LoadMarker)
+				{
+					((LoadMarker) current).release();
+				}
+				
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Removes the key and releases threads waiting for it.
+	 */
+	public void evict(Object key) 
+	{
+		Object previous = store.remove(key);
+		
+		if(previous instanceof LoadMarker)
+		{
+			((LoadMarker) previous).release();
+		}
+	}
+
+	/**
+	 * Removes all keys and releases all waiting threads.
+	 */
+	public void clear() 
+	{
+		for (Iterator<Object> it = store.values().iterator(); it.hasNext();) 
+		{
+			Object current = it.next();
+			it.remove();
+			
+			if(current instanceof LoadMarker)
+			{
+				((LoadMarker) current).release();
+			}
+		}
+	}
+	
+	/**
+	 * Removes all expired entries. Keys being loaded are left untouched.
+	 */
+	public void evictExpired() 
+	{
+		long now = clock.nanoTime();
+		
+		for (Iterator<Object> it = store.values().iterator(); it.hasNext();) 
+		{
+			Object current = it.next();
+			
+			if(current instanceof Entry && !((Entry) current).isValid(now))
+			{
+				it.remove();
+			}
+		}
+	}
+	
+	/**
+	 * Removes the load markers held by current thread in any cache and releases threads waiting for their keys. 
+	 * Called once the thread is done with loading, whether the value was put or not (see {@link LoadMarkerReleasingInterceptor}).
+	 */
+	public static void releaseLoadMarkers()
+	{
+		Set<LoadMarker> held = HELD_MARKERS.get();
+		
+		if(held==null)
+		{
+			return;
+		}
+		
+		HELD_MARKERS.remove();
+		
+		for (LoadMarker marker : held) 
+		{
+			marker.cache.release(marker);
+		}
+	}
+	
+	/**
+	 * Removes the load marker of current thread, if any, and releases threads waiting for the key.
+	 * @param key the key
+	 */
+	private void releaseLoadMarker(Object key)
+	{
+		Object current = store.get(key);
+		
+		if(current instanceof LoadMarker && ((LoadMarker) current).owner==Thread.currentThread())
+		{
+			release((LoadMarker) current);
+		}
+	}
+	
+	/**
+	 * Removes the load marker unless it was replaced and releases threads waiting for the key.
+	 * @param marker the load marker
+	 */
+	private void release(LoadMarker marker)
+	{
+		store.remove(marker.key, marker);
+		marker.release();
+		
+		Set<LoadMarker> held = HELD_MARKERS.get();
+		if(held!=null)
+		{
+			held.remove(marker);
+		}
+	}
+	
+	/**
+	 * Registers the load marker as held by current thread, so that it can be released by {@link #releaseLoadMarkers()}.
+	 * @param marker the load marker
+	 */
+	private void hold(LoadMarker marker)
+	{
+		Set<LoadMarker> held = HELD_MARKERS.get();
+		
+		if(held==null)
+		{
+			held = Collections.newSetFromMap(new IdentityHashMap<LoadMarker, Boolean>());
+			HELD_MARKERS.set(held);
+		}
+		else if(held.size()>=HELD_MARKERS_PRUNE_SIZE)
+		{
+			/*forget markers replaced by a value or taken over, when releaseLoadMarkers is never called*/
+			for (Iterator<LoadMarker> it = held.iterator(); it.hasNext();) 
+			{
+				LoadMarker heldMarker = it.next();
+				
+				if(heldMarker.cache.store.get(heldMarker.key)!=heldMarker)
+				{
+					it.remove();
+				}
+			}
+		}
+		
+		held.add(marker);
+	}
+	
+	/**
+	 * Waits for the key to be loaded or released. 
+	 * Interruption does not stop waiting, otherwise the interrupted thread would take over loading from the thread still loading the key.
+	 * The interrupted status is restored on return.
+	 * 
+	 * @param marker the load marker of the key
+	 * @param timeout maximal time to wait, in nanoseconds
+	 * @return true if the key was loaded or released, false on timeout
+	 */
+	private boolean await(LoadMarker marker, long timeout)
+	{
+		long waitStart 		= System.nanoTime();
+		long deadline 		= waitStart+timeout;
+		boolean interrupted = false;
+		
+		try
+		{
+			for(;;)
+			{
+				try
+				{
+					return marker.latch.await(deadline-System.nanoTime(), TimeUnit.NANOSECONDS);
+				}
+				catch (InterruptedException e)
+				{
+					interrupted = true;
+				}
+			}
+		}
+		finally
+		{
+			if(interrupted)
+			{
+				Thread.currentThread().interrupt();
+			}
+			
+			if(statistics!=null)
+			{
+				statistics.onWait(System.nanoTime()-waitStart);
+			}
+		}
+	}
+	
+	/**
+	 * Exception thrown by {@link TimeEvictBlockingSpringCache#get(Object, Callable)} when the value loader fails, 
+	 * the exception thrown by the value loader is the cause.
+	 * It plays the role of the Cache.ValueRetrievalException of Spring 4.3+.
+	 * 
+	 * @author Maciej SIDOR (maciejsidor@gmail.com)
+	 * @since 2015
+	 */
+	public static class ValueRetrievalException extends RuntimeException
+	{
+		private static final long serialVersionUID = 1L;
+		
+		/**
+		 * The key which value could not be loaded
+		 */
+		private final Object key;
+		
+		/**
+		 * @param key the key which value could not be loaded
+		 * @param cause exception thrown by the value loader
+		 */
+		public ValueRetrievalException(Object key, Throwable cause)
+		{
+			super("Value for key '"+key+"' could not be loaded", cause);
+			this.key = key;
+		}
+		
+		/**
+		 * @return the key which value could not be loaded
+		 */
+		public Object getKey()
+		{
+			return key;
+		}
+	}
+	
+	/**
+	 * Cached value along with its expiration time
+	 * 
+	 * @author Maciej SIDOR (maciejsidor@gmail.com)
+	 * @since 2015
+	 */
+	private static final class Entry extends SimpleValueWrapper
+	{
+		/**
+		 * Clock time after which the entry is expired
+		 */
+		final long expiry;
+		
+		/**
+		 * @param value the cached value
+		 * @param expiry clock time after which the entry is expired
+		 */
+		Entry(Object value, long expiry)
+		{
+			super(value);
+			this.expiry = expiry;
+		}
+		
+		/**
+		 * @param now current clock time
+		 * @return true if entry is not expired
+		 */
+		boolean isValid(long now)
+		{
+			return expiry-now>=0;
+		}
+	}
+	
+	/**
+	 * Marks a key as being loaded by a thread
+	 * 
+	 * @author Maciej SIDOR (maciejsidor@gmail.com)
+	 * @since 2015
+	 */
+	private static final class LoadMarker
+	{
+		/**
+		 * Thread loading the key
+		 */
+		final Thread 						owner 	= Thread.currentThread();
+		
+		/**
+		 * Released when the key is loaded or loading is abandoned
+		 */
+		final CountDownLatch 				latch 	= new CountDownLatch(1);
+		
+		/**
+		 * Cache of the key
+		 */
+		final TimeEvictBlockingSpringCache 	cache;
+		
+		/**
+		 * The key being loaded
+		 */
+		final Object 						key;
+		
+		/**
+		 * @param cache cache of the key
+		 * @param key the key being loaded
+		 */
+		LoadMarker(TimeEvictBlockingSpringCache cache, Object key)
+		{
+			this.cache 	= cache;
+			this.key 	= key;
+		}
+		
+		/**
+		 * Releases waiting threads
+		 */
+		void release()
+		{
+			latch.countDown();
+		}
+	}
+}
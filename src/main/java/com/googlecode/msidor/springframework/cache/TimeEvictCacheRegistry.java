@@ -0,0 +1,102 @@
+/*
+Copyright 2015 Maciej SIDOR [maciejsidor@gmail.com]
+
+The source code is licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+    
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.	
+ */
+package com.googlecode.msidor.springframework.cache;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.aopalliance.intercept.MethodInterceptor;
+
+/**
+ * Registry of the caches created by {@link TimeEvictCachedBeanPostProcessor}, mapped by their names.
+ * 
+ * @author Maciej SIDOR (maciejsidor@gmail.com)
+ * @since 2015
+ */
+public class TimeEvictCacheRegistry 
+{
+	/**
+	 * Registered caches mapped by their names, guarded by itself
+	 */
+	private final Map<String, MethodInterceptor> caches = new TreeMap<String, MethodInterceptor>();
+	
+	/**
+	 * Registers the cache.
+	 * 
+	 * @param name name of the cache
+	 * @param cache the cache
+	 * @throws IllegalStateException if other cache is already registered under the same name
+	 */
+	public void register(String name, MethodInterceptor cache) 
+	{
+		synchronized (caches) 
+		{
+			if(caches.containsKey(name))
+			{
+				throw new IllegalStateException("Cache '"+name+"' is already registered");
+			}
+			
+			caches.put(name, cache);
+		}
+	}
+	
+	/**
+	 * @return names of the registered caches, sorted
+	 */
+	public Set<String> getCacheNames() 
+	{
+		synchronized (caches) 
+		{
+			return Collections.unmodifiableSet(new TreeSet<String>(caches.keySet()));
+		}
+	}
+	
+	/**
+	 * @return the registered caches mapped by their names
+	 */
+	public Map<String, MethodInterceptor> getCaches() 
+	{
+		synchronized (caches) 
+		{
+			return Collections.unmodifiableMap(new TreeMap<String, MethodInterceptor>(caches));
+		}
+	}
+	
+	/**
+	 * @param name name of the cache
+	 * @return the cache ({@link TimeEvictBlockingCache} or {@link KeyedTimeEvictBlockingCache}), null if not registered
+	 */
+	public MethodInterceptor getCache(String name) 
+	{
+		synchronized (caches) 
+		{
+			return caches.get(name);
+		}
+	}
+	
+	/**
+	 * @param name name of the cache
+	 * @return statistics of the cache, null if not registered, disabled or not available for the cache type
+	 */
+	public CacheStatistics getStatistics(String name) 
+	{
+		MethodInterceptor cache = getCache(name);
+		return cache instanceof TimeEvictBlockingCache ? ((TimeEvictBlockingCache) cache).getStatistics() : null;
+	}
+}
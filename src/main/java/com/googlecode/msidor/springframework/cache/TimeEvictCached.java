@@ -0,0 +1,74 @@
+/*
+Copyright 2015 Maciej SIDOR [maciejsidor@gmail.com]
+
+The source code is licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+    
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.	
+ */
+package com.googlecode.msidor.springframework.cache;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a method which result is cached by its own cache instance, created by {@link TimeEvictCachedBeanPostProcessor}.
+ * 
+ * @see TimeEvictCachedBeanPostProcessor
+ * @author Maciej SIDOR (maciejsidor@gmail.com)
+ * @since 2015
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+public @interface TimeEvictCached 
+{
+	/**
+	 * @return time in milliseconds after which the cached object will be renewed
+	 */
+	long ttl();
+	
+	/**
+	 * @return cache mode, {@link Mode#BLOCKING} by default
+	 */
+	Mode mode() default Mode.BLOCKING;
+	
+	/**
+	 * @return name of the cache in {@link TimeEvictCacheRegistry}, {@code <bean name>.<method name>(<parameter types>)} by default
+	 */
+	String name() default "";
+	
+	/**
+	 * Cache modes
+	 * 
+	 * @author Maciej SIDOR (maciejsidor@gmail.com)
+	 * @since 2015
+	 */
+	enum Mode
+	{
+		/**
+		 * One object cached by {@link TimeEvictBlockingCache}, readers are blocked while it is reloaded
+		 */
+		BLOCKING,
+		
+		/**
+		 * One object cached by {@link TimeEvictBlockingCache} in "stale while revalidate" mode, readers get the expired object while it is reloaded
+		 */
+		STALE_WHILE_REVALIDATE,
+		
+		/**
+		 * One object per set of method arguments cached by {@link KeyedTimeEvictBlockingCache}
+		 */
+		KEYED
+	}
+}
@@ -0,0 +1,341 @@
+/*
+Copyright 2015 Maciej SIDOR [maciejsidor@gmail.com]
+
+The source code is licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+    
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.	
+ */
+package com.googlecode.msidor.springframework.cache;
+
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.aop.framework.Advised;
+import org.springframework.aop.framework.AopInfrastructureBean;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.aop.framework.ProxyProcessorSupport;
+import org.springframework.aop.support.AopUtils;
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.BeanFactoryAware;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.core.BridgeMethodResolver;
+import org.springframework.core.annotation.AnnotationUtils;
+import org.springframework.util.Assert;
+import org.springframework.util.ClassUtils;
+import org.springframework.util.ReflectionUtils;
+import org.springframework.util.ReflectionUtils.MethodCallback;
+import org.springframework.util.StringUtils;
+
+/**
+ * Bean post processor that caches results of methods annotated with {@link TimeEvictCached}.
+ * <br/>
+ * Each annotated method gets its own cache instance ({@link TimeEvictBlockingCache} or {@link KeyedTimeEvictBlockingCache} depending on {@link TimeEvictCached#mode()}), 
+ * so results of different methods are never mixed and loading one method never blocks readers of other methods.
+ * Beans having annotated methods are proxied (or advised if already proxied) with an interceptor that dispatches each call to the cache of the called method.
+ * <br/>
+ * 
+ * Caches created for singleton beans are registered in the {@link #setRegistry(TimeEvictCacheRegistry) registry} and destroyed along with this post processor.
+ * Caches are registered under the {@link TimeEvictCached#name() annotated name} or, by default, under the bean name followed by the method signature 
+ * (for instance {@code myBean.find(java.lang.String,int)}), so that overloaded methods get distinct names.
+ * Caches of other beans (for instance prototypes) are not registered, as each bean instance gets its own caches, and live as long as their bean.
+ * 
+ * @author Maciej SIDOR (maciejsidor@gmail.com)
+ * @since 2015
+ */
+@SuppressWarnings("serial")
+public class TimeEvictCachedBeanPostProcessor extends ProxyProcessorSupport implements BeanPostProcessor, BeanFactoryAware, DisposableBean 
+{
+	/**
+	 * The post processor logger
+	 */
+	private final Logger log = LoggerFactory.getLogger(this.getClass());
+	
+	/**
+	 * Registry of the created caches
+	 */
+	private TimeEvictCacheRegistry registry = new TimeEvictCacheRegistry();
+	
+	/**
+	 * Factory of the processed beans, used to check their scope
+	 */
+	private BeanFactory beanFactory = null;
+
+	/**
+	 * @return registry of the created caches
+	 */
+	public TimeEvictCacheRegistry getRegistry() 
+	{
+		return registry;
+	}
+
+	/**
+	 * Sets registry of the created caches. 
+	 * A registry is created by default, this setter allows to use a registry declared as a bean.
+	 * 
+	 * @param registry the registry to set
+	 */
+	public void setRegistry(TimeEvictCacheRegistry registry) 
+	{
+		Assert.notNull(registry, "Registry must not be null");
+		this.registry = registry;
+	}
+
+	/**
+	 * Sets factory of the processed beans, used to check their scope.
+	 */
+	public void setBeanFactory(BeanFactory beanFactory) 
+	{
+		this.beanFactory = beanFactory;
+	}
+
+	/**
+	 * Does nothing
+	 */
+	public Object postProcessBeforeInitialization(Object bean, String beanName) 
+	{
+		return bean;
+	}
+
+	/**
+	 * Creates caches of the annotated methods and proxies the bean if it has any.
+	 */
+	public Object postProcessAfterInitialization(Object bean, String beanName) 
+	{
+		if(bean instanceof AopInfrastructureBean)
+		{
+			return bean;
+		}
+		
+		Class<?> targetClass = AopUtils.getTargetClass(bean);
+		Map<Method, MethodInterceptor> caches = createCaches(targetClass, beanName, isSingleton(beanName));
+		
+		if(caches.isEmpty())
+		{
+			return bean;
+		}
+		
+		MethodCacheDispatcher dispatcher = new MethodCacheDispatcher(caches);
+		
+		if(bean instanceof Advised && !((Advised) bean).isFrozen())
+		{
+			/*add the caches to the existing proxy*/
+			((Advised) bean).addAdvice(dispatcher);
+			return bean;
+		}
+		
+		ProxyFactory proxyFactory = new ProxyFactory();
+		proxyFactory.copyFrom(this);
+		proxyFactory.setTarget(bean);
+		
+		if(!proxyFactory.isProxyTargetClass())
+		{
+			evaluateProxyInterfaces(bean.getClass(), proxyFactory);
+		}
+		
+		proxyFactory.addAdvice(dispatcher);
+		return proxyFactory.getProxy(getProxyClassLoader());
+	}
+	
+	/**
+	 * @param beanName name of the bean
+	 * @return false if the bean is known to the bean factory as not a singleton
+	 */
+	private boolean isSingleton(String beanName)
+	{
+		return beanFactory==null || beanName==null || !beanFactory.containsBean(beanName) || beanFactory.isSingleton(beanName);
+	}
+	
+	/**
+	 * Creates the caches of methods annotated with {@link TimeEvictCached} and registers them if the bean is a singleton.
+	 * 
+	 * @param targetClass class of the bean
+	 * @param beanName name of the bean
+	 * @param register true if the caches are registered
+	 * @return created caches mapped by annotated methods
+	 */
+	private Map<Method, MethodInterceptor> createCaches(final Class<?> targetClass, final String beanName, final boolean register)
+	{
+		final Map<Method, MethodInterceptor> caches = new HashMap<Method, MethodInterceptor>();
+		
+		ReflectionUtils.doWithMethods(targetClass, new MethodCallback() 
+		{
+			public void doWith(Method method) 
+			{
+				TimeEvictCached annotation = AnnotationUtils.findAnnotation(method, TimeEvictCached.class);
+				
+				/*overridden methods are visited again for each superclass*/
+				method = ClassUtils.getMostSpecificMethod(method, targetClass);
+				
+				if(annotation==null || method.isBridge() || caches.containsKey(method))
+				{
+					return;
+				}
+				
+				String name = StringUtils.hasText(annotation.name()) ? annotation.name() : getDefaultName(beanName, method);
+				MethodInterceptor cache = createCache(annotation);
+				
+				if(register)
+				{
+					registry.register(name, cache);
+				}
+				caches.put(method, cache);
+				
+				log.debug("Cache '{}' created for method {}", name, method);
+			}
+		});
+		
+		return caches;
+	}
+	
+	/**
+	 * @param beanName name of the bean
+	 * @param method the annotated method
+	 * @return bean name followed by the method name and parameter types
+	 */
+	private static String getDefaultName(String beanName, Method method)
+	{
+		StringBuilder name = new StringBuilder(beanName).append('.').append(method.getName()).append('(');
+		
+		Class<?>[] parameterTypes = method.getParameterTypes();
+		for (int i = 0; i < parameterTypes.length; i++) 
+		{
+			if(i>0)
+			{
+				name.append(',');
+			}
+			name.append(ClassUtils.getQualifiedName(parameterTypes[i]));
+		}
+		
+		return name.append(')').toString();
+	}
+	
+	/**
+	 * @param annotation the method annotation
+	 * @return cache configured by the annotation
+	 */
+	private MethodInterceptor createCache(TimeEvictCached annotation)
+	{
+		if(annotation.mode()==TimeEvictCached.Mode.KEYED)
+		{
+			KeyedTimeEvictBlockingCache cache = new KeyedTimeEvictBlockingCache();
+			cache.setCacheExpirationTime(annotation.ttl());
+			
+			return cache;
+		}
+		
+		TimeEvictBlockingCache cache = new TimeEvictBlockingCache();
+		cache.setCacheExpirationTime(annotation.ttl());
+		cache.setStaleWhileRevalidate(annotation.mode()==TimeEvictCached.Mode.STALE_WHILE_REVALIDATE);
+		cache.afterPropertiesSet();
+		
+		return cache;
+	}
+	
+	/**
+	 * Destroys the created caches.
+	 */
+	public void destroy() 
+	{
+		for (MethodInterceptor cache : registry.getCaches().values()) 
+		{
+			if(cache instanceof DisposableBean)
+			{
+				try
+				{
+					((DisposableBean) cache).destroy();
+				}
+				catch (Exception e)
+				{
+					log.warn("Cache could not be destroyed", e);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Interceptor that dispatches calls to the cache of the called method. Calls of not cached methods proceed directly.
+	 * 
+	 * @author Maciej SIDOR (maciejsidor@gmail.com)
+	 * @since 2015
+	 */
+	private static final class MethodCacheDispatcher implements MethodInterceptor
+	{
+		/**
+		 * Marks methods resolved as not cached
+		 */
+		private static final MethodInterceptor NO_CACHE = new MethodInterceptor() 
+		{
+			public Object invoke(MethodInvocation invocation) throws Throwable 
+			{
+				return invocation.proceed();
+			}
+		};
+		
+		/**
+		 * Caches mapped by annotated methods
+		 */
+		private final Map<Method, MethodInterceptor> caches;
+		
+		/**
+		 * Caches mapped by called methods (for instance interface methods), resolved on first call
+		 */
+		private final ConcurrentMap<Method, MethodInterceptor> resolved = new ConcurrentHashMap<Method, MethodInterceptor>();
+		
+		/**
+		 * @param caches caches mapped by annotated methods
+		 */
+		MethodCacheDispatcher(Map<Method, MethodInterceptor> caches)
+		{
+			this.caches = caches;
+		}
+		
+		/**
+		 * Dispatches the call to the cache of the called method.
+		 */
+		public Object invoke(MethodInvocation invocation) throws Throwable 
+		{
+			MethodInterceptor cache = resolved.get(invocation.getMethod());
+			
+			if(cache==null)
+			{
+				cache = resolve(invocation);
+				resolved.putIfAbsent(invocation.getMethod(), cache);
+			}
+			
+			return cache.invoke(invocation);
+		}
+		
+		/**
+		 * @param invocation method call parameters
+		 * @return cache of the called method or {@link #NO_CACHE} if the method is not cached
+		 */
+		private MethodInterceptor resolve(MethodInvocation invocation)
+		{
+			Method method = invocation.getMethod();
+			
+			if(invocation.getThis()!=null)
+			{
+				method = ClassUtils.getMostSpecificMethod(method, AopUtils.getTargetClass(invocation.getThis()));
+			}
+			
+			MethodInterceptor cache = caches.get(BridgeMethodResolver.findBridgedMethod(method));
+			return cache!=null ? cache : NO_CACHE;
+		}
+	}
+}
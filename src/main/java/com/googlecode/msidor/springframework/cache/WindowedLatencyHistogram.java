@@ -0,0 +1,282 @@
+/*
+Copyright 2015 Maciej SIDOR [maciejsidor@gmail.com]
+
+The source code is licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+    
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.	
+ */
+package com.googlecode.msidor.springframework.cache;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.springframework.util.Assert;
+
+/**
+ * Histogram of the durations recorded during the last time window.
+ * <br/>
+ * The window is split in slices that are reused in turn: the slice of the current time is cleared when it is first recorded to 
+ * and slices older than the window are left out of the reads, so that durations recorded before the last window are forgotten. 
+ * The window is covered with the granularity of a slice.
+ * <br/>
+ * Each power of two nanoseconds is split in 32 buckets, so percentiles are approximated by the upper bound of a bucket 
+ * which is at most about 3% above the actual duration (durations above 2^41 nanoseconds, about 36 minutes, are counted as 2^41). 
+ * Recording a duration increments two counters. 
+ * Reading a percentile scans all buckets of the live slices, so callers on hot paths should cache it.
+ * 
+ * @see LatencyHistogram
+ * @author Maciej SIDOR (maciejsidor@gmail.com)
+ * @since 2015
+ */
+public class WindowedLatencyHistogram 
+{
+	/**
+	 * Number of bits of a duration, below its highest bit, that select the bucket within a power of two
+	 */
+	private static final int 	SUB_BITS 		= 5;
+	
+	/**
+	 * Number of buckets per power of two
+	 */
+	private static final int 	SUB_BUCKETS 	= 1<<SUB_BITS;
+	
+	/**
+	 * Highest bit of the longest duration counted in its own bucket
+	 */
+	private static final int 	MAX_EXPONENT 	= 40;
+	
+	/**
+	 * Number of buckets of a slice
+	 */
+	private static final int 	BUCKETS 		= (MAX_EXPONENT-SUB_BITS+2)*SUB_BUCKETS;
+	
+	/**
+	 * Slices of the window, reused in turn
+	 */
+	private final Slice[] 		slices;
+	
+	/**
+	 * Duration of a slice, in nanoseconds
+	 */
+	private final long 			sliceNanos;
+	
+	/**
+	 * Origin of the slice numbers, as returned by {@link System#nanoTime()}
+	 */
+	private final long 			origin 			= System.nanoTime();
+	
+	/**
+	 * Creates a histogram of the last minute, split in six slices
+	 */
+	public WindowedLatencyHistogram() 
+	{
+		this(TimeUnit.MINUTES.toMillis(1), 6);
+	}
+	
+	/**
+	 * @param windowMillis length of the window, in milliseconds
+	 * @param sliceCount number of slices of the window
+	 */
+	public WindowedLatencyHistogram(long windowMillis, int sliceCount) 
+	{
+		Assert.isTrue(windowMillis>0, "Window must be positive");
+		Assert.isTrue(sliceCount>0, "Slice count must be positive");
+		
+		this.sliceNanos = Math.max(TimeUnit.MILLISECONDS.toNanos(windowMillis)/sliceCount, 1);
+		this.slices 	= new Slice[sliceCount];
+		
+		for (int i = 0; i < sliceCount; i++) 
+		{
+			slices[i] = new Slice();
+		}
+	}
+	
+	/**
+	 * Records a duration
+	 * 
+	 * @param nanos the duration, in nanoseconds
+	 */
+	public void record(long nanos) 
+	{
+		long number = currentSlice();
+		Slice slice = slices[(int) (number%slices.length)];
+		
+		if(slice.number!=number)
+		{
+			slice.reuse(number);
+		}
+		
+		slice.buckets.incrementAndGet(bucket(Math.max(nanos, 0)));
+		slice.count.increment();
+	}
+	
+	/**
+	 * @return number of durations recorded during the window
+	 */
+	public long getCount() 
+	{
+		long first 		= currentSlice()-slices.length;
+		long recorded 	= 0;
+		
+		for (Slice slice : slices) 
+		{
+			if(slice.number>first)
+			{
+				recorded += slice.count.sum();
+			}
+		}
+		
+		return recorded;
+	}
+	
+	/**
+	 * @param percentile the percentile, between 0 and 100
+	 * @return approximated duration below which given percentage of durations recorded during the window falls, in nanoseconds
+	 */
+	public long getPercentile(double percentile) 
+	{
+		long first 		= currentSlice()-slices.length;
+		long[] counts 	= new long[BUCKETS];
+		long recorded 	= 0;
+		
+		for (Slice slice : slices) 
+		{
+			if(slice.number>first)
+			{
+				for (int i = 0; i < BUCKETS; i++) 
+				{
+					long count 	= slice.buckets.get(i);
+					counts[i] 	+= count;
+					recorded 	+= count;
+				}
+			}
+		}
+		
+		long threshold 	= Math.max((long) Math.ceil(recorded*percentile/100), 1);
+		long seen 		= 0;
+		
+		for (int i = 0; i < BUCKETS; i++) 
+		{
+			seen += counts[i];
+			
+			if(seen>=threshold)
+			{
+				return upperBound(i);
+			}
+		}
+		
+		return 0;
+	}
+	
+	/**
+	 * Forgets all recorded durations
+	 */
+	public void reset() 
+	{
+		for (Slice slice : slices) 
+		{
+			slice.reuse(-1);
+		}
+	}
+	
+	/**
+	 * @return number of the slice of the current time
+	 */
+	private long currentSlice()
+	{
+		return (System.nanoTime()-origin)/sliceNanos;
+	}
+	
+	/**
+	 * @param nanos the duration, not negative
+	 * @return bucket of the duration
+	 */
+	static int bucket(long nanos)
+	{
+		if(nanos<SUB_BUCKETS)
+		{
+			return (int) nanos;
+		}
+		
+		int exponent = 63-Long.numberOfLeadingZeros(nanos);
+		if(exponent>MAX_EXPONENT)
+		{
+			return BUCKETS-1;
+		}
+		
+		return (exponent-SUB_BITS+1)*SUB_BUCKETS+(int) ((nanos>>>(exponent-SUB_BITS))&(SUB_BUCKETS-1));
+	}
+	
+	/**
+	 * @param bucket the bucket
+	 * @return longest duration counted in the bucket
+	 */
+	static long upperBound(int bucket)
+	{
+		if(bucket<SUB_BUCKETS)
+		{
+			return bucket;
+		}
+		
+		int shift = bucket/SUB_BUCKETS-1;
+		return ((long) (SUB_BUCKETS+bucket%SUB_BUCKETS)<<shift)+(1L<<shift)-1;
+	}
+	
+	/**
+	 * Durations recorded during one slice of time
+	 * 
+	 * @author Maciej SIDOR (maciejsidor@gmail.com)
+	 * @since 2015
+	 */
+	private static final class Slice
+	{
+		/**
+		 * Duration counts per bucket
+		 */
+		final AtomicLongArray 	buckets = new AtomicLongArray(BUCKETS);
+		
+		/**
+		 * Number of recorded durations
+		 */
+		final LongAdder 		count 	= new LongAdder();
+		
+		/**
+		 * Number of the slice of time the durations were recorded in, -1 if none
+		 */
+		volatile long 			number 	= -1;
+		
+		/**
+		 * Clears the durations of an earlier slice of time, unless another thread did it already. 
+		 * Durations recorded meanwhile by threads that stalled for a whole window may be lost.
+		 * 
+		 * @param number number of the new slice of time, -1 to forget all durations
+		 */
+		synchronized void reuse(long number)
+		{
+			if(this.number==number && number!=-1)
+			{
+				return;
+			}
+			
+			/*readers skip the slice while it is cleared*/
+			this.number = -1;
+			
+			for (int i = 0; i < BUCKETS; i++) 
+			{
+				buckets.set(i, 0);
+			}
+			count.reset();
+			
+			this.number = number;
+		}
+	}
+}
@@ -16,34 +16,159 @@ limitations under the License.
 package com.googlecode.msidor.springframework.classify;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.springframework.classify.Classifier;
+import org.springframework.expression.EvaluationContext;
 import org.springframework.expression.Expression;
 import org.springframework.expression.ExpressionParser;
+import org.springframework.expression.spel.SpelCompilerMode;
+import org.springframework.expression.spel.SpelParserConfiguration;
 import org.springframework.expression.spel.standard.SpelExpressionParser;
+import org.springframework.expression.spel.support.StandardEvaluationContext;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.util.Assert;
+import org.springframework.util.ClassUtils;
 
 /**
  * A {@link Classifier} that evaluates input Object by SpEL expression and, based on evaluation result maps to value of a given type.
  * SpEL Expression must evaluate to true or false. 
  * Single "expression to value" mapping is configured by {@link SpELExpressionsClassifierConfig}.
  * Mappings are order sensitives with means that first expression that evaluates to true on input objects returns the value. 
+ * <br/>
+ * 
+ * Expressions are parsed once, when mappings are set, and compiled by the SpEL compiler ({@link SpelCompilerMode#MIXED} by default, 
+ * see {@link #setCompilerMode(SpelCompilerMode)}). Expressions that can not be compiled are interpreted.
+ * All expressions are evaluated against one shared evaluation context, the input object is passed as the root object.
+ * Changes made to the mappings after they are set are not taken into account.
+ * Mappings may be replaced at any time (see {@link SpELExpressionsClassifierFileLoader}): 
+ * the new mappings are parsed by the calling thread and published at once, classification is never blocked.
+ * <br/>
+ * 
+ * Expressions that depend only on the type of the input object are not evaluated by SpEL but matched against the input object class, 
+ * the first such matching expression being memoized per class. Recognized expressions are:
+ * <ul>
+ * <li>{@code #root instanceof T(some.Type)} (or {@code #this instanceof T(some.Type)})</li>
+ * <li>{@code class.name == 'some.Type'} (or {@code class.simpleName}, {@code getClass()}, {@code eq})</li>
+ * </ul>
+ * Other expressions are evaluated in order, so that the first expression that evaluates to true still returns the value.
+ * <br/>
+ * 
+ * Optionally (see {@link #setCauseChainDepth(int)}) exceptions are classified by their innermost matching cause.
+ * <br/>
+ * 
+ * Many objects may be classified at once, in parallel on a {@link ForkJoinPool} (see {@link #classifyAll(Collection)}).
+ * <br/>
+ * 
+ * Optionally (see {@link #setStatisticsEnabled(boolean)}) evaluations, matches and evaluation time of each mapping are recorded 
+ * with striped counters ({@link LongAdder}) and exposed through JMX (the class is annotated for Spring JMX export). 
+ * Mappings declared {@link #setMutuallyExclusive(boolean) mutually exclusive} are then periodically reordered by match count, 
+ * in background on the {@link #setForkJoinPool(ForkJoinPool) fork join pool}, so that the most frequently matching expressions are evaluated first.
  * 
  * @author Maciej SIDOR (maciejsidor@gmail.com)
  * @since 2015
  */
+@ManagedResource(description="SpEL expressions classifier")
 public class SpELExpressionsClassifier<K, T> implements Classifier<K, T> 
 {
 
+	/**
+	 * Matches {@code #root instanceof T(some.Type)} expressions
+	 */
+	private static final Pattern INSTANCEOF_EXPRESSION = Pattern.compile("\\s*#(?:root|this)\\s+instanceof\\s+T\\(\\s*([\\w.$]+)\\s*\\)\\s*");
+	
+	/**
+	 * Matches {@code class.name == 'some.Type'} expressions
+	 */
+	private static final Pattern CLASS_NAME_EXPRESSION = Pattern.compile("\\s*(?:#(?:root|this)\\.)?(?:class|getClass\\(\\))\\.(name|simpleName)\\s*(?:==|eq)\\s*'([^']*)'\\s*");
+	
+	/**
+	 * Marks classes matched by no type-only expression
+	 */
+	private static final Integer NO_MATCH = Integer.MAX_VALUE;
+	
+	/**
+	 * Number of objects below which a batch is classified by one thread
+	 */
+	private static final int BATCH_SPLIT_THRESHOLD = 256;
+
+	/**
+	 * SpEL compiler mode
+	 */
+	private volatile SpelCompilerMode compilerMode = SpelCompilerMode.MIXED;
+
 	/**
 	 * SpEL parser
 	 */
-	private ExpressionParser parser = new SpelExpressionParser();
+	private volatile ExpressionParser parser = createParser(compilerMode);
+	
+	/**
+	 * Evaluation context shared by all evaluations. The root object is passed on each evaluation so the context is never modified.
+	 */
+	private final EvaluationContext context = new StandardEvaluationContext();
 
 	/**
 	 * Expressions and assigned values
 	 */
-	private List<SpELExpressionsClassifierConfig<T>> values = null;
+	private volatile List<SpELExpressionsClassifierConfig<T>> values = null;
+	
+	/**
+	 * Number of causes of a classified exception that are matched too
+	 */
+	private int causeChainDepth = 0;
+	
+	/**
+	 * Pool classifying batches
+	 */
+	private ForkJoinPool forkJoinPool = ForkJoinPool.commonPool();
+
+	/**
+	 * True if statistics of mappings are recorded
+	 */
+	private boolean statisticsEnabled = false;
+	
+	/**
+	 * True if at most one expression evaluates to true for any object, so that mappings may be reordered
+	 */
+	private boolean mutuallyExclusive = false;
+	
+	/**
+	 * Time between reorders of mutually exclusive mappings
+	 */
+	private long reorderInterval = 60000;
+	
+	/**
+	 * Time of the next reorder of mutually exclusive mappings, as returned by {@link System#nanoTime()}
+	 */
+	private volatile long nextReorder = System.nanoTime();
+	
+	/**
+	 * True while mappings are reordered
+	 */
+	private final AtomicBoolean reordering = new AtomicBoolean(false);
+
+	/**
+	 * Parsed expressions and assigned values
+	 */
+	private volatile ParsedRules<T> rules = parse(null);
 
 	/**
 	 * Default constructor. Use the setter or the other constructor to create a
@@ -63,16 +188,321 @@ public class SpELExpressionsClassifier<K, T> implements Classifier<K, T>
 	public SpELExpressionsClassifier(List<SpELExpressionsClassifierConfig<T>> values) 
 	{
 		super();
-		this.values = values;
+		setValues(values);
 	}
 	
 	/**
-	 * Set list of "SpEL expression to value" mappings
+	 * Set list of "SpEL expression to value" mappings. Expressions are parsed right away.
+	 * If any expression can not be parsed, the current mappings are kept.
 	 * @param values List of {@link SpELExpressionsClassifierConfig}
 	 */
 	public void setValues(List<SpELExpressionsClassifierConfig<T>> values) 
 	{
-		this.values = values;
+		List<SpELExpressionsClassifierConfig<T>> copy = values!=null ? Collections.unmodifiableList(new ArrayList<SpELExpressionsClassifierConfig<T>>(values)) : null;
+		ParsedRules<T> parsed = parse(copy);
+		
+		/*publish parsed mappings at once, classifying threads see either old or new mappings*/
+		synchronized (this) 
+		{
+			this.values = copy;
+			this.rules 	= parsed;
+		}
+	}
+	
+	/**
+	 * @return current list of "SpEL expression to value" mappings, read-only
+	 */
+	public List<SpELExpressionsClassifierConfig<T>> getValues() 
+	{
+		return values;
+	}
+	
+	/**
+	 * @return SpEL compiler mode
+	 */
+	public SpelCompilerMode getCompilerMode() 
+	{
+		return compilerMode;
+	}
+
+	/**
+	 * Sets SpEL compiler mode, {@link SpelCompilerMode#MIXED} by default. 
+	 * In this mode expressions are compiled after a few interpreted evaluations and fall back to interpretation if compiled evaluation fails. 
+	 * Expressions are parsed again with the new mode.
+	 * 
+	 * @param compilerMode the compilerMode to set
+	 */
+	public void setCompilerMode(SpelCompilerMode compilerMode) 
+	{
+		Assert.notNull(compilerMode, "Compiler mode must not be null");
+		
+		synchronized (this) 
+		{
+			this.compilerMode 	= compilerMode;
+			this.parser 		= createParser(compilerMode);
+			this.rules 			= parse(values);
+		}
+	}
+
+	/**
+	 * @return number of causes of a classified exception that are matched too
+	 */
+	public int getCauseChainDepth() 
+	{
+		return causeChainDepth;
+	}
+
+	/**
+	 * Sets number of causes of a classified exception ({@link Throwable}) that are matched too, zero (disabled) by default. 
+	 * If set, the exception and its causes up to the given depth are matched and the innermost matched exception wins, 
+	 * so that wrapped exceptions may be classified without walking the causes in expressions. 
+	 * Default value is returned only if no exception of the chain is matched.
+	 * 
+	 * @param causeChainDepth the causeChainDepth to set
+	 */
+	public void setCauseChainDepth(int causeChainDepth) 
+	{
+		this.causeChainDepth = causeChainDepth;
+	}
+
+	/**
+	 * @return true if statistics of mappings are recorded
+	 */
+	public boolean isStatisticsEnabled() 
+	{
+		return statisticsEnabled;
+	}
+
+	/**
+	 * Enables recording of statistics of mappings, disabled by default. 
+	 * Recording the evaluation time costs two {@link System#nanoTime()} calls per evaluated expression. 
+	 * Type-only mappings are recorded as evaluated whenever they are looked up in order: 
+	 * each classification updates one counter of the position it reached, the misses of the preceding type-only mappings are derived from it when statistics are read.
+	 * 
+	 * @param statisticsEnabled the statisticsEnabled to set
+	 */
+	public void setStatisticsEnabled(boolean statisticsEnabled) 
+	{
+		this.statisticsEnabled = statisticsEnabled;
+	}
+
+	/**
+	 * @return true if mappings are declared mutually exclusive
+	 */
+	public boolean isMutuallyExclusive() 
+	{
+		return mutuallyExclusive;
+	}
+
+	/**
+	 * Declares that at most one expression evaluates to true for any object, false by default. 
+	 * If set, mappings are reordered by match count every {@link #setReorderInterval(long) reorder interval}, 
+	 * which changes the classification result if mappings are not mutually exclusive. 
+	 * Requires {@link #setStatisticsEnabled(boolean) statistics} to be enabled. 
+	 * Reorders are run by the {@link #setForkJoinPool(ForkJoinPool) fork join pool}, classifying threads never wait for them.
+	 * 
+	 * @param mutuallyExclusive the mutuallyExclusive to set
+	 */
+	public void setMutuallyExclusive(boolean mutuallyExclusive) 
+	{
+		this.mutuallyExclusive = mutuallyExclusive;
+	}
+
+	/**
+	 * @return time between reorders of mutually exclusive mappings
+	 */
+	public long getReorderInterval() 
+	{
+		return reorderInterval;
+	}
+
+	/**
+	 * Sets time between reorders of mutually exclusive mappings, in milliseconds. Default is one minute.
+	 * 
+	 * @param reorderInterval the reorderInterval to set
+	 */
+	public void setReorderInterval(long reorderInterval) 
+	{
+		this.reorderInterval = reorderInterval;
+	}
+
+	/**
+	 * @return expressions of the mappings, in evaluation order
+	 */
+	@ManagedAttribute(description="Expressions of the mappings, in evaluation order")
+	public String[] getRuleExpressions() 
+	{
+		ParsedRule<T>[] current = rules.rules;
+		String[] expressions = new String[current.length];
+		
+		for (int i = 0; i < current.length; i++) 
+		{
+			expressions[i] = current[i].statistics.expression;
+		}
+		
+		return expressions;
+	}
+
+	/**
+	 * @return number of evaluations of each mapping, in evaluation order
+	 */
+	@ManagedAttribute(description="Number of evaluations of each mapping, in evaluation order")
+	public long[] getRuleEvaluationCounts() 
+	{
+		ParsedRules<T> current = rules;
+		long[] counts = current.typeMisses(false);
+		
+		for (int i = 0; i < counts.length; i++) 
+		{
+			counts[i] += current.rules[i].statistics.evaluations.sum();
+		}
+		
+		return counts;
+	}
+
+	/**
+	 * @return number of matches of each mapping, in evaluation order
+	 */
+	@ManagedAttribute(description="Number of matches of each mapping, in evaluation order")
+	public long[] getRuleMatchCounts() 
+	{
+		ParsedRule<T>[] current = rules.rules;
+		long[] counts = new long[current.length];
+		
+		for (int i = 0; i < current.length; i++) 
+		{
+			counts[i] = current[i].statistics.matches.sum();
+		}
+		
+		return counts;
+	}
+
+	/**
+	 * @return cumulative evaluation time of each mapping in milliseconds, in evaluation order
+	 */
+	@ManagedAttribute(description="Cumulative evaluation time of each mapping in milliseconds, in evaluation order")
+	public long[] getRuleEvaluationTimes() 
+	{
+		ParsedRule<T>[] current = rules.rules;
+		long[] times = new long[current.length];
+		
+		for (int i = 0; i < current.length; i++) 
+		{
+			times[i] = TimeUnit.NANOSECONDS.toMillis(current[i].statistics.evaluationTime.sum());
+		}
+		
+		return times;
+	}
+
+	/**
+	 * Resets statistics of all mappings
+	 */
+	@ManagedOperation(description="Resets statistics of all mappings")
+	public void resetStatistics() 
+	{
+		ParsedRules<T> current = rules;
+		
+		for (ParsedRule<T> rule : current.rules) 
+		{
+			rule.statistics.reset();
+		}
+		
+		for (LongAdder count : current.reached) 
+		{
+			count.reset();
+		}
+	}
+
+	/**
+	 * Reorders mutually exclusive mappings by match count, most frequently matching first. 
+	 * Does nothing if mappings are not declared mutually exclusive or statistics are not enabled.
+	 */
+	@ManagedOperation(description="Reorders mutually exclusive mappings by match count")
+	public void reorderRules() 
+	{
+		if(!mutuallyExclusive || !statisticsEnabled)
+		{
+			return;
+		}
+		
+		synchronized (this) 
+		{
+			ParsedRules<T> current = rules;
+			ParsedRule<T>[] sorted = current.rules.clone();
+			
+			/*misses of type-only mappings are counted by position, they are moved to the mappings before the positions change*/
+			long[] misses = current.typeMisses(true);
+			for (int i = 0; i < sorted.length; i++) 
+			{
+				sorted[i].statistics.recordMisses(misses[i]);
+			}
+			
+			/*counters are read once as they keep changing while sorting*/
+			final long[] matches = new long[sorted.length];
+			for (int i = 0; i < sorted.length; i++) 
+			{
+				matches[i] = sorted[i].statistics.matches.sum();
+			}
+			
+			Arrays.sort(sorted, new Comparator<ParsedRule<T>>() 
+			{
+				public int compare(ParsedRule<T> left, ParsedRule<T> right) 
+				{
+					return Long.compare(matches[right.index], matches[left.index]);
+				}
+			});
+			
+			ParsedRule<T>[] reordered = newRules(sorted.length);
+			for (int i = 0; i < sorted.length; i++) 
+			{
+				reordered[i] = new ParsedRule<T>(i, sorted[i].expression, sorted[i].typeRule, sorted[i].value, sorted[i].statistics);
+			}
+			
+			rules = new ParsedRules<T>(reordered, current.defaultValue);
+		}
+	}
+
+	/**
+	 * @return pool classifying batches
+	 */
+	public ForkJoinPool getForkJoinPool() 
+	{
+		return forkJoinPool;
+	}
+
+	/**
+	 * Sets pool classifying batches, {@link ForkJoinPool#commonPool()} by default.
+	 * 
+	 * @param forkJoinPool the forkJoinPool to set
+	 */
+	public void setForkJoinPool(ForkJoinPool forkJoinPool) 
+	{
+		Assert.notNull(forkJoinPool, "Fork join pool must not be null");
+		this.forkJoinPool = forkJoinPool;
+	}
+
+	/**
+	 * Classifies all objects in parallel on the {@link #setForkJoinPool(ForkJoinPool) fork join pool}.
+	 * All objects are classified with the same mappings, even if mappings are replaced meanwhile.
+	 * 
+	 * @param classifiables objects to classify
+	 * @return classified objects grouped by value (null key for objects matching no mapping), in order of the values' first appearance and in input order within a group
+	 */
+	public Map<T, List<K>> classifyAll(Collection<? extends K> classifiables) 
+	{
+		List<K> batch = new ArrayList<K>(classifiables);
+		return forkJoinPool.invoke(new ClassifyTask(rules, batch, 0, batch.size()));
+	}
+
+	/**
+	 * Classifies all objects of the stream in parallel (see {@link #classifyAll(Collection)}).
+	 * 
+	 * @param classifiables objects to classify
+	 * @return classified objects grouped by value
+	 */
+	public Map<T, List<K>> classifyAll(Stream<? extends K> classifiables) 
+	{
+		return classifyAll(classifiables.collect(Collectors.<K>toList()));
 	}
 
 	/**
@@ -84,33 +514,734 @@ public class SpELExpressionsClassifier<K, T> implements Classifier<K, T>
 	 */
 	public T classify(K classifiable) 
 	{
-		if(values!=null && values.size()>0)
+		if(mutuallyExclusive && statisticsEnabled && System.nanoTime()-nextReorder>=0 && reordering.compareAndSet(false, true))
+		{
+			scheduleReorder();
+		}
+		
+		return classify(rules, classifiable);
+	}
+	
+	/**
+	 * Reorders mappings on the fork join pool, the classifying thread does not wait for it.
+	 */
+	private void scheduleReorder()
+	{
+		nextReorder = System.nanoTime()+TimeUnit.MILLISECONDS.toNanos(reorderInterval);
+		
+		Runnable reorder = new Runnable() 
+		{
+			public void run() 
+			{
+				try
+				{
+					reorderRules();
+				}
+				finally
+				{
+					reordering.set(false);
+				}
+			}
+		};
+		
+		try
+		{
+			forkJoinPool.execute(reorder);
+		}
+		catch (RejectedExecutionException e)
+		{
+			/*pool shut down, mappings are reordered on a later call*/
+			reordering.set(false);
+		}
+	}
+	
+	/**
+	 * @param current parsed mappings
+	 * @param classifiable object to classify
+	 * @return the value for which the SpEL expression evaluates to true on input object
+	 */
+	private T classify(ParsedRules<T> current, K classifiable)
+	{
+		ParsedRule<T> matched = causeChainDepth>0 && classifiable instanceof Throwable ? matchCauseChain(current, (Throwable) classifiable) : match(current, classifiable);
+		return matched!=null ? matched.value : current.defaultValue;
+	}
+	
+	/**
+	 * Matches the exception and its causes, up to the {@link #setCauseChainDepth(int) cause chain depth}. 
+	 * The innermost matched exception wins.
+	 * If all expressions are type-only, the result is memoized per chain of exception classes.
+	 * 
+	 * @param current parsed mappings
+	 * @param throwable exception to classify
+	 * @return the mapping matching the innermost exception, null if none
+	 */
+	private ParsedRule<T> matchCauseChain(ParsedRules<T> current, Throwable throwable)
+	{
+		List<Throwable> chain = new ArrayList<Throwable>(4);
+		
+		for (Throwable cause = throwable; cause!=null && chain.size()<=causeChainDepth; cause = cause.getCause()) 
+		{
+			chain.add(cause);
+		}
+		
+		if(!current.generalRules.isEmpty())
+		{
+			/*expressions may depend on more than the classes, each exception must be evaluated*/
+			return matchInnermost(current, chain);
+		}
+		
+		ChainMatch node = current.chainMatches;
+		for (Throwable cause : chain) 
+		{
+			node = node.get(cause.getClass());
+		}
+		
+		Integer match = node.match;
+		
+		if(match==null)
+		{
+			ParsedRule<T> matched = matchInnermost(current, chain);
+			node.match = matched!=null ? matched.index : NO_MATCH;
+			
+			return matched;
+		}
+		
+		if(match.intValue()==NO_MATCH)
+		{
+			recordTypeRules(current, current.rules.length, false);
+			return null;
+		}
+		
+		recordTypeRules(current, match, true);
+		return current.rules[match];
+	}
+	
+	/**
+	 * @param current parsed mappings
+	 * @param chain the exception followed by its causes
+	 * @return the mapping matching the innermost exception, null if none
+	 */
+	private ParsedRule<T> matchInnermost(ParsedRules<T> current, List<Throwable> chain)
+	{
+		for (int i = chain.size()-1; i >= 0; i--) 
 		{
-			T defaultValue = null;
+			ParsedRule<T> matched = match(current, chain.get(i));
 			
-			for (SpELExpressionsClassifierConfig<T> config : values) 
-			{							
-				Expression exp = parser.parseExpression(config.getExpression() );
-				boolean result = exp.getValue(classifiable, Boolean.class);
+			if(matched!=null)
+			{
+				return matched;
+			}
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * @param current parsed mappings
+	 * @param classifiable object to classify
+	 * @return the first mapping which expression evaluates to true on input object, null if none
+	 */
+	private ParsedRule<T> match(ParsedRules<T> current, Object classifiable)
+	{
+		if(classifiable==null || current.typeRuleCount==0)
+		{
+			/*nothing to look up, evaluate all expressions in order*/
+			for (ParsedRule<T> rule : current.rules) 
+			{
+				if(evaluate(rule, classifiable))
+				{
+					return rule;
+				}
+			}
+			
+			return null;
+		}
+		
+		/*expressions that follow the first matching type-only expression are never reached*/
+		int typeMatch = current.findTypeMatch(classifiable.getClass());
+		
+		for (ParsedRule<T> rule : current.generalRules) 
+		{
+			if(rule.index>typeMatch)
+			{
+				break;
+			}
+			
+			if(evaluate(rule, classifiable))
+			{
+				recordTypeRules(current, rule.index, false);
+				return rule;
+			}
+		}
+		
+		if(typeMatch==NO_MATCH)
+		{
+			recordTypeRules(current, current.rules.length, false);
+			return null;
+		}
+		
+		recordTypeRules(current, typeMatch, true);
+		return current.rules[typeMatch];
+	}
+	
+	/**
+	 * Records statistics of type-only mappings as if their expressions were evaluated in order: 
+	 * the mappings preceding the given position did not match and the mapping at the position matched, if requested. 
+	 * Only the position is counted, see {@link ParsedRules#typeMisses(boolean)}.
+	 * 
+	 * @param current parsed mappings
+	 * @param end position of the last mapping reached by the classification
+	 * @param matched true if the mapping at the position is a matching type-only mapping
+	 */
+	private void recordTypeRules(ParsedRules<T> current, int end, boolean matched)
+	{
+		if(!statisticsEnabled)
+		{
+			return;
+		}
+		
+		/*type-only expressions are looked up, not evaluated: their misses are derived from the reached position when read*/
+		current.reached[end].increment();
+		
+		if(matched)
+		{
+			current.rules[end].statistics.record(true, 0);
+		}
+	}
+	
+	/**
+	 * Evaluates the expression of the mapping and records its statistics.
+	 * 
+	 * @param rule the mapping
+	 * @param classifiable object to classify
+	 * @return true if the expression evaluates to true
+	 */
+	private boolean evaluate(ParsedRule<T> rule, Object classifiable)
+	{
+		if(!statisticsEnabled)
+		{
+			return rule.expression.getValue(context, classifiable, Boolean.class);
+		}
+		
+		long start = System.nanoTime();
+		boolean result = rule.expression.getValue(context, classifiable, Boolean.class);
+		
+		rule.statistics.record(result, System.nanoTime()-start);
+		return result;
+	}
+	
+	/**
+	 * Task classifying a range of a batch, split in halves until small enough
+	 * 
+	 * @author Maciej SIDOR (maciejsidor@gmail.com)
+	 * @since 2015
+	 */
+	@SuppressWarnings("serial")
+	private final class ClassifyTask extends RecursiveTask<Map<T, List<K>>>
+	{
+		/**
+		 * Parsed mappings shared by all tasks of the batch
+		 */
+		private final ParsedRules<T> 	current;
+		
+		/**
+		 * The batch
+		 */
+		private final List<K> 			batch;
+		
+		/**
+		 * First index of the range
+		 */
+		private final int 				from;
+		
+		/**
+		 * Index following the range
+		 */
+		private final int 				to;
+		
+		/**
+		 * @param current parsed mappings shared by all tasks of the batch
+		 * @param batch the batch
+		 * @param from first index of the range
+		 * @param to index following the range
+		 */
+		ClassifyTask(ParsedRules<T> current, List<K> batch, int from, int to)
+		{
+			this.current 	= current;
+			this.batch 		= batch;
+			this.from 		= from;
+			this.to 		= to;
+		}
+		
+		/**
+		 * Classifies the range, or its halves in parallel and merges the results in order
+		 */
+		protected Map<T, List<K>> compute() 
+		{
+			if(to-from<=BATCH_SPLIT_THRESHOLD)
+			{
+				Map<T, List<K>> groups = new LinkedHashMap<T, List<K>>();
 				
-				if(result)
+				for (int i = from; i < to; i++) 
 				{
-					return config.getValue();
+					K classifiable = batch.get(i);
+					T value = classify(current, classifiable);
+					
+					List<K> group = groups.get(value);
+					if(group==null)
+					{
+						group = new ArrayList<K>();
+						groups.put(value, group);
+					}
+					
+					group.add(classifiable);
 				}
 				
-				if(config.isDefault())
+				return groups;
+			}
+			
+			int middle = (from+to)>>>1;
+			
+			ClassifyTask right = new ClassifyTask(current, batch, middle, to);
+			right.fork();
+			
+			Map<T, List<K>> groups = new ClassifyTask(current, batch, from, middle).compute();
+			
+			for (Map.Entry<T, List<K>> entry : right.join().entrySet()) 
+			{
+				List<K> group = groups.get(entry.getKey());
+				
+				if(group==null)
 				{
-					defaultValue = config.getValue();
+					groups.put(entry.getKey(), entry.getValue());
+				}
+				else
+				{
+					group.addAll(entry.getValue());
 				}
 			}
 			
+			return groups;
+		}
+	}
+	
+	/**
+	 * Parses the expressions of given mappings.
+	 * 
+	 * @param values List of {@link SpELExpressionsClassifierConfig}, may be null
+	 * @return parsed mappings
+	 */
+	private ParsedRules<T> parse(List<SpELExpressionsClassifierConfig<T>> values)
+	{
+		if(values==null)
+		{
+			return new ParsedRules<T>(SpELExpressionsClassifier.<T>newRules(0), null);
+		}
+		
+		ParsedRule<T>[] parsed 	= newRules(values.size());
+		T defaultValue 			= null;
+		int i 					= 0;
+		
+		for (SpELExpressionsClassifierConfig<T> config : values) 
+		{
+			parsed[i] = new ParsedRule<T>(i, parser.parseExpression(config.getExpression()), parseTypeRule(config.getExpression()), config.getValue(), new RuleStatistics(config.getExpression()));
+			i++;
+			
+			/*the last default mapping wins*/
+			if(config.isDefault())
+			{
+				defaultValue = config.getValue();
+			}
+		}
+		
+		return new ParsedRules<T>(parsed, defaultValue);
+	}
+	
+	/**
+	 * Generic arrays can not be created, the raw array is only ever filled with mappings of the given value type.
+	 * 
+	 * @param length number of mappings
+	 * @return new array of mappings
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static <T> ParsedRule<T>[] newRules(int length)
+	{
+		return new ParsedRule[length];
+	}
+	
+	/**
+	 * @param expression SpEL expression
+	 * @return type check equivalent to the expression, null if the expression does not depend only on the type of the input object
+	 */
+	private static TypeRule parseTypeRule(String expression)
+	{
+		Matcher matcher = INSTANCEOF_EXPRESSION.matcher(expression);
+		if(matcher.matches())
+		{
+			Class<?> type = resolveType(matcher.group(1));
 			
-			return defaultValue;
-
+			/*unknown types are left to SpEL that reports them on evaluation*/
+			return type!=null ? new TypeRule(type, null, false) : null;
+		}
+		
+		matcher = CLASS_NAME_EXPRESSION.matcher(expression);
+		if(matcher.matches())
+		{
+			return new TypeRule(null, matcher.group(2), "simpleName".equals(matcher.group(1)));
 		}
 		
 		return null;
 	}
-
-
+	
+	/**
+	 * Resolves type referenced by {@code T(...)}, like SpEL does: java.lang types may be referenced by their simple names.
+	 * 
+	 * @param name type name
+	 * @return the type, null if not found
+	 */
+	private static Class<?> resolveType(String name)
+	{
+		ClassLoader classLoader = SpELExpressionsClassifier.class.getClassLoader();
+		
+		if(ClassUtils.isPresent(name, classLoader))
+		{
+			return ClassUtils.resolveClassName(name, classLoader);
+		}
+		
+		if(name.indexOf('.')<0 && ClassUtils.isPresent("java.lang."+name, classLoader))
+		{
+			return ClassUtils.resolveClassName("java.lang."+name, classLoader);
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * @param compilerMode SpEL compiler mode
+	 * @return SpEL parser using given compiler mode
+	 */
+	private static ExpressionParser createParser(SpelCompilerMode compilerMode)
+	{
+		return new SpelExpressionParser(new SpelParserConfiguration(compilerMode, SpELExpressionsClassifier.class.getClassLoader()));
+	}
+	
+	/**
+	 * Immutable set of parsed mappings
+	 * 
+	 * @author Maciej SIDOR (maciejsidor@gmail.com)
+	 * @since 2015
+	 */
+	private static final class ParsedRules<T>
+	{
+		/**
+		 * Parsed mappings, in order
+		 */
+		final ParsedRule<T>[] 	rules;
+		
+		/**
+		 * Mappings which expressions are not type-only, in order
+		 */
+		final List<ParsedRule<T>> generalRules = new ArrayList<ParsedRule<T>>();
+		
+		/**
+		 * Number of mappings which expressions are type-only
+		 */
+		final int 				typeRuleCount;
+		
+		/**
+		 * Value returned if no expression evaluates to true
+		 */
+		final T 				defaultValue;
+		
+		/**
+		 * Number of classifications that reached each position, the last one counting classifications that matched no mapping
+		 */
+		final LongAdder[] 		reached;
+		
+		/**
+		 * Index of the first type-only mapping matching the class, memoized per class of the input object. 
+		 * Stored by the classes themselves, so that classes and their class loaders are not retained by the classifier.
+		 */
+		final ClassValue<Integer> typeMatches = new ClassValue<Integer>() 
+		{
+			@Override
+			protected Integer computeValue(Class<?> type) 
+			{
+				for (ParsedRule<T> rule : rules) 
+				{
+					if(rule.typeRule!=null && rule.typeRule.matches(type))
+					{
+						return rule.index;
+					}
+				}
+				
+				return NO_MATCH;
+			}
+		};
+		
+		/**
+		 * Index of the mapping matching the innermost exception, memoized per chain of exception classes. Used only if all expressions are type-only.
+		 */
+		final ChainMatch chainMatches = new ChainMatch();
+		
+		/**
+		 * @param rules parsed mappings, in order
+		 * @param defaultValue value returned if no expression evaluates to true
+		 */
+		ParsedRules(ParsedRule<T>[] rules, T defaultValue)
+		{
+			this.rules 			= rules;
+			this.defaultValue 	= defaultValue;
+			this.reached 		= new LongAdder[rules.length+1];
+			
+			for (int i = 0; i < reached.length; i++) 
+			{
+				reached[i] = new LongAdder();
+			}
+			
+			for (ParsedRule<T> rule : rules) 
+			{
+				if(rule.typeRule==null)
+				{
+					generalRules.add(rule);
+				}
+			}
+			
+			this.typeRuleCount = rules.length-generalRules.size();
+		}
+		
+		/**
+		 * @param type class of the input object
+		 * @return index of the first type-only mapping matching the class, {@link SpELExpressionsClassifier#NO_MATCH} if none
+		 */
+		int findTypeMatch(Class<?> type)
+		{
+			return typeMatches.get(type);
+		}
+		
+		/**
+		 * Derives the misses of type-only mappings from the reached positions: 
+		 * a type-only mapping missed each classification that reached a later position.
+		 * 
+		 * @param reset true if the counters of reached positions are reset, so that the misses are derived only once
+		 * @return number of misses of each mapping, zero for mappings which expressions are not type-only
+		 */
+		long[] typeMisses(boolean reset)
+		{
+			long[] misses 		= new long[rules.length];
+			long reachedLater 	= 0;
+			
+			for (int i = rules.length-1; i >= 0; i--) 
+			{
+				reachedLater += reset ? reached[i+1].sumThenReset() : reached[i+1].sum();
+				
+				if(rules[i].typeRule!=null)
+				{
+					misses[i] = reachedLater;
+				}
+			}
+			
+			if(reset)
+			{
+				reached[0].reset();
+			}
+			
+			return misses;
+		}
+	}
+	
+	/**
+	 * Memoized match of a chain of exception classes. 
+	 * Each node memoizes the match of the chain leading to it and is the {@link ClassValue} of the nodes of the next cause classes, 
+	 * so that the chains are stored by the classes themselves and classes and their class loaders are not retained by the classifier.
+	 * 
+	 * @author Maciej SIDOR (maciejsidor@gmail.com)
+	 * @since 2015
+	 */
+	private static final class ChainMatch extends ClassValue<ChainMatch>
+	{
+		/**
+		 * Index of the mapping matching the innermost exception of the chain, null if not known yet
+		 */
+		volatile Integer match = null;
+		
+		/**
+		 * @return node of the chain followed by the cause class
+		 */
+		@Override
+		protected ChainMatch computeValue(Class<?> type) 
+		{
+			return new ChainMatch();
+		}
+	}
+	
+	/**
+	 * Single parsed mapping
+	 * 
+	 * @author Maciej SIDOR (maciejsidor@gmail.com)
+	 * @since 2015
+	 */
+	private static final class ParsedRule<T>
+	{
+		/**
+		 * Position of the mapping
+		 */
+		final int 			index;
+		
+		/**
+		 * Parsed expression
+		 */
+		final Expression 	expression;
+		
+		/**
+		 * Type check equivalent to the expression, null if the expression is not type-only
+		 */
+		final TypeRule 		typeRule;
+		
+		/**
+		 * Value returned if the expression evaluates to true
+		 */
+		final T 			value;
+		
+		/**
+		 * Statistics of the mapping, kept when mappings are reordered
+		 */
+		final RuleStatistics statistics;
+		
+		/**
+		 * @param index position of the mapping
+		 * @param expression parsed expression
+		 * @param typeRule type check equivalent to the expression, null if the expression is not type-only
+		 * @param value value returned if the expression evaluates to true
+		 * @param statistics statistics of the mapping
+		 */
+		ParsedRule(int index, Expression expression, TypeRule typeRule, T value, RuleStatistics statistics)
+		{
+			this.index 		= index;
+			this.expression = expression;
+			this.typeRule 	= typeRule;
+			this.value 		= value;
+			this.statistics = statistics;
+		}
+	}
+	
+	/**
+	 * Statistics of a single mapping
+	 * 
+	 * @author Maciej SIDOR (maciejsidor@gmail.com)
+	 * @since 2015
+	 */
+	private static final class RuleStatistics
+	{
+		/**
+		 * Expression of the mapping
+		 */
+		final String 	expression;
+		
+		/**
+		 * Number of evaluations
+		 */
+		final LongAdder evaluations 	= new LongAdder();
+		
+		/**
+		 * Number of evaluations to true
+		 */
+		final LongAdder matches 		= new LongAdder();
+		
+		/**
+		 * Cumulative evaluation time, in nanoseconds
+		 */
+		final LongAdder evaluationTime 	= new LongAdder();
+		
+		/**
+		 * @param expression expression of the mapping
+		 */
+		RuleStatistics(String expression)
+		{
+			this.expression = expression;
+		}
+		
+		/**
+		 * @param matched true if the expression evaluated to true
+		 * @param time evaluation time in nanoseconds
+		 */
+		void record(boolean matched, long time)
+		{
+			evaluations.increment();
+			evaluationTime.add(time);
+			
+			if(matched)
+			{
+				matches.increment();
+			}
+		}
+		
+		/**
+		 * @param count number of evaluations to false of a type-only expression, derived from the reached positions
+		 */
+		void recordMisses(long count)
+		{
+			evaluations.add(count);
+		}
+		
+		/**
+		 * Resets all counters
+		 */
+		void reset()
+		{
+			evaluations.reset();
+			matches.reset();
+			evaluationTime.reset();
+		}
+	}
+	
+	/**
+	 * Type check equivalent to a type-only expression
+	 * 
+	 * @author Maciej SIDOR (maciejsidor@gmail.com)
+	 * @since 2015
+	 */
+	private static final class TypeRule
+	{
+		/**
+		 * Type the input object must be an instance of, null if the class name is checked
+		 */
+		final Class<?> 	type;
+		
+		/**
+		 * Name the input object class must have, null if the type is checked
+		 */
+		final String 	className;
+		
+		/**
+		 * True if the class name is a simple name
+		 */
+		final boolean 	simpleName;
+		
+		/**
+		 * @param type type the input object must be an instance of
+		 * @param className name the input object class must have
+		 * @param simpleName true if the class name is a simple name
+		 */
+		TypeRule(Class<?> type, String className, boolean simpleName)
+		{
+			this.type 		= type;
+			this.className 	= className;
+			this.simpleName = simpleName;
+		}
+		
+		/**
+		 * @param candidate class of the input object
+		 * @return true if the expression evaluates to true on instances of the class
+		 */
+		boolean matches(Class<?> candidate)
+		{
+			if(type!=null)
+			{
+				return type.isAssignableFrom(candidate);
+			}
+			
+			return className.equals(simpleName ? candidate.getSimpleName() : candidate.getName());
+		}
+	}
 }
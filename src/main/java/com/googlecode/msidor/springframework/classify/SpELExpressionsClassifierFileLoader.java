@@ -0,0 +1,344 @@
+/*
+Copyright 2015 Maciej SIDOR [maciejsidor@gmail.com]
+
+The source code is licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+    
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.	
+ */
+package com.googlecode.msidor.springframework.classify;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.BeanFactoryAware;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.config.YamlPropertiesFactoryBean;
+import org.springframework.core.convert.ConversionService;
+import org.springframework.core.convert.support.DefaultConversionService;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.support.PropertiesLoaderUtils;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.util.Assert;
+import org.springframework.util.ClassUtils;
+import org.springframework.util.StringUtils;
+
+/**
+ * Loads mappings of a {@link SpELExpressionsClassifier} from an external file and reloads them when the file changes.
+ * <br/>
+ * 
+ * The file is a properties file or, if its name ends with {@code .yml} or {@code .yaml} and SnakeYAML is available, a YAML file. 
+ * Mappings are listed in order under {@code rules}:
+ * <pre>
+ * rules[0].expression=#root instanceof T(java.io.IOException)
+ * rules[0].value=ioRetryPolicy
+ * rules[1].expression=true
+ * rules[1].value=neverRetryPolicy
+ * rules[1].default=true
+ * </pre>
+ * A value is resolved as the bean of that name if the bean factory contains one, 
+ * otherwise it is converted to the {@link #setValueType(Class) value type}.
+ * <br/>
+ * 
+ * The file is checked for changes every {@link #setCheckInterval(long) check interval} by a background thread. 
+ * Changed mappings are parsed and validated by that thread and published to the classifier at once (see {@link SpELExpressionsClassifier#setValues(List)}), 
+ * so classification is never blocked. Invalid mappings are reported and the current ones are kept.
+ * 
+ * @author Maciej SIDOR (maciejsidor@gmail.com)
+ * @since 2015
+ */
+public class SpELExpressionsClassifierFileLoader<T> implements InitializingBean, DisposableBean, BeanFactoryAware 
+{
+	/**
+	 * Matches keys of the file
+	 */
+	private static final Pattern RULE_KEY = Pattern.compile("rules\\[(\\d+)\\]\\.(expression|value|default)");
+	
+	/**
+	 * The loader logger
+	 */
+	private final Logger log = LoggerFactory.getLogger(this.getClass());
+	
+	/**
+	 * Converts values that are not bean names
+	 */
+	private final ConversionService conversionService = new DefaultConversionService();
+	
+	/**
+	 * Classifier which mappings are loaded
+	 */
+	private SpELExpressionsClassifier<?, T> classifier;
+	
+	/**
+	 * File the mappings are loaded from
+	 */
+	private File file;
+	
+	/**
+	 * Type of the values
+	 */
+	private Class<T> valueType;
+	
+	/**
+	 * Time between checks of the file
+	 */
+	private long checkInterval = 5000;
+	
+	/**
+	 * Bean factory used to resolve values
+	 */
+	private BeanFactory beanFactory;
+	
+	/**
+	 * Scheduler checking the file
+	 */
+	private ScheduledExecutorService scheduler;
+	
+	/**
+	 * Last modification time of the loaded file
+	 */
+	private long lastModified;
+	
+	/**
+	 * Length of the loaded file
+	 */
+	private long length;
+
+	/**
+	 * Sets classifier which mappings are loaded
+	 * @param classifier the classifier to set
+	 */
+	public void setClassifier(SpELExpressionsClassifier<?, T> classifier) 
+	{
+		this.classifier = classifier;
+	}
+
+	/**
+	 * Sets file the mappings are loaded from
+	 * @param file the file to set
+	 */
+	public void setFile(File file) 
+	{
+		this.file = file;
+	}
+
+	/**
+	 * Sets type of the values. Values that are not bean names are converted to this type.
+	 * @param valueType the valueType to set
+	 */
+	public void setValueType(Class<T> valueType) 
+	{
+		this.valueType = valueType;
+	}
+
+	/**
+	 * Sets time between checks of the file, in milliseconds. Default is 5 seconds. 
+	 * Zero or negative value disables reloading.
+	 * 
+	 * @param checkInterval the checkInterval to set
+	 */
+	public void setCheckInterval(long checkInterval) 
+	{
+		this.checkInterval = checkInterval;
+	}
+
+	/**
+	 * Sets bean factory used to resolve values
+	 */
+	public void setBeanFactory(BeanFactory beanFactory) 
+	{
+		this.beanFactory = beanFactory;
+	}
+
+	/**
+	 * Loads the mappings and starts checking the file for changes.
+	 * 
+	 * @throws IOException if the file could not be read
+	 * @throws IllegalArgumentException if the mappings are not valid
+	 */
+	@SuppressWarnings("unchecked")
+	public void afterPropertiesSet() throws IOException 
+	{
+		Assert.notNull(classifier, "Classifier must be set");
+		Assert.notNull(file, "File must be set");
+		
+		if(valueType==null)
+		{
+			valueType = (Class<T>) Object.class;
+		}
+		
+		/*mappings must be valid on startup*/
+		load();
+		
+		if(checkInterval>0)
+		{
+			CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("SpELExpressionsClassifierFileLoader-");
+			threadFactory.setDaemon(true);
+			
+			scheduler = Executors.newSingleThreadScheduledExecutor(threadFactory);
+			scheduler.scheduleWithFixedDelay(new Runnable() 
+			{
+				public void run() 
+				{
+					reloadIfChanged();
+				}
+			}, checkInterval, checkInterval, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	/**
+	 * Stops checking the file
+	 */
+	public void destroy() 
+	{
+		if(scheduler!=null)
+		{
+			scheduler.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Reloads the mappings if the file has changed since the last load. Invalid mappings are reported and ignored.
+	 */
+	public void reloadIfChanged()
+	{
+		if(file.lastModified()==lastModified && file.length()==length)
+		{
+			return;
+		}
+		
+		try
+		{
+			load();
+		}
+		catch (Exception e)
+		{
+			log.error("Classifier mappings could not be reloaded from "+file+", keeping current mappings", e);
+		}
+	}
+	
+	/**
+	 * Reads, validates and publishes the mappings.
+	 * 
+	 * @throws IOException if the file could not be read
+	 */
+	private synchronized void load() throws IOException
+	{
+		long modified 	= file.lastModified();
+		long size 		= file.length();
+		
+		classifier.setValues(toConfigs(readProperties()));
+		
+		lastModified 	= modified;
+		length 			= size;
+		
+		log.info("Classifier mappings loaded from {}", file);
+	}
+	
+	/**
+	 * @return content of the file flattened to properties
+	 * @throws IOException if the file could not be read
+	 */
+	private Properties readProperties() throws IOException
+	{
+		FileSystemResource resource = new FileSystemResource(file);
+		String name = file.getName();
+		
+		if(name.endsWith(".yml") || name.endsWith(".yaml"))
+		{
+			Assert.state(ClassUtils.isPresent("org.yaml.snakeyaml.Yaml", getClass().getClassLoader()), "SnakeYAML is required to read "+file);
+			
+			YamlPropertiesFactoryBean yaml = new YamlPropertiesFactoryBean();
+			yaml.setResources(resource);
+			
+			return yaml.getObject();
+		}
+		
+		return PropertiesLoaderUtils.loadProperties(resource);
+	}
+	
+	/**
+	 * @param properties content of the file
+	 * @return mappings in order
+	 * @throws IllegalArgumentException if the mappings are not valid
+	 */
+	private List<SpELExpressionsClassifierConfig<T>> toConfigs(Properties properties)
+	{
+		Map<Integer, SpELExpressionsClassifierConfig<T>> configs = new TreeMap<Integer, SpELExpressionsClassifierConfig<T>>();
+		
+		for (Map.Entry<Object, Object> property : properties.entrySet()) 
+		{
+			/*YAML values are not flattened to strings*/
+			String key 		= String.valueOf(property.getKey());
+			String value 	= String.valueOf(property.getValue()).trim();
+			
+			Matcher matcher = RULE_KEY.matcher(key);
+			Assert.isTrue(matcher.matches(), "Unexpected key '"+key+"' in "+file);
+			
+			Integer index = Integer.valueOf(matcher.group(1));
+			SpELExpressionsClassifierConfig<T> config = configs.get(index);
+			
+			if(config==null)
+			{
+				config = new SpELExpressionsClassifierConfig<T>();
+				configs.put(index, config);
+			}
+			
+			if("expression".equals(matcher.group(2)))
+			{
+				config.setExpression(value);
+			}
+			else if("value".equals(matcher.group(2)))
+			{
+				config.setValue(resolveValue(value));
+			}
+			else
+			{
+				config.setDefault(Boolean.parseBoolean(value));
+			}
+		}
+		
+		for (Map.Entry<Integer, SpELExpressionsClassifierConfig<T>> entry : configs.entrySet()) 
+		{
+			Assert.isTrue(StringUtils.hasText(entry.getValue().getExpression()), "Missing expression of rule "+entry.getKey()+" in "+file);
+			Assert.notNull(entry.getValue().getValue(), "Missing value of rule "+entry.getKey()+" in "+file);
+		}
+		
+		return new ArrayList<SpELExpressionsClassifierConfig<T>>(configs.values());
+	}
+	
+	/**
+	 * @param value value read from the file
+	 * @return bean of that name if any, otherwise value converted to the value type
+	 */
+	private T resolveValue(String value)
+	{
+		if(beanFactory!=null && beanFactory.containsBean(value))
+		{
+			return beanFactory.getBean(value, valueType);
+		}
+		
+		return conversionService.convert(value, valueType);
+	}
+}
@@ -0,0 +1,312 @@
+/*
+Copyright 2015 Maciej SIDOR [maciejsidor@gmail.com]
+
+The source code is licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+    
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.	
+ */
+package com.googlecode.msidor.springframework.retry;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.retry.RetryCallback;
+import org.springframework.retry.RetryContext;
+import org.springframework.retry.RetryListener;
+import org.springframework.retry.backoff.BackOffContext;
+import org.springframework.retry.backoff.BackOffInterruptedException;
+import org.springframework.retry.backoff.Sleeper;
+import org.springframework.retry.backoff.SleepingBackOffPolicy;
+import org.springframework.retry.backoff.ThreadWaitSleeper;
+import org.springframework.util.Assert;
+
+/**
+ * Exponential back off policy which delays widen when retries keep failing and narrow back when they succeed.
+ * <br/>
+ * The policy keeps a moving average of the success rate of the retries it backed off for, shared by all retried operations. 
+ * Each delay is the exponential delay ({@link #setInitialInterval(long) initial interval} multiplied by {@link #setMultiplier(double) multiplier} on each back off) 
+ * widened up to {@link #setMaxWidening(double) max widening} times as the success rate drops, 
+ * optionally randomized (see {@link #setJitter(boolean)}) and capped by the {@link #setMaxInterval(long) max interval}.
+ * <br/>
+ * Declare one policy per category of exceptions (see {@link SpELExpressionsClassifierBackOffPolicy}) so that each category has its own success rate. 
+ * The policy must also be registered as a listener of the retry template, so that it is notified about successful retries. 
+ * The success rate is updated without locking and is shared with the copies made by {@link #withSleeper(Sleeper)}.
+ * 
+ * @author Maciej SIDOR (maciejsidor@gmail.com)
+ * @since 2015
+ */
+public class AdaptiveBackOffPolicy implements SleepingBackOffPolicy<AdaptiveBackOffPolicy>, RetryListener 
+{
+	/**
+	 * Name of the retry context attribute that holds the back off context of this policy
+	 */
+	private final String contextAttribute;
+	
+	/**
+	 * Moving average of the success rate of retries, as double bits
+	 */
+	private final AtomicLong successRate;
+	
+	/**
+	 * First delay, in milliseconds
+	 */
+	private long initialInterval = 100;
+	
+	/**
+	 * Multiplier applied to the delay on each back off
+	 */
+	private double multiplier = 2;
+	
+	/**
+	 * Maximal delay, in milliseconds
+	 */
+	private long maxInterval = 30000;
+	
+	/**
+	 * Maximal factor the delay is widened by when no retry succeeds
+	 */
+	private double maxWidening = 10;
+	
+	/**
+	 * Weight of each retry outcome in the moving average
+	 */
+	private double outcomeWeight = 0.05;
+	
+	/**
+	 * True if delays are randomized
+	 */
+	private boolean jitter = true;
+	
+	/**
+	 * Sleeper used to back off
+	 */
+	private Sleeper sleeper = new ThreadWaitSleeper();
+	
+	/**
+	 * Creates the policy with its own success rate
+	 */
+	public AdaptiveBackOffPolicy()
+	{
+		this.contextAttribute 	= AdaptiveBackOffPolicy.class.getName()+"@"+System.identityHashCode(this);
+		this.successRate 		= new AtomicLong(Double.doubleToLongBits(1.0));
+	}
+	
+	/**
+	 * Creates a copy of the policy sharing its success rate.
+	 * 
+	 * @param original the copied policy
+	 * @param sleeper sleeper used by the copy
+	 */
+	private AdaptiveBackOffPolicy(AdaptiveBackOffPolicy original, Sleeper sleeper)
+	{
+		this.contextAttribute 	= original.contextAttribute;
+		this.successRate 		= original.successRate;
+		this.initialInterval 	= original.initialInterval;
+		this.multiplier 		= original.multiplier;
+		this.maxInterval 		= original.maxInterval;
+		this.maxWidening 		= original.maxWidening;
+		this.outcomeWeight 		= original.outcomeWeight;
+		this.jitter 			= original.jitter;
+		this.sleeper 			= sleeper;
+	}
+
+	/**
+	 * Sets first delay, in milliseconds. Default is 100.
+	 * @param initialInterval the initialInterval to set
+	 */
+	public void setInitialInterval(long initialInterval) 
+	{
+		Assert.isTrue(initialInterval>0, "Initial interval must be positive");
+		this.initialInterval = initialInterval;
+	}
+
+	/**
+	 * Sets multiplier applied to the delay on each back off. Default is 2.
+	 * @param multiplier the multiplier to set
+	 */
+	public void setMultiplier(double multiplier) 
+	{
+		Assert.isTrue(multiplier>=1, "Multiplier must not be lower than 1");
+		this.multiplier = multiplier;
+	}
+
+	/**
+	 * Sets maximal delay, in milliseconds. Default is 30 seconds.
+	 * @param maxInterval the maxInterval to set
+	 */
+	public void setMaxInterval(long maxInterval) 
+	{
+		Assert.isTrue(maxInterval>0, "Max interval must be positive");
+		this.maxInterval = maxInterval;
+	}
+
+	/**
+	 * Sets maximal factor the delay is widened by when no retry succeeds. Default is 10.
+	 * @param maxWidening the maxWidening to set
+	 */
+	public void setMaxWidening(double maxWidening) 
+	{
+		Assert.isTrue(maxWidening>=1, "Max widening must not be lower than 1");
+		this.maxWidening = maxWidening;
+	}
+
+	/**
+	 * Sets weight of each retry outcome in the moving average of the success rate, between 0 and 1. Default is 0.05. 
+	 * Higher weight makes the policy react faster.
+	 * 
+	 * @param outcomeWeight the outcomeWeight to set
+	 */
+	public void setOutcomeWeight(double outcomeWeight) 
+	{
+		Assert.isTrue(outcomeWeight>0 && outcomeWeight<=1, "Outcome weight must be between 0 and 1");
+		this.outcomeWeight = outcomeWeight;
+	}
+
+	/**
+	 * Enables randomization of delays ("equal jitter": between half and full delay), enabled by default.
+	 * @param jitter the jitter to set
+	 */
+	public void setJitter(boolean jitter) 
+	{
+		this.jitter = jitter;
+	}
+
+	/**
+	 * Sets sleeper used to back off, {@link ThreadWaitSleeper} by default.
+	 * @param sleeper the sleeper to set
+	 */
+	public void setSleeper(Sleeper sleeper) 
+	{
+		this.sleeper = sleeper;
+	}
+	
+	/**
+	 * @return copy of this policy using given sleeper, sharing the success rate of this policy (this policy remains the listener to register)
+	 */
+	public AdaptiveBackOffPolicy withSleeper(Sleeper sleeper) 
+	{
+		return new AdaptiveBackOffPolicy(this, sleeper);
+	}
+	
+	/**
+	 * @return moving average of the success rate of retries, between 0 and 1
+	 */
+	public double getSuccessRate() 
+	{
+		return Double.longBitsToDouble(successRate.get());
+	}
+
+	/**
+	 * Creates the back off context of the retried operation and attaches it to the retry context, so that the retry outcome may be recorded.
+	 */
+	public BackOffContext start(RetryContext context) 
+	{
+		AdaptiveBackOffContext backOffContext = new AdaptiveBackOffContext();
+		context.setAttribute(contextAttribute, backOffContext);
+		
+		return backOffContext;
+	}
+
+	/**
+	 * Sleeps for the exponential delay widened according to the success rate
+	 */
+	public void backOff(BackOffContext backOffContext) throws BackOffInterruptedException 
+	{
+		AdaptiveBackOffContext context = (AdaptiveBackOffContext) backOffContext;
+		
+		/*backing off again means that the previous retry failed*/
+		if(context.backOffs>0)
+		{
+			recordOutcome(false);
+		}
+		
+		double widening = 1+(1-getSuccessRate())*(maxWidening-1);
+		double delay 	= Math.min(maxInterval, initialInterval*Math.pow(multiplier, context.backOffs)*widening);
+		
+		if(jitter)
+		{
+			delay = delay/2+ThreadLocalRandom.current().nextDouble()*delay/2;
+		}
+		
+		context.backOffs++;
+		
+		try
+		{
+			sleeper.sleep((long) delay);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new BackOffInterruptedException("Thread interrupted while sleeping", e);
+		}
+	}
+	
+	/**
+	 * Does nothing
+	 */
+	public <T, E extends Throwable> boolean open(RetryContext context, RetryCallback<T, E> callback) 
+	{
+		return true;
+	}
+
+	/**
+	 * Records the outcome of the last retry, if this policy backed off for it.
+	 */
+	public <T, E extends Throwable> void close(RetryContext context, RetryCallback<T, E> callback, Throwable throwable) 
+	{
+		AdaptiveBackOffContext backOffContext = (AdaptiveBackOffContext) context.getAttribute(contextAttribute);
+		
+		if(backOffContext!=null && backOffContext.backOffs>0)
+		{
+			recordOutcome(throwable==null);
+		}
+	}
+
+	/**
+	 * Does nothing, failed retries are recorded on back off or close
+	 */
+	public <T, E extends Throwable> void onError(RetryContext context, RetryCallback<T, E> callback, Throwable throwable) 
+	{
+	}
+	
+	/**
+	 * Updates the moving average of the success rate.
+	 * 
+	 * @param success true if the retry succeeded
+	 */
+	private void recordOutcome(boolean success)
+	{
+		while(true)
+		{
+			long current 	= successRate.get();
+			double updated 	= Double.longBitsToDouble(current)*(1-outcomeWeight)+(success ? outcomeWeight : 0);
+			
+			if(successRate.compareAndSet(current, Double.doubleToLongBits(updated)))
+			{
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Back off context of a retried operation
+	 * 
+	 * @author Maciej SIDOR (maciejsidor@gmail.com)
+	 * @since 2015
+	 */
+	private static final class AdaptiveBackOffContext implements BackOffContext
+	{
+		/**
+		 * Number of back offs of the operation
+		 */
+		int backOffs = 0;
+	}
+}
@@ -0,0 +1,529 @@
+/*
+Copyright 2015 Maciej SIDOR [maciejsidor@gmail.com]
+
+The source code is licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+    
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.	
+ */
+package com.googlecode.msidor.springframework.retry;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.retry.ExhaustedRetryException;
+import org.springframework.retry.RetryCallback;
+import org.springframework.retry.RetryContext;
+import org.springframework.retry.RetryListener;
+import org.springframework.retry.RetryPolicy;
+import org.springframework.retry.TerminatedRetryException;
+import org.springframework.retry.backoff.BackOffContext;
+import org.springframework.retry.backoff.BackOffPolicy;
+import org.springframework.retry.backoff.NoBackOffPolicy;
+import org.springframework.retry.backoff.Sleeper;
+import org.springframework.retry.backoff.SleepingBackOffPolicy;
+import org.springframework.retry.policy.SimpleRetryPolicy;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.util.Assert;
+
+/**
+ * Non blocking counterpart of the RetryTemplate for asynchronous operations.
+ * <br/>
+ * The retried callback returns a {@link CompletionStage} and the executor returns a {@link CompletableFuture} of the final result.
+ * Instead of sleeping the caller thread between attempts, each retry is scheduled on a {@link ScheduledExecutorService}
+ * after the delay requested by the back off policy.
+ * <br/>
+ * The retry policy (for instance {@link SpELExpressionsClassifierRetryPolicy}) and the listeners (for instance {@link DefaultRetryListener})
+ * are called in the same order as by the RetryTemplate: policy and listeners are opened before the first attempt,
+ * each failure is registered to the policy and then passed to the listeners in reverse order, 
+ * policy and listeners (in reverse order) are closed once the operation completes.
+ * Note that the retry context is not bound to the attempt threads (RetrySynchronizationManager), since attempts do not run on a single thread.
+ * <br/>
+ * The back off policy is always run on the scheduler thread, never on the thread that completed the failed attempt.
+ * The delay is captured from {@link SleepingBackOffPolicy back off policies} which sleeper is replaced so that they do not block
+ * (all policies of this package and the Spring's fixed, exponential and random policies are sleeping policies), the retry is then scheduled after that delay.
+ * Other back off policies, including non sleeping policies chosen by {@link SpELExpressionsClassifierBackOffPolicy}, block the scheduler thread before the retry.
+ * <br/>
+ * Cancelling the returned future stops further retries. 
+ * Operations waiting for a retry when the executor is destroyed complete with {@link RejectedExecutionException}.
+ *
+ * @author Maciej SIDOR (maciejsidor@gmail.com)
+ * @since 2015
+ */
+public class AsyncRetryExecutor implements DisposableBean
+{
+	/**
+	 * Delay requested by the back off policies running on the current thread
+	 */
+	private static final ThreadLocal<long[]> REQUESTED_DELAY = new ThreadLocal<long[]>()
+	{
+		@Override
+		protected long[] initialValue()
+		{
+			return new long[1];
+		}
+	};
+
+	/**
+	 * Sleeper that records the requested delay instead of sleeping
+	 */
+	private static final Sleeper DELAY_RECORDING_SLEEPER = new Sleeper()
+	{
+		public void sleep(long backOffPeriod)
+		{
+			REQUESTED_DELAY.get()[0] += backOffPeriod;
+		}
+	};
+
+	/**
+	 * The executor logger
+	 */
+	private final Logger 				log 				= LoggerFactory.getLogger(this.getClass());
+
+	/**
+	 * Policy deciding whether the operation may be retried
+	 */
+	private RetryPolicy 				retryPolicy 		= new SimpleRetryPolicy();
+
+	/**
+	 * Policy providing the delays between attempts
+	 */
+	private BackOffPolicy 				backOffPolicy 		= new NoBackOffPolicy();
+
+	/**
+	 * True if the delays are captured from the back off policy without blocking
+	 */
+	private boolean 					delayCaptured 		= false;
+
+	/**
+	 * Listeners notified about the retried operations
+	 */
+	private RetryListener[] 			listeners 			= new RetryListener[0];
+
+	/**
+	 * Scheduler running the retries
+	 */
+	private ScheduledExecutorService 	scheduler 			= null;
+
+	/**
+	 * True if the scheduler was created by this executor
+	 */
+	private boolean 					ownScheduler 		= false;
+
+	/**
+	 * Operations waiting on the scheduler for their retry
+	 */
+	private final Set<AsyncRetry<?>> 	scheduledRetries 	= Collections.newSetFromMap(new ConcurrentHashMap<AsyncRetry<?>, Boolean>());
+
+	/**
+	 * Sets policy deciding whether the operation may be retried, {@link SimpleRetryPolicy} by default.
+	 * @param retryPolicy the retryPolicy to set
+	 */
+	public void setRetryPolicy(RetryPolicy retryPolicy)
+	{
+		Assert.notNull(retryPolicy, "Retry policy must not be null");
+		this.retryPolicy = retryPolicy;
+	}
+
+	/**
+	 * Sets policy providing the delays between attempts, {@link NoBackOffPolicy} by default.
+	 * <br/>
+	 * A {@link SleepingBackOffPolicy} is copied with a sleeper that records the delay instead of sleeping,
+	 * other policies are run on the scheduler thread.
+	 *
+	 * @param backOffPolicy the backOffPolicy to set
+	 */
+	public void setBackOffPolicy(BackOffPolicy backOffPolicy)
+	{
+		Assert.notNull(backOffPolicy, "Back off policy must not be null");
+
+		if(backOffPolicy instanceof SleepingBackOffPolicy)
+		{
+			this.backOffPolicy 	= ((SleepingBackOffPolicy<?>) backOffPolicy).withSleeper(DELAY_RECORDING_SLEEPER);
+			this.delayCaptured 	= true;
+		}
+		else
+		{
+			this.backOffPolicy 	= backOffPolicy;
+			this.delayCaptured 	= false;
+		}
+	}
+
+	/**
+	 * Sets listeners notified about the retried operations.
+	 * @param listeners the listeners to set
+	 */
+	public void setListeners(RetryListener[] listeners)
+	{
+		Assert.notNull(listeners, "Listeners must not be null");
+		this.listeners = listeners.clone();
+	}
+
+	/**
+	 * @return scheduler running the retries
+	 */
+	public ScheduledExecutorService getScheduler()
+	{
+		return scheduler;
+	}
+
+	/**
+	 * Sets scheduler running the retries.
+	 * If not set, a single daemon thread scheduler is created on first use and shut down when the executor is destroyed.
+	 * <br/>
+	 * The retried callback should not block, since it is invoked by the scheduler thread.
+	 *
+	 * @param scheduler the scheduler to set
+	 */
+	public void setScheduler(ScheduledExecutorService scheduler)
+	{
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * Shuts down the scheduler if it was created by this executor. 
+	 * Operations which retries are discarded with the scheduler are completed with {@link RejectedExecutionException}, 
+	 * after the retry policy and the listeners are closed.
+	 */
+	public void destroy()
+	{
+		synchronized (this)
+		{
+			if(!ownScheduler)
+			{
+				return;
+			}
+
+			scheduler.shutdownNow();
+		}
+
+		for(AsyncRetry<?> retry : scheduledRetries)
+		{
+			if(scheduledRetries.remove(retry))
+			{
+				retry.finish(null, new RejectedExecutionException("Retry executor is destroyed"));
+			}
+		}
+	}
+
+	/**
+	 * Executes the operation and retries it asynchronously until it succeeds or the retry policy gives up.
+	 * <br/>
+	 * The first attempt is made on the caller thread, retries are made on the scheduler thread.
+	 * The returned future completes with the result of the first successful attempt
+	 * or with the last exception once the retry policy gives up.
+	 *
+	 * @param callback operation returning the future result, it is passed the retry context as for the RetryTemplate
+	 * @return future result of the operation
+	 */
+	public <T> CompletableFuture<T> execute(RetryCallback<? extends CompletionStage<T>, ? extends Throwable> callback)
+	{
+		Assert.notNull(callback, "Callback must not be null");
+
+		RetryContext context 	= retryPolicy.open(null);
+		AsyncRetry<T> retry 	= new AsyncRetry<T>(context, callback);
+
+		if(!retry.open())
+		{
+			retry.finish(null, new TerminatedRetryException("Retry terminated abnormally by interceptor before first attempt"));
+		}
+		else
+		{
+			retry.backOffContext = backOffPolicy.start(context);
+			retry.attempt();
+		}
+
+		return retry.result;
+	}
+
+	/**
+	 * @return scheduler, created on first use if not set
+	 */
+	private synchronized ScheduledExecutorService getOrCreateScheduler()
+	{
+		if(scheduler==null)
+		{
+			CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("AsyncRetryExecutor-retry-");
+			threadFactory.setDaemon(true);
+
+			scheduler 		= Executors.newSingleThreadScheduledExecutor(threadFactory);
+			ownScheduler 	= true;
+		}
+
+		return scheduler;
+	}
+
+	/**
+	 * @param e exception completing a future
+	 * @return the exception thrown by the operation
+	 */
+	private static Throwable unwrap(Throwable e)
+	{
+		if((e instanceof CompletionException || e instanceof ExecutionException) && e.getCause()!=null)
+		{
+			return e.getCause();
+		}
+
+		return e;
+	}
+
+	/**
+	 * State of a single retried operation
+	 *
+	 * @author Maciej SIDOR (maciejsidor@gmail.com)
+	 * @since 2015
+	 */
+	private final class AsyncRetry<T> implements Runnable, BiConsumer<T, Throwable>
+	{
+		/**
+		 * Future result of the operation
+		 */
+		final CompletableFuture<T> 										result 	= new CompletableFuture<T>();
+
+		/**
+		 * Context of the operation
+		 */
+		final RetryContext 												context;
+
+		/**
+		 * The retried operation
+		 */
+		final RetryCallback<? extends CompletionStage<T>, ? extends Throwable> 	callback;
+
+		/**
+		 * Back off context of the operation
+		 */
+		BackOffContext 													backOffContext;
+
+		/**
+		 * True if the next run of the scheduled retry follows the delay captured from the back off policy
+		 */
+		boolean 														backedOff;
+
+		/**
+		 * @param context context of the operation
+		 * @param callback the retried operation
+		 */
+		AsyncRetry(RetryContext context, RetryCallback<? extends CompletionStage<T>, ? extends Throwable> callback)
+		{
+			this.context 	= context;
+			this.callback 	= callback;
+		}
+
+		/**
+		 * Opens the listeners
+		 * @return false if any listener vetoed the operation
+		 */
+		boolean open()
+		{
+			boolean running = true;
+
+			for(RetryListener listener : listeners)
+			{
+				running = running && listener.open(context, callback);
+			}
+
+			return running;
+		}
+
+		/**
+		 * Makes an attempt unless the retry policy gives up or the result was cancelled
+		 */
+		void attempt()
+		{
+			if(result.isDone())
+			{
+				log.trace("Operation cancelled, not retrying");
+				finish(null, new CancellationException("Operation cancelled"));
+				return;
+			}
+
+			if(!retryPolicy.canRetry(context) || context.isExhaustedOnly())
+			{
+				Throwable lastThrowable = context.getLastThrowable();
+				finish(null, lastThrowable!=null ? lastThrowable : new ExhaustedRetryException("Retry exhausted before first attempt"));
+				return;
+			}
+
+			CompletionStage<T> stage;
+
+			try
+			{
+				stage = callback.doWithRetry(context);
+				Assert.notNull(stage, "Callback must not return null");
+			}
+			catch(Throwable e)
+			{
+				accept(null, e);
+				return;
+			}
+
+			stage.whenComplete(this);
+		}
+
+		/**
+		 * Retry scheduled by the back off policy. 
+		 * First run backs off, then the attempt is made right away or, if a delay was captured, by a second run after that delay.
+		 */
+		public void run()
+		{
+			if(!scheduledRetries.remove(this))
+			{
+				/*already completed by destroy*/
+				return;
+			}
+
+			try
+			{
+				if(!backedOff && delayCaptured)
+				{
+					long[] requestedDelay = REQUESTED_DELAY.get();
+					requestedDelay[0] = 0;
+
+					backOffPolicy.backOff(backOffContext);
+
+					if(requestedDelay[0]>0)
+					{
+						backedOff = true;
+						schedule(requestedDelay[0]);
+						return;
+					}
+				}
+				else if(!delayCaptured)
+				{
+					backOffPolicy.backOff(backOffContext);
+				}
+
+				backedOff = false;
+				attempt();
+			}
+			catch(Throwable e)
+			{
+				finish(null, e);
+			}
+		}
+
+		/**
+		 * Completion of an attempt
+		 */
+		public void accept(T value, Throwable throwable)
+		{
+			if(throwable==null)
+			{
+				finish(value, null);
+				return;
+			}
+
+			Throwable lastThrowable = unwrap(throwable);
+
+			try
+			{
+				retryPolicy.registerThrowable(context, lastThrowable);
+
+				for(int i=listeners.length-1; i>=0; i--)
+				{
+					listeners[i].onError(context, callback, lastThrowable);
+				}
+
+				if(retryPolicy.canRetry(context) && !context.isExhaustedOnly() && !result.isDone())
+				{
+					scheduleRetry();
+				}
+				else
+				{
+					log.trace("Retry failed for the last time");
+					finish(null, lastThrowable);
+				}
+			}
+			catch(Throwable e)
+			{
+				finish(null, e);
+			}
+		}
+
+		/**
+		 * Hands the next attempt over to the scheduler thread which backs off before the attempt
+		 */
+		void scheduleRetry()
+		{
+			backedOff = false;
+			schedule(0);
+		}
+
+		/**
+		 * Schedules the next run of this retry
+		 * @param delay delay of the run, in milliseconds
+		 */
+		void schedule(long delay)
+		{
+			log.trace("Scheduling retry in {} ms", delay);
+
+			scheduledRetries.add(this);
+
+			try
+			{
+				getOrCreateScheduler().schedule(this, delay, TimeUnit.MILLISECONDS);
+			}
+			catch(RejectedExecutionException e)
+			{
+				if(scheduledRetries.remove(this))
+				{
+					finish(null, e);
+				}
+			}
+		}
+
+		/**
+		 * Closes the policy and the listeners, then completes the result
+		 *
+		 * @param value result of the operation
+		 * @param throwable last exception or null if the operation succeeded
+		 */
+		void finish(T value, Throwable throwable)
+		{
+			try
+			{
+				retryPolicy.close(context);
+
+				for(int i=listeners.length-1; i>=0; i--)
+				{
+					listeners[i].close(context, callback, throwable);
+				}
+			}
+			catch(Throwable e)
+			{
+				log.warn("Could not close the retry", e);
+			}
+
+			if(throwable==null)
+			{
+				result.complete(value);
+			}
+			else
+			{
+				result.completeExceptionally(throwable);
+			}
+		}
+	}
+}
@@ -0,0 +1,550 @@
+/*
+Copyright 2015 Maciej SIDOR [maciejsidor@gmail.com]
+
+The source code is licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+    
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.	
+ */
+package com.googlecode.msidor.springframework.retry;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.util.Assert;
+
+/**
+ * Circuit breaker with closed, open and half-open states.
+ * <br/>
+ * While closed, outcomes of calls are recorded in a sliding time window. 
+ * Once at least {@link #setMinimumCalls(int) minimum calls} are recorded and the failure rate reaches the {@link #setFailureRateThreshold(double) threshold}, 
+ * the circuit opens and all calls are denied for the {@link #setOpenDuration(long) open duration}. 
+ * Then the circuit is half-open: {@link #setProbeCount(int) probe count} calls are permitted, 
+ * the circuit closes if all of them succeed and opens again on the first failure.
+ * <br/>
+ * A permitted call gets a {@link Permit}, which it passes back along with its outcome. 
+ * An outcome is recorded only if the circuit is still in the state that granted the permit, 
+ * so that calls permitted while closed and completing once half-open are not taken for probes.
+ * <br/>
+ * State transitions are compare-and-set operations on an immutable state, the circuit takes no lock. 
+ * Denying a call costs one volatile read and one {@link System#nanoTime()} call.
+ * Counters of the window are striped, the window is approximate when its buckets roll over under concurrent calls.
+ * <br/>
+ * Used per category of exceptions by {@link SpELExpressionsClassifierCircuitBreakerRetryPolicy}, the class is annotated for Spring JMX export.
+ * 
+ * @author Maciej SIDOR (maciejsidor@gmail.com)
+ * @since 2015
+ */
+@ManagedResource(description="Circuit breaker")
+public class CircuitBreaker 
+{
+	/**
+	 * Circuit states
+	 */
+	public enum State
+	{
+		/**
+		 * Calls are permitted and their outcomes recorded
+		 */
+		CLOSED,
+		
+		/**
+		 * Calls are denied
+		 */
+		OPEN,
+		
+		/**
+		 * A limited number of calls is permitted to probe whether the circuit may be closed
+		 */
+		HALF_OPEN
+	}
+	
+	/**
+	 * Permission to make a call, granted by a state of the circuit
+	 */
+	public static abstract class Permit
+	{
+		/**
+		 * Permits are only granted by the circuit
+		 */
+		private Permit()
+		{
+		}
+	}
+	
+	/**
+	 * Number of buckets of the sliding window
+	 */
+	private static final int WINDOW_BUCKETS = 10;
+	
+	/**
+	 * Current state
+	 */
+	private final AtomicReference<Phase> phase;
+	
+	/**
+	 * Number of denied calls
+	 */
+	private final LongAdder deniedCalls = new LongAdder();
+	
+	/**
+	 * Failure rate at which the circuit opens
+	 */
+	private double failureRateThreshold = 0.5;
+	
+	/**
+	 * Number of calls recorded in the window before the failure rate is considered
+	 */
+	private int minimumCalls = 20;
+	
+	/**
+	 * Duration of the sliding window, in milliseconds
+	 */
+	private long windowTime = 10000;
+	
+	/**
+	 * Time during which calls are denied, in milliseconds
+	 */
+	private long openDuration = 30000;
+	
+	/**
+	 * Number of calls permitted while half-open
+	 */
+	private int probeCount = 3;
+	
+	/**
+	 * Creates a closed circuit with default settings
+	 */
+	public CircuitBreaker() 
+	{
+		phase = new AtomicReference<Phase>(closedPhase());
+	}
+	
+	/**
+	 * Creates a closed circuit with the settings of the prototype
+	 * 
+	 * @param prototype circuit which settings are copied
+	 */
+	public CircuitBreaker(CircuitBreaker prototype) 
+	{
+		this.failureRateThreshold 	= prototype.failureRateThreshold;
+		this.minimumCalls 			= prototype.minimumCalls;
+		this.windowTime 			= prototype.windowTime;
+		this.openDuration 			= prototype.openDuration;
+		this.probeCount 			= prototype.probeCount;
+		
+		phase = new AtomicReference<Phase>(closedPhase());
+	}
+
+	/**
+	 * Sets failure rate (between 0 and 1) at which the circuit opens. Default is 0.5.
+	 * @param failureRateThreshold the failureRateThreshold to set
+	 */
+	public void setFailureRateThreshold(double failureRateThreshold) 
+	{
+		Assert.isTrue(failureRateThreshold>0 && failureRateThreshold<=1, "Failure rate threshold must be between 0 and 1");
+		this.failureRateThreshold = failureRateThreshold;
+	}
+
+	/**
+	 * Sets number of calls recorded in the window before the failure rate is considered. Default is 20.
+	 * @param minimumCalls the minimumCalls to set
+	 */
+	public void setMinimumCalls(int minimumCalls) 
+	{
+		this.minimumCalls = minimumCalls;
+	}
+
+	/**
+	 * Sets duration of the sliding window, in milliseconds. Default is 10 seconds. Applies once the circuit closes again.
+	 * @param windowTime the windowTime to set
+	 */
+	public void setWindowTime(long windowTime) 
+	{
+		Assert.isTrue(windowTime>=WINDOW_BUCKETS, "Window time must be at least "+WINDOW_BUCKETS+" milliseconds");
+		this.windowTime = windowTime;
+	}
+
+	/**
+	 * Sets time during which calls are denied once the circuit opens, in milliseconds. Default is 30 seconds.
+	 * @param openDuration the openDuration to set
+	 */
+	public void setOpenDuration(long openDuration) 
+	{
+		this.openDuration = openDuration;
+	}
+
+	/**
+	 * Sets number of calls permitted while half-open, all of them must succeed to close the circuit. Default is 3.
+	 * @param probeCount the probeCount to set
+	 */
+	public void setProbeCount(int probeCount) 
+	{
+		Assert.isTrue(probeCount>0, "Probe count must be positive");
+		this.probeCount = probeCount;
+	}
+	
+	/**
+	 * Checks whether a call is permitted. While half-open, a permitted call takes one of the probe permits.
+	 * 
+	 * @return permit to pass along with the outcome of the call, null if the call is denied
+	 */
+	public Permit tryAcquirePermission() 
+	{
+		while(true)
+		{
+			Phase current = phase.get();
+			
+			if(current.state==State.CLOSED)
+			{
+				return current;
+			}
+			
+			if(current.state==State.OPEN)
+			{
+				if(System.nanoTime()-current.openedAt<TimeUnit.MILLISECONDS.toNanos(openDuration))
+				{
+					deniedCalls.increment();
+					return null;
+				}
+				
+				/*open duration elapsed, one thread switches to half-open and all threads compete for the probes*/
+				phase.compareAndSet(current, new Phase(State.HALF_OPEN, 0, null, probeCount));
+				continue;
+			}
+			
+			int permits = current.probePermits.get();
+			
+			while(permits>0)
+			{
+				if(current.probePermits.compareAndSet(permits, permits-1))
+				{
+					return current;
+				}
+				
+				permits = current.probePermits.get();
+			}
+			
+			deniedCalls.increment();
+			return null;
+		}
+	}
+	
+	/**
+	 * Gives back a permission taken by {@link #tryAcquirePermission()} for a call that did not run. 
+	 * If the circuit is still half-open since the permit was granted, the probe permit is returned so that another call may probe the circuit.
+	 * 
+	 * @param permit the permit granted to the call
+	 */
+	public void releasePermission(Permit permit) 
+	{
+		Phase current = phase.get();
+		
+		if(current!=permit || current.state!=State.HALF_OPEN)
+		{
+			return;
+		}
+		
+		int permits = current.probePermits.get();
+		
+		/*never more permits than remaining probes, even if a permit is released twice*/
+		while(permits<probeCount-current.probeSuccesses.get())
+		{
+			if(current.probePermits.compareAndSet(permits, permits+1))
+			{
+				return;
+			}
+			
+			permits = current.probePermits.get();
+		}
+	}
+	
+	/**
+	 * Records a successful call, unless the circuit changed state since the permit was granted
+	 * 
+	 * @param permit the permit granted to the call
+	 */
+	public void recordSuccess(Permit permit) 
+	{
+		Phase current = phase.get();
+		
+		if(current!=permit)
+		{
+			return;
+		}
+		
+		if(current.state==State.CLOSED)
+		{
+			current.window.record(false);
+		}
+		else if(current.state==State.HALF_OPEN && current.probeSuccesses.incrementAndGet()>=probeCount)
+		{
+			phase.compareAndSet(current, closedPhase());
+		}
+	}
+	
+	/**
+	 * Records a failed call, which may open the circuit, unless the circuit changed state since the permit was granted
+	 * 
+	 * @param permit the permit granted to the call
+	 */
+	public void recordFailure(Permit permit) 
+	{
+		Phase current = phase.get();
+		
+		if(current!=permit)
+		{
+			return;
+		}
+		
+		if(current.state==State.CLOSED)
+		{
+			current.window.record(true);
+			
+			if(current.window.getCalls()>=minimumCalls && current.window.getFailureRate()>=failureRateThreshold)
+			{
+				phase.compareAndSet(current, openPhase());
+			}
+		}
+		else if(current.state==State.HALF_OPEN)
+		{
+			phase.compareAndSet(current, openPhase());
+		}
+	}
+	
+	/**
+	 * @return current state
+	 */
+	public State getState() 
+	{
+		return phase.get().state;
+	}
+	
+	/**
+	 * @return current state name
+	 */
+	@ManagedAttribute(description="Current state")
+	public String getStateName() 
+	{
+		return getState().name();
+	}
+	
+	/**
+	 * @return failure rate of calls in the sliding window, zero if the circuit is not closed
+	 */
+	@ManagedAttribute(description="Failure rate of calls in the sliding window")
+	public double getFailureRate() 
+	{
+		Phase current = phase.get();
+		return current.window!=null ? current.window.getFailureRate() : 0;
+	}
+	
+	/**
+	 * @return number of denied calls
+	 */
+	@ManagedAttribute(description="Number of denied calls")
+	public long getDeniedCallCount() 
+	{
+		return deniedCalls.sum();
+	}
+	
+	/**
+	 * Opens the circuit
+	 */
+	@ManagedOperation(description="Opens the circuit")
+	public void open() 
+	{
+		phase.set(openPhase());
+	}
+	
+	/**
+	 * Closes the circuit and clears the window
+	 */
+	@ManagedOperation(description="Closes the circuit")
+	public void close() 
+	{
+		phase.set(closedPhase());
+	}
+	
+	/**
+	 * @return new closed state with an empty window
+	 */
+	private Phase closedPhase()
+	{
+		return new Phase(State.CLOSED, 0, new SlidingWindow(TimeUnit.MILLISECONDS.toNanos(windowTime)/WINDOW_BUCKETS), 0);
+	}
+	
+	/**
+	 * @return new open state opened now
+	 */
+	private Phase openPhase()
+	{
+		return new Phase(State.OPEN, System.nanoTime(), null, 0);
+	}
+	
+	/**
+	 * Immutable state of the circuit, each transition creates a new instance. 
+	 * The state granting a permission is the permit itself.
+	 * 
+	 * @author Maciej SIDOR (maciejsidor@gmail.com)
+	 * @since 2015
+	 */
+	private static final class Phase extends Permit
+	{
+		/**
+		 * The state
+		 */
+		final State 		state;
+		
+		/**
+		 * Time when the circuit opened, as returned by {@link System#nanoTime()}
+		 */
+		final long 			openedAt;
+		
+		/**
+		 * Window of call outcomes, only while closed
+		 */
+		final SlidingWindow window;
+		
+		/**
+		 * Remaining probe permits, only while half-open
+		 */
+		final AtomicInteger probePermits;
+		
+		/**
+		 * Number of successful probes, only while half-open
+		 */
+		final AtomicInteger probeSuccesses = new AtomicInteger();
+		
+		/**
+		 * @param state the state
+		 * @param openedAt time when the circuit opened
+		 * @param window window of call outcomes
+		 * @param probePermits number of probe permits
+		 */
+		Phase(State state, long openedAt, SlidingWindow window, int probePermits)
+		{
+			this.state 			= state;
+			this.openedAt 		= openedAt;
+			this.window 		= window;
+			this.probePermits 	= new AtomicInteger(probePermits);
+		}
+	}
+	
+	/**
+	 * Sliding time window of call outcomes, split in buckets
+	 * 
+	 * @author Maciej SIDOR (maciejsidor@gmail.com)
+	 * @since 2015
+	 */
+	private static final class SlidingWindow
+	{
+		/**
+		 * Duration of a bucket, in nanoseconds
+		 */
+		final long 				bucketTime;
+		
+		/**
+		 * Epoch (time divided by bucket duration) of each bucket
+		 */
+		final AtomicLongArray 	epochs 		= new AtomicLongArray(WINDOW_BUCKETS);
+		
+		/**
+		 * Failed calls of each bucket
+		 */
+		final LongAdder[] 		failures 	= new LongAdder[WINDOW_BUCKETS];
+		
+		/**
+		 * Successful calls of each bucket
+		 */
+		final LongAdder[] 		successes 	= new LongAdder[WINDOW_BUCKETS];
+		
+		/**
+		 * @param bucketTime duration of a bucket, in nanoseconds
+		 */
+		SlidingWindow(long bucketTime)
+		{
+			this.bucketTime = bucketTime;
+			
+			long epoch = System.nanoTime()/bucketTime;
+			
+			for (int i = 0; i < WINDOW_BUCKETS; i++) 
+			{
+				failures[i] 	= new LongAdder();
+				successes[i] 	= new LongAdder();
+				epochs.set(i, epoch);
+			}
+		}
+		
+		/**
+		 * @param failed true if the call failed
+		 */
+		void record(boolean failed)
+		{
+			long epoch 	= System.nanoTime()/bucketTime;
+			int index 	= (int) Math.floorMod(epoch, (long) WINDOW_BUCKETS);
+			long bucketEpoch = epochs.get(index);
+			
+			/*one thread clears the bucket when it rolls over, outcomes recorded meanwhile may be lost*/
+			if(bucketEpoch!=epoch && epochs.compareAndSet(index, bucketEpoch, epoch))
+			{
+				failures[index].reset();
+				successes[index].reset();
+			}
+			
+			(failed ? failures : successes)[index].increment();
+		}
+		
+		/**
+		 * @return number of calls in the window
+		 */
+		long getCalls()
+		{
+			return sum(failures)+sum(successes);
+		}
+		
+		/**
+		 * @return failure rate of calls in the window, zero if none
+		 */
+		double getFailureRate()
+		{
+			long failed = sum(failures);
+			long calls 	= failed+sum(successes);
+			
+			return calls>0 ? (double) failed/calls : 0;
+		}
+		
+		/**
+		 * @param counters counters of each bucket
+		 * @return sum of counters of the buckets within the window
+		 */
+		private long sum(LongAdder[] counters)
+		{
+			long oldest = System.nanoTime()/bucketTime-WINDOW_BUCKETS;
+			long sum 	= 0;
+			
+			for (int i = 0; i < WINDOW_BUCKETS; i++) 
+			{
+				if(epochs.get(i)>oldest)
+				{
+					sum += counters[i].sum();
+				}
+			}
+			
+			return sum;
+		}
+	}
+}
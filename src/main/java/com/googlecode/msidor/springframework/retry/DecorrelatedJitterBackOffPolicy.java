@@ -0,0 +1,164 @@
+/*
+Copyright 2015 Maciej SIDOR [maciejsidor@gmail.com]
+
+The source code is licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+    
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.	
+ */
+package com.googlecode.msidor.springframework.retry;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.springframework.retry.RetryContext;
+import org.springframework.retry.backoff.BackOffContext;
+import org.springframework.retry.backoff.BackOffInterruptedException;
+import org.springframework.retry.backoff.Sleeper;
+import org.springframework.retry.backoff.SleepingBackOffPolicy;
+import org.springframework.retry.backoff.ThreadWaitSleeper;
+import org.springframework.util.Assert;
+
+/**
+ * Back off policy with decorrelated jitter: each delay is random between the initial interval and three times the previous delay, 
+ * capped by the max interval.
+ * <br/>
+ * Delays grow roughly exponentially, but retries of operations that failed at the same time do not stay synchronized.
+ * 
+ * @author Maciej SIDOR (maciejsidor@gmail.com)
+ * @since 2015
+ */
+public class DecorrelatedJitterBackOffPolicy implements SleepingBackOffPolicy<DecorrelatedJitterBackOffPolicy> 
+{
+	/**
+	 * Minimal delay, in milliseconds
+	 */
+	private long initialInterval = 100;
+	
+	/**
+	 * Maximal delay, in milliseconds
+	 */
+	private long maxInterval = 30000;
+	
+	/**
+	 * Sleeper used to back off
+	 */
+	private Sleeper sleeper = new ThreadWaitSleeper();
+
+	/**
+	 * @return minimal delay, in milliseconds
+	 */
+	public long getInitialInterval() 
+	{
+		return initialInterval;
+	}
+
+	/**
+	 * Sets minimal delay (and first delay upper bound is three times this value), in milliseconds. Default is 100.
+	 * @param initialInterval the initialInterval to set
+	 */
+	public void setInitialInterval(long initialInterval) 
+	{
+		Assert.isTrue(initialInterval>0, "Initial interval must be positive");
+		this.initialInterval = initialInterval;
+	}
+
+	/**
+	 * @return maximal delay, in milliseconds
+	 */
+	public long getMaxInterval() 
+	{
+		return maxInterval;
+	}
+
+	/**
+	 * Sets maximal delay, in milliseconds. Default is 30 seconds. Delays are never lower than the initial interval, even if the max interval is.
+	 * @param maxInterval the maxInterval to set
+	 */
+	public void setMaxInterval(long maxInterval) 
+	{
+		Assert.isTrue(maxInterval>0, "Max interval must be positive");
+		this.maxInterval = maxInterval;
+	}
+
+	/**
+	 * Sets sleeper used to back off, {@link ThreadWaitSleeper} by default.
+	 * @param sleeper the sleeper to set
+	 */
+	public void setSleeper(Sleeper sleeper) 
+	{
+		this.sleeper = sleeper;
+	}
+
+	/**
+	 * @return copy of this policy using given sleeper
+	 */
+	public DecorrelatedJitterBackOffPolicy withSleeper(Sleeper sleeper) 
+	{
+		DecorrelatedJitterBackOffPolicy policy = new DecorrelatedJitterBackOffPolicy();
+		policy.initialInterval 	= initialInterval;
+		policy.maxInterval 		= maxInterval;
+		policy.sleeper 			= sleeper;
+		
+		return policy;
+	}
+
+	/**
+	 * Creates the back off context of the retried operation
+	 */
+	public BackOffContext start(RetryContext context) 
+	{
+		return new DecorrelatedJitterBackOffContext(initialInterval);
+	}
+
+	/**
+	 * Sleeps for a random delay between the initial interval and three times the previous delay
+	 */
+	public void backOff(BackOffContext backOffContext) throws BackOffInterruptedException 
+	{
+		DecorrelatedJitterBackOffContext context = (DecorrelatedJitterBackOffContext) backOffContext;
+		
+		/*never lower than the initial interval nor zero, so that delays keep growing*/
+		long upperBound = Math.max(context.previousDelay*3, initialInterval+1);
+		long delay = Math.min(Math.max(maxInterval, initialInterval), ThreadLocalRandom.current().nextLong(initialInterval, upperBound));
+		context.previousDelay = delay;
+		
+		try
+		{
+			sleeper.sleep(delay);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new BackOffInterruptedException("Thread interrupted while sleeping", e);
+		}
+	}
+	
+	/**
+	 * Back off context of a retried operation
+	 * 
+	 * @author Maciej SIDOR (maciejsidor@gmail.com)
+	 * @since 2015
+	 */
+	private static final class DecorrelatedJitterBackOffContext implements BackOffContext
+	{
+		/**
+		 * Previous delay, initial interval before the first back off
+		 */
+		long previousDelay;
+		
+		/**
+		 * @param initialInterval the initial interval
+		 */
+		DecorrelatedJitterBackOffContext(long initialInterval)
+		{
+			this.previousDelay = initialInterval;
+		}
+	}
+}
@@ -0,0 +1,744 @@
+/*
+Copyright 2015 Maciej SIDOR [maciejsidor@gmail.com]
+
+The source code is licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+    
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.	
+ */
+package com.googlecode.msidor.springframework.retry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.classify.Classifier;
+import org.springframework.classify.ClassifierSupport;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.util.Assert;
+
+import com.googlecode.msidor.springframework.cache.WindowedLatencyHistogram;
+import com.googlecode.msidor.springframework.classify.SpELExpressionsClassifier;
+import com.googlecode.msidor.springframework.classify.SpELExpressionsClassifierConfig;
+
+/**
+ * Executor of asynchronous operations that sends a speculative second attempt (a "hedge") when the first attempt is slow.
+ * <br/>
+ * The hedge is started when the first attempt has not completed within the hedge delay,
+ * which is the {@link #setHedgeDelayPercentile(double) percentile} of the latencies of the operations that succeeded during the {@link #setLatencyWindow(long) latency window}
+ * (the {@link #setInitialHedgeDelay(long) initial hedge delay} is used while {@link #setMinimumSamples(int) not enough latencies} are recorded in the window).
+ * The percentile is approximated to about 3% above the actual latency and updated every 100 milliseconds at most.
+ * Latencies are measured from the start of the first attempt, also when the hedge wins: 
+ * the cancelled first attempt is then accounted for with the time it ran, so that slow first attempts keep the hedge delay up.
+ * The first successful attempt completes the operation and the other attempt is cancelled.
+ * The operation fails only if both attempts fail.
+ * <br/>
+ * Whether an operation is hedged is decided by SpEL rules evaluated on the operation object passed to {@link #execute(Object, Callable)}
+ * (see {@link #setOperationRules(List)}), all operations are hedged by default.
+ * Failures of the first attempt may also start the hedge without waiting for the delay, for instance on timeouts:
+ * this is decided by SpEL rules evaluated on the exception (see {@link #setExceptionRules(List)}), no exception starts the hedge by default.
+ * <br/>
+ * Hedging adds load to the called service, an optional {@link RetryBudget} limits the number of hedges.
+ * Latencies differ between operations, so one executor should be used per kind of operation.
+ *
+ * @author Maciej SIDOR (maciejsidor@gmail.com)
+ * @since 2015
+ */
+@ManagedResource(description="Hedging executor")
+public class HedgingExecutor implements DisposableBean
+{
+	/**
+	 * The executor logger
+	 */
+	private final Logger 						log 					= LoggerFactory.getLogger(this.getClass());
+
+	/**
+	 * Time between updates of the hedge delay, in nanoseconds
+	 */
+	private static final long 					HEDGE_DELAY_UPDATE 		= TimeUnit.MILLISECONDS.toNanos(100);
+
+	/**
+	 * Number of slices of the window of latencies
+	 */
+	private static final int 					LATENCY_WINDOW_SLICES 	= 6;
+
+	/**
+	 * Latencies of operations that succeeded during the latency window, measured from the start of the first attempt
+	 */
+	private WindowedLatencyHistogram 			latencies 				= new WindowedLatencyHistogram(TimeUnit.MINUTES.toMillis(1), LATENCY_WINDOW_SLICES);
+
+	/**
+	 * Current hedge delay, in nanoseconds
+	 */
+	private volatile long 						hedgeDelay 				= 0;
+
+	/**
+	 * Time of the next update of the hedge delay, as returned by {@link System#nanoTime()}
+	 */
+	private volatile long 						nextHedgeDelayUpdate 	= System.nanoTime();
+
+	/**
+	 * Number of executed operations
+	 */
+	private final LongAdder 					executions 				= new LongAdder();
+
+	/**
+	 * Number of started hedges
+	 */
+	private final LongAdder 					hedges 					= new LongAdder();
+
+	/**
+	 * Number of operations completed by the hedge
+	 */
+	private final LongAdder 					hedgeWins 				= new LongAdder();
+
+	/**
+	 * Decides whether an operation is hedged
+	 */
+	private Classifier<Object, Boolean> 		operationClassifier 	= new ClassifierSupport<Object, Boolean>(Boolean.TRUE);
+
+	/**
+	 * Decides whether a failure of the first attempt starts the hedge immediately
+	 */
+	private Classifier<Throwable, Boolean> 		exceptionClassifier 	= new ClassifierSupport<Throwable, Boolean>(Boolean.FALSE);
+
+	/**
+	 * Percentile of the latencies used as hedge delay
+	 */
+	private double 								hedgeDelayPercentile 	= 95;
+
+	/**
+	 * Number of latencies recorded in the window before the percentile is used
+	 */
+	private int 								minimumSamples 			= 100;
+
+	/**
+	 * Hedge delay used until enough latencies are recorded, in milliseconds
+	 */
+	private long 								initialHedgeDelay 		= 100;
+
+	/**
+	 * Length of the window of latencies, in milliseconds
+	 */
+	private long 								latencyWindow 			= TimeUnit.MINUTES.toMillis(1);
+
+	/**
+	 * Optional budget limiting the number of hedges
+	 */
+	private RetryBudget 						retryBudget 			= null;
+
+	/**
+	 * Scheduler starting the hedges
+	 */
+	private ScheduledExecutorService 			scheduler 				= null;
+
+	/**
+	 * True if the scheduler was created by this executor
+	 */
+	private boolean 							ownScheduler 			= false;
+
+	/**
+	 * Setter for rule list used to create a SpELExpressionsClassifier deciding whether an operation is hedged.
+	 *
+	 * @param operationRules a list of "expression to value" mappings ({@link SpELExpressionsClassifierConfig})
+	 * evaluated on the operation object, operations not matching any rule are not hedged.
+	 */
+	public void setOperationRules(List<SpELExpressionsClassifierConfig<Boolean>> operationRules)
+	{
+		this.operationClassifier = new SpELExpressionsClassifier<Object, Boolean>(operationRules);
+	}
+
+	/**
+	 * Setter for the classifier deciding whether an operation is hedged.
+	 *
+	 * @param operationClassifier the classifier to set
+	 */
+	public void setOperationClassifier(Classifier<Object, Boolean> operationClassifier)
+	{
+		Assert.notNull(operationClassifier, "Operation classifier must not be null");
+		this.operationClassifier = operationClassifier;
+	}
+
+	/**
+	 * Setter for rule list used to create a SpELExpressionsClassifier deciding whether a failure of the first attempt starts the hedge immediately.
+	 *
+	 * @param exceptionRules a list of "expression to value" mappings ({@link SpELExpressionsClassifierConfig})
+	 * evaluated on the exception, exceptions not matching any rule fail the operation unless the hedge is already started.
+	 */
+	public void setExceptionRules(List<SpELExpressionsClassifierConfig<Boolean>> exceptionRules)
+	{
+		this.exceptionClassifier = new SpELExpressionsClassifier<Throwable, Boolean>(exceptionRules);
+	}
+
+	/**
+	 * Setter for the classifier deciding whether a failure of the first attempt starts the hedge immediately.
+	 *
+	 * @param exceptionClassifier the classifier to set
+	 */
+	public void setExceptionClassifier(Classifier<Throwable, Boolean> exceptionClassifier)
+	{
+		Assert.notNull(exceptionClassifier, "Exception classifier must not be null");
+		this.exceptionClassifier = exceptionClassifier;
+	}
+
+	/**
+	 * @return percentile of the latencies used as hedge delay
+	 */
+	public double getHedgeDelayPercentile()
+	{
+		return hedgeDelayPercentile;
+	}
+
+	/**
+	 * Sets percentile of the latencies of successful attempts used as hedge delay, between 0 and 100. Default is 95.
+	 * @param hedgeDelayPercentile the hedgeDelayPercentile to set
+	 */
+	public void setHedgeDelayPercentile(double hedgeDelayPercentile)
+	{
+		Assert.isTrue(hedgeDelayPercentile>0 && hedgeDelayPercentile<=100, "Hedge delay percentile must be between 0 and 100");
+		this.hedgeDelayPercentile 	= hedgeDelayPercentile;
+		this.nextHedgeDelayUpdate 	= System.nanoTime();
+	}
+
+	/**
+	 * @return number of latencies recorded in the window before the percentile is used
+	 */
+	public int getMinimumSamples()
+	{
+		return minimumSamples;
+	}
+
+	/**
+	 * Sets number of latencies recorded in the latency window before the percentile is used. Default is 100.
+	 * @param minimumSamples the minimumSamples to set
+	 */
+	public void setMinimumSamples(int minimumSamples)
+	{
+		this.minimumSamples 		= minimumSamples;
+		this.nextHedgeDelayUpdate 	= System.nanoTime();
+	}
+
+	/**
+	 * @return hedge delay used until enough latencies are recorded, in milliseconds
+	 */
+	public long getInitialHedgeDelay()
+	{
+		return initialHedgeDelay;
+	}
+
+	/**
+	 * Sets hedge delay used until enough latencies are recorded, in milliseconds. Default is 100.
+	 * @param initialHedgeDelay the initialHedgeDelay to set
+	 */
+	public void setInitialHedgeDelay(long initialHedgeDelay)
+	{
+		this.initialHedgeDelay 		= initialHedgeDelay;
+		this.nextHedgeDelayUpdate 	= System.nanoTime();
+	}
+
+	/**
+	 * @return length of the window of latencies the hedge delay is computed from, in milliseconds
+	 */
+	public long getLatencyWindow()
+	{
+		return latencyWindow;
+	}
+
+	/**
+	 * Sets length of the window of latencies the hedge delay is computed from, in milliseconds. Default is one minute. 
+	 * The window is split in six slices, the oldest latencies are forgotten one slice at a time. 
+	 * Latencies recorded so far are forgotten.
+	 * 
+	 * @param latencyWindow the latencyWindow to set
+	 */
+	public void setLatencyWindow(long latencyWindow)
+	{
+		this.latencies 				= new WindowedLatencyHistogram(latencyWindow, LATENCY_WINDOW_SLICES);
+		this.latencyWindow 			= latencyWindow;
+		this.nextHedgeDelayUpdate 	= System.nanoTime();
+	}
+
+	/**
+	 * Sets budget limiting the number of hedges, each executed operation is recorded as a request and each hedge as a retry.
+	 * Not set by default.
+	 *
+	 * @param retryBudget the retryBudget to set
+	 */
+	public void setRetryBudget(RetryBudget retryBudget)
+	{
+		this.retryBudget = retryBudget;
+	}
+
+	/**
+	 * @return scheduler starting the hedges
+	 */
+	public ScheduledExecutorService getScheduler()
+	{
+		return scheduler;
+	}
+
+	/**
+	 * Sets scheduler starting the hedges.
+	 * If not set, a single daemon thread scheduler is created on first use and shut down when the executor is destroyed.
+	 * <br/>
+	 * The operation should not block, since the hedge is started by the scheduler thread.
+	 *
+	 * @param scheduler the scheduler to set
+	 */
+	public void setScheduler(ScheduledExecutorService scheduler)
+	{
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * @return current hedge delay, in milliseconds
+	 */
+	@ManagedAttribute(description="Current hedge delay in milliseconds")
+	public long getHedgeDelay()
+	{
+		return TimeUnit.NANOSECONDS.toMillis(getHedgeDelayNanos());
+	}
+
+	/**
+	 * @return current hedge delay, in nanoseconds so that operations faster than a millisecond are not hedged right away
+	 */
+	private long getHedgeDelayNanos()
+	{
+		long now = System.nanoTime();
+
+		/*reading the percentile scans the whole histogram, so it is not done on each execution*/
+		if(now-nextHedgeDelayUpdate>=0)
+		{
+			if(latencies.getCount()<minimumSamples)
+			{
+				hedgeDelay = TimeUnit.MILLISECONDS.toNanos(initialHedgeDelay);
+			}
+			else
+			{
+				hedgeDelay = latencies.getPercentile(hedgeDelayPercentile);
+			}
+
+			/*updated after the delay, so that concurrent executions never see the delay before its first update*/
+			nextHedgeDelayUpdate = now+HEDGE_DELAY_UPDATE;
+		}
+
+		return hedgeDelay;
+	}
+
+	/**
+	 * @return number of executed operations
+	 */
+	@ManagedAttribute(description="Number of executed operations")
+	public long getExecutionCount()
+	{
+		return executions.sum();
+	}
+
+	/**
+	 * @return number of started hedges
+	 */
+	@ManagedAttribute(description="Number of started hedges")
+	public long getHedgeCount()
+	{
+		return hedges.sum();
+	}
+
+	/**
+	 * @return number of operations completed by the hedge
+	 */
+	@ManagedAttribute(description="Number of operations completed by the hedge")
+	public long getHedgeWinCount()
+	{
+		return hedgeWins.sum();
+	}
+
+	/**
+	 * Resets the counters and the recorded latencies, the initial hedge delay is used until enough latencies are recorded again.
+	 */
+	@ManagedOperation(description="Resets the counters and the recorded latencies")
+	public void resetStatistics()
+	{
+		latencies.reset();
+		nextHedgeDelayUpdate = System.nanoTime();
+		executions.reset();
+		hedges.reset();
+		hedgeWins.reset();
+	}
+
+	/**
+	 * Shuts down the scheduler if it was created by this executor.
+	 */
+	public synchronized void destroy()
+	{
+		if(ownScheduler)
+		{
+			scheduler.shutdownNow();
+		}
+	}
+
+	/**
+	 * Executes the operation, hedging it if the operation rules allow it.
+	 * <br/>
+	 * The first attempt is made on the caller thread, the hedge is started on the scheduler thread
+	 * or on the thread completing the first attempt with a failure.
+	 * The callback is called at most twice and may be called concurrently.
+	 *
+	 * @param operation object the operation rules are evaluated on, for instance the operation name or request
+	 * @param callback operation returning the future result
+	 * @return future result of the first successful attempt, or the last failure if both attempts fail
+	 */
+	public <T> CompletableFuture<T> execute(Object operation, Callable<? extends CompletionStage<T>> callback)
+	{
+		Assert.notNull(callback, "Callback must not be null");
+
+		executions.increment();
+		if(retryBudget!=null)
+		{
+			retryBudget.recordRequest();
+		}
+
+		Hedge<T> hedge = new Hedge<T>(callback);
+
+		if(Boolean.TRUE.equals(operationClassifier.classify(operation)))
+		{
+			hedge.scheduleHedge(getHedgeDelayNanos());
+		}
+		else
+		{
+			hedge.hedged = true;
+		}
+
+		hedge.attempt(false);
+
+		return hedge.result;
+	}
+
+	/**
+	 * @return scheduler, created on first use if not set
+	 */
+	private synchronized ScheduledExecutorService getOrCreateScheduler()
+	{
+		if(scheduler==null)
+		{
+			CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("HedgingExecutor-hedge-");
+			threadFactory.setDaemon(true);
+
+			scheduler 		= Executors.newSingleThreadScheduledExecutor(threadFactory);
+			ownScheduler 	= true;
+		}
+
+		return scheduler;
+	}
+
+	/**
+	 * @param e exception completing a future
+	 * @return the exception thrown by the operation
+	 */
+	private static Throwable unwrap(Throwable e)
+	{
+		if((e instanceof CompletionException || e instanceof ExecutionException) && e.getCause()!=null)
+		{
+			return e.getCause();
+		}
+
+		return e;
+	}
+
+	/**
+	 * State of a single hedged operation, guarded by its own monitor
+	 *
+	 * @author Maciej SIDOR (maciejsidor@gmail.com)
+	 * @since 2015
+	 */
+	private final class Hedge<T> implements Runnable
+	{
+		/**
+		 * Future result of the operation
+		 */
+		final CompletableFuture<T> 						result 		= new CompletableFuture<T>();
+
+		/**
+		 * The hedged operation
+		 */
+		final Callable<? extends CompletionStage<T>> 	callback;
+
+		/**
+		 * Futures of the started attempts
+		 */
+		final List<CompletableFuture<T>> 				attempts 	= new ArrayList<CompletableFuture<T>>(2);
+
+		/**
+		 * Timer starting the hedge
+		 */
+		ScheduledFuture<?> 								timer 		= null;
+
+		/**
+		 * True if the hedge was started or is not allowed
+		 */
+		boolean 										hedged 		= false;
+
+		/**
+		 * Number of attempts not completed yet, the first attempt is counted from the start
+		 */
+		int 											running 	= 1;
+
+		/**
+		 * Start time of the first attempt, in nanoseconds
+		 */
+		final long 										start 		= System.nanoTime();
+
+		/**
+		 * Failure of the first failed attempt
+		 */
+		Throwable 										failure 	= null;
+
+		/**
+		 * @param callback the hedged operation
+		 */
+		Hedge(Callable<? extends CompletionStage<T>> callback)
+		{
+			this.callback = callback;
+		}
+
+		/**
+		 * Schedules the hedge after given delay
+		 * @param delay delay in nanoseconds
+		 */
+		void scheduleHedge(long delay)
+		{
+			try
+			{
+				timer = getOrCreateScheduler().schedule(this, delay, TimeUnit.NANOSECONDS);
+			}
+			catch(RejectedExecutionException e)
+			{
+				log.warn("Could not schedule the hedge", e);
+				hedged = true;
+			}
+		}
+
+		/**
+		 * Hedge delay elapsed
+		 */
+		public void run()
+		{
+			if(startHedge())
+			{
+				attempt(true);
+			}
+		}
+
+		/**
+		 * Counts the hedge as running if it should be started, so that a failure of the first attempt meanwhile does not fail the operation
+		 * @return true if the hedge should be started by the caller
+		 */
+		synchronized boolean startHedge()
+		{
+			if(hedged || result.isDone())
+			{
+				return false;
+			}
+
+			hedged = true;
+
+			if(retryBudget!=null && !retryBudget.tryAcquireRetry())
+			{
+				log.trace("Hedge denied by the retry budget");
+				return false;
+			}
+
+			running++;
+			hedges.increment();
+			return true;
+		}
+
+		/**
+		 * Starts an attempt, already counted as running
+		 * @param hedge true if the attempt is the hedge
+		 */
+		void attempt(boolean hedge)
+		{
+			CompletableFuture<T> attempt;
+
+			try
+			{
+				CompletionStage<T> stage = callback.call();
+				Assert.notNull(stage, "Callback must not return null");
+
+				attempt = stage.toCompletableFuture();
+			}
+			catch(Throwable e)
+			{
+				attempt = new CompletableFuture<T>();
+				attempt.completeExceptionally(e);
+			}
+
+			synchronized(this)
+			{
+				attempts.add(attempt);
+			}
+
+			/*the other attempt may have completed the operation meanwhile*/
+			if(result.isDone())
+			{
+				attempt.cancel(true);
+			}
+
+			attempt.whenComplete(new AttemptCompletion(hedge));
+		}
+
+		/**
+		 * Completes the operation with the result of the first successful attempt
+		 *
+		 * @param value result of the attempt
+		 * @param hedge true if the attempt is the hedge
+		 */
+		void succeeded(T value, boolean hedge)
+		{
+			if(!result.complete(value))
+			{
+				return;
+			}
+
+			/*if the hedge wins, the first attempt ran at least that long*/
+			latencies.record(System.nanoTime()-start);
+			if(hedge)
+			{
+				hedgeWins.increment();
+			}
+
+			cancelOthers();
+		}
+
+		/**
+		 * Starts the hedge on hedgeable failures of the first attempt, fails the operation when no attempt is left.
+		 * @param throwable failure of the attempt
+		 */
+		void failed(Throwable throwable)
+		{
+			boolean startHedge = false;
+
+			synchronized(this)
+			{
+				running--;
+
+				/*cancelled attempts complete after the operation*/
+				if(result.isDone())
+				{
+					return;
+				}
+
+				if(failure==null)
+				{
+					failure = throwable;
+				}
+				else if(failure!=throwable)
+				{
+					failure.addSuppressed(throwable);
+				}
+
+				if(!hedged && Boolean.TRUE.equals(exceptionClassifier.classify(throwable)))
+				{
+					startHedge = startHedge();
+				}
+
+				if(!startHedge && running==0)
+				{
+					result.completeExceptionally(failure);
+				}
+			}
+
+			if(startHedge)
+			{
+				log.trace("Starting the hedge on failure");
+				attempt(true);
+			}
+			else if(result.isDone())
+			{
+				cancelOthers();
+			}
+		}
+
+		/**
+		 * Cancels the hedge timer and the attempts that did not complete
+		 */
+		void cancelOthers()
+		{
+			List<CompletableFuture<T>> started;
+
+			synchronized(this)
+			{
+				hedged 	= true;
+				started = new ArrayList<CompletableFuture<T>>(attempts);
+			}
+
+			if(timer!=null)
+			{
+				timer.cancel(false);
+			}
+
+			for(CompletableFuture<T> attempt : started)
+			{
+				attempt.cancel(true);
+			}
+		}
+
+		/**
+		 * Completion of an attempt
+		 *
+		 * @author Maciej SIDOR (maciejsidor@gmail.com)
+		 * @since 2015
+		 */
+		private final class AttemptCompletion implements BiConsumer<T, Throwable>
+		{
+			/**
+			 * True if the attempt is the hedge
+			 */
+			final boolean 	hedge;
+
+			/**
+			 * @param hedge true if the attempt is the hedge
+			 */
+			AttemptCompletion(boolean hedge)
+			{
+				this.hedge = hedge;
+			}
+
+			public void accept(T value, Throwable throwable)
+			{
+				if(throwable==null)
+				{
+					succeeded(value, hedge);
+				}
+				else
+				{
+					failed(unwrap(throwable));
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,304 @@
+/*
+Copyright 2015 Maciej SIDOR [maciejsidor@gmail.com]
+
+The source code is licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+    
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.	
+ */
+package com.googlecode.msidor.springframework.retry;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Retry budget shared by all retried operations, that limits retries to a ratio of requests.
+ * <br/>
+ * The budget is a token bucket: each request deposits {@link #setRetryRatio(double) retry ratio} of a token, 
+ * the bucket is also refilled by {@link #setMinRetriesPerSecond(int) min retries per second} tokens per second 
+ * (so that rarely called operations may still be retried) and holds at most {@link #setMaxRetryTokens(int) max retry tokens}. 
+ * Each retry withdraws one token, retries are denied once the bucket is empty. 
+ * The bucket starts full: it is filled up to the max retry tokens on first use.
+ * <br/>
+ * The budget takes no lock. 
+ * It is used by {@link SpELExpressionsClassifierRetryPolicy} (see {@link SpELExpressionsClassifierRetryPolicy#setRetryBudget(RetryBudget)}) 
+ * and is annotated for Spring JMX export.
+ * 
+ * @author Maciej SIDOR (maciejsidor@gmail.com)
+ * @since 2015
+ */
+@ManagedResource(description="Retry budget")
+public class RetryBudget 
+{
+	/**
+	 * Number of units per token, tokens are stored as units so that fractions of tokens may be deposited
+	 */
+	private static final long 	UNITS_PER_TOKEN = 1000;
+	
+	/**
+	 * Tokens of a bucket not used yet, which is filled up on first use
+	 */
+	private static final long 	UNFILLED 		= -1;
+	
+	/**
+	 * Tokens available, in units
+	 */
+	private final AtomicLong 	tokens 			= new AtomicLong(UNFILLED);
+	
+	/**
+	 * Time of the last refill, as returned by {@link System#nanoTime()}
+	 */
+	private final AtomicLong 	lastRefill 		= new AtomicLong(System.nanoTime());
+	
+	/**
+	 * Number of requests
+	 */
+	private final LongAdder 	requests 		= new LongAdder();
+	
+	/**
+	 * Number of allowed retries
+	 */
+	private final LongAdder 	retries 		= new LongAdder();
+	
+	/**
+	 * Number of denied retries
+	 */
+	private final LongAdder 	deniedRetries 	= new LongAdder();
+	
+	/**
+	 * Fraction of a token deposited by each request
+	 */
+	private double 				retryRatio 			= 0.1;
+	
+	/**
+	 * Number of tokens deposited per second
+	 */
+	private int 				minRetriesPerSecond = 10;
+	
+	/**
+	 * Maximal number of tokens
+	 */
+	private int 				maxRetryTokens 		= 100;
+
+	/**
+	 * @return fraction of a token deposited by each request
+	 */
+	public double getRetryRatio() 
+	{
+		return retryRatio;
+	}
+
+	/**
+	 * Sets fraction of a token deposited by each request, which is the allowed ratio of retries to requests. Default is 0.1.
+	 * 
+	 * @param retryRatio the retryRatio to set
+	 */
+	public void setRetryRatio(double retryRatio) 
+	{
+		this.retryRatio = retryRatio;
+	}
+
+	/**
+	 * @return number of tokens deposited per second
+	 */
+	public int getMinRetriesPerSecond() 
+	{
+		return minRetriesPerSecond;
+	}
+
+	/**
+	 * Sets number of tokens deposited per second regardless of requests. Default is 10.
+	 * 
+	 * @param minRetriesPerSecond the minRetriesPerSecond to set
+	 */
+	public void setMinRetriesPerSecond(int minRetriesPerSecond) 
+	{
+		this.minRetriesPerSecond = minRetriesPerSecond;
+	}
+
+	/**
+	 * @return maximal number of tokens
+	 */
+	public int getMaxRetryTokens() 
+	{
+		return maxRetryTokens;
+	}
+
+	/**
+	 * Sets maximal number of tokens, which is the number of retries allowed in a burst. Default is 100. 
+	 * The bucket starts full with the maximum set before its first use. 
+	 * Set later, the maximum only caps the bucket: tokens above it are dropped and no token is added.
+	 * 
+	 * @param maxRetryTokens the maxRetryTokens to set
+	 */
+	public void setMaxRetryTokens(int maxRetryTokens) 
+	{
+		this.maxRetryTokens = maxRetryTokens;
+		
+		long max = maxRetryTokens*UNITS_PER_TOKEN;
+		
+		while(true)
+		{
+			long available = tokens.get();
+			
+			if(available<=max || tokens.compareAndSet(available, max))
+			{
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Records a request, which deposits {@link #setRetryRatio(double) retry ratio} of a token.
+	 */
+	public void recordRequest() 
+	{
+		requests.increment();
+		deposit((long) (retryRatio*UNITS_PER_TOKEN));
+	}
+	
+	/**
+	 * Withdraws a token for a retry.
+	 * 
+	 * @return true if the retry is allowed, false if the budget is spent
+	 */
+	public boolean tryAcquireRetry() 
+	{
+		refill();
+		
+		while(true)
+		{
+			long available = getTokens();
+			
+			if(available<UNITS_PER_TOKEN)
+			{
+				deniedRetries.increment();
+				return false;
+			}
+			
+			if(tokens.compareAndSet(available, available-UNITS_PER_TOKEN))
+			{
+				retries.increment();
+				return true;
+			}
+		}
+	}
+	
+	/**
+	 * Deposits the tokens accumulated since the last refill
+	 */
+	private void refill()
+	{
+		if(minRetriesPerSecond<=0)
+		{
+			return;
+		}
+		
+		long now 	= System.nanoTime();
+		long last 	= lastRefill.get();
+		
+		/*no more than the time needed to fill up the bucket, so that the product below never overflows*/
+		long fillTime 	= TimeUnit.SECONDS.toNanos(1)*maxRetryTokens/minRetriesPerSecond+1;
+		long elapsed 	= Math.min(now-last, fillTime);
+		long units 		= elapsed*minRetriesPerSecond/(TimeUnit.SECONDS.toNanos(1)/UNITS_PER_TOKEN);
+		
+		/*only one thread deposits the tokens accumulated since the last refill*/
+		if(units>0 && lastRefill.compareAndSet(last, now))
+		{
+			deposit(units);
+		}
+	}
+	
+	/**
+	 * @return tokens available, in units, the bucket being filled up on first use
+	 */
+	private long getTokens()
+	{
+		long available = tokens.get();
+		
+		if(available==UNFILLED)
+		{
+			tokens.compareAndSet(UNFILLED, maxRetryTokens*UNITS_PER_TOKEN);
+			available = tokens.get();
+		}
+		
+		return available;
+	}
+	
+	/**
+	 * @param units units to deposit, up to the maximal number of tokens
+	 */
+	private void deposit(long units)
+	{
+		long max = maxRetryTokens*UNITS_PER_TOKEN;
+		
+		while(true)
+		{
+			long available = getTokens();
+			
+			if(available>=max || tokens.compareAndSet(available, Math.min(available+units, max)))
+			{
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * @return number of retries currently allowed
+	 */
+	@ManagedAttribute(description="Number of retries currently allowed")
+	public long getAvailableRetries() 
+	{
+		return getTokens()/UNITS_PER_TOKEN;
+	}
+	
+	/**
+	 * @return number of requests
+	 */
+	@ManagedAttribute(description="Number of requests")
+	public long getRequestCount() 
+	{
+		return requests.sum();
+	}
+	
+	/**
+	 * @return number of allowed retries
+	 */
+	@ManagedAttribute(description="Number of allowed retries")
+	public long getRetryCount() 
+	{
+		return retries.sum();
+	}
+	
+	/**
+	 * @return number of retries denied because the budget was spent
+	 */
+	@ManagedAttribute(description="Number of retries denied because the budget was spent")
+	public long getDeniedRetryCount() 
+	{
+		return deniedRetries.sum();
+	}
+	
+	/**
+	 * Resets the counters
+	 */
+	@ManagedOperation(description="Resets the counters")
+	public void resetStatistics() 
+	{
+		requests.reset();
+		retries.reset();
+		deniedRetries.reset();
+	}
+}
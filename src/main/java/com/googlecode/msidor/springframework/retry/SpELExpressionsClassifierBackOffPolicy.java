@@ -0,0 +1,197 @@
+/*
+Copyright 2015 Maciej SIDOR [maciejsidor@gmail.com]
+
+The source code is licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+    
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.	
+ */
+package com.googlecode.msidor.springframework.retry;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.springframework.classify.Classifier;
+import org.springframework.classify.ClassifierSupport;
+import org.springframework.retry.RetryContext;
+import org.springframework.retry.backoff.BackOffContext;
+import org.springframework.retry.backoff.BackOffInterruptedException;
+import org.springframework.retry.backoff.BackOffPolicy;
+import org.springframework.retry.backoff.NoBackOffPolicy;
+import org.springframework.retry.backoff.Sleeper;
+import org.springframework.retry.backoff.SleepingBackOffPolicy;
+import org.springframework.util.Assert;
+
+import com.googlecode.msidor.springframework.classify.SpELExpressionsClassifier;
+import com.googlecode.msidor.springframework.classify.SpELExpressionsClassifierConfig;
+
+/**
+ * Back off policy that delegates to a policy chosen by SpEL expression evaluation on the last exception. 
+ * <br/>
+ * This class is the back off counterpart of {@link SpELExpressionsClassifierRetryPolicy} and uses the same {@link SpELExpressionsClassifierConfig} mappings, 
+ * so that for instance throttling errors may back off longer than connection errors. 
+ * Each chosen policy is started once per retried operation and keeps its own back off state.
+ * A copy made by {@link #withSleeper(Sleeper)} passes the sleeper on to the chosen {@link SleepingBackOffPolicy sleeping policies}.
+ * 
+ * @see AdaptiveBackOffPolicy
+ * @see DecorrelatedJitterBackOffPolicy
+ * @author Maciej SIDOR (maciejsidor@gmail.com)
+ * @since 2015
+ */
+public class SpELExpressionsClassifierBackOffPolicy implements SleepingBackOffPolicy<SpELExpressionsClassifierBackOffPolicy> 
+{
+	/**
+	 * Default classifier that always returns NoBackOffPolicy
+	 */
+	private Classifier<Throwable, BackOffPolicy> 		exceptionClassifier = new ClassifierSupport<Throwable, BackOffPolicy>(new NoBackOffPolicy());
+	
+	/**
+	 * Sleeper passed on to the chosen policies, null to use the policies as they are
+	 */
+	private Sleeper 									sleeper 			= null;
+	
+	/**
+	 * Copies of the chosen policies using the sleeper
+	 */
+	private final ConcurrentMap<BackOffPolicy, BackOffPolicy> 	sleeperPolicies 	= new ConcurrentHashMap<BackOffPolicy, BackOffPolicy>();
+
+	/**
+	 * Setter for policy list used to create a SpELExpressionsClassifier classifier.
+	 *
+	 * @param policies a list of "expression to value" mappings ({@link SpELExpressionsClassifierConfig})
+	 * that will be used to create a {@link SpELExpressionsClassifier} to locate a back off policy.
+	 */
+	public void setPolicies(List<SpELExpressionsClassifierConfig<BackOffPolicy>> policies) 
+	{
+		this.exceptionClassifier = new SpELExpressionsClassifier<Throwable, BackOffPolicy>(policies);
+	}
+
+	/**
+	 * Setter for the classifier used to locate a back off policy.
+	 *
+	 * @param exceptionClassifier the classifier to set
+	 */
+	public void setExceptionClassifier(Classifier<Throwable, BackOffPolicy> exceptionClassifier) 
+	{
+		Assert.notNull(exceptionClassifier, "Exception classifier must not be null");
+		this.exceptionClassifier = exceptionClassifier;
+	}
+
+	/**
+	 * @return copy of this policy passing given sleeper on to the chosen sleeping policies
+	 */
+	public SpELExpressionsClassifierBackOffPolicy withSleeper(Sleeper sleeper) 
+	{
+		SpELExpressionsClassifierBackOffPolicy policy = new SpELExpressionsClassifierBackOffPolicy();
+		policy.exceptionClassifier 	= exceptionClassifier;
+		policy.sleeper 				= sleeper;
+		
+		return policy;
+	}
+
+	/**
+	 * Creates the back off context of the retried operation, policies are started on first back off.
+	 */
+	public BackOffContext start(RetryContext context) 
+	{
+		return new SpELExceptionClassifierBackOffContext(context, exceptionClassifier);
+	}
+
+	/**
+	 * Locates the policy for the last exception and delegates to that policy.
+	 */
+	public void backOff(BackOffContext backOffContext) throws BackOffInterruptedException 
+	{
+		SpELExceptionClassifierBackOffContext context = (SpELExceptionClassifierBackOffContext) backOffContext;
+		
+		BackOffPolicy policy = context.exceptionClassifier.classify(context.retryContext.getLastThrowable());
+		Assert.notNull(policy, "Could not locate back off policy for exception=["+context.retryContext.getLastThrowable()+"].");
+		
+		if(sleeper!=null && policy instanceof SleepingBackOffPolicy)
+		{
+			policy = getSleeperPolicy(policy);
+		}
+		
+		policy.backOff(context.getContext(policy));
+	}
+	
+	/**
+	 * @param policy the chosen policy
+	 * @return copy of the policy using the sleeper, created on first use
+	 */
+	private BackOffPolicy getSleeperPolicy(BackOffPolicy policy)
+	{
+		BackOffPolicy sleeperPolicy = sleeperPolicies.get(policy);
+		
+		if(sleeperPolicy==null)
+		{
+			sleeperPolicy = ((SleepingBackOffPolicy<?>) policy).withSleeper(sleeper);
+			
+			BackOffPolicy previous = sleeperPolicies.putIfAbsent(policy, sleeperPolicy);
+			if(previous!=null)
+			{
+				sleeperPolicy = previous;
+			}
+		}
+		
+		return sleeperPolicy;
+	}
+	
+	/**
+	 * Back off context of a retried operation
+	 * 
+	 * @author Maciej SIDOR (maciejsidor@gmail.com)
+	 * @since 2015
+	 */
+	private static final class SpELExceptionClassifierBackOffContext implements BackOffContext
+	{
+		/**
+		 * Context of the retried operation
+		 */
+		final RetryContext 							retryContext;
+		
+		/**
+		 * Classifier used to locate the policy
+		 */
+		final Classifier<Throwable, BackOffPolicy> 	exceptionClassifier;
+		
+		/**
+		 * Contexts of started policies
+		 */
+		final Map<BackOffPolicy, BackOffContext> 	contexts = new HashMap<BackOffPolicy, BackOffContext>();
+		
+		/**
+		 * @param retryContext context of the retried operation
+		 * @param exceptionClassifier classifier used to locate the policy
+		 */
+		SpELExceptionClassifierBackOffContext(RetryContext retryContext, Classifier<Throwable, BackOffPolicy> exceptionClassifier)
+		{
+			this.retryContext 			= retryContext;
+			this.exceptionClassifier 	= exceptionClassifier;
+		}
+		
+		/**
+		 * @param policy the located policy
+		 * @return context of the policy, started on first use
+		 */
+		BackOffContext getContext(BackOffPolicy policy)
+		{
+			if(!contexts.containsKey(policy))
+			{
+				contexts.put(policy, policy.start(retryContext));
+			}
+			
+			return contexts.get(policy);
+		}
+	}
+}
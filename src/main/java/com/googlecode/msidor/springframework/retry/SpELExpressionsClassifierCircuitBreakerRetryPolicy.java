@@ -0,0 +1,329 @@
+/*
+Copyright 2015 Maciej SIDOR [maciejsidor@gmail.com]
+
+The source code is licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+    
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.	
+ */
+package com.googlecode.msidor.springframework.retry;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.springframework.classify.Classifier;
+import org.springframework.classify.ClassifierSupport;
+import org.springframework.retry.RetryCallback;
+import org.springframework.retry.RetryContext;
+import org.springframework.retry.RetryListener;
+import org.springframework.retry.RetryPolicy;
+import org.springframework.retry.context.RetryContextSupport;
+import org.springframework.util.Assert;
+
+import com.googlecode.msidor.springframework.classify.SpELExpressionsClassifier;
+import com.googlecode.msidor.springframework.classify.SpELExpressionsClassifierConfig;
+
+/**
+ * Retry policy that stops retrying exceptions of a category once retries of that category keep failing.
+ * <br/>
+ * Exceptions are mapped to categories (for instance the name of the failing backend) by SpEL expressions ({@link SpELExpressionsClassifierConfig}). 
+ * Each category has its own {@link CircuitBreaker} which records the outcomes of the retries of that category. 
+ * While the circuit of a category is open, exceptions of that category are not retried: the operation fails right away, without backing off.
+ * <br/>
+ * The policy only cuts off retries. The category of a call is known only once it failed, 
+ * so the first attempt of each operation still reaches the backend, even if the circuit of its category is open. 
+ * Calls that must fail fast while a circuit is open have to check it themselves before calling the backend 
+ * (see {@link #getCircuitBreaker(String)} and {@link CircuitBreaker#tryAcquirePermission()}).
+ * <br/>
+ * Retry decisions are otherwise delegated to the {@link #setDelegate(RetryPolicy) delegate policy} (for instance {@link SpELExpressionsClassifierRetryPolicy}).
+ * Exceptions mapped to no category are not affected.
+ * <br/>
+ * Circuits are created on first use with the settings of the {@link #setCircuitBreakerPrototype(CircuitBreaker) prototype}, 
+ * unless configured explicitly (see {@link #setCircuitBreakers(Map)}).
+ * <br/>
+ * The outcome of the last retry is only known once the operation completes, so the policy must also be registered as a {@link RetryListener} 
+ * of the retry template (for instance with {@code RetryTemplate.registerListener}). 
+ * Without it, retries that succeed are not recorded and a half-open circuit never closes.
+ * 
+ * @author Maciej SIDOR (maciejsidor@gmail.com)
+ * @since 2015
+ */
+public class SpELExpressionsClassifierCircuitBreakerRetryPolicy implements RetryPolicy, RetryListener 
+{
+	/**
+	 * Default classifier that maps all exceptions to no category
+	 */
+	private Classifier<Throwable, String> categoryClassifier = new ClassifierSupport<Throwable, String>(null);
+	
+	/**
+	 * Circuits mapped by categories
+	 */
+	private final ConcurrentMap<String, CircuitBreaker> circuitBreakers = new ConcurrentHashMap<String, CircuitBreaker>();
+	
+	/**
+	 * Settings of circuits created on first use
+	 */
+	private CircuitBreaker circuitBreakerPrototype = new CircuitBreaker();
+	
+	/**
+	 * Policy retry decisions are delegated to
+	 */
+	private RetryPolicy delegate;
+
+	/**
+	 * Setter for category list used to create a SpELExpressionsClassifier classifier.
+	 *
+	 * @param categories a list of "expression to category" mappings ({@link SpELExpressionsClassifierConfig})
+	 */
+	public void setCategories(List<SpELExpressionsClassifierConfig<String>> categories) 
+	{
+		this.categoryClassifier = new SpELExpressionsClassifier<Throwable, String>(categories);
+	}
+
+	/**
+	 * Setter for the classifier used to map exceptions to categories.
+	 *
+	 * @param categoryClassifier the classifier to set
+	 */
+	public void setCategoryClassifier(Classifier<Throwable, String> categoryClassifier) 
+	{
+		Assert.notNull(categoryClassifier, "Category classifier must not be null");
+		this.categoryClassifier = categoryClassifier;
+	}
+
+	/**
+	 * Sets circuits of given categories, other circuits are created on first use.
+	 *
+	 * @param circuitBreakers circuits mapped by categories
+	 */
+	public void setCircuitBreakers(Map<String, CircuitBreaker> circuitBreakers) 
+	{
+		this.circuitBreakers.putAll(circuitBreakers);
+	}
+
+	/**
+	 * Sets circuit which settings are used for circuits created on first use.
+	 *
+	 * @param circuitBreakerPrototype the circuitBreakerPrototype to set
+	 */
+	public void setCircuitBreakerPrototype(CircuitBreaker circuitBreakerPrototype) 
+	{
+		Assert.notNull(circuitBreakerPrototype, "Circuit breaker prototype must not be null");
+		this.circuitBreakerPrototype = circuitBreakerPrototype;
+	}
+
+	/**
+	 * Sets policy retry decisions are delegated to.
+	 *
+	 * @param delegate the delegate to set
+	 */
+	public void setDelegate(RetryPolicy delegate) 
+	{
+		this.delegate = delegate;
+	}
+	
+	/**
+	 * @param category the category
+	 * @return circuit of the category, null if not used yet
+	 */
+	public CircuitBreaker getCircuitBreaker(String category) 
+	{
+		return circuitBreakers.get(category);
+	}
+	
+	/**
+	 * @return circuits mapped by categories
+	 */
+	public Map<String, CircuitBreaker> getCircuitBreakers() 
+	{
+		return Collections.unmodifiableMap(circuitBreakers);
+	}
+
+	/**
+	 * Opens the delegate policy
+	 */
+	public RetryContext open(RetryContext parent) 
+	{
+		Assert.state(delegate!=null, "Delegate policy must be set");
+		return new CircuitBreakerRetryContext(parent, delegate.open(parent));
+	}
+
+	/**
+	 * Denies retry if the circuit of the last exception category is open, otherwise delegates.
+	 */
+	public boolean canRetry(RetryContext context) 
+	{
+		CircuitBreakerRetryContext circuitContext = (CircuitBreakerRetryContext) context;
+		return circuitContext.permitted && delegate.canRetry(circuitContext.delegateContext);
+	}
+
+	/**
+	 * Records the outcome of the retry, if any, and takes the permission to retry from the circuit of the exception category.
+	 */
+	public void registerThrowable(RetryContext context, Throwable throwable) 
+	{
+		CircuitBreakerRetryContext circuitContext = (CircuitBreakerRetryContext) context;
+		circuitContext.registerThrowable(throwable);
+		delegate.registerThrowable(circuitContext.delegateContext, throwable);
+		
+		/*the failed attempt was a retry of the previous exception category*/
+		if(circuitContext.retriedCircuit!=null)
+		{
+			circuitContext.retriedCircuit.recordFailure(circuitContext.permit);
+			circuitContext.retriedCircuit 	= null;
+			circuitContext.permit 			= null;
+		}
+		
+		circuitContext.permitted = true;
+		
+		String category = categoryClassifier.classify(throwable);
+		if(category==null || !delegate.canRetry(circuitContext.delegateContext))
+		{
+			return;
+		}
+		
+		CircuitBreaker circuit = getOrCreateCircuitBreaker(category);
+		CircuitBreaker.Permit permit = circuit.tryAcquirePermission();
+		
+		if(permit!=null)
+		{
+			circuitContext.retriedCircuit 	= circuit;
+			circuitContext.permit 			= permit;
+		}
+		else
+		{
+			circuitContext.permitted = false;
+		}
+	}
+
+	/**
+	 * Closes the delegate policy, the outcome of the last retry is recorded when the operation completes (see {@link #close(RetryContext, RetryCallback, Throwable)}).
+	 */
+	public void close(RetryContext context) 
+	{
+		CircuitBreakerRetryContext circuitContext = (CircuitBreakerRetryContext) context;
+		delegate.close(circuitContext.delegateContext);
+	}
+	
+	/**
+	 * Nothing to do when the operation starts.
+	 */
+	public <T, E extends Throwable> boolean open(RetryContext context, RetryCallback<T, E> callback) 
+	{
+		return true;
+	}
+	
+	/**
+	 * Failed attempts are recorded by {@link #registerThrowable(RetryContext, Throwable)}.
+	 */
+	public <T, E extends Throwable> void onError(RetryContext context, RetryCallback<T, E> callback, Throwable throwable) 
+	{
+	}
+	
+	/**
+	 * Records the last retry as successful if the operation succeeded. 
+	 * If the operation failed without running the retry (back off interrupted, retry stopped by a listener), 
+	 * the permission taken from the circuit is released instead.
+	 */
+	public <T, E extends Throwable> void close(RetryContext context, RetryCallback<T, E> callback, Throwable throwable) 
+	{
+		if(!(context instanceof CircuitBreakerRetryContext))
+		{
+			return;
+		}
+		
+		CircuitBreakerRetryContext circuitContext = (CircuitBreakerRetryContext) context;
+		CircuitBreaker circuit = circuitContext.retriedCircuit;
+		
+		if(circuit==null)
+		{
+			return;
+		}
+		
+		CircuitBreaker.Permit permit = circuitContext.permit;
+		circuitContext.retriedCircuit 	= null;
+		circuitContext.permit 			= null;
+		
+		/*a failed retry would have been recorded and cleared by registerThrowable*/
+		if(throwable==null)
+		{
+			circuit.recordSuccess(permit);
+		}
+		else
+		{
+			circuit.releasePermission(permit);
+		}
+	}
+	
+	/**
+	 * @param category the category
+	 * @return circuit of the category, created on first use
+	 */
+	private CircuitBreaker getOrCreateCircuitBreaker(String category)
+	{
+		CircuitBreaker circuit = circuitBreakers.get(category);
+		
+		if(circuit==null)
+		{
+			CircuitBreaker newCircuit = new CircuitBreaker(circuitBreakerPrototype);
+			circuit = circuitBreakers.putIfAbsent(category, newCircuit);
+			
+			if(circuit==null)
+			{
+				circuit = newCircuit;
+			}
+		}
+		
+		return circuit;
+	}
+	
+	/**
+	 * Context of a retried operation
+	 * 
+	 * @author Maciej SIDOR (maciejsidor@gmail.com)
+	 * @since 2015
+	 */
+	@SuppressWarnings("serial")
+	private static final class CircuitBreakerRetryContext extends RetryContextSupport
+	{
+		/**
+		 * Context of the delegate policy
+		 */
+		final RetryContext 	delegateContext;
+		
+		/**
+		 * Circuit of the exception category being retried, null if the next attempt is not a retry of a category
+		 */
+		CircuitBreaker 		retriedCircuit 	= null;
+		
+		/**
+		 * Permit granted by the circuit for the retry, null if the next attempt is not a retry of a category
+		 */
+		CircuitBreaker.Permit permit 		= null;
+		
+		/**
+		 * False if the circuit of the last exception category denied the retry
+		 */
+		boolean 			permitted 		= true;
+		
+		/**
+		 * @param parent currently activated context
+		 * @param delegateContext context of the delegate policy
+		 */
+		CircuitBreakerRetryContext(RetryContext parent, RetryContext delegateContext)
+		{
+			super(parent);
+			this.delegateContext = delegateContext;
+		}
+	}
+}
@@ -16,8 +16,10 @@ limitations under the License.
 package com.googlecode.msidor.springframework.retry;
 
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.springframework.classify.Classifier;
 import org.springframework.classify.ClassifierSupport;
@@ -30,11 +32,16 @@ import org.springframework.util.Assert;
 
 import com.googlecode.msidor.springframework.classify.SpELExpressionsClassifier;
 import com.googlecode.msidor.springframework.classify.SpELExpressionsClassifierConfig;
+import com.googlecode.msidor.springframework.classify.SpELExpressionsClassifierFileLoader;
 
 /**
  * Class that provides retry policy based on the SpEL expression evaluation on exception object. 
  * 
  * This class is based on {@link ExceptionClassifierRetryPolicy}. 
+ * 
+ * Optionally retries may be limited by a {@link RetryBudget} shared by all retried operations, 
+ * either for all classified policies (see {@link #setRetryBudget(RetryBudget)}) or per classified policy (see {@link #setRetryBudgets(Map)}).
+ * Once the budget is spent, operations fail without retrying.
  *  
  * @see SpELExpressionsClassifierConfig
  * @see SpELExpressionsClassifier
@@ -49,6 +56,21 @@ public class SpELExpressionsClassifierRetryPolicy implements RetryPolicy
 	 */
     private Classifier<Throwable, RetryPolicy> exceptionClassifier = new ClassifierSupport<Throwable, RetryPolicy>(new NeverRetryPolicy() );
 
+    /**
+     * Retry budget of classified policies that have no budget of their own, null if not limited
+     */
+    private RetryBudget retryBudget = null;
+
+    /**
+     * Retry budgets mapped by classified policies
+     */
+    private Map<RetryPolicy, RetryBudget> retryBudgets = new HashMap<RetryPolicy, RetryBudget>();
+
+    /**
+     * All distinct retry budgets, each request is recorded by all of them
+     */
+    private RetryBudget[] allRetryBudgets = new RetryBudget[0];
+
     /**
      * Setter for policy list used to create a SpELExpressionsClassifier classifier.
      *
@@ -60,6 +82,55 @@ public class SpELExpressionsClassifierRetryPolicy implements RetryPolicy
         this.exceptionClassifier = new SpELExpressionsClassifier<Throwable,RetryPolicy>( policies);
     }
 
+    /**
+     * Setter for the classifier used to locate a policy.
+     * Allows to share a {@link SpELExpressionsClassifier} which mappings are reloaded at runtime 
+     * (see {@link SpELExpressionsClassifierFileLoader}), retries are not blocked while the mappings are replaced.
+     *
+     * @param exceptionClassifier the classifier to set
+     */
+    public void setExceptionClassifier( Classifier<Throwable, RetryPolicy> exceptionClassifier )
+    {
+        Assert.notNull( exceptionClassifier, "Exception classifier must not be null" );
+        this.exceptionClassifier = exceptionClassifier;
+    }
+
+
+    /**
+     * Setter for the retry budget of classified policies that have no budget of their own.
+     *
+     * @param retryBudget the retry budget to set, null if retries are not limited
+     */
+    public void setRetryBudget( RetryBudget retryBudget )
+    {
+        this.retryBudget = retryBudget;
+        updateAllRetryBudgets();
+    }
+
+    /**
+     * Setter for retry budgets of classified policies.
+     *
+     * @param retryBudgets retry budgets mapped by classified policies
+     */
+    public void setRetryBudgets( Map<RetryPolicy, RetryBudget> retryBudgets )
+    {
+        Assert.notNull( retryBudgets, "Retry budgets must not be null" );
+        this.retryBudgets = new HashMap<RetryPolicy, RetryBudget>( retryBudgets );
+        updateAllRetryBudgets();
+    }
+
+    /**
+     * Collects all distinct retry budgets
+     */
+    private void updateAllRetryBudgets()
+    {
+        Set<RetryBudget> budgets = new LinkedHashSet<RetryBudget>( retryBudgets.values() );
+        if ( retryBudget != null )
+        {
+            budgets.add( retryBudget );
+        }
+        this.allRetryBudgets = budgets.toArray( new RetryBudget[budgets.size()] );
+    }
 
     /**
      * Delegate to the policy currently activated in the context.
@@ -91,7 +162,13 @@ public class SpELExpressionsClassifierRetryPolicy implements RetryPolicy
      */
 	public RetryContext open(RetryContext parent) 
 	{
-		return new SpELExceptionClassifierRetryContext( parent, exceptionClassifier).open( parent );
+		/*each operation deposits its share of retries*/
+		for ( RetryBudget budget : allRetryBudgets )
+		{
+			budget.recordRequest();
+		}
+		
+		return new SpELExceptionClassifierRetryContext( parent, exceptionClassifier, retryBudget, retryBudgets ).open( parent );
 	}
 
     /**
@@ -139,24 +216,43 @@ public class SpELExpressionsClassifierRetryPolicy implements RetryPolicy
          */
         final private Map<RetryPolicy, RetryContext> contexts = new HashMap<RetryPolicy, RetryContext>();
 
+        /**
+         * Retry budget of policies that have no budget of their own, may be null
+         */
+        final private RetryBudget retryBudget;
+
+        /**
+         * Retry budgets mapped by policies
+         */
+        final private Map<RetryPolicy, RetryBudget> retryBudgets;
+
+        /**
+         * Dynamic: false if the budget denied retrying the latest exception
+         */
+        private boolean budgetAllowsRetry = true;
+
         /**
          * Default constructor
          * 
          * @param parent currently activated context
          * @param exceptionClassifier classifier that will be used to locate the policy
+         * @param retryBudget retry budget of policies that have no budget of their own, may be null
+         * @param retryBudgets retry budgets mapped by policies
          */
-        public SpELExceptionClassifierRetryContext( RetryContext parent, Classifier<Throwable, RetryPolicy> exceptionClassifier)
+        public SpELExceptionClassifierRetryContext( RetryContext parent, Classifier<Throwable, RetryPolicy> exceptionClassifier, RetryBudget retryBudget, Map<RetryPolicy, RetryBudget> retryBudgets )
         {
             super( parent );
             this.exceptionClassifier = exceptionClassifier;
+            this.retryBudget = retryBudget;
+            this.retryBudgets = retryBudgets;
         }
 
         /**
-         * Check if policy allows retry
+         * Check if policy and its retry budget allow retry
          */
         public boolean canRetry( RetryContext context )
         {
-            return this.context == null || policy.canRetry( this.context );
+            return this.context == null || ( budgetAllowsRetry && policy.canRetry( this.context ) );
         }
 
         /**
@@ -195,6 +291,14 @@ public class SpELExpressionsClassifierRetryPolicy implements RetryPolicy
             Assert.notNull( policy, "Could not locate policy for exception=[" + throwable + "]." );
             this.context = getContext( policy, context.getParent() );
             policy.registerThrowable( this.context, throwable );
+
+            // Withdraw from the budget once per failure, only if the policy would retry:
+            RetryBudget budget = retryBudgets.get( policy );
+            if ( budget == null )
+            {
+                budget = retryBudget;
+            }
+            budgetAllowsRetry = budget == null || !policy.canRetry( this.context ) || budget.tryAcquireRetry();
         }
 
         /**
@@ -0,0 +1,265 @@
+/*
+Copyright 2015 Maciej SIDOR [maciejsidor@gmail.com]
+
+The source code is licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+    
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.	
+ */
+package com.googlecode.msidor.springframework.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.aop.framework.ProxyFactory;
+
+/**
+ * Request coalescing and failure handling of the {@link BatchLoadingTimeEvictCache}
+ *
+ * @author Maciej SIDOR (maciejsidor@gmail.com)
+ * @since 2015
+ */
+public class BatchLoadingTimeEvictCacheTest
+{
+	/**
+	 * Number of threads reading the cache at once
+	 */
+	private static final int READERS = 8;
+
+	/**
+	 * The tested cache
+	 */
+	private BatchLoadingTimeEvictCache cache;
+
+	/**
+	 * The batch loader
+	 */
+	private RecordingBatchLoader loader;
+
+	/**
+	 * Proxy reading the cache
+	 */
+	private Lookup lookup;
+
+	/**
+	 * Threads reading the cache
+	 */
+	private ExecutorService readers;
+
+	/**
+	 * Creates the cache and the reading threads. 
+	 * Batches are loaded once full, the batch window is long enough to never elapse.
+	 */
+	@Before
+	public void setUp()
+	{
+		loader = new RecordingBatchLoader();
+
+		cache = new BatchLoadingTimeEvictCache();
+		cache.setCacheExpirationTime(TimeUnit.HOURS.toMillis(1));
+		cache.setBatchWindow(TimeUnit.SECONDS.toMillis(30));
+		cache.setBatchLoader(loader);
+
+		ProxyFactory proxyFactory = new ProxyFactory(Lookup.class, cache);
+		lookup = (Lookup) proxyFactory.getProxy();
+
+		readers = Executors.newFixedThreadPool(READERS);
+	}
+
+	/**
+	 * Stops the cache and the reading threads
+	 */
+	@After
+	public void tearDown()
+	{
+		readers.shutdownNow();
+		cache.destroy();
+	}
+
+	/**
+	 * Concurrent callers are served by one batch loading each key once
+	 */
+	@Test
+	public void concurrentCallersShareOneBatch() throws Exception
+	{
+		cache.setMaxBatchSize(3);
+		List<Future<String>> reads = readConcurrently("a", "b", "a", "b", "c", "a", "c", "b");
+
+		assertEquals("value of a", reads.get(0).get(5, TimeUnit.SECONDS));
+		assertEquals("value of b", reads.get(1).get(5, TimeUnit.SECONDS));
+		for (Future<String> read : reads)
+		{
+			read.get(5, TimeUnit.SECONDS);
+		}
+
+		assertEquals(1, loader.batches.size());
+		assertEquals(3, loader.batches.get(0).size());
+		assertEquals(new HashSet<Object>(Arrays.asList("a", "b", "c")), new HashSet<Object>(loader.batches.get(0)));
+
+		assertEquals("value of c", lookup.find("c"));
+		assertEquals(1, loader.batches.size());
+	}
+
+	/**
+	 * Callers waiting for a failed batch each throw their own copy of the failure
+	 */
+	@Test
+	public void failedBatchFailsEachCallerWithOwnCopy() throws Exception
+	{
+		cache.setMaxBatchSize(2);
+		loader.failure = new IllegalStateException("backend down");
+
+		List<Future<String>> reads = readConcurrently("a", "a", "b");
+		List<Throwable> failures = new ArrayList<Throwable>();
+
+		for (Future<String> read : reads)
+		{
+			try
+			{
+				read.get(5, TimeUnit.SECONDS);
+				fail("Read should fail");
+			}
+			catch (ExecutionException e)
+			{
+				assertEquals(IllegalStateException.class, e.getCause().getClass());
+				assertEquals("backend down", e.getCause().getMessage());
+				assertSame(loader.failure, e.getCause().getCause());
+				failures.add(e.getCause());
+			}
+		}
+
+		assertNotSame(failures.get(0), failures.get(1));
+		assertNotSame(failures.get(0), failures.get(2));
+		assertEquals(1, loader.batches.size());
+	}
+
+	/**
+	 * A failed batch is not cached, the next caller loads the key again
+	 */
+	@Test
+	public void failedBatchIsNotCached()
+	{
+		cache.setMaxBatchSize(1);
+		loader.failure = new IllegalStateException("backend down");
+
+		try
+		{
+			lookup.find("a");
+			fail("Read should fail");
+		}
+		catch (IllegalStateException e)
+		{
+			assertEquals("backend down", e.getMessage());
+		}
+
+		loader.failure = null;
+
+		assertEquals("value of a", lookup.find("a"));
+		assertEquals(2, loader.batches.size());
+	}
+
+	/**
+	 * @param keys keys to read, one reader each
+	 * @return reads started at once
+	 */
+	private List<Future<String>> readConcurrently(String... keys)
+	{
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Future<String>> reads = new ArrayList<Future<String>>();
+
+		for (final String key : keys)
+		{
+			reads.add(readers.submit(new Callable<String>()
+			{
+				public String call() throws Exception
+				{
+					start.await();
+					return lookup.find(key);
+				}
+			}));
+		}
+
+		start.countDown();
+		return reads;
+	}
+
+	/**
+	 * Cached lookup
+	 *
+	 * @author Maciej SIDOR (maciejsidor@gmail.com)
+	 * @since 2015
+	 */
+	public interface Lookup
+	{
+		/**
+		 * @param key the key
+		 * @return value of the key
+		 */
+		String find(String key);
+	}
+
+	/**
+	 * Batch loader recording its batches
+	 *
+	 * @author Maciej SIDOR (maciejsidor@gmail.com)
+	 * @since 2015
+	 */
+	private static final class RecordingBatchLoader implements BatchLoader<Object, Object>
+	{
+		/**
+		 * Keys of each batch
+		 */
+		final List<List<Object>> batches = new CopyOnWriteArrayList<List<Object>>();
+
+		/**
+		 * Exception thrown by the loader, null if it succeeds
+		 */
+		volatile RuntimeException failure = null;
+
+		public Map<Object, Object> loadAll(Collection<Object> keys)
+		{
+			batches.add(new ArrayList<Object>(keys));
+
+			if(failure!=null)
+			{
+				throw failure;
+			}
+
+			Map<Object, Object> values = new HashMap<Object, Object>();
+			for (Object key : keys)
+			{
+				values.put(key, "value of "+key);
+			}
+
+			return values;
+		}
+	}
+}
@@ -0,0 +1,222 @@
+/*
+Copyright 2015 Maciej SIDOR [maciejsidor@gmail.com]
+
+The source code is licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+    
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.	
+ */
+package com.googlecode.msidor.springframework.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.aop.framework.ProxyFactory;
+
+/**
+ * Off-heap maps and lists of the {@link OffHeapValueStorage} and their release
+ *
+ * @author Maciej SIDOR (maciejsidor@gmail.com)
+ * @since 2015
+ */
+public class OffHeapValueStorageTest
+{
+	/**
+	 * Directory for memory-mapped files
+	 */
+	@Rule
+	public TemporaryFolder directory = new TemporaryFolder();
+
+	/**
+	 * Map entries are found by key and iterated in stored order
+	 */
+	@Test
+	public void storesMapInDirectBuffer() throws Exception
+	{
+		assertMapView(new OffHeapValueStorage());
+	}
+
+	/**
+	 * Map entries are found by key from a memory-mapped file
+	 */
+	@Test
+	public void storesMapInMappedFile() throws Exception
+	{
+		OffHeapValueStorage storage = new OffHeapValueStorage();
+		storage.setDirectory(directory.getRoot());
+
+		assertMapView(storage);
+		assertEquals(0, directory.getRoot().list().length);
+	}
+
+	/**
+	 * List elements are decoded by index
+	 */
+	@Test
+	public void storesList() throws Exception
+	{
+		List<Object> list = new ArrayList<Object>();
+		for (int i = 0; i < 1000; i++)
+		{
+			list.add(i%3==0 ? null : "element"+i);
+		}
+
+		OffHeapValue value = new OffHeapValueStorage().store(list);
+
+		assertEquals(list, value.get());
+		assertEquals("element500", ((List<?>) value.get()).get(500));
+		assertSame(value.get(), value.get());
+	}
+
+	/**
+	 * Objects other than maps and lists are rejected
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsOtherObjects() throws Exception
+	{
+		new OffHeapValueStorage().store("value");
+	}
+
+	/**
+	 * Reading a released value fails instead of reading freed memory
+	 */
+	@Test
+	public void releasedValueCanNotBeRead() throws Exception
+	{
+		OffHeapValue value = new OffHeapValueStorage().store(new HashMap<String, String>(Collections.singletonMap("key", "value")));
+		Map<?, ?> map = (Map<?, ?>) value.get();
+
+		value.release();
+		assertTrue(value.isReleased());
+
+		try
+		{
+			map.get("key");
+			fail("Released value should not be read");
+		}
+		catch (IllegalStateException e)
+		{
+			/*expected*/
+		}
+	}
+
+	/**
+	 * A released value is freed only after the readers decoding from it end
+	 */
+	@Test
+	public void releaseWaitsForReaders() throws Exception
+	{
+		OffHeapValue value = new OffHeapValueStorage().store(Arrays.asList("element"));
+
+		value.beginRead();
+		value.release();
+		assertEquals("element", value.decode(0));
+		value.endRead();
+
+		assertTrue(value.isReleased());
+	}
+
+	/**
+	 * The cache serves the view and releases it once replaced by a reload
+	 */
+	@Test
+	public void cacheReleasesReplacedValue() throws Exception
+	{
+		OffHeapValueStorage storage = new OffHeapValueStorage();
+		storage.setReleaseDelay(0);
+
+		TimeEvictBlockingCache cache = new TimeEvictBlockingCache();
+		cache.setCacheExpirationTime(50);
+		cache.setOffHeapStorage(storage);
+
+		ProxyFactory proxyFactory = new ProxyFactory(new Callable<Map<String, Integer>>()
+		{
+			private int loads = 0;
+
+			public Map<String, Integer> call()
+			{
+				return Collections.singletonMap("loads", ++loads);
+			}
+		});
+		proxyFactory.addAdvice(cache);
+
+		@SuppressWarnings("unchecked")
+		Callable<Map<String, Integer>> cached = (Callable<Map<String, Integer>>) proxyFactory.getProxy();
+
+		try
+		{
+			Map<?, ?> first = cached.call();
+			assertEquals(1, first.get("loads"));
+			assertSame(first, cached.call());
+
+			Thread.sleep(100);
+
+			Map<?, ?> second = cached.call();
+			assertEquals(2, second.get("loads"));
+
+			Thread.sleep(100);
+
+			try
+			{
+				first.get("loads");
+				fail("Replaced value should be released");
+			}
+			catch (IllegalStateException e)
+			{
+				/*expected*/
+			}
+		}
+		finally
+		{
+			cache.destroy();
+		}
+	}
+
+	/**
+	 * @param storage the tested storage
+	 */
+	private static void assertMapView(OffHeapValueStorage storage) throws Exception
+	{
+		Map<Object, Object> map = new LinkedHashMap<Object, Object>();
+		for (int i = 0; i < 1000; i++)
+		{
+			map.put("key"+i, i);
+		}
+		map.put(null, "null key");
+		map.put("null value", null);
+
+		Map<?, ?> view = (Map<?, ?>) storage.store(map).get();
+
+		assertEquals(map.size(), view.size());
+		assertEquals(500, view.get("key500"));
+		assertEquals("null key", view.get(null));
+		assertTrue(view.containsKey("null value"));
+		assertNull(view.get("missing"));
+		assertFalse(view.containsKey("missing"));
+		assertEquals(new ArrayList<Object>(map.keySet()), new ArrayList<Object>(view.keySet()));
+		assertEquals(map, view);
+	}
+}
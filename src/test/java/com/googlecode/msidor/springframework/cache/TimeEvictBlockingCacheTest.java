@@ -0,0 +1,267 @@
+/*
+Copyright 2015 Maciej SIDOR [maciejsidor@gmail.com]
+
+The source code is licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+    
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.	
+ */
+package com.googlecode.msidor.springframework.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.aopalliance.intercept.MethodInvocation;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Single-flight loading of the {@link TimeEvictBlockingCache}
+ *
+ * @author Maciej SIDOR (maciejsidor@gmail.com)
+ * @since 2015
+ */
+public class TimeEvictBlockingCacheTest
+{
+	/**
+	 * Number of threads reading the cache at once
+	 */
+	private static final int READERS = 8;
+
+	/**
+	 * The tested cache
+	 */
+	private TimeEvictBlockingCache cache;
+
+	/**
+	 * Threads reading the cache
+	 */
+	private ExecutorService readers;
+
+	/**
+	 * Creates the cache and the reading threads
+	 */
+	@Before
+	public void setUp()
+	{
+		cache 	= new TimeEvictBlockingCache();
+		readers = Executors.newFixedThreadPool(READERS);
+	}
+
+	/**
+	 * Stops the cache and the reading threads
+	 */
+	@After
+	public void tearDown() throws Exception
+	{
+		readers.shutdownNow();
+		cache.destroy();
+	}
+
+	/**
+	 * Concurrent readers of an empty cache wait for one load and all get its result
+	 */
+	@Test
+	public void concurrentMissesLoadOnce() throws Exception
+	{
+		cache.setCacheExpirationTime(TimeUnit.HOURS.toMillis(1));
+		CountingInvocation invocation = new CountingInvocation(100);
+
+		for (Object value : readConcurrently(invocation))
+		{
+			assertSame(invocation.lastValue, value);
+		}
+
+		assertEquals(1, invocation.loads.get());
+	}
+
+	/**
+	 * Concurrent readers of an expired object wait for one reload and all get its result
+	 */
+	@Test
+	public void concurrentReadersReloadExpiredObjectOnce() throws Throwable
+	{
+		cache.setCacheExpirationTime(50);
+		CountingInvocation invocation = new CountingInvocation(100);
+
+		Object first = cache.invoke(invocation);
+		Thread.sleep(100);
+
+		for (Object value : readConcurrently(invocation))
+		{
+			assertSame(invocation.lastValue, value);
+			assertEquals(false, value==first);
+		}
+
+		assertEquals(2, invocation.loads.get());
+	}
+
+	/**
+	 * A failed load is not cached, the next reader loads again
+	 */
+	@Test
+	public void failedLoadIsRetriedByNextReader() throws Throwable
+	{
+		cache.setCacheExpirationTime(TimeUnit.HOURS.toMillis(1));
+		CountingInvocation invocation = new CountingInvocation(0);
+		invocation.failures = 1;
+
+		try
+		{
+			cache.invoke(invocation);
+			fail("Load should fail");
+		}
+		catch (IllegalStateException e)
+		{
+			assertEquals("Load 1 failed", e.getMessage());
+		}
+
+		Object loaded = cache.invoke(invocation);
+		assertSame(invocation.lastValue, loaded);
+		assertSame(loaded, cache.invoke(invocation));
+		assertEquals(2, invocation.loads.get());
+	}
+
+	/**
+	 * @param invocation invocation of the cached method
+	 * @return objects read by concurrent readers started at once
+	 */
+	private List<Object> readConcurrently(final MethodInvocation invocation) throws Exception
+	{
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Future<Object>> reads = new ArrayList<Future<Object>>();
+
+		for (int i = 0; i < READERS; i++)
+		{
+			reads.add(readers.submit(new Callable<Object>()
+			{
+				public Object call() throws Exception
+				{
+					start.await();
+
+					try
+					{
+						return cache.invoke(invocation);
+					}
+					catch (Exception | Error e)
+					{
+						throw e;
+					}
+					catch (Throwable e)
+					{
+						throw new IllegalStateException(e);
+					}
+				}
+			}));
+		}
+
+		start.countDown();
+
+		List<Object> values = new ArrayList<Object>();
+		for (Future<Object> read : reads)
+		{
+			values.add(read.get(5, TimeUnit.SECONDS));
+		}
+
+		return values;
+	}
+
+	/**
+	 * Invocation of a slow method which counts its calls and returns a new object on each call
+	 *
+	 * @author Maciej SIDOR (maciejsidor@gmail.com)
+	 * @since 2015
+	 */
+	private static final class CountingInvocation implements MethodInvocation
+	{
+		/**
+		 * Number of calls of the method
+		 */
+		final AtomicInteger loads = new AtomicInteger();
+
+		/**
+		 * Duration of a call, in milliseconds
+		 */
+		final long loadTime;
+
+		/**
+		 * Number of first calls that fail
+		 */
+		volatile int failures = 0;
+
+		/**
+		 * Object returned by the last call
+		 */
+		volatile Object lastValue;
+
+		/**
+		 * @param loadTime duration of a call, in milliseconds
+		 */
+		CountingInvocation(long loadTime)
+		{
+			this.loadTime = loadTime;
+		}
+
+		public Object proceed() throws Throwable
+		{
+			int load = loads.incrementAndGet();
+			Thread.sleep(loadTime);
+
+			if(load<=failures)
+			{
+				throw new IllegalStateException("Load "+load+" failed");
+			}
+
+			lastValue = new Object();
+			return lastValue;
+		}
+
+		public Method getMethod()
+		{
+			try
+			{
+				return Object.class.getMethod("toString");
+			}
+			catch (NoSuchMethodException e)
+			{
+				throw new IllegalStateException(e);
+			}
+		}
+
+		public Object[] getArguments()
+		{
+			return new Object[0];
+		}
+
+		public Object getThis()
+		{
+			return this;
+		}
+
+		public AccessibleObject getStaticPart()
+		{
+			return getMethod();
+		}
+	}
+}
@@ -0,0 +1,330 @@
+/*
+Copyright 2015 Maciej SIDOR [maciejsidor@gmail.com]
+
+The source code is licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+    
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.	
+ */
+package com.googlecode.msidor.springframework.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.aopalliance.intercept.MethodInvocation;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.cache.Cache.ValueWrapper;
+
+import com.googlecode.msidor.springframework.cache.TimeEvictBlockingSpringCache.ValueRetrievalException;
+
+/**
+ * Single-flight loading and load marker handling of the {@link TimeEvictBlockingSpringCache}
+ *
+ * @author Maciej SIDOR (maciejsidor@gmail.com)
+ * @since 2015
+ */
+public class TimeEvictBlockingSpringCacheTest
+{
+	/**
+	 * Number of threads reading the cache at once
+	 */
+	private static final int READERS = 4;
+
+	/**
+	 * Lock timeout of the tested cache, longer than any test
+	 */
+	private static final long LOCK_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+
+	/**
+	 * The tested cache
+	 */
+	private TimeEvictBlockingSpringCache cache;
+
+	/**
+	 * Threads reading the cache
+	 */
+	private ExecutorService readers;
+
+	/**
+	 * Creates the cache and the reading threads
+	 */
+	@Before
+	public void setUp()
+	{
+		cache = new TimeEvictBlockingSpringCache("test", TimeUnit.HOURS.toMillis(1));
+		cache.setLockTimeout(LOCK_TIMEOUT);
+
+		readers = Executors.newFixedThreadPool(READERS);
+	}
+
+	/**
+	 * Stops the reading threads
+	 */
+	@After
+	public void tearDown()
+	{
+		readers.shutdownNow();
+	}
+
+	/**
+	 * A plain read of a missing key does not mark it, so other readers are not blocked
+	 */
+	@Test
+	public void plainGetDoesNotMarkKey() throws Exception
+	{
+		assertNull(cache.get("key"));
+
+		Future<ValueWrapper> otherRead = readers.submit(new Callable<ValueWrapper>()
+		{
+			public ValueWrapper call()
+			{
+				return cache.get("key");
+			}
+		});
+
+		assertNull(otherRead.get(1, TimeUnit.SECONDS));
+	}
+
+	/**
+	 * Concurrent readers loading with a value loader wait for one load and all get its result
+	 */
+	@Test
+	public void valueLoaderLoadsOnce() throws Exception
+	{
+		CountingLoader loader = new CountingLoader(0);
+
+		for (Future<Object> read : loadConcurrently(loader))
+		{
+			Object value = read.get(5, TimeUnit.SECONDS);
+			assertSame(loader.lastValue, value);
+		}
+
+		assertEquals(1, loader.loads.get());
+	}
+
+	/**
+	 * A failed value loader releases the waiting readers right away, one of them loads the key again
+	 */
+	@Test
+	public void failedValueLoaderReleasesWaitingReaders() throws Exception
+	{
+		CountingLoader loader = new CountingLoader(1);
+		int failures = 0;
+
+		for (Future<Object> read : loadConcurrently(loader))
+		{
+			try
+			{
+				Object value = read.get(5, TimeUnit.SECONDS);
+				assertSame(loader.lastValue, value);
+			}
+			catch (ExecutionException e)
+			{
+				assertTrue(e.getCause() instanceof ValueRetrievalException);
+				failures++;
+			}
+		}
+
+		assertEquals(1, failures);
+		assertEquals(2, loader.loads.get());
+	}
+
+	/**
+	 * Within the releasing intercepter, a read of a missing key marks it. 
+	 * Other readers wait for the marking thread and are released when the intercepted method fails.
+	 */
+	@Test
+	public void intercepterReleasesKeyOfFailedMethod() throws Exception
+	{
+		final CountDownLatch marked = new CountDownLatch(1);
+		final CountDownLatch proceed = new CountDownLatch(1);
+
+		Future<Object> failingMethod = readers.submit(new Callable<Object>()
+		{
+			public Object call() throws Exception
+			{
+				try
+				{
+					return new LoadMarkerReleasingInterceptor().invoke(new CachedMethodInvocation()
+					{
+						public Object proceed() throws Throwable
+						{
+							assertNull(cache.get("key"));
+							marked.countDown();
+							proceed.await();
+
+							throw new IllegalStateException("load failed");
+						}
+					});
+				}
+				catch (Exception | Error e)
+				{
+					throw e;
+				}
+				catch (Throwable e)
+				{
+					throw new IllegalStateException(e);
+				}
+			}
+		});
+
+		assertTrue(marked.await(5, TimeUnit.SECONDS));
+
+		Future<ValueWrapper> waitingRead = readers.submit(new Callable<ValueWrapper>()
+		{
+			public ValueWrapper call()
+			{
+				return cache.get("key");
+			}
+		});
+
+		Thread.sleep(100);
+		assertTrue("Reader should wait for the marking thread", !waitingRead.isDone());
+
+		proceed.countDown();
+
+		try
+		{
+			failingMethod.get(5, TimeUnit.SECONDS);
+			fail("Method should fail");
+		}
+		catch (ExecutionException e)
+		{
+			assertEquals("load failed", e.getCause().getMessage());
+		}
+
+		assertNull(waitingRead.get(5, TimeUnit.SECONDS));
+	}
+
+	/**
+	 * @param loader value loader
+	 * @return loads of the same key started at once
+	 */
+	private List<Future<Object>> loadConcurrently(final Callable<Object> loader)
+	{
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Future<Object>> reads = new ArrayList<Future<Object>>();
+
+		for (int i = 0; i < READERS; i++)
+		{
+			reads.add(readers.submit(new Callable<Object>()
+			{
+				public Object call() throws Exception
+				{
+					start.await();
+					return cache.get("key", loader);
+				}
+			}));
+		}
+
+		start.countDown();
+		return reads;
+	}
+
+	/**
+	 * Slow value loader which counts its calls and returns a new object on each call
+	 *
+	 * @author Maciej SIDOR (maciejsidor@gmail.com)
+	 * @since 2015
+	 */
+	private static final class CountingLoader implements Callable<Object>
+	{
+		/**
+		 * Number of calls
+		 */
+		final AtomicInteger loads = new AtomicInteger();
+
+		/**
+		 * Number of first calls that fail
+		 */
+		final int failures;
+
+		/**
+		 * Object returned by the last call
+		 */
+		volatile Object lastValue;
+
+		/**
+		 * @param failures number of first calls that fail
+		 */
+		CountingLoader(int failures)
+		{
+			this.failures = failures;
+		}
+
+		public Object call() throws Exception
+		{
+			int load = loads.incrementAndGet();
+			Thread.sleep(100);
+
+			if(load<=failures)
+			{
+				throw new IllegalStateException("Load "+load+" failed");
+			}
+
+			lastValue = new Object();
+			return lastValue;
+		}
+	}
+
+	/**
+	 * Invocation of a cached method
+	 *
+	 * @author Maciej SIDOR (maciejsidor@gmail.com)
+	 * @since 2015
+	 */
+	private static abstract class CachedMethodInvocation implements MethodInvocation
+	{
+		public Method getMethod()
+		{
+			try
+			{
+				return Object.class.getMethod("toString");
+			}
+			catch (NoSuchMethodException e)
+			{
+				throw new IllegalStateException(e);
+			}
+		}
+
+		public Object[] getArguments()
+		{
+			return new Object[0];
+		}
+
+		public Object getThis()
+		{
+			return this;
+		}
+
+		public AccessibleObject getStaticPart()
+		{
+			return getMethod();
+		}
+	}
+}
@@ -0,0 +1,105 @@
+/*
+Copyright 2015 Maciej SIDOR [maciejsidor@gmail.com]
+
+The source code is licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+    
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.	
+ */
+package com.googlecode.msidor.springframework.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Precision and windowing of the {@link WindowedLatencyHistogram}
+ *
+ * @author Maciej SIDOR (maciejsidor@gmail.com)
+ * @since 2015
+ */
+public class WindowedLatencyHistogramTest
+{
+	/**
+	 * Each duration falls in a bucket whose upper bound is at most about 3% above it
+	 */
+	@Test
+	public void bucketsAreWithinThreePercent()
+	{
+		Random random = new Random(42);
+
+		for (int i = 0; i < 100000; i++)
+		{
+			long nanos = random.nextInt(63)==0 ? random.nextInt(64) : (long) Math.pow(2, random.nextDouble()*41);
+			long bound = WindowedLatencyHistogram.upperBound(WindowedLatencyHistogram.bucket(nanos));
+
+			assertTrue("Bound "+bound+" below "+nanos, bound>=nanos);
+			assertTrue("Bound "+bound+" too far above "+nanos, bound<=nanos+nanos/32);
+		}
+	}
+
+	/**
+	 * Percentiles are approximated from above by at most about 3%
+	 */
+	@Test
+	public void percentilesAreWithinThreePercent()
+	{
+		WindowedLatencyHistogram histogram = new WindowedLatencyHistogram();
+		for (long millis = 1; millis <= 1000; millis++)
+		{
+			histogram.record(millis*1000000);
+		}
+
+		assertEquals(1000, histogram.getCount());
+
+		long p95 = histogram.getPercentile(95);
+		assertTrue("p95 "+p95+" out of bounds", p95>=950000000L && p95<=950000000L*1.032);
+
+		long p50 = histogram.getPercentile(50);
+		assertTrue("p50 "+p50+" out of bounds", p50>=500000000L && p50<=500000000L*1.032);
+	}
+
+	/**
+	 * Durations recorded before the last window are forgotten
+	 */
+	@Test
+	public void durationsOlderThanTheWindowAreForgotten() throws Exception
+	{
+		WindowedLatencyHistogram histogram = new WindowedLatencyHistogram(200, 2);
+		histogram.record(1000000000L);
+
+		Thread.sleep(350);
+		assertEquals(0, histogram.getCount());
+
+		histogram.record(1000);
+		assertEquals(1, histogram.getCount());
+		assertTrue(histogram.getPercentile(100)<1100);
+	}
+
+	/**
+	 * Reset forgets all durations
+	 */
+	@Test
+	public void resetForgetsDurations()
+	{
+		WindowedLatencyHistogram histogram = new WindowedLatencyHistogram();
+		histogram.record(1000);
+		histogram.reset();
+
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getPercentile(95));
+
+		histogram.record(1000);
+		assertEquals(1, histogram.getCount());
+	}
+}
@@ -0,0 +1,126 @@
+/*
+Copyright 2015 Maciej SIDOR [maciejsidor@gmail.com]
+
+The source code is licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+    
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.	
+ */
+package com.googlecode.msidor.springframework.classify;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Statistics of the mappings of the {@link SpELExpressionsClassifier}
+ *
+ * @author Maciej SIDOR (maciejsidor@gmail.com)
+ * @since 2015
+ */
+public class SpELExpressionsClassifierTest
+{
+	/**
+	 * Type-only mappings preceding the reached mapping are counted as evaluated to false, mappings following it are not counted
+	 */
+	@Test
+	public void typeOnlyMappingsAreRecordedAsEvaluatedInOrder()
+	{
+		SpELExpressionsClassifier<Throwable, String> classifier = classifier(
+				"#root instanceof T(java.io.IOException)", 
+				"#root instanceof T(IllegalStateException)", 
+				"message == 'boom'", 
+				"#root instanceof T(RuntimeException)");
+
+		assertEquals("1", classifier.classify(new IllegalStateException("a")));
+		assertEquals("2", classifier.classify(new IllegalArgumentException("boom")));
+		assertEquals(null, classifier.classify(new Exception("z")));
+
+		assertArrayEquals(new long[]{3, 3, 2, 1}, classifier.getRuleEvaluationCounts());
+		assertArrayEquals(new long[]{0, 1, 1, 0}, classifier.getRuleMatchCounts());
+	}
+
+	/**
+	 * Statistics follow the mappings when they are reordered
+	 */
+	@Test
+	public void statisticsAreKeptWhenMappingsAreReordered()
+	{
+		SpELExpressionsClassifier<Throwable, String> classifier = classifier(
+				"#root instanceof T(java.io.IOException)", 
+				"#root instanceof T(IllegalStateException)", 
+				"#root instanceof T(IllegalArgumentException)");
+
+		classifier.classify(new IllegalArgumentException());
+		classifier.classify(new IllegalArgumentException());
+		classifier.classify(new IllegalArgumentException());
+		classifier.classify(new IllegalStateException());
+		assertArrayEquals(new long[]{4, 4, 3}, classifier.getRuleEvaluationCounts());
+
+		/*declared mutually exclusive only for the explicit reorder, so that no background reorder runs meanwhile*/
+		classifier.setMutuallyExclusive(true);
+		classifier.reorderRules();
+		classifier.setMutuallyExclusive(false);
+
+		assertArrayEquals(new String[]{"#root instanceof T(IllegalArgumentException)", "#root instanceof T(IllegalStateException)", "#root instanceof T(java.io.IOException)"}, classifier.getRuleExpressions());
+		assertArrayEquals(new long[]{3, 4, 4}, classifier.getRuleEvaluationCounts());
+		assertArrayEquals(new long[]{3, 1, 0}, classifier.getRuleMatchCounts());
+
+		classifier.classify(new IllegalStateException());
+		classifier.classify(new IOException());
+		assertArrayEquals(new long[]{5, 6, 5}, classifier.getRuleEvaluationCounts());
+		assertArrayEquals(new long[]{3, 2, 1}, classifier.getRuleMatchCounts());
+	}
+
+	/**
+	 * Reset forgets the derived evaluations of type-only mappings too
+	 */
+	@Test
+	public void resetForgetsDerivedEvaluations()
+	{
+		SpELExpressionsClassifier<Throwable, String> classifier = classifier(
+				"#root instanceof T(java.io.IOException)", 
+				"#root instanceof T(IllegalStateException)");
+
+		classifier.classify(new IllegalStateException());
+		classifier.classify(new RuntimeException());
+		classifier.resetStatistics();
+
+		assertArrayEquals(new long[]{0, 0}, classifier.getRuleEvaluationCounts());
+		assertArrayEquals(new long[]{0, 0}, classifier.getRuleMatchCounts());
+	}
+
+	/**
+	 * @param expressions expressions of the mappings, each mapped to its position
+	 * @return classifier recording statistics of the mappings
+	 */
+	private static SpELExpressionsClassifier<Throwable, String> classifier(String... expressions)
+	{
+		List<SpELExpressionsClassifierConfig<String>> values = new ArrayList<SpELExpressionsClassifierConfig<String>>();
+
+		for (int i = 0; i < expressions.length; i++)
+		{
+			SpELExpressionsClassifierConfig<String> config = new SpELExpressionsClassifierConfig<String>();
+			config.setExpression(expressions[i]);
+			config.setValue(String.valueOf(i));
+			values.add(config);
+		}
+
+		SpELExpressionsClassifier<Throwable, String> classifier = new SpELExpressionsClassifier<Throwable, String>(values);
+		classifier.setStatisticsEnabled(true);
+
+		return classifier;
+	}
+}
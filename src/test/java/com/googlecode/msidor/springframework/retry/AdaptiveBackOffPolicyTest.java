@@ -0,0 +1,229 @@
+/*
+Copyright 2015 Maciej SIDOR [maciejsidor@gmail.com]
+
+The source code is licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+    
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.	
+ */
+package com.googlecode.msidor.springframework.retry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.retry.RetryContext;
+import org.springframework.retry.backoff.BackOffContext;
+import org.springframework.retry.context.RetryContextSupport;
+
+import com.googlecode.msidor.springframework.retry.DecorrelatedJitterBackOffPolicyTest.RecordingSleeper;
+
+/**
+ * Widening and narrowing of the delays of the {@link AdaptiveBackOffPolicy}
+ *
+ * @author Maciej SIDOR (maciejsidor@gmail.com)
+ * @since 2015
+ */
+public class AdaptiveBackOffPolicyTest
+{
+	/**
+	 * Delays requested by the tested policy
+	 */
+	private RecordingSleeper sleeper;
+
+	/**
+	 * The tested policy, registered as listener
+	 */
+	private AdaptiveBackOffPolicy policy;
+
+	/**
+	 * Creates a policy without jitter, with an initial interval of 100 ms, multiplier of 2 and max widening of 10
+	 */
+	@Before
+	public void setUp()
+	{
+		sleeper = new RecordingSleeper();
+		policy 	= new AdaptiveBackOffPolicy();
+		policy.setInitialInterval(100);
+		policy.setMultiplier(2);
+		policy.setMaxWidening(10);
+		policy.setMaxInterval(100000);
+		policy.setOutcomeWeight(0.5);
+		policy.setJitter(false);
+		policy.setSleeper(sleeper);
+	}
+
+	/**
+	 * Backing off again records the previous retry as failed, so that the next delay is both multiplied and widened
+	 */
+	@Test
+	public void backingOffAgainWidensDelays()
+	{
+		BackOffContext context = policy.start(new RetryContextSupport(null));
+		policy.backOff(context);
+		policy.backOff(context);
+		policy.backOff(context);
+
+		assertEquals(Long.valueOf(100), sleeper.delays.get(0));
+		/*success rate halved: 100*2*(1+0.5*9)*/
+		assertEquals(Long.valueOf(1100), sleeper.delays.get(1));
+		assertTrue(sleeper.delays.get(2)>sleeper.delays.get(1)*2);
+	}
+
+	/**
+	 * Failed retries lower the success rate and widen the first delay of the next operations up to max widening
+	 */
+	@Test
+	public void failedRetriesWidenDelays()
+	{
+		for (int operation = 0; operation < 20; operation++)
+		{
+			retry(false);
+		}
+
+		assertTrue(policy.getSuccessRate()<0.001);
+
+		sleeper.delays.clear();
+		policy.backOff(policy.start(new RetryContextSupport(null)));
+		assertEquals(Long.valueOf(999), sleeper.delays.get(0));
+	}
+
+	/**
+	 * Successful retries bring the success rate and the delays back down
+	 */
+	@Test
+	public void successfulRetriesNarrowDelaysBack()
+	{
+		for (int operation = 0; operation < 20; operation++)
+		{
+			retry(false);
+		}
+		for (int operation = 0; operation < 20; operation++)
+		{
+			retry(true);
+		}
+
+		assertTrue(policy.getSuccessRate()>0.999);
+
+		sleeper.delays.clear();
+		policy.backOff(policy.start(new RetryContextSupport(null)));
+		assertEquals(Long.valueOf(100), sleeper.delays.get(0));
+	}
+
+	/**
+	 * Operations closed without back off do not change the success rate
+	 */
+	@Test
+	public void operationsWithoutBackOffAreNotRecorded()
+	{
+		RetryContext context = new RetryContextSupport(null);
+		policy.start(context);
+		policy.close(context, null, new IllegalStateException());
+
+		assertEquals(1.0, policy.getSuccessRate(), 0);
+	}
+
+	/**
+	 * Delays are capped by the max interval, even when widened
+	 */
+	@Test
+	public void delaysAreCappedByMaxInterval()
+	{
+		policy.setMaxInterval(500);
+		for (int operation = 0; operation < 20; operation++)
+		{
+			retry(false);
+		}
+
+		BackOffContext context = policy.start(new RetryContextSupport(null));
+		for (int backOff = 0; backOff < 10; backOff++)
+		{
+			policy.backOff(context);
+		}
+
+		for (long delay : sleeper.delays)
+		{
+			assertTrue("Delay "+delay+" above max interval", delay<=500);
+		}
+	}
+
+	/**
+	 * Randomized delays stay between half and full delay
+	 */
+	@Test
+	public void jitteredDelaysStayWithinHalfAndFullDelay()
+	{
+		policy.setJitter(true);
+
+		for (int operation = 0; operation < 100; operation++)
+		{
+			policy.backOff(policy.start(new RetryContextSupport(null)));
+		}
+
+		for (long delay : sleeper.delays)
+		{
+			assertTrue("Delay "+delay+" out of bounds", delay>=50 && delay<=100);
+		}
+	}
+
+	/**
+	 * A copy made for another sleeper shares the success rate
+	 */
+	@Test
+	public void copySharesSuccessRate()
+	{
+		AdaptiveBackOffPolicy copy = policy.withSleeper(new RecordingSleeper());
+
+		retry(false);
+
+		assertEquals(policy.getSuccessRate(), copy.getSuccessRate(), 0);
+		assertTrue(copy.getSuccessRate()<1);
+	}
+
+	/**
+	 * Multiplier must not be lower than 1
+	 */
+	@Test(expected=IllegalArgumentException.class)
+	public void rejectsShrinkingMultiplier()
+	{
+		policy.setMultiplier(0.5);
+	}
+
+	/**
+	 * Max widening must not be lower than 1
+	 */
+	@Test(expected=IllegalArgumentException.class)
+	public void rejectsNarrowingMaxWidening()
+	{
+		policy.setMaxWidening(0.5);
+	}
+
+	/**
+	 * Outcome weight must be between 0 and 1
+	 */
+	@Test(expected=IllegalArgumentException.class)
+	public void rejectsOutcomeWeightAboveOne()
+	{
+		policy.setOutcomeWeight(1.5);
+	}
+
+	/**
+	 * Backs off once and closes the operation with the given retry outcome
+	 *
+	 * @param succeeded true if the retry succeeded
+	 */
+	private void retry(boolean succeeded)
+	{
+		RetryContext context = new RetryContextSupport(null);
+		policy.backOff(policy.start(context));
+		policy.close(context, null, succeeded ? null : new IllegalStateException());
+	}
+}
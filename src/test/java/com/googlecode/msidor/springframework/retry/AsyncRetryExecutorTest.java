@@ -0,0 +1,173 @@
+/*
+Copyright 2015 Maciej SIDOR [maciejsidor@gmail.com]
+
+The source code is licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+    
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.	
+ */
+package com.googlecode.msidor.springframework.retry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.retry.RetryCallback;
+import org.springframework.retry.RetryContext;
+import org.springframework.retry.backoff.FixedBackOffPolicy;
+import org.springframework.retry.policy.SimpleRetryPolicy;
+
+/**
+ * Retries and cancellation of the {@link AsyncRetryExecutor}
+ *
+ * @author Maciej SIDOR (maciejsidor@gmail.com)
+ * @since 2015
+ */
+public class AsyncRetryExecutorTest
+{
+	/**
+	 * The tested executor
+	 */
+	private AsyncRetryExecutor executor;
+
+	/**
+	 * Creates an executor making at most 3 attempts
+	 */
+	@Before
+	public void setUp()
+	{
+		SimpleRetryPolicy retryPolicy = new SimpleRetryPolicy();
+		retryPolicy.setMaxAttempts(3);
+
+		executor = new AsyncRetryExecutor();
+		executor.setRetryPolicy(retryPolicy);
+	}
+
+	/**
+	 * Shuts down the scheduler of the executor
+	 */
+	@After
+	public void tearDown()
+	{
+		executor.destroy();
+	}
+
+	/**
+	 * Failed attempts are retried until one succeeds
+	 */
+	@Test
+	public void retriesUntilSuccess() throws Exception
+	{
+		FailingOperation operation = new FailingOperation(2);
+
+		assertEquals("done", executor.execute(operation).get(5, TimeUnit.SECONDS));
+		assertEquals(3, operation.attempts.get());
+	}
+
+	/**
+	 * The operation fails with the last exception once the retry policy gives up
+	 */
+	@Test
+	public void failsWithLastExceptionWhenExhausted() throws Exception
+	{
+		FailingOperation operation = new FailingOperation(Integer.MAX_VALUE);
+
+		try
+		{
+			executor.execute(operation).get(5, TimeUnit.SECONDS);
+			fail("Operation should fail");
+		}
+		catch (ExecutionException e)
+		{
+			assertSame(operation.lastFailure, e.getCause());
+		}
+
+		assertEquals(3, operation.attempts.get());
+	}
+
+	/**
+	 * Cancelling the result while backing off stops the retries
+	 */
+	@Test
+	public void cancelStopsRetries() throws Exception
+	{
+		FixedBackOffPolicy backOffPolicy = new FixedBackOffPolicy();
+		backOffPolicy.setBackOffPeriod(100);
+		executor.setBackOffPolicy(backOffPolicy);
+
+		FailingOperation operation = new FailingOperation(Integer.MAX_VALUE);
+		CompletableFuture<String> result = executor.execute(operation);
+
+		assertEquals(1, operation.attempts.get());
+		assertTrue(result.cancel(false));
+
+		Thread.sleep(300);
+		assertEquals(1, operation.attempts.get());
+	}
+
+	/**
+	 * Operation which futures fail a given number of times, then succeed
+	 *
+	 * @author Maciej SIDOR (maciejsidor@gmail.com)
+	 * @since 2015
+	 */
+	private static final class FailingOperation implements RetryCallback<CompletionStage<String>, Exception>
+	{
+		/**
+		 * Number of attempts made
+		 */
+		final AtomicInteger attempts = new AtomicInteger();
+
+		/**
+		 * Number of attempts that fail
+		 */
+		final int failures;
+
+		/**
+		 * Exception of the last failed attempt
+		 */
+		volatile Exception lastFailure;
+
+		/**
+		 * @param failures number of attempts that fail
+		 */
+		FailingOperation(int failures)
+		{
+			this.failures = failures;
+		}
+
+		public CompletionStage<String> doWithRetry(RetryContext context)
+		{
+			CompletableFuture<String> future = new CompletableFuture<String>();
+
+			if(attempts.incrementAndGet()>failures)
+			{
+				future.complete("done");
+			}
+			else
+			{
+				lastFailure = new IllegalStateException("Attempt "+attempts.get()+" failed");
+				future.completeExceptionally(lastFailure);
+			}
+
+			return future;
+		}
+	}
+}
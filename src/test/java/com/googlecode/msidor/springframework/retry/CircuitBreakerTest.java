@@ -0,0 +1,226 @@
+/*
+Copyright 2015 Maciej SIDOR [maciejsidor@gmail.com]
+
+The source code is licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+    
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.	
+ */
+package com.googlecode.msidor.springframework.retry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.googlecode.msidor.springframework.retry.CircuitBreaker.Permit;
+import com.googlecode.msidor.springframework.retry.CircuitBreaker.State;
+
+/**
+ * State transitions of the {@link CircuitBreaker}
+ *
+ * @author Maciej SIDOR (maciejsidor@gmail.com)
+ * @since 2015
+ */
+public class CircuitBreakerTest
+{
+	/**
+	 * Time during which the tested circuit is open, in milliseconds
+	 */
+	private static final long OPEN_DURATION = 50;
+
+	/**
+	 * The tested circuit
+	 */
+	private CircuitBreaker circuit;
+
+	/**
+	 * Creates a circuit opening at 50% failures of at least 4 calls, probed by 2 calls
+	 */
+	@Before
+	public void setUp()
+	{
+		circuit = new CircuitBreaker();
+		circuit.setMinimumCalls(4);
+		circuit.setFailureRateThreshold(0.5);
+		circuit.setOpenDuration(OPEN_DURATION);
+		circuit.setProbeCount(2);
+	}
+
+	/**
+	 * Failures below the minimum number of calls do not open the circuit
+	 */
+	@Test
+	public void staysClosedBelowMinimumCalls()
+	{
+		record(3, false);
+
+		assertEquals(State.CLOSED, circuit.getState());
+		assertNotNull(circuit.tryAcquirePermission());
+	}
+
+	/**
+	 * The circuit opens once the failure rate reaches the threshold and then denies calls
+	 */
+	@Test
+	public void opensAtFailureRateThreshold()
+	{
+		record(2, true);
+		record(1, false);
+		assertEquals(State.CLOSED, circuit.getState());
+
+		record(1, false);
+		assertEquals(State.OPEN, circuit.getState());
+
+		assertNull(circuit.tryAcquirePermission());
+		assertEquals(1, circuit.getDeniedCallCount());
+	}
+
+	/**
+	 * Once the open duration elapses, only the probes are permitted and the circuit closes when all of them succeed
+	 */
+	@Test
+	public void closesWhenAllProbesSucceed() throws InterruptedException
+	{
+		open();
+		Thread.sleep(OPEN_DURATION*2);
+
+		Permit first = circuit.tryAcquirePermission();
+		assertNotNull(first);
+		assertEquals(State.HALF_OPEN, circuit.getState());
+		Permit second = circuit.tryAcquirePermission();
+		assertNotNull(second);
+		assertNull(circuit.tryAcquirePermission());
+
+		circuit.recordSuccess(first);
+		assertEquals(State.HALF_OPEN, circuit.getState());
+
+		circuit.recordSuccess(second);
+		assertEquals(State.CLOSED, circuit.getState());
+		assertNotNull(circuit.tryAcquirePermission());
+	}
+
+	/**
+	 * A failed probe opens the circuit again
+	 */
+	@Test
+	public void reopensOnFailedProbe() throws InterruptedException
+	{
+		open();
+		Thread.sleep(OPEN_DURATION*2);
+
+		circuit.recordFailure(circuit.tryAcquirePermission());
+
+		assertEquals(State.OPEN, circuit.getState());
+		assertNull(circuit.tryAcquirePermission());
+	}
+
+	/**
+	 * Calls permitted while closed and completing once half-open are not taken for probes
+	 */
+	@Test
+	public void ignoresOutcomesOfEarlierStates() throws InterruptedException
+	{
+		Permit closedPermit = circuit.tryAcquirePermission();
+		Permit otherClosedPermit = circuit.tryAcquirePermission();
+		open();
+		Thread.sleep(OPEN_DURATION*2);
+
+		Permit probe = circuit.tryAcquirePermission();
+		assertEquals(State.HALF_OPEN, circuit.getState());
+
+		circuit.recordSuccess(closedPermit);
+		circuit.recordSuccess(otherClosedPermit);
+		assertEquals(State.HALF_OPEN, circuit.getState());
+
+		circuit.recordFailure(closedPermit);
+		assertEquals(State.HALF_OPEN, circuit.getState());
+
+		circuit.recordSuccess(probe);
+		circuit.recordSuccess(circuit.tryAcquirePermission());
+		assertEquals(State.CLOSED, circuit.getState());
+	}
+
+	/**
+	 * A released probe permit may be taken by another call, but never more permits than probes are handed out
+	 */
+	@Test
+	public void releasedProbePermitIsReused() throws InterruptedException
+	{
+		Permit closedPermit = circuit.tryAcquirePermission();
+		open();
+		Thread.sleep(OPEN_DURATION*2);
+
+		Permit probe = circuit.tryAcquirePermission();
+		assertNotNull(probe);
+		assertNotNull(circuit.tryAcquirePermission());
+		assertNull(circuit.tryAcquirePermission());
+
+		circuit.releasePermission(closedPermit);
+		assertNull(circuit.tryAcquirePermission());
+
+		circuit.releasePermission(probe);
+		assertNotNull(circuit.tryAcquirePermission());
+
+		circuit.releasePermission(probe);
+		circuit.releasePermission(probe);
+		circuit.releasePermission(probe);
+		assertNotNull(circuit.tryAcquirePermission());
+		assertNotNull(circuit.tryAcquirePermission());
+		assertNull(circuit.tryAcquirePermission());
+	}
+
+	/**
+	 * Opening and closing by hand
+	 */
+	@Test
+	public void opensAndClosesOnDemand()
+	{
+		circuit.open();
+		assertEquals(State.OPEN, circuit.getState());
+		assertNull(circuit.tryAcquirePermission());
+
+		circuit.close();
+		assertEquals(State.CLOSED, circuit.getState());
+		assertNotNull(circuit.tryAcquirePermission());
+	}
+
+	/**
+	 * Opens the circuit by recording failures
+	 */
+	private void open()
+	{
+		record(4, false);
+		assertEquals(State.OPEN, circuit.getState());
+	}
+
+	/**
+	 * @param calls number of calls to record
+	 * @param succeeded true to record successful calls, false to record failed calls
+	 */
+	private void record(int calls, boolean succeeded)
+	{
+		for (int i = 0; i < calls; i++)
+		{
+			Permit permit = circuit.tryAcquirePermission();
+
+			if(succeeded)
+			{
+				circuit.recordSuccess(permit);
+			}
+			else
+			{
+				circuit.recordFailure(permit);
+			}
+		}
+	}
+}
@@ -0,0 +1,184 @@
+/*
+Copyright 2015 Maciej SIDOR [maciejsidor@gmail.com]
+
+The source code is licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+    
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.	
+ */
+package com.googlecode.msidor.springframework.retry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.retry.backoff.BackOffContext;
+import org.springframework.retry.backoff.Sleeper;
+
+/**
+ * Delays of the {@link DecorrelatedJitterBackOffPolicy}
+ *
+ * @author Maciej SIDOR (maciejsidor@gmail.com)
+ * @since 2015
+ */
+public class DecorrelatedJitterBackOffPolicyTest
+{
+	/**
+	 * Delays requested by the tested policy
+	 */
+	private RecordingSleeper sleeper;
+
+	/**
+	 * The tested policy
+	 */
+	private DecorrelatedJitterBackOffPolicy policy;
+
+	/**
+	 * Creates the policy sleeping through the recording sleeper
+	 */
+	@Before
+	public void setUp()
+	{
+		sleeper = new RecordingSleeper();
+		policy 	= new DecorrelatedJitterBackOffPolicy();
+		policy.setInitialInterval(10);
+		policy.setMaxInterval(1000);
+		policy.setSleeper(sleeper);
+	}
+
+	/**
+	 * Each delay is between the initial interval and three times the previous delay, never above the max interval
+	 */
+	@Test
+	public void delaysStayWithinBounds()
+	{
+		for (int operation = 0; operation < 100; operation++)
+		{
+			BackOffContext context = policy.start(null);
+			for (int backOff = 0; backOff < 20; backOff++)
+			{
+				policy.backOff(context);
+			}
+		}
+
+		long previous = 10;
+		for (int i = 0; i < sleeper.delays.size(); i++)
+		{
+			if(i%20==0)
+			{
+				previous = 10;
+			}
+
+			long delay = sleeper.delays.get(i);
+			assertTrue("Delay "+delay+" below initial interval", delay>=10);
+			assertTrue("Delay "+delay+" above max interval", delay<=1000);
+			assertTrue("Delay "+delay+" above three times "+previous, delay<Math.max(previous*3, 11));
+			previous = delay;
+		}
+	}
+
+	/**
+	 * Delays never drop to zero, even with an initial interval of one millisecond
+	 */
+	@Test
+	public void delaysNeverDropToZero()
+	{
+		policy.setInitialInterval(1);
+
+		BackOffContext context = policy.start(null);
+		for (int backOff = 0; backOff < 50; backOff++)
+		{
+			policy.backOff(context);
+		}
+
+		for (long delay : sleeper.delays)
+		{
+			assertTrue("Delay "+delay+" is zero", delay>=1);
+		}
+	}
+
+	/**
+	 * Delays are never lower than the initial interval, even if the max interval is
+	 */
+	@Test
+	public void initialIntervalWinsOverLowerMaxInterval()
+	{
+		policy.setMaxInterval(5);
+
+		BackOffContext context = policy.start(null);
+		for (int backOff = 0; backOff < 10; backOff++)
+		{
+			policy.backOff(context);
+		}
+
+		for (long delay : sleeper.delays)
+		{
+			assertEquals(10, delay);
+		}
+	}
+
+	/**
+	 * A copy made for another sleeper keeps the intervals and sleeps through that sleeper only
+	 */
+	@Test
+	public void copyUsesItsOwnSleeper()
+	{
+		RecordingSleeper other 						= new RecordingSleeper();
+		DecorrelatedJitterBackOffPolicy copy 		= policy.withSleeper(other);
+
+		copy.backOff(copy.start(null));
+
+		assertEquals(0, sleeper.delays.size());
+		assertEquals(1, other.delays.size());
+		assertEquals(10, copy.getInitialInterval());
+		assertEquals(1000, copy.getMaxInterval());
+	}
+
+	/**
+	 * Initial interval must be positive
+	 */
+	@Test(expected=IllegalArgumentException.class)
+	public void rejectsZeroInitialInterval()
+	{
+		policy.setInitialInterval(0);
+	}
+
+	/**
+	 * Max interval must be positive
+	 */
+	@Test(expected=IllegalArgumentException.class)
+	public void rejectsNegativeMaxInterval()
+	{
+		policy.setMaxInterval(-1);
+	}
+
+	/**
+	 * Sleeper recording the requested delays instead of sleeping
+	 *
+	 * @author Maciej SIDOR (maciejsidor@gmail.com)
+	 * @since 2015
+	 */
+	static final class RecordingSleeper implements Sleeper
+	{
+		/**
+		 * Requested delays, in milliseconds
+		 */
+		final List<Long> delays = new ArrayList<Long>();
+
+		public void sleep(long backOffPeriod)
+		{
+			delays.add(backOffPeriod);
+		}
+	}
+}
@@ -0,0 +1,232 @@
+/*
+Copyright 2015 Maciej SIDOR [maciejsidor@gmail.com]
+
+The source code is licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+    
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.	
+ */
+package com.googlecode.msidor.springframework.retry;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.classify.ClassifierSupport;
+
+/**
+ * First success and failure handling of the {@link HedgingExecutor}
+ *
+ * @author Maciej SIDOR (maciejsidor@gmail.com)
+ * @since 2015
+ */
+public class HedgingExecutorTest
+{
+	/**
+	 * The tested executor
+	 */
+	private HedgingExecutor executor;
+
+	/**
+	 * Creates an executor hedging all operations after 20 milliseconds
+	 */
+	@Before
+	public void setUp()
+	{
+		executor = new HedgingExecutor();
+		executor.setInitialHedgeDelay(20);
+	}
+
+	/**
+	 * Shuts down the scheduler of the executor
+	 */
+	@After
+	public void tearDown()
+	{
+		executor.destroy();
+	}
+
+	/**
+	 * A first attempt completing before the hedge delay is not hedged
+	 */
+	@Test
+	public void fastAttemptIsNotHedged() throws Exception
+	{
+		PendingAttempts<String> attempts = new PendingAttempts<String>();
+		CompletableFuture<String> result = executor.execute("operation", attempts);
+
+		attempts.get(0).complete("first");
+		assertEquals("first", result.get(5, TimeUnit.SECONDS));
+
+		Thread.sleep(100);
+		assertEquals(1, attempts.size());
+		assertEquals(0, executor.getHedgeCount());
+	}
+
+	/**
+	 * When the first attempt is slow, the hedge is started and the first successful attempt completes the operation
+	 */
+	@Test
+	public void firstSuccessWinsAndCancelsTheOther() throws Exception
+	{
+		PendingAttempts<String> attempts = new PendingAttempts<String>();
+		CompletableFuture<String> result = executor.execute("operation", attempts);
+
+		attempts.awaitSize(2);
+		attempts.get(1).complete("hedge");
+
+		assertEquals("hedge", result.get(5, TimeUnit.SECONDS));
+		assertTrue(attempts.get(0).isCancelled());
+		assertEquals(1, executor.getHedgeCount());
+		assertEquals(1, executor.getHedgeWinCount());
+	}
+
+	/**
+	 * The operation fails only once both attempts failed, with the first failure and the other one suppressed
+	 */
+	@Test
+	public void failsWhenBothAttemptsFail() throws Exception
+	{
+		PendingAttempts<String> attempts = new PendingAttempts<String>();
+		CompletableFuture<String> result = executor.execute("operation", attempts);
+
+		attempts.awaitSize(2);
+
+		IllegalStateException firstFailure = new IllegalStateException("first");
+		attempts.get(0).completeExceptionally(firstFailure);
+		assertFalse(result.isDone());
+
+		IllegalStateException hedgeFailure = new IllegalStateException("hedge");
+		attempts.get(1).completeExceptionally(hedgeFailure);
+
+		try
+		{
+			result.get(5, TimeUnit.SECONDS);
+			fail("Operation should fail");
+		}
+		catch (ExecutionException e)
+		{
+			assertSame(firstFailure, e.getCause());
+			assertArrayEquals(new Throwable[]{hedgeFailure}, firstFailure.getSuppressed());
+		}
+	}
+
+	/**
+	 * A failure of the first attempt starts the hedge right away if the exception rules say so
+	 */
+	@Test
+	public void hedgeableFailureStartsTheHedge() throws Exception
+	{
+		executor.setInitialHedgeDelay(TimeUnit.HOURS.toMillis(1));
+		executor.setExceptionClassifier(new ClassifierSupport<Throwable, Boolean>(Boolean.TRUE));
+
+		PendingAttempts<String> attempts = new PendingAttempts<String>();
+		CompletableFuture<String> result = executor.execute("operation", attempts);
+
+		attempts.get(0).completeExceptionally(new IllegalStateException("timeout"));
+		attempts.awaitSize(2);
+		attempts.get(1).complete("hedge");
+
+		assertEquals("hedge", result.get(5, TimeUnit.SECONDS));
+	}
+
+	/**
+	 * The hedge delay follows the latencies of the window and falls back to the initial delay once they are forgotten
+	 */
+	@Test
+	public void hedgeDelayFollowsRecentLatencies() throws Exception
+	{
+		executor.setMinimumSamples(10);
+		executor.setLatencyWindow(300);
+		assertEquals(20, executor.getHedgeDelay());
+
+		for (int i = 0; i < 10; i++)
+		{
+			PendingAttempts<String> attempts = new PendingAttempts<String>();
+			CompletableFuture<String> result = executor.execute("operation", attempts);
+			attempts.get(0).complete("first");
+			result.get(5, TimeUnit.SECONDS);
+		}
+
+		Thread.sleep(150);
+		assertTrue(executor.getHedgeDelay()<20);
+
+		Thread.sleep(450);
+		assertEquals(20, executor.getHedgeDelay());
+	}
+
+	/**
+	 * Operation returning a new pending future on each attempt
+	 *
+	 * @author Maciej SIDOR (maciejsidor@gmail.com)
+	 * @since 2015
+	 */
+	private static final class PendingAttempts<T> implements Callable<CompletionStage<T>>
+	{
+		/**
+		 * Futures returned by the attempts, in order
+		 */
+		private final List<CompletableFuture<T>> futures = new CopyOnWriteArrayList<CompletableFuture<T>>();
+
+		public CompletionStage<T> call()
+		{
+			CompletableFuture<T> future = new CompletableFuture<T>();
+			futures.add(future);
+
+			return future;
+		}
+
+		/**
+		 * @param index index of the attempt
+		 * @return future returned by the attempt
+		 */
+		CompletableFuture<T> get(int index)
+		{
+			return futures.get(index);
+		}
+
+		/**
+		 * @return number of attempts made
+		 */
+		int size()
+		{
+			return futures.size();
+		}
+
+		/**
+		 * Waits until given number of attempts is made
+		 * @param size number of attempts
+		 */
+		void awaitSize(int size) throws InterruptedException
+		{
+			long deadline = System.nanoTime()+TimeUnit.SECONDS.toNanos(5);
+
+			while(futures.size()<size)
+			{
+				assertTrue("Attempt not made in time", System.nanoTime()<deadline);
+				Thread.sleep(5);
+			}
+		}
+	}
+}
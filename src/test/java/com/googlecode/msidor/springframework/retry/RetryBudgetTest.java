@@ -0,0 +1,162 @@
+/*
+Copyright 2015 Maciej SIDOR [maciejsidor@gmail.com]
+
+The source code is licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+    
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.	
+ */
+package com.googlecode.msidor.springframework.retry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Withdrawals and refills of the {@link RetryBudget}
+ *
+ * @author Maciej SIDOR (maciejsidor@gmail.com)
+ * @since 2015
+ */
+public class RetryBudgetTest
+{
+	/**
+	 * Retries are denied once the bucket is empty
+	 */
+	@Test
+	public void deniesRetriesOnceSpent()
+	{
+		RetryBudget budget = new RetryBudget();
+		budget.setMinRetriesPerSecond(0);
+		budget.setMaxRetryTokens(2);
+
+		assertTrue(budget.tryAcquireRetry());
+		assertTrue(budget.tryAcquireRetry());
+		assertFalse(budget.tryAcquireRetry());
+
+		assertEquals(2, budget.getRetryCount());
+		assertEquals(1, budget.getDeniedRetryCount());
+	}
+
+	/**
+	 * The bucket starts full with the configured max retry tokens
+	 */
+	@Test
+	public void startsFullAtConfiguredMaximum()
+	{
+		RetryBudget budget = new RetryBudget();
+		budget.setMinRetriesPerSecond(0);
+		budget.setMaxRetryTokens(500);
+
+		assertEquals(500, budget.getAvailableRetries());
+		assertEquals(500, countRetries(budget));
+	}
+
+	/**
+	 * Each request deposits the retry ratio of a token
+	 */
+	@Test
+	public void requestsRefillTheBucket()
+	{
+		RetryBudget budget = spentBudget(0, 10);
+		budget.setRetryRatio(0.5);
+
+		budget.recordRequest();
+		assertFalse(budget.tryAcquireRetry());
+
+		budget.recordRequest();
+		assertTrue(budget.tryAcquireRetry());
+		assertFalse(budget.tryAcquireRetry());
+	}
+
+	/**
+	 * The bucket is refilled over time by the min retries per second, up to the max retry tokens
+	 */
+	@Test
+	public void timeRefillsTheBucket() throws InterruptedException
+	{
+		RetryBudget budget = spentBudget(100, 3);
+
+		Thread.sleep(100);
+
+		assertEquals(3, countRetries(budget));
+	}
+
+	/**
+	 * A long idle time with a large bucket and rate does not overflow the refill
+	 */
+	@Test
+	public void largeRefillDoesNotOverflow() throws InterruptedException
+	{
+		RetryBudget budget = spentBudget(Integer.MAX_VALUE, Integer.MAX_VALUE);
+
+		Thread.sleep(20);
+
+		assertTrue(budget.tryAcquireRetry());
+		assertTrue(budget.getAvailableRetries()>0);
+	}
+
+	/**
+	 * Lowering the max retry tokens caps the tokens, raising it does not refill the bucket
+	 */
+	@Test
+	public void maxRetryTokensOnlyCapsTheBucket()
+	{
+		RetryBudget budget = new RetryBudget();
+		budget.setMinRetriesPerSecond(0);
+
+		budget.setMaxRetryTokens(5);
+		assertEquals(5, budget.getAvailableRetries());
+
+		assertTrue(budget.tryAcquireRetry());
+		budget.setMaxRetryTokens(50);
+		assertEquals(4, budget.getAvailableRetries());
+	}
+
+	/**
+	 * @param minRetriesPerSecond tokens deposited per second
+	 * @param maxRetryTokens maximal number of tokens
+	 * @return budget which tokens are all withdrawn
+	 */
+	private static RetryBudget spentBudget(int minRetriesPerSecond, int maxRetryTokens)
+	{
+		RetryBudget budget = new RetryBudget();
+		budget.setMinRetriesPerSecond(0);
+		budget.setMaxRetryTokens(1);
+
+		while(budget.tryAcquireRetry())
+		{
+			/*spend all tokens*/
+		}
+
+		/*raising the maximum once used does not add tokens*/
+		budget.setMaxRetryTokens(maxRetryTokens);
+		budget.setMinRetriesPerSecond(minRetriesPerSecond);
+		return budget;
+	}
+
+	/**
+	 * @param budget the budget
+	 * @return number of retries allowed until the budget is spent
+	 */
+	private static int countRetries(RetryBudget budget)
+	{
+		int count = 0;
+
+		while(budget.tryAcquireRetry())
+		{
+			count++;
+		}
+
+		return count;
+	}
+}
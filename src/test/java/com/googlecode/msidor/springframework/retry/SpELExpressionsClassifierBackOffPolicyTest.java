@@ -0,0 +1,203 @@
+/*
+Copyright 2015 Maciej SIDOR [maciejsidor@gmail.com]
+
+The source code is licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+    
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.	
+ */
+package com.googlecode.msidor.springframework.retry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.retry.backoff.BackOffContext;
+import org.springframework.retry.backoff.BackOffPolicy;
+import org.springframework.retry.context.RetryContextSupport;
+
+import com.googlecode.msidor.springframework.classify.SpELExpressionsClassifierConfig;
+import com.googlecode.msidor.springframework.retry.DecorrelatedJitterBackOffPolicyTest.RecordingSleeper;
+
+/**
+ * Delegation of the {@link SpELExpressionsClassifierBackOffPolicy} to the policy mapped to the last exception
+ *
+ * @author Maciej SIDOR (maciejsidor@gmail.com)
+ * @since 2015
+ */
+public class SpELExpressionsClassifierBackOffPolicyTest
+{
+	/**
+	 * Delays requested by the policy mapped to I/O errors
+	 */
+	private RecordingSleeper ioSleeper;
+
+	/**
+	 * Delays requested by the default policy
+	 */
+	private RecordingSleeper defaultSleeper;
+
+	/**
+	 * The tested policy
+	 */
+	private SpELExpressionsClassifierBackOffPolicy policy;
+
+	/**
+	 * Maps I/O errors to a 1 second decorrelated jitter and other errors to a 10 ms one
+	 */
+	@Before
+	public void setUp()
+	{
+		ioSleeper 		= new RecordingSleeper();
+		defaultSleeper 	= new RecordingSleeper();
+
+		List<SpELExpressionsClassifierConfig<BackOffPolicy>> policies = new ArrayList<SpELExpressionsClassifierConfig<BackOffPolicy>>();
+		policies.add(config("#root instanceof T(java.io.IOException)", jitter(1000, ioSleeper), false));
+		policies.add(config("true", jitter(10, defaultSleeper), true));
+
+		policy = new SpELExpressionsClassifierBackOffPolicy();
+		policy.setPolicies(policies);
+	}
+
+	/**
+	 * Each back off is delegated to the policy mapped to the last exception
+	 */
+	@Test
+	public void delegatesToPolicyOfLastException()
+	{
+		RetryContextSupport context = new RetryContextSupport(null);
+		BackOffContext backOffContext = policy.start(context);
+
+		context.registerThrowable(new IOException());
+		policy.backOff(backOffContext);
+		context.registerThrowable(new IllegalStateException());
+		policy.backOff(backOffContext);
+
+		assertEquals(1, ioSleeper.delays.size());
+		assertTrue(ioSleeper.delays.get(0)>=1000);
+		assertEquals(1, defaultSleeper.delays.size());
+		assertTrue(defaultSleeper.delays.get(0)<30);
+	}
+
+	/**
+	 * Each chosen policy keeps its back off state when the exceptions alternate
+	 */
+	@Test
+	public void chosenPoliciesKeepTheirState()
+	{
+		RetryContextSupport context = new RetryContextSupport(null);
+		BackOffContext backOffContext = policy.start(context);
+
+		for (int backOff = 0; backOff < 10; backOff++)
+		{
+			context.registerThrowable(backOff%2==0 ? new IOException() : new IllegalStateException());
+			policy.backOff(backOffContext);
+		}
+
+		/*a restarted policy would never exceed three times its initial interval*/
+		long maxDefaultDelay = 0;
+		for (long delay : defaultSleeper.delays)
+		{
+			assertTrue("Delay "+delay+" below initial interval", delay>=10);
+			maxDefaultDelay = Math.max(maxDefaultDelay, delay);
+		}
+		assertEquals(5, defaultSleeper.delays.size());
+		assertTrue(maxDefaultDelay<=10*3*3*3*3*3);
+	}
+
+	/**
+	 * A copy made for another sleeper passes it on to the chosen sleeping policies
+	 */
+	@Test
+	public void copyPassesSleeperOn()
+	{
+		RecordingSleeper sleeper 							= new RecordingSleeper();
+		SpELExpressionsClassifierBackOffPolicy copy 		= policy.withSleeper(sleeper);
+
+		RetryContextSupport context = new RetryContextSupport(null);
+		BackOffContext backOffContext = copy.start(context);
+		context.registerThrowable(new IOException());
+		copy.backOff(backOffContext);
+		context.registerThrowable(new IllegalStateException());
+		copy.backOff(backOffContext);
+
+		assertEquals(2, sleeper.delays.size());
+		assertEquals(0, ioSleeper.delays.size());
+		assertEquals(0, defaultSleeper.delays.size());
+	}
+
+	/**
+	 * An exception mapped to no policy fails the back off
+	 */
+	@Test
+	public void unmappedExceptionFailsBackOff()
+	{
+		List<SpELExpressionsClassifierConfig<BackOffPolicy>> policies = new ArrayList<SpELExpressionsClassifierConfig<BackOffPolicy>>();
+		policies.add(config("#root instanceof T(java.io.IOException)", jitter(1000, ioSleeper), false));
+		policy.setPolicies(policies);
+
+		RetryContextSupport context = new RetryContextSupport(null);
+		BackOffContext backOffContext = policy.start(context);
+		context.registerThrowable(new IllegalStateException());
+
+		try
+		{
+			policy.backOff(backOffContext);
+			fail("Back off should fail");
+		}
+		catch (IllegalArgumentException e)
+		{
+			assertTrue(e.getMessage().startsWith("Could not locate back off policy"));
+		}
+	}
+
+	/**
+	 * Classifier must not be null
+	 */
+	@Test(expected=IllegalArgumentException.class)
+	public void rejectsNullClassifier()
+	{
+		policy.setExceptionClassifier(null);
+	}
+
+	/**
+	 * @param expression the SpEL expression
+	 * @param value the mapped policy
+	 * @param isDefault true for default mapping
+	 * @return the mapping
+	 */
+	private static SpELExpressionsClassifierConfig<BackOffPolicy> config(String expression, BackOffPolicy value, boolean isDefault)
+	{
+		SpELExpressionsClassifierConfig<BackOffPolicy> config = new SpELExpressionsClassifierConfig<BackOffPolicy>();
+		config.setExpression(expression);
+		config.setValue(value);
+		config.setDefault(isDefault);
+		return config;
+	}
+
+	/**
+	 * @param initialInterval the initial interval, in milliseconds
+	 * @param sleeper the recording sleeper
+	 * @return decorrelated jitter policy sleeping through the sleeper
+	 */
+	private static DecorrelatedJitterBackOffPolicy jitter(long initialInterval, RecordingSleeper sleeper)
+	{
+		DecorrelatedJitterBackOffPolicy policy = new DecorrelatedJitterBackOffPolicy();
+		policy.setInitialInterval(initialInterval);
+		policy.setSleeper(sleeper);
+		return policy;
+	}
+}